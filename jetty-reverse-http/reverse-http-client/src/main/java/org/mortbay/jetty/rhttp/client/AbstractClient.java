@@ -16,13 +16,27 @@
 
 package org.mortbay.jetty.rhttp.client;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.eclipse.jetty.util.log.Log;
@@ -33,11 +47,69 @@ import org.eclipse.jetty.util.log.Logger;
  */
 public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPClient
 {
+    protected static final int STREAM_BUFFER_SIZE = 8192;
+
     private final Logger logger = Log.getLogger("org.mortbay.jetty.rhttp.client");
     private final List<RHTTPListener> listeners = new CopyOnWriteArrayList<RHTTPListener>();
     private final List<ClientListener> clientListeners = new CopyOnWriteArrayList<ClientListener>();
+    private final List<RHTTPResponse> deliveries = new ArrayList<RHTTPResponse>();
+    private final Runnable flushDeliveries = new Runnable()
+    {
+        public void run()
+        {
+            flushDeliveries();
+        }
+    };
+    private final Runnable connect = new Runnable()
+    {
+        public void run()
+        {
+            if (isConnected())
+                asyncConnect();
+            else
+                pollEnded();
+        }
+    };
+    private final Runnable reconnect = new Runnable()
+    {
+        public void run()
+        {
+            try
+            {
+                connect();
+                reconnecting.set(false);
+            }
+            catch (IOException x)
+            {
+                getLogger().debug("Client {} handshake failed", getTargetId(), null);
+                if (!retry(this))
+                    reconnecting.set(false);
+            }
+        }
+    };
+    // The long polls sent and not ended yet, including those waiting to be retried
+    private final AtomicInteger pendingPolls = new AtomicInteger();
+    // Whether a handshake is scheduled because the gateway server required it
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
     private final String targetId;
     private volatile Status status = Status.DISCONNECTED;
+    private volatile String offeredCodecs = FrameCodec.getSupportedNames();
+    private volatile FrameCodec codec = FrameCodec.TEXT;
+    private volatile String offeredCompressions = PayloadCompression.getSupportedNames();
+    private volatile PayloadCompression compression;
+    private volatile int compressionThreshold = PayloadCompression.DEFAULT_THRESHOLD;
+    private volatile int maxDecompressedSize = PayloadCompression.DEFAULT_MAX_SIZE;
+    private volatile boolean streaming;
+    private volatile boolean batching;
+    private volatile long deliverWindow;
+    private volatile int maxDeliverBatch = 64;
+    private volatile String sessionToken;
+    private volatile int offeredPolls = 1;
+    private volatile int polls = 1;
+    private volatile long holdTime;
+    private volatile long holdTimeMargin = 10000;
+    private volatile RetryPolicy retryPolicy;
+    private volatile RequestDispatcher requestDispatcher;
 
     public AbstractClient(String targetId)
     {
@@ -59,6 +131,301 @@ public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPC
         return logger;
     }
 
+    /**
+     * @return the comma separated list of {@link FrameCodec} names offered to the gateway server during the handshake
+     */
+    public String getOfferedCodecs()
+    {
+        return offeredCodecs;
+    }
+
+    /**
+     * @param offeredCodecs the comma separated list of {@link FrameCodec} names to offer to the gateway server
+     * during the handshake, in order of preference
+     */
+    public void setOfferedCodecs(String offeredCodecs)
+    {
+        this.offeredCodecs = offeredCodecs;
+    }
+
+    /**
+     * @return the {@link FrameCodec} negotiated with the gateway server during the last handshake
+     */
+    public FrameCodec getCodec()
+    {
+        return codec;
+    }
+
+    /**
+     * @return the comma separated list of {@link PayloadCompression} names offered to the gateway server
+     * during the handshake, or null if bodies are never compressed
+     */
+    public String getOfferedCompressions()
+    {
+        return offeredCompressions;
+    }
+
+    /**
+     * @param offeredCompressions the comma separated list of {@link PayloadCompression} names to offer to
+     * the gateway server during the handshake, in order of preference, or null to never compress bodies
+     */
+    public void setOfferedCompressions(String offeredCompressions)
+    {
+        this.offeredCompressions = offeredCompressions;
+    }
+
+    /**
+     * @return the {@link PayloadCompression} negotiated with the gateway server during the last handshake,
+     * or null if bodies are not compressed
+     */
+    public PayloadCompression getCompression()
+    {
+        return compression;
+    }
+
+    public int getCompressionThreshold()
+    {
+        return compressionThreshold;
+    }
+
+    /**
+     * @param compressionThreshold the minimum length of the response bodies that are compressed
+     */
+    public void setCompressionThreshold(int compressionThreshold)
+    {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getMaxDecompressedSize()
+    {
+        return maxDecompressedSize;
+    }
+
+    /**
+     * @param maxDecompressedSize the maximum length of the compressed request bodies once decompressed;
+     * requests exceeding it are answered with an exception response
+     */
+    public void setMaxDecompressedSize(int maxDecompressedSize)
+    {
+        this.maxDecompressedSize = maxDecompressedSize;
+    }
+
+    /**
+     * @return whether the gateway server accepted to stream large bodies during the last handshake
+     * @see #openRequestBody(RHTTPRequest)
+     * @see #deliver(RHTTPResponse, InputStream)
+     */
+    public boolean isStreaming()
+    {
+        return streaming;
+    }
+
+    /**
+     * @return whether the gateway server accepted deliver requests carrying more than one response
+     * during the last handshake
+     */
+    public boolean isBatching()
+    {
+        return batching;
+    }
+
+    /**
+     * @return the time, in milliseconds, responses wait to be delivered together with the following ones
+     */
+    public long getDeliverWindow()
+    {
+        return deliverWindow;
+    }
+
+    /**
+     * <p>Sets the time responses wait to be coalesced with the responses delivered after them,
+     * so that a burst of responses is delivered with one request to the gateway server.</p>
+     * @param deliverWindow the time, in milliseconds, or zero to deliver each response immediately
+     */
+    public void setDeliverWindow(long deliverWindow)
+    {
+        this.deliverWindow = deliverWindow;
+    }
+
+    public int getMaxDeliverBatch()
+    {
+        return maxDeliverBatch;
+    }
+
+    /**
+     * @param maxDeliverBatch the number of responses that are delivered without waiting for the end of the window
+     */
+    public void setMaxDeliverBatch(int maxDeliverBatch)
+    {
+        this.maxDeliverBatch = maxDeliverBatch;
+    }
+
+    /**
+     * @return the token issued by the gateway server during the last handshake to resume the session,
+     * or null if the gateway server did not issue one
+     * @see RHTTPClient#SESSION_HEADER
+     */
+    public String getSessionToken()
+    {
+        return sessionToken;
+    }
+
+    /**
+     * @return the number of long polls this client asks to keep outstanding during the handshake
+     * @see RHTTPClient#POLLS_HEADER
+     */
+    public int getOfferedPolls()
+    {
+        return offeredPolls;
+    }
+
+    public void setOfferedPolls(int offeredPolls)
+    {
+        this.offeredPolls = offeredPolls;
+    }
+
+    /**
+     * @return the number of long polls this client keeps outstanding, as accepted by the gateway server
+     */
+    public int getPolls()
+    {
+        return polls;
+    }
+
+    /**
+     * @return the time, in milliseconds, the gateway server holds the long polls of this client,
+     * as advertised in the last connect response, or 0 if not known
+     */
+    public long getHoldTime()
+    {
+        return holdTime;
+    }
+
+    /**
+     * @return the time, in milliseconds, a long poll may exceed the hold time before it times out
+     */
+    public long getHoldTimeMargin()
+    {
+        return holdTimeMargin;
+    }
+
+    public void setHoldTimeMargin(long holdTimeMargin)
+    {
+        this.holdTimeMargin = holdTimeMargin;
+    }
+
+    public RetryPolicy getRetryPolicy()
+    {
+        return retryPolicy;
+    }
+
+    /**
+     * @param retryPolicy the policy to retry failed connects and delivers, or null to leave
+     * retrying to the {@link ClientListener}s
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy)
+    {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RequestDispatcher getRequestDispatcher()
+    {
+        return requestDispatcher;
+    }
+
+    /**
+     * @param requestDispatcher the dispatcher of the requests to the {@link RHTTPListener}s,
+     * or null to notify the listeners of each request in turn, in the thread that received them
+     */
+    public void setRequestDispatcher(RequestDispatcher requestDispatcher)
+    {
+        this.requestDispatcher = requestDispatcher;
+    }
+
+    /**
+     * <p>Records the hold time advertised by the gateway server in a connect response.</p>
+     * @param value the value of the {@link RHTTPClient#HOLD_TIME_HEADER hold time header}, may be null
+     */
+    protected void holdTimeReceived(String value)
+    {
+        if (value == null)
+            return;
+        try
+        {
+            holdTime = Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException x)
+        {
+            getLogger().debug("Invalid hold time " + value, x);
+        }
+    }
+
+    /**
+     * @return the time, in milliseconds, after which a long poll is considered lost,
+     * following the hold time advertised by the gateway server, or 0 if not known
+     */
+    protected long getConnectTimeout()
+    {
+        long holdTime = getHoldTime();
+        return holdTime > 0 ? holdTime + getHoldTimeMargin() : 0;
+    }
+
+    /**
+     * @return the headers to send with the handshake request, offering the features supported by this client
+     * @see #handshakeComplete(Map)
+     */
+    protected Map<String, String> newHandshakeHeaders()
+    {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put(FrameCodec.HEADER, getOfferedCodecs());
+        String compressions = getOfferedCompressions();
+        if (compressions != null)
+            headers.put(PayloadCompression.HEADER, compressions);
+        headers.put(RHTTPRequest.STREAM_HEADER, "true");
+        headers.put(RHTTPResponse.BATCH_HEADER, "true");
+        String session = getSessionToken();
+        headers.put(SESSION_HEADER, session == null ? "true" : session);
+        int polls = getOfferedPolls();
+        if (polls > 1)
+            headers.put(POLLS_HEADER, String.valueOf(polls));
+        return headers;
+    }
+
+    /**
+     * <p>Records the features chosen by the gateway server in the handshake response.</p>
+     * @param headers the values of the {@link #newHandshakeHeaders() handshake headers} in the handshake
+     * response; values are null for the headers the gateway server did not send back
+     */
+    protected void handshakeComplete(Map<String, String> headers)
+    {
+        FrameCodec result = FrameCodec.forName(headers.get(FrameCodec.HEADER));
+        codec = result == null ? FrameCodec.TEXT : result;
+        compression = PayloadCompression.forName(headers.get(PayloadCompression.HEADER));
+        streaming = "true".equalsIgnoreCase(headers.get(RHTTPRequest.STREAM_HEADER));
+        batching = "true".equalsIgnoreCase(headers.get(RHTTPResponse.BATCH_HEADER));
+        sessionToken = headers.get(SESSION_HEADER);
+        polls = parsePolls(headers.get(POLLS_HEADER));
+        RetryPolicy policy = getRetryPolicy();
+        if (policy != null)
+            policy.succeeded();
+        getLogger().debug("Client {} handshake negotiated codec {}, compression {}, streaming {}, batching {}", new Object[]{getTargetId(), codec, compression, streaming, batching});
+    }
+
+    private int parsePolls(String value)
+    {
+        if (value == null)
+            return 1;
+        try
+        {
+            return Math.max(1, Math.min(getOfferedPolls(), Integer.parseInt(value.trim())));
+        }
+        catch (NumberFormatException x)
+        {
+            getLogger().debug("Invalid polls " + value, x);
+            return 1;
+        }
+    }
+
     public void addListener(RHTTPListener listener)
     {
         listeners.add(listener);
@@ -81,31 +448,68 @@ public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPC
 
     protected void notifyRequests(List<RHTTPRequest> requests)
     {
-        for (RHTTPRequest request : requests)
+        RequestDispatcher dispatcher = getRequestDispatcher();
+        for (final RHTTPRequest request : requests)
+        {
+            if (dispatcher == null)
+            {
+                notifyRequest(request);
+            }
+            else
+            {
+                dispatcher.dispatch(request, new Runnable()
+                {
+                    public void run()
+                    {
+                        notifyRequest(request);
+                    }
+                });
+            }
+        }
+    }
+
+    private void notifyRequest(RHTTPRequest request)
+    {
+        try
+        {
+            request = PayloadCompression.decompress(request, getMaxDecompressedSize());
+        }
+        catch (IOException x)
         {
-            for (RHTTPListener listener : listeners)
+            logger.warn("Could not decompress request " + request, x);
+            try
+            {
+                deliver(newExceptionResponse(request.getId(), x));
+            }
+            catch (IOException xx)
             {
+                logger.debug("Could not deliver exception response", xx);
+            }
+            return;
+        }
+
+        for (RHTTPListener listener : listeners)
+        {
+            try
+            {
+                listener.onRequest(request);
+            }
+            catch (Throwable x)
+            {
+                logger.warn("Listener " + listener + " threw", x);
                 try
                 {
-                    listener.onRequest(request);
+                    deliver(newExceptionResponse(request.getId(), x));
                 }
-                catch (Throwable x)
+                catch (IOException xx)
                 {
-                    logger.warn("Listener " + listener + " threw", x);
-                    try
-                    {
-                        deliver(newExceptionResponse(request.getId(), x));
-                    }
-                    catch (IOException xx)
-                    {
-                        logger.debug("Could not deliver exception response", xx);
-                    }
+                    logger.debug("Could not deliver exception response", xx);
                 }
             }
         }
     }
 
-    protected RHTTPResponse newExceptionResponse(int requestId, Throwable x)
+    protected RHTTPResponse newExceptionResponse(long requestId, Throwable x)
     {
         try
         {
@@ -123,6 +527,8 @@ public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPC
 
     protected void notifyConnectRequired()
     {
+        // The gateway server forgot this client, so its session cannot be resumed
+        sessionToken = null;
         for (ClientListener listener : clientListeners)
         {
             try
@@ -134,6 +540,9 @@ public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPC
                 logger.warn("ClientListener " + listener + " threw", x);
             }
         }
+        // Long polls and delivers that fail together need a single handshake
+        if (reconnecting.compareAndSet(false, true) && !retry(reconnect))
+            reconnecting.set(false);
     }
 
     protected void notifyConnectException()
@@ -149,6 +558,8 @@ public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPC
                 logger.warn("ClientListener " + listener + " threw", x);
             }
         }
+        if (!retry(connect))
+            pollEnded();
     }
 
     protected void notifyConnectClosed()
@@ -164,21 +575,79 @@ public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPC
                 logger.warn("ClientListener " + listener + " threw", xx);
             }
         }
+        if (!retry(connect))
+            pollEnded();
     }
 
     protected void notifyDeliverException(RHTTPResponse response)
     {
-        for (ClientListener listener : clientListeners)
+        notifyDeliverException(Collections.singletonList(response));
+    }
+
+    /**
+     * <p>Notifies that the deliver request carrying the given responses failed, and retries it.</p>
+     * <p>Listeners are notified for each response, but the responses are retried together, as one
+     * failure of the {@link #getRetryPolicy() retry policy}, so that a failed batch is neither split
+     * nor counted as many failures.</p>
+     * @param responses the responses of the failed deliver request
+     */
+    protected void notifyDeliverException(final List<RHTTPResponse> responses)
+    {
+        for (RHTTPResponse response : responses)
         {
-            try
+            for (ClientListener listener : clientListeners)
             {
-                listener.deliverException(response);
+                try
+                {
+                    listener.deliverException(response);
+                }
+                catch (Throwable x)
+                {
+                    logger.warn("ClientListener " + listener + " threw", x);
+                }
             }
-            catch (Throwable x)
+        }
+        retry(new Runnable()
+        {
+            public void run()
             {
-                logger.warn("ClientListener " + listener + " threw", x);
+                if (isConnected())
+                    asyncDeliver(responses);
             }
+        });
+    }
+
+    /**
+     * <p>Schedules the given operation after the delay chosen by the {@link #getRetryPolicy() retry policy},
+     * if any, unless the retry policy gives up.</p>
+     * @param operation the operation to retry
+     * @return whether the operation has been scheduled
+     */
+    protected boolean retry(Runnable operation)
+    {
+        RetryPolicy policy = getRetryPolicy();
+        if (policy == null || isDisconnecting() || isDisconnected())
+            return false;
+        long delay = policy.failed();
+        if (delay < 0)
+        {
+            getLogger().debug("Client {} giving up after {}", getTargetId(), policy);
+            return false;
         }
+        getLogger().debug("Client {} retrying in {} ms", getTargetId(), delay);
+        Scheduler.INSTANCE.schedule(operation, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * <p>Schedules the given operation on the timer shared by all clients, so that it does
+     * not run in the thread of the caller.</p>
+     * @param operation the operation to schedule
+     * @param delay the delay in milliseconds
+     */
+    protected void schedule(Runnable operation, long delay)
+    {
+        Scheduler.INSTANCE.schedule(operation, delay, TimeUnit.MILLISECONDS);
     }
 
     protected String urlEncode(String value)
@@ -211,19 +680,69 @@ public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPC
 
     public void connect() throws IOException
     {
+        // A client that lost its connection resumes its session directly with a connect request;
+        // if the session expired in the meantime, the gateway server will require a handshake
+        if (isConnected() && getSessionToken() != null)
+        {
+            getLogger().debug("Client {} resuming session", getTargetId(), null);
+            connectPolls();
+            return;
+        }
+
         if (isDisconnected())
             status = Status.CONNECTING;
 
         syncHandshake();
         this.status = Status.CONNECTED;
 
-        asyncConnect();
+        connectPolls();
+    }
+
+    /**
+     * <p>Sends the long polls that are missing to reach the {@link #getPolls() negotiated number}.</p>
+     * <p>Each long poll connects again when it returns, so the number of pending long polls stays
+     * the same until they fail or end; connecting again only replaces those.</p>
+     */
+    protected void connectPolls()
+    {
+        int polls = getPolls();
+        while (true)
+        {
+            int pending = pendingPolls.get();
+            if (pending >= polls)
+                return;
+            // Reserve all the missing long polls before sending them, since a long poll
+            // may end while being sent, for example when a WebSocket replaces it
+            if (pendingPolls.compareAndSet(pending, polls))
+            {
+                for (int i = pending; i < polls; ++i)
+                    asyncConnect();
+                return;
+            }
+        }
+    }
+
+    /**
+     * <p>Records that a long poll ended without connecting again, because it failed and is not
+     * retried, because the gateway server required a handshake, or because {@link #asyncConnect()}
+     * did not send it.</p>
+     */
+    protected void pollEnded()
+    {
+        while (true)
+        {
+            int pending = pendingPolls.get();
+            if (pending == 0 || pendingPolls.compareAndSet(pending, pending - 1))
+                return;
+        }
     }
 
     public void disconnect() throws IOException
     {
         if (isConnected())
         {
+            // Do not leave behind the responses waiting for the window to end
+            flushDeliveries();
             status = Status.DISCONNECTING;
             try
             {
@@ -231,6 +750,7 @@ public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPC
             }
             finally
             {
+                sessionToken = null;
                 status = Status.DISCONNECTED;
             }
         }
@@ -238,7 +758,123 @@ public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPC
 
     public void deliver(RHTTPResponse response) throws IOException
     {
-        asyncDeliver(response);
+        response = compress(response);
+
+        long window = getDeliverWindow();
+        if (window <= 0 || !isBatching())
+        {
+            asyncDeliver(response);
+            return;
+        }
+
+        List<RHTTPResponse> batch = null;
+        boolean schedule;
+        synchronized (deliveries)
+        {
+            deliveries.add(response);
+            // The first response of a batch starts the window
+            schedule = deliveries.size() == 1;
+            if (deliveries.size() >= getMaxDeliverBatch())
+            {
+                batch = new ArrayList<RHTTPResponse>(deliveries);
+                deliveries.clear();
+            }
+        }
+
+        if (batch != null)
+            asyncDeliver(batch);
+        else if (schedule)
+            Scheduler.INSTANCE.schedule(flushDeliveries, window, TimeUnit.MILLISECONDS);
+    }
+
+    private RHTTPResponse compress(RHTTPResponse response)
+    {
+        PayloadCompression compression = getCompression();
+        if (compression == null)
+            return response;
+        return compression.compress(response, getCompressionThreshold());
+    }
+
+    /**
+     * <p>Delivers immediately the responses that are waiting for the deliver window to end.</p>
+     */
+    protected void flushDeliveries()
+    {
+        List<RHTTPResponse> batch;
+        synchronized (deliveries)
+        {
+            if (deliveries.isEmpty())
+                return;
+            batch = new ArrayList<RHTTPResponse>(deliveries);
+            deliveries.clear();
+        }
+        asyncDeliver(batch);
+    }
+
+    public InputStream openRequestBody(RHTTPRequest request) throws IOException
+    {
+        if (!request.isStreamed())
+            return new ByteArrayInputStream(request.getBody());
+        return syncPull(request);
+    }
+
+    public void deliver(RHTTPResponse response, InputStream body) throws IOException
+    {
+        try
+        {
+            if (isStreaming())
+            {
+                syncPush(newStreamedHead(response), body);
+            }
+            else
+            {
+                // The gateway server cannot stream, fall back to a buffered response
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                int read;
+                while ((read = body.read(buffer)) >= 0)
+                    bytes.write(buffer, 0, read);
+                Map<String, String> headers = new LinkedHashMap<String, String>(response.getHeaders());
+                removeHeader(headers, "Transfer-Encoding");
+                removeHeader(headers, "Content-Length");
+                headers.put("Content-Length", String.valueOf(bytes.size()));
+                asyncDeliver(compress(new RHTTPResponse(response.getId(), response.getStatusCode(), response.getStatusMessage(), headers, bytes.toByteArray())));
+            }
+        }
+        finally
+        {
+            body.close();
+        }
+    }
+
+    /**
+     * <p>Converts the given response into a response head, whose body is streamed separately.</p>
+     * <p>The framing headers are replaced by the {@link RHTTPRequest#STREAM_HEADER stream header},
+     * carrying the content length if known, or -1 otherwise.</p>
+     * @param response the response to convert
+     * @return a response with the same status and headers, and an empty body
+     */
+    protected RHTTPResponse newStreamedHead(RHTTPResponse response)
+    {
+        Map<String, String> headers = new LinkedHashMap<String, String>(response.getHeaders());
+        removeHeader(headers, "Transfer-Encoding");
+        String contentLength = removeHeader(headers, "Content-Length");
+        headers.put(RHTTPRequest.STREAM_HEADER, contentLength == null ? "-1" : contentLength);
+        return new RHTTPResponse(response.getId(), response.getStatusCode(), response.getStatusMessage(), headers, new byte[0]);
+    }
+
+    private String removeHeader(Map<String, String> headers, String name)
+    {
+        for (Iterator<Map.Entry<String, String>> entries = headers.entrySet().iterator(); entries.hasNext();)
+        {
+            Map.Entry<String, String> entry = entries.next();
+            if (entry.getKey().equalsIgnoreCase(name))
+            {
+                entries.remove();
+                return entry.getValue();
+            }
+        }
+        return null;
     }
 
     protected abstract void syncHandshake() throws IOException;
@@ -249,14 +885,55 @@ public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPC
 
     protected abstract void asyncDeliver(RHTTPResponse response);
 
+    /**
+     * <p>Delivers the given responses, with a single request if the transport allows it.</p>
+     * <p>This implementation delivers the responses one by one.</p>
+     * @param responses the responses to deliver, only when {@link #isBatching() batching} has been accepted
+     */
+    protected void asyncDeliver(List<RHTTPResponse> responses)
+    {
+        for (RHTTPResponse response : responses)
+            asyncDeliver(response);
+    }
+
+    /**
+     * <p>Fetches the body of the given streamed request from the gateway server.</p>
+     * @param request the streamed request
+     * @return a stream over the request body, that must be closed by the caller
+     * @throws IOException if the body cannot be fetched
+     */
+    protected abstract InputStream syncPull(RHTTPRequest request) throws IOException;
+
+    /**
+     * <p>Sends the given response head followed by the given body to the gateway server.</p>
+     * @param head the response head, as returned by {@link #newStreamedHead(RHTTPResponse)}
+     * @param body the response body
+     * @throws IOException if the response cannot be sent
+     */
+    protected abstract void syncPush(RHTTPResponse head, InputStream body) throws IOException;
+
     protected void connectComplete(byte[] responseContent) throws IOException
     {
-        List<RHTTPRequest> requests = RHTTPRequest.fromFrameBytes(responseContent);
+        connectComplete(getCodec().decodeRequests(ByteBuffer.wrap(responseContent)));
+    }
+
+    /**
+     * <p>Connects again, then notifies the given requests to the listeners.</p>
+     * @param requests the requests in the connect response that have not already been notified
+     */
+    protected void connectComplete(List<RHTTPRequest> requests)
+    {
         getLogger().debug("Client {} connect returned from gateway, requests {}", getTargetId(), requests);
 
+        RetryPolicy policy = getRetryPolicy();
+        if (policy != null)
+            policy.succeeded();
+
         // Requests are arrived, reconnect while we process them
         if (!isDisconnecting() && !isDisconnected())
             asyncConnect();
+        else
+            pollEnded();
 
         notifyRequests(requests);
     }
@@ -265,4 +942,22 @@ public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPC
     {
         CONNECTING, CONNECTED, DISCONNECTING, DISCONNECTED
     }
+
+    /**
+     * <p>Holds the timer of the deliver windows, of the retries and of the
+     * {@link AbstractClient#schedule(Runnable, long) scheduled operations}, shared by all
+     * clients and created only when first used.</p>
+     */
+    private static class Scheduler
+    {
+        private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task, "rhttp-client-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
 }
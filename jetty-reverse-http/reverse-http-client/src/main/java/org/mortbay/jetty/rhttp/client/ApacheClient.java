@@ -16,8 +16,26 @@
 
 package org.mortbay.jetty.rhttp.client;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.http.Header;
+import org.apache.http.HttpConnection;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
@@ -25,11 +43,27 @@ import org.apache.http.HttpStatus;
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
 /**
  * Implementation of {@link RHTTPClient} that uses Apache's HttpClient.
+ * <p>Connect and deliver requests are executed by an {@link Executor}; unless one is
+ * {@link #setExecutor(Executor) set}, a pool of daemon threads is created when first needed,
+ * with at most {@link #getMaxQueued() maxQueued} operations waiting for a thread, so that a slow
+ * gateway server cannot make the threads pile up.<br />
+ * The pool has one thread for each of the {@link #getPolls() long polls}, that are held by the
+ * gateway server, plus {@link #getMaxThreads() maxThreads} threads for the deliver requests, so
+ * that the long polls cannot starve the deliveries; an executor that is set must be sized alike.
+ * Operations rejected by the executor are notified as failed.</p>
+ * <p>The number of requests and how many of them reused a connection, and the threads of the
+ * pool are reported, to tune the pool and the connection manager of the HttpClient.</p>
  *
  * @version $Revision$ $Date$
  */
@@ -37,6 +71,13 @@ public class ApacheClient extends AbstractClient
 {
     private final HttpClient httpClient;
     private final String gatewayPath;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong reusedConnections = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile Executor executor;
+    private volatile boolean ownExecutor;
+    private volatile int maxThreads = 8;
+    private volatile int maxQueued = 1024;
 
     public ApacheClient(HttpClient httpClient, String gatewayPath, String targetId)
     {
@@ -45,6 +86,174 @@ public class ApacheClient extends AbstractClient
         this.gatewayPath = gatewayPath;
     }
 
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * @param executor the executor of the connect and deliver requests, to be set before connecting
+     */
+    public void setExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * @return the number of threads reserved to the deliver requests in the pool created when
+     * no executor is set, in addition to one thread for each long poll
+     */
+    public int getMaxThreads()
+    {
+        return maxThreads;
+    }
+
+    public void setMaxThreads(int maxThreads)
+    {
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * @return the maximum number of operations waiting for a thread of the pool created when no executor is set
+     */
+    public int getMaxQueued()
+    {
+        return maxQueued;
+    }
+
+    public void setMaxQueued(int maxQueued)
+    {
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * @return the number of requests sent to the gateway server
+     */
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests sent over a connection that had already been used
+     */
+    public long getReusedConnections()
+    {
+        return reusedConnections.get();
+    }
+
+    /**
+     * @return the number of connect and deliver operations rejected by the executor
+     */
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of threads of the pool, or 0 if the executor is not a pool
+     */
+    public int getThreads()
+    {
+        Executor executor = this.executor;
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getPoolSize() : 0;
+    }
+
+    /**
+     * @return the number of threads of the pool executing operations, or 0 if the executor is not a pool
+     */
+    public int getActiveThreads()
+    {
+        Executor executor = this.executor;
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getActiveCount() : 0;
+    }
+
+    /**
+     * @return the number of operations waiting for a thread of the pool, or 0 if the executor is not a pool
+     */
+    public int getQueued()
+    {
+        Executor executor = this.executor;
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getQueue().size() : 0;
+    }
+
+    @Override
+    protected void doStop() throws Exception
+    {
+        super.doStop();
+        synchronized (this)
+        {
+            if (ownExecutor)
+            {
+                ((ThreadPoolExecutor)executor).shutdown();
+                executor = null;
+                ownExecutor = false;
+            }
+        }
+    }
+
+    private synchronized Executor obtainExecutor()
+    {
+        // The long polls are held by the gateway server, and keep their threads busy
+        int threads = getPolls() + getMaxThreads();
+        if (executor == null)
+        {
+            final String name = "rhttp-apache-client-" + getTargetId() + "-";
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(getMaxQueued()), new ThreadFactory()
+            {
+                private final AtomicInteger ids = new AtomicInteger();
+
+                public Thread newThread(Runnable task)
+                {
+                    Thread thread = new Thread(task, name + ids.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor = pool;
+            ownExecutor = true;
+        }
+        else if (ownExecutor)
+        {
+            // A new handshake may have negotiated more long polls
+            ThreadPoolExecutor pool = (ThreadPoolExecutor)executor;
+            if (pool.getMaximumPoolSize() < threads)
+            {
+                pool.setMaximumPoolSize(threads);
+                pool.setCorePoolSize(threads);
+            }
+        }
+        return executor;
+    }
+
+    private boolean execute(Runnable operation)
+    {
+        try
+        {
+            obtainExecutor().execute(operation);
+            return true;
+        }
+        catch (RejectedExecutionException x)
+        {
+            rejected.incrementAndGet();
+            getLogger().debug("Client {} operation rejected", getTargetId(), null);
+            return false;
+        }
+    }
+
+    private HttpResponse execute(HttpUriRequest request) throws IOException
+    {
+        HttpContext context = new BasicHttpContext();
+        HttpResponse response = httpClient.execute(request, context);
+        requests.incrementAndGet();
+        // The connection is still attached until the response content is consumed
+        HttpConnection connection = (HttpConnection)context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+        if (connection != null && connection.getMetrics().getRequestCount() > 1)
+            reusedConnections.incrementAndGet();
+        return response;
+    }
+
     public String getHost()
     {
         return ((HttpHost)httpClient.getParams().getParameter("http.default-host")).getHostName();
@@ -63,35 +272,56 @@ public class ApacheClient extends AbstractClient
     protected void syncHandshake() throws IOException
     {
         HttpPost handshake = new HttpPost(gatewayPath + "/" + urlEncode(getTargetId()) + "/handshake");
-        HttpResponse response = httpClient.execute(handshake);
+        Map<String, String> offered = newHandshakeHeaders();
+        for (Map.Entry<String, String> header : offered.entrySet())
+            handshake.setHeader(header.getKey(), header.getValue());
+        HttpResponse response = execute(handshake);
         int statusCode = response.getStatusLine().getStatusCode();
         HttpEntity entity = response.getEntity();
         if (entity != null)
             entity.consumeContent();
         if (statusCode != HttpStatus.SC_OK)
             throw new IOException("Handshake failed");
+        Map<String, String> accepted = new HashMap<String, String>();
+        for (String name : offered.keySet())
+        {
+            Header header = response.getFirstHeader(name);
+            accepted.put(name, header == null ? null : header.getValue());
+        }
+        handshakeComplete(accepted);
         getLogger().debug("Client {} handshake returned from gateway", getTargetId(), null);
     }
 
     protected void asyncConnect()
     {
-        new Thread()
+        boolean executed = execute(new Runnable()
         {
-            @Override
             public void run()
             {
                 try
                 {
                     HttpPost connect = new HttpPost(gatewayPath + "/" + urlEncode(getTargetId()) + "/connect");
+                    long timeout = getConnectTimeout();
+                    if (timeout > 0)
+                        HttpConnectionParams.setSoTimeout(connect.getParams(), (int)timeout);
+                    String session = getSessionToken();
+                    if (session != null)
+                        connect.setHeader(SESSION_HEADER, session);
                     getLogger().debug("Client {} connect sent to gateway", getTargetId(), null);
-                    HttpResponse response = httpClient.execute(connect);
+                    HttpResponse response = execute(connect);
                     int statusCode = response.getStatusLine().getStatusCode();
+                    Header holdTime = response.getFirstHeader(HOLD_TIME_HEADER);
+                    if (holdTime != null)
+                        holdTimeReceived(holdTime.getValue());
                     HttpEntity entity = response.getEntity();
                     byte[] responseContent = EntityUtils.toByteArray(entity);
                     if (statusCode == HttpStatus.SC_OK)
                         connectComplete(responseContent);
                     else if (statusCode == HttpStatus.SC_UNAUTHORIZED)
+                    {
+                        pollEnded();
                         notifyConnectRequired();
+                    }
                     else
                         notifyConnectException();
                 }
@@ -105,13 +335,15 @@ public class ApacheClient extends AbstractClient
                     notifyConnectException();
                 }
             }
-        }.start();
+        });
+        if (!executed)
+            notifyConnectException();
     }
 
     protected void syncDisconnect() throws IOException
     {
         HttpPost disconnect = new HttpPost(gatewayPath + "/" + urlEncode(getTargetId()) + "/disconnect");
-        HttpResponse response = httpClient.execute(disconnect);
+        HttpResponse response = execute(disconnect);
         int statusCode = response.getStatusLine().getStatusCode();
         HttpEntity entity = response.getEntity();
         if (entity != null)
@@ -121,34 +353,87 @@ public class ApacheClient extends AbstractClient
         getLogger().debug("Client {} disconnect returned from gateway", getTargetId(), null);
     }
 
-    protected void asyncDeliver(final RHTTPResponse response)
+    protected void asyncDeliver(RHTTPResponse response)
     {
-        new Thread()
+        asyncDeliver(Collections.singletonList(response));
+    }
+
+    @Override
+    protected void asyncDeliver(final List<RHTTPResponse> responses)
+    {
+        boolean executed = execute(new Runnable()
         {
-            @Override
             public void run()
             {
                 try
                 {
                     HttpPost deliver = new HttpPost(gatewayPath + "/" + urlEncode(getTargetId()) + "/deliver");
-                    deliver.setEntity(new ByteArrayEntity(response.getFrameBytes()));
-                    getLogger().debug("Client {} deliver sent to gateway, response {}", getTargetId(), response);
-                    HttpResponse httpResponse = httpClient.execute(deliver);
+                    ByteBuffer frames = getCodec().encodeResponses(responses);
+                    deliver.setEntity(new ByteArrayEntity(frames.array()));
+                    getLogger().debug("Client {} deliver sent to gateway, responses {}", getTargetId(), responses);
+                    HttpResponse httpResponse = execute(deliver);
                     int statusCode = httpResponse.getStatusLine().getStatusCode();
                     HttpEntity entity = httpResponse.getEntity();
                     if (entity != null)
                         entity.consumeContent();
                     if (statusCode == HttpStatus.SC_UNAUTHORIZED)
+                    {
                         notifyConnectRequired();
+                    }
                     else if (statusCode != HttpStatus.SC_OK)
-                        notifyDeliverException(response);
+                    {
+                        notifyDeliverException(responses);
+                    }
                 }
                 catch (IOException x)
                 {
                     getLogger().debug("", x);
-                    notifyDeliverException(response);
+                    notifyDeliverException(responses);
                 }
             }
-        }.start();
+        });
+        if (!executed)
+        {
+            notifyDeliverException(responses);
+        }
+    }
+
+    protected InputStream syncPull(RHTTPRequest request) throws IOException
+    {
+        HttpPost pull = new HttpPost(gatewayPath + "/" + urlEncode(getTargetId()) + "/pull/" + request.getId());
+        getLogger().debug("Client {} pull sent to gateway, request {}", getTargetId(), request);
+        HttpResponse response = execute(pull);
+        int statusCode = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (statusCode != HttpStatus.SC_OK)
+        {
+            if (entity != null)
+                entity.consumeContent();
+            if (statusCode == HttpStatus.SC_UNAUTHORIZED)
+                notifyConnectRequired();
+            throw new IOException("Pull failed");
+        }
+        // Closing the content stream releases the connection
+        return entity == null ? new ByteArrayInputStream(new byte[0]) : entity.getContent();
+    }
+
+    protected void syncPush(RHTTPResponse head, InputStream body) throws IOException
+    {
+        byte[] headFrame = getCodec().toFrameBytes(head);
+        HttpPost push = new HttpPost(gatewayPath + "/" + urlEncode(getTargetId()) + "/push");
+        push.setHeader(RHTTPResponse.HEAD_LENGTH_HEADER, String.valueOf(headFrame.length));
+        // Unknown length, so that the body is sent chunked as it is read
+        push.setEntity(new InputStreamEntity(new SequenceInputStream(new ByteArrayInputStream(headFrame), body), -1));
+        getLogger().debug("Client {} push sent to gateway, response {}", getTargetId(), head);
+        HttpResponse response = execute(push);
+        int statusCode = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (entity != null)
+            entity.consumeContent();
+        if (statusCode == HttpStatus.SC_UNAUTHORIZED)
+            notifyConnectRequired();
+        if (statusCode != HttpStatus.SC_OK)
+            throw new IOException("Push failed");
+        getLogger().debug("Client {} push returned from gateway", getTargetId(), null);
     }
 }
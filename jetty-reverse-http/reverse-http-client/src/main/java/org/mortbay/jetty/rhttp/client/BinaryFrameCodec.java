@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>A compact frame codec, where the frame header is of the form:</p>
+ * <pre>
+ * &lt;id&gt; &lt;length&gt;
+ * </pre>
+ * <p>where the 64 bits id and the length are unsigned variable length integers,
+ * 7 bits per byte, least significant group first, with the high bit of each byte
+ * set when more bytes follow.</p>
+ * <p>The version of the format is part of the codec {@link #getName() name}, so that
+ * incompatible changes to the format can be negotiated during the handshake:
+ * version 1 carried the id as a fixed width 4 bytes integer.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class BinaryFrameCodec extends FrameCodec
+{
+    public String getName()
+    {
+        return "binary/2";
+    }
+
+    public int getHeaderLength(long id, int length)
+    {
+        return varIntLength(id) + varIntLength(length & 0xFFFFFFFFL);
+    }
+
+    private int varIntLength(long value)
+    {
+        int result = 1;
+        while ((value >>>= 7) != 0)
+            ++result;
+        return result;
+    }
+
+    protected void encodeHeader(long id, int length, ByteBuffer buffer)
+    {
+        putVarInt(id, buffer);
+        putVarInt(length & 0xFFFFFFFFL, buffer);
+    }
+
+    private void putVarInt(long value, ByteBuffer buffer)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+    protected long decodeId(ByteBuffer buffer)
+    {
+        return getVarInt(buffer, 64);
+    }
+
+    protected int decodeLength(ByteBuffer buffer, int maxLength)
+    {
+        long length = getVarInt(buffer, 32);
+        if (length < 0 || length > maxLength)
+            throw new IllegalArgumentException("Invalid frame length");
+        return (int)length;
+    }
+
+    private long getVarInt(ByteBuffer buffer, int bits)
+    {
+        long result = 0;
+        for (int shift = 0; shift < bits; shift += 7)
+        {
+            byte b = buffer.get();
+            result |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw new IllegalArgumentException("Invalid frame header");
+    }
+}
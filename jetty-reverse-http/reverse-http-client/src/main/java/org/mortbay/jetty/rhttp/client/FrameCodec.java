@@ -0,0 +1,413 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Converts {@link RHTTPRequest}s and {@link RHTTPResponse}s to and from the framed form
+ * that is carried over the comet protocol.</p>
+ * <p>Every frame is made of a codec specific header, carrying the frame id and the message
+ * length, followed by the message bytes.</p>
+ * <p>The codec is negotiated during the handshake: the gateway client lists the codecs it
+ * supports in the {@link #HEADER} request header, and the gateway server replies with the
+ * chosen codec in the same response header.<br />
+ * When either side does not send the header, the {@link #TEXT text codec} is used.</p>
+ *
+ * @see TextFrameCodec
+ * @see BinaryFrameCodec
+ * @version $Revision$ $Date$
+ */
+public abstract class FrameCodec
+{
+    public static final String HEADER = "X-RHTTP-Codec";
+    public static final FrameCodec TEXT = new TextFrameCodec();
+    public static final FrameCodec BINARY = new BinaryFrameCodec();
+
+    /**
+     * @param name the codec name
+     * @return the codec with the given name, or null if there is no such codec
+     */
+    public static FrameCodec forName(String name)
+    {
+        if (name == null)
+            return null;
+        name = name.trim();
+        if (BINARY.getName().equalsIgnoreCase(name))
+            return BINARY;
+        if (TEXT.getName().equalsIgnoreCase(name))
+            return TEXT;
+        return null;
+    }
+
+    /**
+     * @return the comma separated list of codec names supported by this implementation, in order of preference
+     */
+    public static String getSupportedNames()
+    {
+        return BINARY.getName() + "," + TEXT.getName();
+    }
+
+    /**
+     * <p>Chooses the first codec in the offered list that is also in the accepted list.</p>
+     * @param offered the comma separated list of codec names offered by the gateway client, may be null
+     * @param accepted the comma separated list of codec names accepted by the gateway server
+     * @return the chosen codec, or {@link #TEXT} if no codec has been chosen
+     */
+    public static FrameCodec negotiate(String offered, String accepted)
+    {
+        if (offered == null || accepted == null)
+            return TEXT;
+
+        List<FrameCodec> acceptable = new ArrayList<FrameCodec>();
+        for (String name : accepted.split(","))
+        {
+            FrameCodec codec = forName(name);
+            if (codec != null)
+                acceptable.add(codec);
+        }
+
+        for (String name : offered.split(","))
+        {
+            FrameCodec codec = forName(name);
+            if (codec != null && acceptable.contains(codec))
+                return codec;
+        }
+        return TEXT;
+    }
+
+    /**
+     * @return the name of this codec, as exchanged during the handshake
+     */
+    public abstract String getName();
+
+    /**
+     * @param id the frame id
+     * @param length the message length
+     * @return the number of bytes of the frame header
+     */
+    public abstract int getHeaderLength(long id, int length);
+
+    /**
+     * <p>Writes the frame header into the given buffer.</p>
+     * @param id the frame id
+     * @param length the message length
+     * @param buffer the buffer to write the header into
+     */
+    protected abstract void encodeHeader(long id, int length, ByteBuffer buffer);
+
+    /**
+     * @param buffer the buffer positioned at the beginning of a frame header
+     * @return the frame id
+     */
+    protected abstract long decodeId(ByteBuffer buffer);
+
+    /**
+     * @param buffer the buffer positioned just after the frame id
+     * @param maxLength the maximum message length
+     * @return the message length
+     * @throws IllegalArgumentException if the length is negative or greater than the maximum
+     */
+    protected abstract int decodeLength(ByteBuffer buffer, int maxLength);
+
+    public int getFrameLength(RHTTPRequest request)
+    {
+        int length = request.getRequestLength();
+        return getHeaderLength(request.getId(), length) + length;
+    }
+
+    public int getFrameLength(RHTTPResponse response)
+    {
+        int length = response.getResponseLength();
+        return getHeaderLength(response.getId(), length) + length;
+    }
+
+    public void encode(RHTTPRequest request, ByteBuffer buffer)
+    {
+        encode(request.getId(), request.getRequestBuffer(), buffer);
+    }
+
+    public void encode(RHTTPResponse response, ByteBuffer buffer)
+    {
+        encode(response.getId(), response.getResponseBuffer(), buffer);
+    }
+
+    private void encode(long id, ByteBuffer message, ByteBuffer buffer)
+    {
+        encodeHeader(id, message.remaining(), buffer);
+        buffer.put(message);
+    }
+
+    /**
+     * <p>Encodes the given requests into a single buffer, sized exactly to the frames length.</p>
+     * @param requests the requests to encode
+     * @return a buffer ready to be read, containing the frames of all the given requests
+     */
+    public ByteBuffer encode(List<RHTTPRequest> requests)
+    {
+        int length = 0;
+        for (RHTTPRequest request : requests)
+            length += getFrameLength(request);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (RHTTPRequest request : requests)
+            encode(request, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * <p>Encodes the given responses into a single buffer, sized exactly to the frames length.</p>
+     * @param responses the responses to encode
+     * @return a buffer ready to be read, containing the frames of all the given responses
+     */
+    public ByteBuffer encodeResponses(List<RHTTPResponse> responses)
+    {
+        int length = 0;
+        for (RHTTPResponse response : responses)
+            length += getFrameLength(response);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (RHTTPResponse response : responses)
+            encode(response, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    public byte[] toFrameBytes(RHTTPRequest request)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(getFrameLength(request));
+        encode(request, buffer);
+        return buffer.array();
+    }
+
+    public byte[] toFrameBytes(RHTTPResponse response)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(getFrameLength(response));
+        encode(response, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * <p>Writes the frame of the given request to the given stream, without copying the request bytes.</p>
+     * @param request the request to write
+     * @param output the stream to write to
+     * @throws IOException if writing to the stream fails
+     */
+    public void writeTo(RHTTPRequest request, OutputStream output) throws IOException
+    {
+        writeTo(request.getId(), request.getRequestBuffer(), output);
+    }
+
+    /**
+     * <p>Writes the frame of the given response to the given stream, without copying the response bytes.</p>
+     * @param response the response to write
+     * @param output the stream to write to
+     * @throws IOException if writing to the stream fails
+     */
+    public void writeTo(RHTTPResponse response, OutputStream output) throws IOException
+    {
+        writeTo(response.getId(), response.getResponseBuffer(), output);
+    }
+
+    private void writeTo(long id, ByteBuffer message, OutputStream output) throws IOException
+    {
+        int length = message.remaining();
+        ByteBuffer header = ByteBuffer.allocate(getHeaderLength(id, length));
+        encodeHeader(id, length, header);
+        output.write(header.array(), 0, header.position());
+        output.write(message.array(), message.arrayOffset() + message.position(), length);
+    }
+
+    /**
+     * <p>Decodes the request frames in the given buffer into requests that are views over
+     * the bytes of the buffer, which therefore must not be modified afterwards.</p>
+     * @param buffer the buffer containing zero or more request frames
+     * @return the list of requests decoded from the given buffer
+     */
+    public List<RHTTPRequest> decodeRequests(ByteBuffer buffer)
+    {
+        List<RHTTPRequest> result = new ArrayList<RHTTPRequest>();
+        while (buffer.hasRemaining())
+        {
+            long id = decodeId(buffer);
+            result.add(RHTTPRequest.fromRequestBuffer(id, decodeMessage(buffer)));
+        }
+        return result;
+    }
+
+    /**
+     * @param maxLength the maximum message length of the frames to decode
+     * @return a new decoder of request frames that arrive in chunks
+     */
+    public RequestDecoder newRequestDecoder(int maxLength)
+    {
+        return new RequestDecoder(maxLength);
+    }
+
+    /**
+     * <p>Decodes a response frame into a response that is a view over the bytes of the
+     * given buffer, which therefore must not be modified afterwards.</p>
+     * @param buffer the buffer containing a response frame
+     * @return the response decoded from the given buffer
+     */
+    public RHTTPResponse decodeResponse(ByteBuffer buffer)
+    {
+        long id = decodeId(buffer);
+        return RHTTPResponse.fromResponseBuffer(id, decodeMessage(buffer));
+    }
+
+    /**
+     * @param buffer the buffer containing one or more response frames
+     * @return the responses decoded from the given buffer
+     */
+    public List<RHTTPResponse> decodeResponses(ByteBuffer buffer)
+    {
+        List<RHTTPResponse> result = new ArrayList<RHTTPResponse>();
+        while (buffer.hasRemaining())
+            result.add(decodeResponse(buffer));
+        return result;
+    }
+
+    private ByteBuffer decodeMessage(ByteBuffer buffer)
+    {
+        // The whole frame is in the buffer, so the buffer bounds the length
+        int length = decodeLength(buffer, Integer.MAX_VALUE);
+        if (length > buffer.remaining())
+            throw new BufferUnderflowException();
+        // Slice the message rather than copying it
+        ByteBuffer message = buffer.slice();
+        message.limit(length);
+        buffer.position(buffer.position() + length);
+        return message;
+    }
+
+    @Override
+    public String toString()
+    {
+        return getName();
+    }
+
+    /**
+     * <p>Decodes request frames from chunks of bytes, as they arrive, so that each request
+     * can be processed as soon as its frame is complete rather than when all frames arrived.</p>
+     * <p>The bytes of a frame message are copied once, into an array sized from the frame header,
+     * so frame headers with a length above the maximum are rejected before allocating it.</p>
+     */
+    public class RequestDecoder
+    {
+        // Large enough for the header of any codec
+        private final byte[] header = new byte[64];
+        private final int maxLength;
+        private int headerLength;
+        private long id;
+        private byte[] message;
+        private int messageLength;
+
+        private RequestDecoder(int maxLength)
+        {
+            this.maxLength = maxLength;
+        }
+
+        /**
+         * @param buffer the next chunk of bytes, consumed entirely
+         * @return the requests whose frames have been completed by the given chunk, possibly empty
+         * @throws IllegalArgumentException if a frame header is invalid
+         */
+        public List<RHTTPRequest> decode(ByteBuffer buffer)
+        {
+            List<RHTTPRequest> result = new ArrayList<RHTTPRequest>();
+            while (true)
+            {
+                if (message == null)
+                {
+                    if (!buffer.hasRemaining() || !decodeHeader(buffer))
+                        break;
+                }
+                else
+                {
+                    int count = Math.min(buffer.remaining(), message.length - messageLength);
+                    buffer.get(message, messageLength, count);
+                    messageLength += count;
+                    if (messageLength < message.length)
+                        break;
+                    result.add(RHTTPRequest.fromRequestBytes(id, message));
+                    message = null;
+                }
+            }
+            return result;
+        }
+
+        private boolean decodeHeader(ByteBuffer buffer)
+        {
+            if (headerLength == 0)
+            {
+                // Most of the times the whole header is in the chunk
+                int position = buffer.position();
+                try
+                {
+                    id = decodeId(buffer);
+                    startMessage(decodeLength(buffer, maxLength));
+                    return true;
+                }
+                catch (BufferUnderflowException x)
+                {
+                    buffer.position(position);
+                }
+            }
+
+            // The header spans chunks, accumulate it
+            int count = Math.min(buffer.remaining(), header.length - headerLength);
+            buffer.get(header, headerLength, count);
+            headerLength += count;
+            ByteBuffer bytes = ByteBuffer.wrap(header, 0, headerLength);
+            try
+            {
+                id = decodeId(bytes);
+                startMessage(decodeLength(bytes, maxLength));
+                // The previous chunks did not complete the header, so the bytes
+                // that follow the header all come from the current chunk
+                buffer.position(buffer.position() - bytes.remaining());
+                headerLength = 0;
+                return true;
+            }
+            catch (BufferUnderflowException x)
+            {
+                if (headerLength == header.length)
+                    throw new IllegalArgumentException("Invalid frame header");
+                return false;
+            }
+        }
+
+        private void startMessage(int length)
+        {
+            message = new byte[length];
+            messageLength = 0;
+        }
+
+        /**
+         * @return whether part of a frame has been decoded, and waits for more bytes
+         */
+        public boolean isPartial()
+        {
+            return headerLength > 0 || message != null;
+        }
+    }
+}
@@ -16,9 +16,22 @@
 
 package org.mortbay.jetty.rhttp.client;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jetty.client.Address;
 import org.eclipse.jetty.client.ContentExchange;
@@ -29,9 +42,18 @@ import org.eclipse.jetty.http.HttpURI;
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.io.EofException;
+import org.eclipse.jetty.websocket.WebSocket;
+import org.eclipse.jetty.websocket.WebSocketClient;
+import org.eclipse.jetty.websocket.WebSocketClientFactory;
 
 /**
- * Implementation of {@link RHTTPClient} that uses Jetty's HttpClient.
+ * <p>Implementation of {@link RHTTPClient} that uses Jetty's HttpClient.</p>
+ * <p>If {@link #setWebSocketEnabled(boolean) enabled} and accepted by the gateway server
+ * during the handshake, requests and responses are carried over a WebSocket connection
+ * rather than by long polls and deliver requests; long polling is the fallback when the
+ * WebSocket upgrade fails or does not complete within the connect timeout.<br />
+ * The WebSocket connection is opened and reopened without blocking the caller, nor the
+ * WebSocket threads.</p>
  *
  * @version $Revision$ $Date$
  */
@@ -40,6 +62,23 @@ public class JettyClient extends AbstractClient
     private final HttpClient httpClient;
     private final Address gatewayAddress;
     private final String gatewayPath;
+    private volatile boolean webSocketEnabled;
+    private volatile int maxMessageSize = 16 * 1024 * 1024;
+    private volatile WebSocketClientFactory webSocketClientFactory;
+    private volatile boolean ownWebSocketClientFactory;
+    private final AtomicBoolean webSocketOpening = new AtomicBoolean();
+    private final Runnable reconnectPolls = new Runnable()
+    {
+        public void run()
+        {
+            if (isConnected())
+                connectPolls();
+        }
+    };
+    private volatile boolean webSocketAvailable;
+    private volatile WebSocket.Connection webSocketConnection;
+    private volatile HttpClient pullClient;
+    private volatile boolean ownPullClient;
 
     public JettyClient(HttpClient httpClient, Address gatewayAddress, String gatewayPath, String targetId)
     {
@@ -75,6 +114,62 @@ public class JettyClient extends AbstractClient
         return gatewayPath;
     }
     
+    public boolean isWebSocketEnabled()
+    {
+        return webSocketEnabled;
+    }
+
+    /**
+     * @param webSocketEnabled whether to offer the WebSocket transport to the gateway server in the handshake
+     */
+    public void setWebSocketEnabled(boolean webSocketEnabled)
+    {
+        this.webSocketEnabled = webSocketEnabled;
+    }
+
+    public int getMaxMessageSize()
+    {
+        return maxMessageSize;
+    }
+
+    /**
+     * @param maxMessageSize the maximum size of the WebSocket messages, and of the requests
+     * carried by the long polls, received from the gateway server
+     */
+    public void setMaxMessageSize(int maxMessageSize)
+    {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public WebSocketClientFactory getWebSocketClientFactory()
+    {
+        return webSocketClientFactory;
+    }
+
+    /**
+     * @param webSocketClientFactory the factory of WebSocket connections, to share among clients;
+     * if not set, this client creates and manages its own
+     */
+    public void setWebSocketClientFactory(WebSocketClientFactory webSocketClientFactory)
+    {
+        this.webSocketClientFactory = webSocketClientFactory;
+    }
+
+    public HttpClient getPullClient()
+    {
+        return pullClient;
+    }
+
+    /**
+     * @param pullClient the HTTP client that pulls the streamed request bodies; if not set, this
+     * client creates and manages its own
+     * @see PullExchange
+     */
+    public void setPullClient(HttpClient pullClient)
+    {
+        this.pullClient = pullClient;
+    }
+
     @Override
     protected void doStart() throws Exception
     {
@@ -86,15 +181,46 @@ public class JettyClient extends AbstractClient
     protected void doStop() throws Exception
     {
         super.doStop();
+        if (ownWebSocketClientFactory)
+        {
+            webSocketClientFactory.stop();
+            webSocketClientFactory = null;
+            ownWebSocketClientFactory = false;
+        }
+        if (ownPullClient)
+        {
+            pullClient.stop();
+            pullClient = null;
+            ownPullClient = false;
+        }
         httpClient.stop();
     }
 
+    @Override
+    protected Map<String, String> newHandshakeHeaders()
+    {
+        Map<String, String> headers = super.newHandshakeHeaders();
+        if (isWebSocketEnabled())
+            headers.put(WEBSOCKET_HEADER, "true");
+        return headers;
+    }
+
+    @Override
+    protected void handshakeComplete(Map<String, String> headers)
+    {
+        super.handshakeComplete(headers);
+        webSocketAvailable = "true".equalsIgnoreCase(headers.get(WEBSOCKET_HEADER));
+    }
+
     protected void syncHandshake() throws IOException
     {
         HandshakeExchange exchange = new HandshakeExchange();
         exchange.setMethod(HttpMethods.POST);
         exchange.setAddress(gatewayAddress);
         exchange.setURI(gatewayPath + "/" + urlEncode(getTargetId()) + "/handshake");
+        Map<String, String> offered = newHandshakeHeaders();
+        for (Map.Entry<String, String> header : offered.entrySet())
+            exchange.setRequestHeader(header.getKey(), header.getValue());
         httpClient.send(exchange);
         getLogger().debug("Client {} handshake sent to gateway", getTargetId(), null);
 
@@ -105,6 +231,10 @@ public class JettyClient extends AbstractClient
                 throw new IOException("Handshake failed");
             if (exchange.getResponseStatus() != 200)
                 throw new IOException("Handshake failed");
+            Map<String, String> accepted = new HashMap<String, String>();
+            for (String name : offered.keySet())
+                accepted.put(name, exchange.getResponseFields().getStringField(name));
+            handshakeComplete(accepted);
             getLogger().debug("Client {} handshake returned from gateway", getTargetId(), null);
         }
         catch (InterruptedException x)
@@ -121,22 +251,136 @@ public class JettyClient extends AbstractClient
 
     protected void asyncConnect()
     {
+        // Requests arrive over the WebSocket connection, there is no need for other long polls
+        if (webSocketConnection != null)
+        {
+            pollEnded();
+            return;
+        }
+
+        if (webSocketAvailable)
+        {
+            // Only one long poll opens the WebSocket connection, and ends when it opens;
+            // the others end now, and are sent again if the WebSocket connection fails
+            if (!webSocketOpening.compareAndSet(false, true))
+            {
+                pollEnded();
+                return;
+            }
+            if (openWebSocket())
+                return;
+            webSocketOpening.set(false);
+        }
+
         try
         {
             ConnectExchange exchange = new ConnectExchange();
+            long timeout = getConnectTimeout();
+            if (timeout > 0)
+                exchange.setTimeout(timeout);
             exchange.setMethod(HttpMethods.POST);
             exchange.setAddress(gatewayAddress);
             exchange.setURI(gatewayPath + "/" + urlEncode(getTargetId()) + "/connect");
+            String session = getSessionToken();
+            if (session != null)
+                exchange.setRequestHeader(SESSION_HEADER, session);
             httpClient.send(exchange);
             getLogger().debug("Client {} connect sent to gateway", getTargetId(), null);
         }
         catch (IOException x)
         {
             getLogger().debug("Could not send exchange", x);
+            pollEnded();
             throw new RuntimeException(x);
         }
     }
 
+    /**
+     * <p>Starts opening the WebSocket connection, without waiting for it to open.</p>
+     * <p>If the WebSocket connection does not open within the connect timeout, the long polls
+     * are sent instead, and WebSocket is not tried again until the next handshake.</p>
+     * @return whether the WebSocket connection is being opened; if not, it is not tried
+     * again until the next handshake
+     */
+    private boolean openWebSocket()
+    {
+        String uri = "ws://" + getHost() + ":" + getPort() + gatewayPath + "/" + urlEncode(getTargetId()) + "/websocket";
+        // The gateway server only upgrades the connection of the client that owns the session
+        String session = getSessionToken();
+        if (session != null)
+            uri += "?" + SESSION_PARAMETER + "=" + urlEncode(session);
+        try
+        {
+            WebSocketClient client = newWebSocketClient();
+            final Future<WebSocket.Connection> future = client.open(new URI(uri), new DeviceWebSocket());
+            schedule(new Runnable()
+            {
+                public void run()
+                {
+                    if (webSocketOpening.compareAndSet(true, false))
+                    {
+                        future.cancel(true);
+                        getLogger().debug("Client {} WebSocket open timed out, falling back to long polling", getTargetId(), null);
+                        webSocketFailed();
+                    }
+                }
+            }, httpClient.getConnectTimeout());
+            getLogger().debug("Client {} WebSocket opening to gateway", getTargetId(), null);
+            return true;
+        }
+        catch (Exception x)
+        {
+            getLogger().debug("Could not open WebSocket to " + uri + ", falling back to long polling", x);
+            webSocketAvailable = false;
+            return false;
+        }
+    }
+
+    private void webSocketFailed()
+    {
+        webSocketAvailable = false;
+        // The long poll that opened the WebSocket connection ends, and all long polls are sent again
+        pollEnded();
+        if (isConnected())
+            connectPolls();
+    }
+
+    private synchronized WebSocketClient newWebSocketClient() throws Exception
+    {
+        if (webSocketClientFactory == null)
+        {
+            WebSocketClientFactory factory = new WebSocketClientFactory();
+            factory.start();
+            webSocketClientFactory = factory;
+            ownWebSocketClientFactory = true;
+        }
+        WebSocketClient client = webSocketClientFactory.newWebSocketClient();
+        client.setMaxBinaryMessageSize(getMaxMessageSize());
+        return client;
+    }
+
+    private synchronized HttpClient newPullClient() throws IOException
+    {
+        if (pullClient == null)
+        {
+            // Blocking connections, so that a pull waiting for its reader holds only its own thread
+            HttpClient client = new HttpClient();
+            client.setConnectorType(HttpClient.CONNECTOR_SOCKET);
+            client.setConnectTimeout(httpClient.getConnectTimeout());
+            try
+            {
+                client.start();
+            }
+            catch (Exception x)
+            {
+                throw newIOException(x);
+            }
+            pullClient = client;
+            ownPullClient = true;
+        }
+        return pullClient;
+    }
+
     protected void syncDisconnect() throws IOException
     {
         DisconnectExchange exchange = new DisconnectExchange();
@@ -159,19 +403,49 @@ public class JettyClient extends AbstractClient
             Thread.currentThread().interrupt();
             throw newIOException(x);
         }
+        finally
+        {
+            // The gateway server closes the WebSocket too, but do not wait for it
+            WebSocket.Connection connection = webSocketConnection;
+            if (connection != null)
+                connection.close();
+        }
     }
 
     protected void asyncDeliver(RHTTPResponse response)
     {
+        asyncDeliver(Collections.singletonList(response));
+    }
+
+    @Override
+    protected void asyncDeliver(List<RHTTPResponse> responses)
+    {
+        ByteBuffer frames = getCodec().encodeResponses(responses);
+
+        WebSocket.Connection connection = webSocketConnection;
+        if (connection != null)
+        {
+            try
+            {
+                connection.sendMessage(frames.array(), frames.arrayOffset(), frames.remaining());
+                getLogger().debug("Client {} deliver sent to gateway over WebSocket, responses {}", getTargetId(), responses);
+                return;
+            }
+            catch (IOException x)
+            {
+                getLogger().debug("Could not deliver over WebSocket, falling back to HTTP", x);
+            }
+        }
+
         try
         {
-            DeliverExchange exchange = new DeliverExchange(response);
+            DeliverExchange exchange = new DeliverExchange(responses);
             exchange.setMethod(HttpMethods.POST);
             exchange.setAddress(gatewayAddress);
             exchange.setURI(gatewayPath + "/" + urlEncode(getTargetId()) + "/deliver");
-            exchange.setRequestContent(new ByteArrayBuffer(response.getFrameBytes()));
+            exchange.setRequestContent(new ByteArrayBuffer(frames.array(), frames.arrayOffset(), frames.remaining()));
             httpClient.send(exchange);
-            getLogger().debug("Client {} deliver sent to gateway, response {}", getTargetId(), response);
+            getLogger().debug("Client {} deliver sent to gateway, responses {}", getTargetId(), responses);
         }
         catch (IOException x)
         {
@@ -180,6 +454,125 @@ public class JettyClient extends AbstractClient
         }
     }
 
+    protected InputStream syncPull(RHTTPRequest request) throws IOException
+    {
+        PullExchange exchange = new PullExchange();
+        exchange.setMethod(HttpMethods.POST);
+        exchange.setAddress(gatewayAddress);
+        exchange.setURI(gatewayPath + "/" + urlEncode(getTargetId()) + "/pull/" + request.getId());
+        newPullClient().send(exchange);
+        getLogger().debug("Client {} pull sent to gateway, request {}", getTargetId(), request);
+        return exchange.getInputStream();
+    }
+
+    protected void syncPush(RHTTPResponse head, InputStream body) throws IOException
+    {
+        byte[] headFrame = getCodec().toFrameBytes(head);
+        ContentExchange exchange = new ContentExchange(true);
+        exchange.setMethod(HttpMethods.POST);
+        exchange.setAddress(gatewayAddress);
+        exchange.setURI(gatewayPath + "/" + urlEncode(getTargetId()) + "/push");
+        exchange.setRequestHeader(RHTTPResponse.HEAD_LENGTH_HEADER, String.valueOf(headFrame.length));
+        exchange.setRequestContentSource(new SequenceInputStream(new ByteArrayInputStream(headFrame), body));
+        httpClient.send(exchange);
+        getLogger().debug("Client {} push sent to gateway, response {}", getTargetId(), head);
+        try
+        {
+            int status = exchange.waitForDone();
+            if (status != HttpExchange.STATUS_COMPLETED)
+                throw new IOException("Push failed");
+            int responseStatus = exchange.getResponseStatus();
+            if (responseStatus == 401)
+                notifyConnectRequired();
+            if (responseStatus != 200)
+                throw new IOException("Push failed");
+            getLogger().debug("Client {} push returned from gateway", getTargetId(), null);
+        }
+        catch (InterruptedException x)
+        {
+            Thread.currentThread().interrupt();
+            throw newIOException(x);
+        }
+    }
+
+    /**
+     * <p>Receives the frames of the requests over WebSocket, as the long polls would.</p>
+     * <p>When the connection closes without a disconnect, for example because it has been idle,
+     * the client connects again, trying WebSocket first.<br />
+     * The connections are not sent from the WebSocket threads, but scheduled.</p>
+     */
+    protected class DeviceWebSocket implements WebSocket.OnBinaryMessage
+    {
+        private volatile boolean opened;
+        private volatile boolean abandoned;
+
+        public void onOpen(Connection connection)
+        {
+            connection.setMaxBinaryMessageSize(getMaxMessageSize());
+            // Set before the opening ends, so that long polls sent meanwhile see it
+            webSocketConnection = connection;
+            boolean opening = webSocketOpening.compareAndSet(true, false);
+            // Too late if the open timed out, since the long polls are sent instead, or if the client disconnected
+            if (!opening || isDisconnecting() || isDisconnected())
+            {
+                abandoned = true;
+                if (webSocketConnection == connection)
+                    webSocketConnection = null;
+                if (opening)
+                    pollEnded();
+                connection.close();
+                return;
+            }
+            opened = true;
+            getLogger().debug("Client {} WebSocket opened to gateway", getTargetId(), null);
+            // The long poll that opened the WebSocket connection ends
+            pollEnded();
+        }
+
+        public void onMessage(byte[] data, int offset, int length)
+        {
+            try
+            {
+                // The requests are views over the bytes they are decoded from,
+                // and the WebSocket implementation may reuse the given array
+                byte[] message = new byte[length];
+                System.arraycopy(data, offset, message, 0, length);
+                notifyRequests(getCodec().decodeRequests(ByteBuffer.wrap(message)));
+            }
+            catch (Exception x)
+            {
+                getLogger().warn("Client " + getTargetId() + " could not decode WebSocket message", x);
+            }
+        }
+
+        public void onClose(int closeCode, String message)
+        {
+            getLogger().debug("Client {} WebSocket closed, code {}", getTargetId(), closeCode);
+            if (abandoned)
+                return;
+
+            if (!opened)
+            {
+                // The upgrade failed before the open timed out
+                if (webSocketOpening.compareAndSet(true, false))
+                {
+                    schedule(new Runnable()
+                    {
+                        public void run()
+                        {
+                            webSocketFailed();
+                        }
+                    }, 0);
+                }
+                return;
+            }
+
+            webSocketConnection = null;
+            if (!isDisconnecting() && !isDisconnected())
+                schedule(reconnectPolls, 0);
+        }
+    }
+
     protected class HandshakeExchange extends ContentExchange
     {
         protected HandshakeExchange()
@@ -195,19 +588,55 @@ public class JettyClient extends AbstractClient
         }
     }
 
+    /**
+     * <p>Decodes the request frames as the response content arrives, and notifies each
+     * request to the listeners as soon as its frame is complete, so that the first requests
+     * of a large response are processed while the others are still being received.</p>
+     */
     protected class ConnectExchange extends ContentExchange
     {
-        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private final FrameCodec.RequestDecoder decoder = getCodec().newRequestDecoder(getMaxMessageSize());
 
         protected ConnectExchange()
         {
             super(true);
         }
 
+        @Override
+        protected void onResponseHeader(Buffer name, Buffer value) throws IOException
+        {
+            super.onResponseHeader(name, value);
+            if (HOLD_TIME_HEADER.equalsIgnoreCase(name.toString()))
+                holdTimeReceived(value.toString());
+        }
+
+        @Override
+        protected void onExpire()
+        {
+            getLogger().debug("Client {} connect expired after {} ms", getTargetId(), getConnectTimeout());
+            notifyConnectException();
+        }
+
         @Override
         protected void onResponseContent(Buffer buffer) throws IOException
         {
-            buffer.writeTo(content);
+            if (getResponseStatus() != 200)
+                return;
+            byte[] array = buffer.array();
+            ByteBuffer bytes = array == null ? ByteBuffer.wrap(buffer.asArray()) : ByteBuffer.wrap(array, buffer.getIndex(), buffer.length());
+            try
+            {
+                List<RHTTPRequest> requests = decoder.decode(bytes);
+                if (!requests.isEmpty())
+                {
+                    getLogger().debug("Client {} connect receiving from gateway, requests {}", getTargetId(), requests);
+                    notifyRequests(requests);
+                }
+            }
+            catch (IllegalArgumentException x)
+            {
+                throw (IOException)new IOException().initCause(x);
+            }
         }
 
         @Override
@@ -216,17 +645,14 @@ public class JettyClient extends AbstractClient
             int responseStatus = getResponseStatus();
             if (responseStatus == 200)
             {
-                try
-                {
-                    connectComplete(content.toByteArray());
-                }
-                catch (IOException x)
-                {
-                    onException(x);
-                }
+                if (decoder.isPartial())
+                    onException(new EOFException("Truncated frame"));
+                else
+                    connectComplete(Collections.<RHTTPRequest>emptyList());
             }
             else if (responseStatus == 401)
             {
+                pollEnded();
                 notifyConnectRequired();
             }
             else
@@ -253,6 +679,144 @@ public class JettyClient extends AbstractClient
         protected void onConnectionFailed(Throwable x)
         {
             getLogger().debug(x);
+            notifyConnectException();
+        }
+    }
+
+    /**
+     * <p>Exposes the response content as an {@link InputStream}.</p>
+     * <p>Content chunks are handed to the reading thread through a bounded queue: when the
+     * queue is full the HTTP client stops reading from the gateway server, so that memory
+     * stays bounded regardless of the body size.<br />
+     * Waiting for the queue blocks the thread that reads the connection, so pulls are sent by
+     * the {@link #getPullClient() pull client}, with a connection and a thread per pull, and
+     * never stall the connections of the HTTP client used for polls and delivers.</p>
+     */
+    protected class PullExchange extends ContentExchange
+    {
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(4);
+        private final byte[] eof = new byte[0];
+        private final ChunkInputStream input = new ChunkInputStream();
+        private volatile IOException failure;
+
+        protected PullExchange()
+        {
+            super(true);
+        }
+
+        public InputStream getInputStream()
+        {
+            return input;
+        }
+
+        @Override
+        protected void onResponseContent(Buffer buffer) throws IOException
+        {
+            if (getResponseStatus() == 200)
+                offer(buffer.asArray());
+        }
+
+        @Override
+        protected void onResponseComplete()
+        {
+            int responseStatus = getResponseStatus();
+            if (responseStatus == 401)
+                notifyConnectRequired();
+            if (responseStatus != 200)
+                failure = new IOException("Pull failed with status " + responseStatus);
+            offer(eof);
+        }
+
+        @Override
+        protected void onException(Throwable x)
+        {
+            getLogger().debug(x);
+            failure = newIOException(x);
+            offer(eof);
+        }
+
+        @Override
+        protected void onConnectionFailed(Throwable x)
+        {
+            onException(x);
+        }
+
+        @Override
+        protected void onExpire()
+        {
+            failure = new IOException("Pull expired");
+            offer(eof);
+        }
+
+        private void offer(byte[] chunk)
+        {
+            try
+            {
+                // Give up if the reader closed the stream without reading it all
+                while (!input.closed)
+                {
+                    if (chunks.offer(chunk, 1, TimeUnit.SECONDS))
+                        break;
+                }
+            }
+            catch (InterruptedException x)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private class ChunkInputStream extends InputStream
+        {
+            private volatile boolean closed;
+            private byte[] chunk;
+            private int index;
+
+            @Override
+            public int read() throws IOException
+            {
+                byte[] bytes = new byte[1];
+                int read = read(bytes, 0, 1);
+                return read < 0 ? -1 : bytes[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException
+            {
+                if (chunk == eof)
+                    return -1;
+                if (closed)
+                    throw new IOException("Closed");
+                try
+                {
+                    while (chunk == null || index == chunk.length)
+                    {
+                        chunk = chunks.take();
+                        index = 0;
+                        if (chunk == eof)
+                        {
+                            if (failure != null)
+                                throw failure;
+                            return -1;
+                        }
+                    }
+                }
+                catch (InterruptedException x)
+                {
+                    Thread.currentThread().interrupt();
+                    throw newIOException(x);
+                }
+                int result = Math.min(length, chunk.length - index);
+                System.arraycopy(chunk, index, bytes, offset, result);
+                index += result;
+                return result;
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                closed = true;
+                chunks.clear();
+            }
         }
     }
 
@@ -266,12 +830,12 @@ public class JettyClient extends AbstractClient
 
     protected class DeliverExchange extends ContentExchange
     {
-        private final RHTTPResponse response;
+        private final List<RHTTPResponse> responses;
 
-        protected DeliverExchange(RHTTPResponse response)
+        protected DeliverExchange(List<RHTTPResponse> responses)
         {
             super(true);
-            this.response = response;
+            this.responses = responses;
         }
 
         @Override
@@ -284,7 +848,7 @@ public class JettyClient extends AbstractClient
             }
             else if (responseStatus != 200)
             {
-                notifyDeliverException(response);
+                notifyDeliverException(responses);
             }
         }
 
@@ -292,7 +856,7 @@ public class JettyClient extends AbstractClient
         protected void onException(Throwable x)
         {
             getLogger().debug(x);
-            notifyDeliverException(response);
+            notifyDeliverException(responses);
         }
 
         @Override
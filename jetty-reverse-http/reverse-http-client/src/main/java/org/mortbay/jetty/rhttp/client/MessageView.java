@@ -0,0 +1,351 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Indexes the start line, the headers and the body of a serialized HTTP message,
+ * in place over the bytes that hold it.</p>
+ * <p>Parsing only records offsets: strings are decoded when asked for, headers are
+ * looked up by comparing bytes, and the body is a slice of the same bytes.<br />
+ * The start line is split in three tokens at the first two spaces, which fits both
+ * request lines and status lines.</p>
+ * <p>The body of a framed message is delimited by its headers like HTTP does: a chunked
+ * body is decoded, which is the only case where the body is copied, and otherwise the
+ * body is at most Content-Length bytes long. The body of a message that is not framed
+ * is all the bytes after the empty line that ends the headers.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+final class MessageView
+{
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+    // Start and end offsets of the three tokens of the start line
+    private final int[] line = new int[6];
+    // Name start, name end, value start and value end offsets of each header
+    private int[] fields = new int[32];
+    private int fieldCount;
+    private int bodyOffset;
+    private int bodyLength;
+    // The decoded body, only for chunked bodies
+    private byte[] chunkedBody;
+
+    /**
+     * @param bytes the bytes holding the message
+     * @param offset the offset of the message in the bytes
+     * @param length the length of the message
+     * @param framed whether the body is delimited by the Transfer-Encoding and Content-Length headers
+     */
+    MessageView(byte[] bytes, int offset, int length, boolean framed)
+    {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        parse();
+        if (framed)
+            frame();
+    }
+
+    private void parse()
+    {
+        int end = offset + length;
+        int lineEnd = lineEnd(offset, end);
+        int first = indexOf((byte)' ', offset, lineEnd);
+        int second = indexOf((byte)' ', first + 1, lineEnd);
+        line[0] = offset;
+        line[1] = first;
+        line[2] = Math.min(first + 1, lineEnd);
+        line[3] = second;
+        line[4] = Math.min(second + 1, lineEnd);
+        line[5] = lineEnd;
+
+        int position = next(lineEnd, end);
+        while (position < end)
+        {
+            lineEnd = lineEnd(position, end);
+            if (lineEnd == position)
+            {
+                position = next(lineEnd, end);
+                break;
+            }
+            int colon = indexOf((byte)':', position, lineEnd);
+            int valueStart = colon + 1;
+            while (valueStart < lineEnd && isWhitespace(bytes[valueStart]))
+                ++valueStart;
+            int valueEnd = lineEnd;
+            while (valueEnd > valueStart && isWhitespace(bytes[valueEnd - 1]))
+                --valueEnd;
+            addField(position, colon, valueStart, valueEnd);
+            position = next(lineEnd, end);
+        }
+        bodyOffset = Math.min(position, end);
+        bodyLength = end - bodyOffset;
+    }
+
+    private void frame()
+    {
+        String transferEncoding = getHeader("Transfer-Encoding");
+        if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked"))
+        {
+            chunkedBody = decodeChunks(bodyOffset, bodyOffset + bodyLength);
+            return;
+        }
+
+        String contentLength = getHeader("Content-Length");
+        if (contentLength != null)
+        {
+            try
+            {
+                bodyLength = Math.max(0, Math.min(bodyLength, Integer.parseInt(contentLength)));
+            }
+            catch (NumberFormatException x)
+            {
+                // Not a valid length, the body is all the bytes after the headers
+            }
+        }
+    }
+
+    private byte[] decodeChunks(int position, int end)
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(end - position);
+        while (position < end)
+        {
+            // Chunk header: hex size, optional extensions, CRLF
+            int lineEnd = lineEnd(position, end);
+            int sizeEnd = indexOf((byte)';', position, lineEnd);
+            int size;
+            try
+            {
+                size = Integer.parseInt(string(position, sizeEnd).trim(), 16);
+            }
+            catch (NumberFormatException x)
+            {
+                break;
+            }
+            // The last chunk has size zero, and may be followed by trailers that we ignore
+            if (size <= 0)
+                break;
+            position = next(lineEnd, end);
+            size = Math.min(size, end - position);
+            result.write(bytes, position, size);
+            // Skip the CRLF that ends the chunk data
+            position = next(position + size, end);
+        }
+        return result.toByteArray();
+    }
+
+    private void addField(int nameStart, int nameEnd, int valueStart, int valueEnd)
+    {
+        int index = 4 * fieldCount;
+        if (index + 4 > fields.length)
+        {
+            int[] newFields = new int[2 * fields.length];
+            System.arraycopy(fields, 0, newFields, 0, fields.length);
+            fields = newFields;
+        }
+        fields[index] = nameStart;
+        fields[index + 1] = nameEnd;
+        fields[index + 2] = valueStart;
+        fields[index + 3] = valueEnd;
+        ++fieldCount;
+    }
+
+    private int lineEnd(int start, int end)
+    {
+        // Lines end with CRLF, a bare LF is tolerated
+        int lf = indexOf((byte)'\n', start, end);
+        return lf > start && bytes[lf - 1] == '\r' ? lf - 1 : lf;
+    }
+
+    private int next(int lineEnd, int end)
+    {
+        if (lineEnd < end && bytes[lineEnd] == '\r')
+            ++lineEnd;
+        return lineEnd < end ? lineEnd + 1 : end;
+    }
+
+    private int indexOf(byte b, int start, int end)
+    {
+        for (int i = start; i < end; ++i)
+        {
+            if (bytes[i] == b)
+                return i;
+        }
+        return end;
+    }
+
+    private boolean isWhitespace(byte b)
+    {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * @param index the token index, from 0 to 2
+     * @return the given token of the start line
+     */
+    String getToken(int index)
+    {
+        return string(line[2 * index], line[2 * index + 1]);
+    }
+
+    /**
+     * @param name the header name, compared ignoring case
+     * @return the value of the first header with the given name, or null if there is no such header
+     */
+    String getHeader(String name)
+    {
+        for (int i = 0; i < fieldCount; ++i)
+        {
+            int index = 4 * i;
+            if (matches(name, fields[index], fields[index + 1]))
+                return string(fields[index + 2], fields[index + 3]);
+        }
+        return null;
+    }
+
+    private boolean matches(String name, int start, int end)
+    {
+        if (end - start != name.length())
+            return false;
+        for (int i = 0; i < name.length(); ++i)
+        {
+            // Header names are ASCII tokens
+            char c = name.charAt(i);
+            byte b = bytes[start + i];
+            if (c != b && Character.toLowerCase(c) != Character.toLowerCase((char)b))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return a new map with all the headers, in order
+     */
+    Map<String, String> toHeaderMap()
+    {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for (int i = 0; i < fieldCount; ++i)
+        {
+            int index = 4 * i;
+            result.put(string(fields[index], fields[index + 1]), string(fields[index + 2], fields[index + 3]));
+        }
+        return result;
+    }
+
+    /**
+     * @return a slice of the bytes holding the body
+     */
+    ByteBuffer getBodyBuffer()
+    {
+        if (chunkedBody != null)
+            return ByteBuffer.wrap(chunkedBody);
+        return ByteBuffer.wrap(bytes, bodyOffset, bodyLength).slice();
+    }
+
+    /**
+     * @return the body, in an array that is not shared with the message bytes
+     */
+    byte[] copyBody()
+    {
+        if (chunkedBody != null)
+            return chunkedBody;
+        byte[] result = new byte[bodyLength];
+        System.arraycopy(bytes, bodyOffset, result, 0, bodyLength);
+        return result;
+    }
+
+    /**
+     * <p>Serializes this message again with another body: the start line and the headers are
+     * copied as they are, repeated headers included, and the given body is spliced after them.</p>
+     * <p>The values of the Content-Length headers, if any, are replaced by the length of the given body.</p>
+     *
+     * @param body the new body
+     * @param removedName the name of the headers to leave out, compared ignoring case, or null
+     * @param addedName the name of a header to add after the others, or null
+     * @param addedValue the value of the added header
+     * @return the bytes of the new message
+     */
+    byte[] withBody(byte[] body, String removedName, String addedName, String addedValue)
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(length + body.length + 64);
+        result.write(bytes, offset, line[5] - offset);
+        result.write('\r');
+        result.write('\n');
+        for (int i = 0; i < fieldCount; ++i)
+        {
+            int index = 4 * i;
+            int nameStart = fields[index];
+            int nameEnd = fields[index + 1];
+            if (removedName != null && matches(removedName, nameStart, nameEnd))
+                continue;
+            result.write(bytes, nameStart, nameEnd - nameStart);
+            result.write(':');
+            result.write(' ');
+            if (matches("Content-Length", nameStart, nameEnd))
+                write(result, String.valueOf(body.length));
+            else
+                result.write(bytes, fields[index + 2], fields[index + 3] - fields[index + 2]);
+            result.write('\r');
+            result.write('\n');
+        }
+        if (addedName != null)
+        {
+            write(result, addedName);
+            result.write(':');
+            result.write(' ');
+            write(result, addedValue);
+            result.write('\r');
+            result.write('\n');
+        }
+        result.write('\r');
+        result.write('\n');
+        result.write(body, 0, body.length);
+        return result.toByteArray();
+    }
+
+    private void write(ByteArrayOutputStream output, String value)
+    {
+        try
+        {
+            byte[] bytes = value.getBytes("UTF-8");
+            output.write(bytes, 0, bytes.length);
+        }
+        catch (UnsupportedEncodingException x)
+        {
+            throw new AssertionError(x);
+        }
+    }
+
+    private String string(int start, int end)
+    {
+        try
+        {
+            return new String(bytes, start, end - start, "UTF-8");
+        }
+        catch (UnsupportedEncodingException x)
+        {
+            throw new AssertionError(x);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <p>Compresses the bodies of the {@link RHTTPRequest}s and {@link RHTTPResponse}s carried
+ * inside frames, to save bandwidth on slow or metered links.</p>
+ * <p>The compression is negotiated during the handshake like the {@link FrameCodec}: the
+ * gateway client lists the compressions it supports in the {@link #HEADER} request header,
+ * and the gateway server replies with the chosen compression in the same response header.<br />
+ * When either side does not send the header, bodies are not compressed.</p>
+ * <p>A compressed body is marked by the {@link #ENCODING_HEADER} header, that the receiving side
+ * removes while restoring the original body; the <tt>Content-Length</tt> header, if present,
+ * always matches the body carried in the frame.<br />
+ * Compressing and decompressing splice the new body into the serialized message, leaving the
+ * start line and the other headers untouched, so that repeated headers are preserved.<br />
+ * Bodies that are smaller than a threshold, that are already encoded, that have a content type
+ * that is already compressed, or that do not shrink, are sent as they are.</p>
+ * <p>The receiving side bounds the size of the restored bodies, so that a small compressed
+ * body cannot expand into an arbitrarily large one.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class PayloadCompression
+{
+    public static final String HEADER = "X-RHTTP-Compression";
+    public static final String ENCODING_HEADER = "X-RHTTP-Encoding";
+    public static final int DEFAULT_THRESHOLD = 256;
+    public static final int DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+    public static final PayloadCompression DEFLATE = new PayloadCompression("deflate");
+    public static final PayloadCompression GZIP = new PayloadCompression("gzip");
+    private static final String[] COMPRESSED_TYPES = new String[]{"image/", "audio/", "video/",
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-compress",
+            "application/x-bzip2", "application/x-7z-compressed", "application/x-rar-compressed"};
+
+    /**
+     * @param name the compression name
+     * @return the compression with the given name, or null if there is no such compression
+     */
+    public static PayloadCompression forName(String name)
+    {
+        if (name == null)
+            return null;
+        name = name.trim();
+        if (DEFLATE.getName().equalsIgnoreCase(name))
+            return DEFLATE;
+        if (GZIP.getName().equalsIgnoreCase(name))
+            return GZIP;
+        return null;
+    }
+
+    /**
+     * @return the comma separated list of compression names supported by this implementation, in order of preference
+     */
+    public static String getSupportedNames()
+    {
+        return DEFLATE.getName() + "," + GZIP.getName();
+    }
+
+    /**
+     * <p>Chooses the first compression in the offered list that is also in the accepted list.</p>
+     * @param offered the comma separated list of compression names offered by the gateway client, may be null
+     * @param accepted the comma separated list of compression names accepted by the gateway server, may be null
+     * @return the chosen compression, or null if bodies must not be compressed
+     */
+    public static PayloadCompression negotiate(String offered, String accepted)
+    {
+        if (offered == null || accepted == null)
+            return null;
+
+        List<PayloadCompression> acceptable = new ArrayList<PayloadCompression>();
+        for (String name : accepted.split(","))
+        {
+            PayloadCompression compression = forName(name);
+            if (compression != null)
+                acceptable.add(compression);
+        }
+
+        for (String name : offered.split(","))
+        {
+            PayloadCompression compression = forName(name);
+            if (compression != null && acceptable.contains(compression))
+                return compression;
+        }
+        return null;
+    }
+
+    /**
+     * @param request the request to restore
+     * @param maxSize the maximum length of the original body
+     * @return the given request if its body is not compressed, or a new request with the original body
+     * @throws IOException if the body cannot be decompressed, or its original length exceeds the maximum
+     */
+    public static RHTTPRequest decompress(RHTTPRequest request, int maxSize) throws IOException
+    {
+        String name = request.getHeader(ENCODING_HEADER);
+        if (name == null)
+            return request;
+        byte[] body = decompress(name, request.getBody(), maxSize);
+        return RHTTPRequest.fromRequestBytes(request.getId(), request.getView().withBody(body, ENCODING_HEADER, null, null));
+    }
+
+    /**
+     * @param response the response to restore
+     * @param maxSize the maximum length of the original body
+     * @return the given response if its body is not compressed, or a new response with the original body
+     * @throws IOException if the body cannot be decompressed, or its original length exceeds the maximum
+     */
+    public static RHTTPResponse decompress(RHTTPResponse response, int maxSize) throws IOException
+    {
+        String name = response.getHeader(ENCODING_HEADER);
+        if (name == null)
+            return response;
+        byte[] body = decompress(name, response.getBody(), maxSize);
+        return RHTTPResponse.fromResponseBytes(response.getId(), response.getView().withBody(body, ENCODING_HEADER, null, null));
+    }
+
+    private static byte[] decompress(String name, byte[] body, int maxSize) throws IOException
+    {
+        PayloadCompression compression = forName(name);
+        if (compression == null)
+            throw new IOException("Unsupported compression " + name);
+        return compression.inflate(body, maxSize);
+    }
+
+    private final String name;
+
+    private PayloadCompression(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * @return the name of this compression, as exchanged during the handshake
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @param request the request to compress
+     * @param threshold the minimum body length worth compressing
+     * @return the given request if its body is not worth compressing, or a new request with a compressed body
+     */
+    public RHTTPRequest compress(RHTTPRequest request, int threshold)
+    {
+        if (request.isStreamed())
+            return request;
+        MessageView view = request.getView();
+        byte[] body = compress(view, request.getBody(), threshold);
+        if (body == null)
+            return request;
+        return RHTTPRequest.fromRequestBytes(request.getId(), view.withBody(body, null, ENCODING_HEADER, getName()));
+    }
+
+    /**
+     * @param response the response to compress
+     * @param threshold the minimum body length worth compressing
+     * @return the given response if its body is not worth compressing, or a new response with a compressed body
+     */
+    public RHTTPResponse compress(RHTTPResponse response, int threshold)
+    {
+        if (response.isStreamed())
+            return response;
+        MessageView view = response.getView();
+        byte[] body = compress(view, response.getBody(), threshold);
+        if (body == null)
+            return response;
+        return RHTTPResponse.fromResponseBytes(response.getId(), view.withBody(body, null, ENCODING_HEADER, getName()));
+    }
+
+    /**
+     * @return the compressed body, or null if the body is not worth compressing
+     */
+    private byte[] compress(MessageView view, byte[] body, int threshold)
+    {
+        if (body.length < threshold || !isCompressible(view))
+            return null;
+
+        byte[] result = deflate(body);
+        if (result.length >= body.length)
+            return null;
+        return result;
+    }
+
+    /**
+     * @param view the message
+     * @return whether the body of the given message is worth compressing
+     */
+    private boolean isCompressible(MessageView view)
+    {
+        // Encoded bodies are either already compressed, or framed in a way we do not want to alter
+        if (view.getHeader("Content-Encoding") != null || view.getHeader("Transfer-Encoding") != null)
+            return false;
+        if (view.getHeader(ENCODING_HEADER) != null)
+            return false;
+        String contentType = view.getHeader("Content-Type");
+        if (contentType != null)
+        {
+            contentType = contentType.trim().toLowerCase();
+            for (String compressedType : COMPRESSED_TYPES)
+            {
+                if (contentType.startsWith(compressedType))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] deflate(byte[] bytes)
+    {
+        try
+        {
+            ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length / 2);
+            OutputStream output = this == GZIP ? new GZIPOutputStream(result) : new DeflaterOutputStream(result);
+            output.write(bytes);
+            output.close();
+            return result.toByteArray();
+        }
+        catch (IOException x)
+        {
+            // Cannot happen: we're writing to a byte[], not to an I/O stream
+            throw new AssertionError(x);
+        }
+    }
+
+    private byte[] inflate(byte[] bytes, int maxSize) throws IOException
+    {
+        ByteArrayInputStream source = new ByteArrayInputStream(bytes);
+        InputStream input = this == GZIP ? new GZIPInputStream(source) : new InflaterInputStream(source);
+        try
+        {
+            ByteArrayOutputStream result = new ByteArrayOutputStream((int)Math.min(4L * bytes.length, maxSize));
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = input.read(buffer)) >= 0)
+            {
+                // Stop as soon as the limit is exceeded, rather than inflating the whole body first
+                if (read > maxSize - result.size())
+                    throw new IOException("Decompressed body exceeds " + maxSize + " bytes");
+                result.write(buffer, 0, read);
+            }
+            return result.toByteArray();
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return getName();
+    }
+}
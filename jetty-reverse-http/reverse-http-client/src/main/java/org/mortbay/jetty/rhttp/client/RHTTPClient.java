@@ -17,6 +17,7 @@
 package org.mortbay.jetty.rhttp.client;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * <p><tt>RHTTPClient</tt> represent a client of the gateway server.</p>
@@ -37,6 +38,34 @@ import java.io.IOException;
  */
 public interface RHTTPClient
 {
+    /**
+     * The handshake header that offers, and accepts, the WebSocket transport.
+     */
+    public static final String WEBSOCKET_HEADER = "X-RHTTP-WebSocket";
+    /**
+     * <p>The header that carries the session token issued by the gateway server during the handshake.</p>
+     * <p>The gateway client asks for a token by sending the value <tt>true</tt> in the handshake, then presents
+     * the token in its connect requests; a client that lost its connection resumes its session,
+     * and the requests queued for it, by presenting the token again.</p>
+     */
+    public static final String SESSION_HEADER = "X-RHTTP-Session";
+    /**
+     * The query parameter that carries the session token in the WebSocket upgrade request,
+     * as the WebSocket client cannot add headers to it.
+     */
+    public static final String SESSION_PARAMETER = "session";
+    /**
+     * The connect response header carrying the maximum time, in milliseconds, the gateway server holds the long polls.
+     */
+    public static final String HOLD_TIME_HEADER = "X-RHTTP-Hold-Time";
+    /**
+     * <p>The handshake header carrying the number of long polls a gateway client keeps outstanding.</p>
+     * <p>The gateway client offers the number it wants, and the gateway server replies with the
+     * number it accepts, so that requests arriving while a long poll response travels back to the
+     * gateway client are delivered by another long poll, without waiting for a round trip.</p>
+     */
+    public static final String POLLS_HEADER = "X-RHTTP-Polls";
+
     /**
      * @return The gateway uri, typically "http://gatewayhost:gatewayport/gatewaypath".
      */
@@ -101,6 +130,30 @@ public interface RHTTPClient
      */
     public void deliver(RHTTPResponse response) throws IOException;
 
+    /**
+     * <p>Opens the body of the given request.</p>
+     * <p>Large external request bodies are not carried inside the request itself, but are
+     * {@link RHTTPRequest#isStreamed() streamed} from the gateway server on demand, so that
+     * their size does not affect the memory used by the gateway server or by this client.</p>
+     *
+     * @param request the request whose body is opened
+     * @return a stream over the request body, that must be closed by the caller
+     * @throws IOException if it is not possible to contact the gateway server
+     */
+    public InputStream openRequestBody(RHTTPRequest request) throws IOException;
+
+    /**
+     * <p>Sends a response to the gateway server, streaming its body from the given stream.</p>
+     * <p>The status code, status message and headers are taken from the given response,
+     * while its body is ignored. <br />
+     * This method blocks until the whole body has been sent, and closes the given stream.</p>
+     *
+     * @param response the response head to send
+     * @param body the stream the response body is read from
+     * @throws IOException if it is not possible to contact the gateway server
+     */
+    public void deliver(RHTTPResponse response, InputStream body) throws IOException;
+
     /**
      * <p>Adds the given listener to this client.</p>
      * @param listener the listener to add
@@ -16,17 +16,11 @@
 
 package org.mortbay.jetty.rhttp.client;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 
-import org.eclipse.jetty.http.HttpParser;
-import org.eclipse.jetty.io.Buffer;
-import org.eclipse.jetty.io.ByteArrayBuffer;
-
 /**
  * <p>Represents the external request information that is carried over the comet protocol.</p>
  * <p>Instances of this class are converted into an opaque byte array of the form:</p>
@@ -34,19 +28,36 @@ import org.eclipse.jetty.io.ByteArrayBuffer;
  * &lt;request-id&gt; SPACE &lt;request-length&gt; CRLF
  * &lt;external-request&gt;
  * </pre>
+ * <p>The frame header above is the one of the {@link TextFrameCodec text codec}; other
+ * {@link FrameCodec codecs} may be negotiated during the handshake.</p>
  * <p>The byte array form is carried as body of a normal HTTP response returned by the gateway server
  * to the gateway client.</p>
+ * <p>A request decoded from a frame is a view over the bytes of the frame: the request line,
+ * the headers and the body are parsed in place, only when asked for, and headers can be
+ * looked up with {@link #getHeader(String)} without building a map, so that a request
+ * that is only relayed is never copied nor re-encoded.</p>
  * @see RHTTPResponse
  * @version $Revision$ $Date$
  */
 public class RHTTPRequest
 {
+    /**
+     * <p>The header that marks a request whose body is streamed rather than carried in the request.</p>
+     * <p>Its value is the body length, or -1 if the length is not known.<br />
+     * The same header is exchanged during the handshake to negotiate streaming.</p>
+     */
+    public static final String STREAM_HEADER = "X-RHTTP-Stream";
     private static final String CRLF = "\r\n";
     private static final byte[] CRLF_BYTES = CRLF.getBytes();
+    private static final byte[] HTTP_VERSION_BYTES = "HTTP/1.1".getBytes();
 
-    private final int id;
-    private final byte[] requestBytes;
-    private final byte[] frameBytes;
+    private final long id;
+    private final byte[] buffer;
+    private final int offset;
+    private final int length;
+    private volatile byte[] requestBytes;
+    private volatile MessageView view;
+    private volatile byte[] frameBytes;
     private volatile String method;
     private volatile String uri;
     private volatile Map<String, String> headers;
@@ -54,188 +65,217 @@ public class RHTTPRequest
 
     public static List<RHTTPRequest> fromFrameBytes(byte[] bytes)
     {
-        List<RHTTPRequest> result = new ArrayList<RHTTPRequest>();
-        int start = 0;
-        while (start < bytes.length)
-        {
-            // Scan until we find the space
-            int end = start;
-            while (bytes[end] != ' ') ++end;
-            int requestId = Integer.parseInt(new String(bytes, start, end - start));
-            start = end + 1;
-
-            // Scan until end of line
-            while (bytes[end] != '\n') ++end;
-            int length = Integer.parseInt(new String(bytes, start, end - start - 1));
-            start = end + 1;
+        return FrameCodec.TEXT.decodeRequests(ByteBuffer.wrap(bytes));
+    }
 
-            byte[] requestBytes = new byte[length];
-            System.arraycopy(bytes, start, requestBytes, 0, length);
-            RHTTPRequest request = fromRequestBytes(requestId, requestBytes);
-            result.add(request);
-            start += length;
-        }
-        return result;
+    public static RHTTPRequest fromRequestBytes(long requestId, byte[] requestBytes)
+    {
+        return new RHTTPRequest(requestId, requestBytes, 0, requestBytes.length);
     }
 
-    public static RHTTPRequest fromRequestBytes(int requestId, byte[] requestBytes)
+    /**
+     * <p>Creates a request that is a view over the remaining bytes of the given buffer,
+     * which are not copied and therefore must not be modified afterwards.</p>
+     * @param requestId the request id
+     * @param buffer the buffer holding the request bytes
+     * @return a new request backed by the given buffer
+     */
+    public static RHTTPRequest fromRequestBuffer(long requestId, ByteBuffer buffer)
     {
-        return new RHTTPRequest(requestId, requestBytes);
+        if (!buffer.hasArray())
+        {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return fromRequestBytes(requestId, bytes);
+        }
+        return new RHTTPRequest(requestId, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
     }
 
-    public RHTTPRequest(int id, String method, String uri, Map<String, String> headers, byte[] body)
+    public RHTTPRequest(long id, String method, String uri, Map<String, String> headers, byte[] body)
     {
         this.id = id;
         this.method = method;
         this.uri = uri;
         this.headers = headers;
         this.body = body;
-        this.requestBytes = toRequestBytes();
-        this.frameBytes = toFrameBytes(requestBytes);
+        this.buffer = this.requestBytes = toRequestBytes();
+        this.offset = 0;
+        this.length = buffer.length;
     }
 
-    private RHTTPRequest(int id, byte[] requestBytes)
+    private RHTTPRequest(long id, byte[] buffer, int offset, int length)
     {
         this.id = id;
-        this.requestBytes = requestBytes;
-        this.frameBytes = toFrameBytes(requestBytes);
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        if (offset == 0 && length == buffer.length)
+            this.requestBytes = buffer;
         // Other fields are lazily initialized
     }
 
-    private void initialize()
+    MessageView getView()
     {
-        try
-        {
-            final ByteArrayOutputStream body = new ByteArrayOutputStream();
-            HttpParser parser = new HttpParser(new ByteArrayBuffer(requestBytes), new HttpParser.EventHandler()
-            {
-                @Override
-                public void startRequest(Buffer method, Buffer uri, Buffer httpVersion) throws IOException
-                {
-                    RHTTPRequest.this.method = method.toString("UTF-8");
-                    RHTTPRequest.this.uri = uri.toString("UTF-8");
-                    RHTTPRequest.this.headers = new LinkedHashMap<String, String>();
-                }
-
-                @Override
-                public void startResponse(Buffer httpVersion, int statusCode, Buffer statusMessage) throws IOException
-                {
-                }
+        MessageView result = view;
+        if (result == null)
+            view = result = new MessageView(buffer, offset, length, false);
+        return result;
+    }
 
-                @Override
-                public void parsedHeader(Buffer name, Buffer value) throws IOException
-                {
-                    RHTTPRequest.this.headers.put(name.toString("UTF-8"), value.toString("UTF-8"));
-                }
+    public long getId()
+    {
+        return id;
+    }
 
-                @Override
-                public void content(Buffer content) throws IOException
-                {
-                    content.writeTo(body);
-                }
-            });
-            parser.parse();
-            this.body = body.toByteArray();
-        }
-        catch (IOException x)
+    /**
+     * @return the bytes of this request, copied out of the backing buffer the first time
+     * if this request is a view over a part of it
+     * @see #getRequestBuffer()
+     */
+    public byte[] getRequestBytes()
+    {
+        byte[] result = requestBytes;
+        if (result == null)
         {
-            // Cannot happen: we're parsing from a byte[], not from an I/O stream
-            throw new AssertionError(x);
+            result = new byte[length];
+            System.arraycopy(buffer, offset, result, 0, length);
+            requestBytes = result;
         }
+        return result;
     }
 
-    public int getId()
+    /**
+     * @return a buffer over the bytes of this request, without copying them; it must not be modified
+     */
+    public ByteBuffer getRequestBuffer()
     {
-        return id;
+        return ByteBuffer.wrap(buffer, offset, length).slice();
     }
 
-    public byte[] getRequestBytes()
+    /**
+     * @return the number of bytes of this request
+     */
+    public int getRequestLength()
     {
-        return requestBytes;
+        return length;
     }
 
+    /**
+     * @return the bytes of this request framed with the {@link FrameCodec#TEXT text codec}
+     * @see FrameCodec#toFrameBytes(RHTTPRequest)
+     */
     public byte[] getFrameBytes()
     {
-        return frameBytes;
+        byte[] result = frameBytes;
+        if (result == null)
+            frameBytes = result = FrameCodec.TEXT.toFrameBytes(this);
+        return result;
     }
 
     public String getMethod()
     {
         if (method == null)
-            initialize();
+            method = getView().getToken(0);
         return method;
     }
 
     public String getURI()
     {
         if (uri == null)
-            initialize();
+            uri = getView().getToken(1);
         return uri;
     }
 
     public Map<String, String> getHeaders()
     {
         if (headers == null)
-            initialize();
+            headers = getView().toHeaderMap();
         return headers;
     }
 
+    /**
+     * <p>Looks up a header without building the {@link #getHeaders() headers map}, if it is not built yet.</p>
+     * @param name the header name, compared ignoring case
+     * @return the header value, or null if this request has no such header
+     */
+    public String getHeader(String name)
+    {
+        Map<String, String> headers = this.headers;
+        if (headers == null)
+            return getView().getHeader(name);
+        for (Map.Entry<String, String> entry : headers.entrySet())
+        {
+            if (name.equalsIgnoreCase(entry.getKey()))
+                return entry.getValue();
+        }
+        return null;
+    }
+
     public byte[] getBody()
     {
         if (body == null)
-            initialize();
+            body = getView().copyBody();
         return body;
     }
 
+    /**
+     * @return a buffer over the body of this request, without copying it; it must not be modified
+     */
+    public ByteBuffer getBodyBuffer()
+    {
+        byte[] body = this.body;
+        if (body != null)
+            return ByteBuffer.wrap(body);
+        return getView().getBodyBuffer();
+    }
+
+    /**
+     * @return whether the body of this request is streamed separately
+     * @see RHTTPClient#openRequestBody(RHTTPRequest)
+     */
+    public boolean isStreamed()
+    {
+        return getHeader(STREAM_HEADER) != null;
+    }
+
     private byte[] toRequestBytes()
     {
         try
         {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            bytes.write(method.getBytes("UTF-8"));
-            bytes.write(' ');
-            bytes.write(uri.getBytes("UTF-8"));
-            bytes.write(' ');
-            bytes.write("HTTP/1.1".getBytes("UTF-8"));
-            bytes.write(CRLF_BYTES);
+            // Encode the strings first, so that we can size the result exactly and copy only once
+            byte[][] parts = new byte[3 + 2 * headers.size()][];
+            int index = 0;
+            parts[index++] = method.getBytes("UTF-8");
+            parts[index++] = uri.getBytes("UTF-8");
+            parts[index++] = HTTP_VERSION_BYTES;
             for (Map.Entry<String, String> entry : headers.entrySet())
             {
-                bytes.write(entry.getKey().getBytes("UTF-8"));
-                bytes.write(':');
-                bytes.write(' ');
-                bytes.write(entry.getValue().getBytes("UTF-8"));
-                bytes.write(CRLF_BYTES);
+                parts[index++] = entry.getKey().getBytes("UTF-8");
+                parts[index++] = entry.getValue().getBytes("UTF-8");
             }
-            bytes.write(CRLF_BYTES);
-            bytes.write(body);
-            bytes.close();
-            return bytes.toByteArray();
-        }
-        catch (IOException x)
-        {
-            throw new AssertionError(x);
-        }
-    }
 
-    private byte[] toFrameBytes(byte[] requestBytes)
-    {
-        try
-        {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            bytes.write(String.valueOf(id).getBytes("UTF-8"));
-            bytes.write(' ');
-            bytes.write(String.valueOf(requestBytes.length).getBytes("UTF-8"));
-            bytes.write(CRLF_BYTES);
-            bytes.write(requestBytes);
-            bytes.close();
-            return bytes.toByteArray();
+            // Request line: method SP uri SP version CRLF
+            int length = parts[0].length + 1 + parts[1].length + 1 + parts[2].length + 2;
+            // Headers: name ':' SP value CRLF, then CRLF
+            for (int i = 3; i < parts.length; i += 2)
+                length += parts[i].length + 2 + parts[i + 1].length + 2;
+            length += 2 + body.length;
+
+            ByteBuffer bytes = ByteBuffer.allocate(length);
+            bytes.put(parts[0]).put((byte)' ').put(parts[1]).put((byte)' ').put(parts[2]).put(CRLF_BYTES);
+            for (int i = 3; i < parts.length; i += 2)
+                bytes.put(parts[i]).put((byte)':').put((byte)' ').put(parts[i + 1]).put(CRLF_BYTES);
+            bytes.put(CRLF_BYTES);
+            bytes.put(body);
+            return bytes.array();
         }
-        catch (IOException x)
+        catch (UnsupportedEncodingException x)
         {
             throw new AssertionError(x);
         }
     }
 
+
     @Override
     public String toString()
     {
@@ -244,8 +284,7 @@ public class RHTTPRequest
         builder.append(id).append(" ");
         builder.append(method).append(" ");
         builder.append(uri).append(" ");
-        builder.append(requestBytes.length).append("/");
-        builder.append(frameBytes.length);
+        builder.append(length);
         return builder.toString();
     }
 
@@ -16,15 +16,10 @@
 
 package org.mortbay.jetty.rhttp.client;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.LinkedHashMap;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
-import org.eclipse.jetty.http.HttpParser;
-import org.eclipse.jetty.io.Buffer;
-import org.eclipse.jetty.io.ByteArrayBuffer;
-
 /**
  * <p>Represents the resource provider response information that is carried over the comet protocol.</p>
  * <p>Instances of this class are converted into an opaque byte array of the form:</p>
@@ -32,19 +27,36 @@ import org.eclipse.jetty.io.ByteArrayBuffer;
  * &lt;request-id&gt; SPACE &lt;response-length&gt; CRLF
  * &lt;resource-response&gt;
  * </pre>
+ * <p>The frame header above is the one of the {@link TextFrameCodec text codec}; other
+ * {@link FrameCodec codecs} may be negotiated during the handshake.</p>
  * <p>The byte array form is carried as body of a normal HTTP request made by the gateway client to
  * the gateway server.</p>
+ * <p>Like {@link RHTTPRequest}, a response decoded from a frame is a view over the bytes of
+ * the frame, parsed in place only when its parts are asked for.</p>
  * @see RHTTPRequest
  * @version $Revision$ $Date$
  */
 public class RHTTPResponse
 {
+    /**
+     * The header carrying the length of the head frame at the beginning of a pushed response body.
+     */
+    public static final String HEAD_LENGTH_HEADER = "X-RHTTP-Head-Length";
+    /**
+     * The handshake header that offers, and accepts, deliver requests carrying more than one response frame.
+     */
+    public static final String BATCH_HEADER = "X-RHTTP-Batch";
     private static final String CRLF = "\r\n";
     private static final byte[] CRLF_BYTES = CRLF.getBytes();
+    private static final byte[] HTTP_VERSION_BYTES = "HTTP/1.1".getBytes();
 
-    private final int id;
-    private final byte[] responseBytes;
-    private final byte[] frameBytes;
+    private final long id;
+    private final byte[] buffer;
+    private final int offset;
+    private final int length;
+    private volatile byte[] responseBytes;
+    private volatile MessageView view;
+    private volatile byte[] frameBytes;
     private volatile int code;
     private volatile String message;
     private volatile Map<String, String> headers;
@@ -52,180 +64,217 @@ public class RHTTPResponse
 
     public static RHTTPResponse fromFrameBytes(byte[] bytes)
     {
-        int start = 0;
-        // Scan until we find the space
-        int end = start;
-        while (bytes[end] != ' ') ++end;
-        int responseId = Integer.parseInt(new String(bytes, start, end - start));
-        start = end + 1;
-
-        // Scan until end of line
-        while (bytes[end] != '\n') ++end;
-        int length = Integer.parseInt(new String(bytes, start, end - start - 1));
-        start = end + 1;
+        return FrameCodec.TEXT.decodeResponse(ByteBuffer.wrap(bytes));
+    }
 
-        byte[] responseBytes = new byte[length];
-        System.arraycopy(bytes, start, responseBytes, 0, length);
-        return fromResponseBytes(responseId, responseBytes);
+    public static RHTTPResponse fromResponseBytes(long id, byte[] responseBytes)
+    {
+        return new RHTTPResponse(id, responseBytes, 0, responseBytes.length);
     }
 
-    public static RHTTPResponse fromResponseBytes(int id, byte[] responseBytes)
+    /**
+     * <p>Creates a response that is a view over the remaining bytes of the given buffer,
+     * which are not copied and therefore must not be modified afterwards.</p>
+     * @param id the response id
+     * @param buffer the buffer holding the response bytes
+     * @return a new response backed by the given buffer
+     */
+    public static RHTTPResponse fromResponseBuffer(long id, ByteBuffer buffer)
     {
-        return new RHTTPResponse(id, responseBytes);
+        if (!buffer.hasArray())
+        {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return fromResponseBytes(id, bytes);
+        }
+        return new RHTTPResponse(id, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
     }
 
-    public RHTTPResponse(int id, int code, String message, Map<String, String> headers, byte[] body)
+    public RHTTPResponse(long id, int code, String message, Map<String, String> headers, byte[] body)
     {
         this.id = id;
         this.code = code;
         this.message = message;
         this.headers = headers;
         this.body = body;
-        this.responseBytes = toResponseBytes();
-        this.frameBytes = toFrameBytes(responseBytes);
+        this.buffer = this.responseBytes = toResponseBytes();
+        this.offset = 0;
+        this.length = buffer.length;
     }
 
-    private RHTTPResponse(int id, byte[] responseBytes)
+    private RHTTPResponse(long id, byte[] buffer, int offset, int length)
     {
         this.id = id;
-        this.responseBytes = responseBytes;
-        this.frameBytes = toFrameBytes(responseBytes);
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        if (offset == 0 && length == buffer.length)
+            this.responseBytes = buffer;
         // Other fields are lazily initialized
     }
 
-    private void initialize()
+    MessageView getView()
     {
-        try
-        {
-            final ByteArrayOutputStream body = new ByteArrayOutputStream();
-            HttpParser parser = new HttpParser(new ByteArrayBuffer(responseBytes), new HttpParser.EventHandler()
-            {
-                @Override
-                public void startRequest(Buffer method, Buffer uri, Buffer httpVersion) throws IOException
-                {
-                }
-
-                @Override
-                public void startResponse(Buffer httpVersion, int statusCode, Buffer statusMessage) throws IOException
-                {
-                    RHTTPResponse.this.code = statusCode;
-                    RHTTPResponse.this.message = statusMessage.toString("UTF-8");
-                    RHTTPResponse.this.headers = new LinkedHashMap<String, String>();
-                }
-
-                @Override
-                public void parsedHeader(Buffer name, Buffer value) throws IOException
-                {
-                    RHTTPResponse.this.headers.put(name.toString("UTF-8"), value.toString("UTF-8"));
-                }
-
-                @Override
-                public void content(Buffer content) throws IOException
-                {
-                    content.writeTo(body);
-                }
-            });
-            parser.parse();
-            this.body = body.toByteArray();
-        }
-        catch (IOException x)
-        {
-            // Cannot happen: we're parsing from a byte[], not from an I/O stream
-            throw new AssertionError(x);
-        }
+        MessageView result = view;
+        if (result == null)
+            view = result = new MessageView(buffer, offset, length, true);
+        return result;
     }
 
-    public int getId()
+    public long getId()
     {
         return id;
     }
 
+    /**
+     * @return the bytes of this response, copied out of the backing buffer the first time
+     * if this response is a view over a part of it
+     * @see #getResponseBuffer()
+     */
     public byte[] getResponseBytes()
     {
-        return responseBytes;
+        byte[] result = responseBytes;
+        if (result == null)
+        {
+            result = new byte[length];
+            System.arraycopy(buffer, offset, result, 0, length);
+            responseBytes = result;
+        }
+        return result;
     }
 
+    /**
+     * @return a buffer over the bytes of this response, without copying them; it must not be modified
+     */
+    public ByteBuffer getResponseBuffer()
+    {
+        return ByteBuffer.wrap(buffer, offset, length).slice();
+    }
+
+    /**
+     * @return the number of bytes of this response
+     */
+    public int getResponseLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return the bytes of this response framed with the {@link FrameCodec#TEXT text codec}
+     * @see FrameCodec#toFrameBytes(RHTTPResponse)
+     */
     public byte[] getFrameBytes()
     {
-        return frameBytes;
+        byte[] result = frameBytes;
+        if (result == null)
+            frameBytes = result = FrameCodec.TEXT.toFrameBytes(this);
+        return result;
     }
 
     public int getStatusCode()
     {
         if (code == 0)
-            initialize();
+            code = Integer.parseInt(getView().getToken(1));
         return code;
     }
 
     public String getStatusMessage()
     {
         if (message == null)
-            initialize();
+            message = getView().getToken(2);
         return message;
     }
 
     public Map<String, String> getHeaders()
     {
         if (headers == null)
-            initialize();
+            headers = getView().toHeaderMap();
         return headers;
     }
 
+    /**
+     * <p>Looks up a header without building the {@link #getHeaders() headers map}, if it is not built yet.</p>
+     * @param name the header name, compared ignoring case
+     * @return the header value, or null if this response has no such header
+     */
+    public String getHeader(String name)
+    {
+        Map<String, String> headers = this.headers;
+        if (headers == null)
+            return getView().getHeader(name);
+        for (Map.Entry<String, String> entry : headers.entrySet())
+        {
+            if (name.equalsIgnoreCase(entry.getKey()))
+                return entry.getValue();
+        }
+        return null;
+    }
+
     public byte[] getBody()
     {
         if (body == null)
-            initialize();
+            body = getView().copyBody();
         return body;
     }
 
+    /**
+     * @return a buffer over the body of this response, without copying it; it must not be modified
+     */
+    public ByteBuffer getBodyBuffer()
+    {
+        byte[] body = this.body;
+        if (body != null)
+            return ByteBuffer.wrap(body);
+        return getView().getBodyBuffer();
+    }
+
+    /**
+     * @return whether the body of this response is streamed separately
+     * @see RHTTPClient#deliver(RHTTPResponse, java.io.InputStream)
+     */
+    public boolean isStreamed()
+    {
+        return getHeader(RHTTPRequest.STREAM_HEADER) != null;
+    }
+
     private byte[] toResponseBytes()
     {
         try
         {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            bytes.write("HTTP/1.1".getBytes("UTF-8"));
-            bytes.write(' ');
-            bytes.write(String.valueOf(code).getBytes("UTF-8"));
-            bytes.write(' ');
-            bytes.write(message.getBytes("UTF-8"));
-            bytes.write(CRLF_BYTES);
+            // Encode the strings first, so that we can size the result exactly and copy only once
+            byte[][] parts = new byte[3 + 2 * headers.size()][];
+            int index = 0;
+            parts[index++] = HTTP_VERSION_BYTES;
+            parts[index++] = String.valueOf(code).getBytes("UTF-8");
+            parts[index++] = message.getBytes("UTF-8");
             for (Map.Entry<String, String> entry : headers.entrySet())
             {
-                bytes.write(entry.getKey().getBytes("UTF-8"));
-                bytes.write(':');
-                bytes.write(' ');
-                bytes.write(entry.getValue().getBytes("UTF-8"));
-                bytes.write(CRLF_BYTES);
+                parts[index++] = entry.getKey().getBytes("UTF-8");
+                parts[index++] = entry.getValue().getBytes("UTF-8");
             }
-            bytes.write(CRLF_BYTES);
-            bytes.write(body);
-            bytes.close();
-            return bytes.toByteArray();
-        }
-        catch (IOException x)
-        {
-            throw new AssertionError(x);
-        }
-    }
 
-    private byte[] toFrameBytes(byte[] responseBytes)
-    {
-        try
-        {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            bytes.write(String.valueOf(id).getBytes("UTF-8"));
-            bytes.write(' ');
-            bytes.write(String.valueOf(responseBytes.length).getBytes("UTF-8"));
-            bytes.write(CRLF_BYTES);
-            bytes.write(responseBytes);
-            return bytes.toByteArray();
+            // Status line: version SP code SP message CRLF
+            int length = parts[0].length + 1 + parts[1].length + 1 + parts[2].length + 2;
+            // Headers: name ':' SP value CRLF, then CRLF
+            for (int i = 3; i < parts.length; i += 2)
+                length += parts[i].length + 2 + parts[i + 1].length + 2;
+            length += 2 + body.length;
+
+            ByteBuffer bytes = ByteBuffer.allocate(length);
+            bytes.put(parts[0]).put((byte)' ').put(parts[1]).put((byte)' ').put(parts[2]).put(CRLF_BYTES);
+            for (int i = 3; i < parts.length; i += 2)
+                bytes.put(parts[i]).put((byte)':').put((byte)' ').put(parts[i + 1]).put(CRLF_BYTES);
+            bytes.put(CRLF_BYTES);
+            bytes.put(body);
+            return bytes.array();
         }
-        catch (IOException x)
+        catch (UnsupportedEncodingException x)
         {
             throw new AssertionError(x);
         }
     }
 
+
     @Override
     public String toString()
     {
@@ -234,8 +283,7 @@ public class RHTTPResponse
         builder.append(id).append(" ");
         builder.append(code).append(" ");
         builder.append(message).append(" ");
-        builder.append(responseBytes.length).append("/");
-        builder.append(frameBytes.length);
+        builder.append(length);
         return builder.toString();
     }
 
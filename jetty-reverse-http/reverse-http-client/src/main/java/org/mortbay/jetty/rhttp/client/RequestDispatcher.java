@@ -0,0 +1,243 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * <p>Dispatches the requests arrived to a client to its {@link RHTTPListener}s in parallel,
+ * so that a slow request does not delay the others arrived with it.</p>
+ * <p>At most {@link #getMaxConcurrency() maxConcurrency} requests are processed at the same
+ * time by the {@link Executor}; the others wait, in arrival order, for one to complete.<br />
+ * With an {@link Ordering}, the requests with the same key are processed one after the
+ * other, in arrival order, while requests with different keys, or without a key, are
+ * processed in parallel.</p>
+ *
+ * @version $Revision$ $Date$
+ * @see AbstractClient#setRequestDispatcher(RequestDispatcher)
+ */
+public class RequestDispatcher
+{
+    private final Logger logger = Log.getLogger("org.mortbay.jetty.rhttp.client");
+    private final Object lock = new Object();
+    private final Map<Object, Queue<Runnable>> keys = new HashMap<Object, Queue<Runnable>>();
+    private final Queue<Task> pending = new LinkedList<Task>();
+    private final Executor executor;
+    private volatile int maxConcurrency;
+    private volatile Ordering ordering;
+    private int active;
+
+    /**
+     * @param executor the executor that processes the requests
+     * @param maxConcurrency the maximum number of requests processed at the same time
+     */
+    public RequestDispatcher(Executor executor, int maxConcurrency)
+    {
+        this.executor = executor;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    public int getMaxConcurrency()
+    {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency)
+    {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * @return the ordering of the requests, or null if all requests are processed in parallel
+     */
+    public Ordering getOrdering()
+    {
+        return ordering;
+    }
+
+    public void setOrdering(Ordering ordering)
+    {
+        this.ordering = ordering;
+    }
+
+    /**
+     * @return the number of requests being processed
+     */
+    public int getActive()
+    {
+        synchronized (lock)
+        {
+            return active;
+        }
+    }
+
+    /**
+     * @return the number of requests waiting to be processed
+     */
+    public int getPending()
+    {
+        synchronized (lock)
+        {
+            int result = pending.size();
+            for (Queue<Runnable> queue : keys.values())
+                result += queue.size();
+            return result;
+        }
+    }
+
+    /**
+     * @param request the request to process
+     * @param processor the processing of the request
+     */
+    public void dispatch(RHTTPRequest request, Runnable processor)
+    {
+        Ordering ordering = getOrdering();
+        Object key = ordering == null ? null : ordering.getKey(request);
+        Task task;
+        synchronized (lock)
+        {
+            if (key != null)
+            {
+                Queue<Runnable> queue = keys.get(key);
+                if (queue != null)
+                {
+                    // A request with the same key is being processed or is pending
+                    queue.offer(processor);
+                    return;
+                }
+                keys.put(key, new LinkedList<Runnable>());
+            }
+            task = new Task(key, processor);
+            if (active >= Math.max(1, getMaxConcurrency()))
+            {
+                pending.offer(task);
+                return;
+            }
+            ++active;
+        }
+        execute(task);
+    }
+
+    private void completed(Object key)
+    {
+        Task next;
+        synchronized (lock)
+        {
+            if (key != null)
+            {
+                Queue<Runnable> queue = keys.get(key);
+                Runnable processor = queue.poll();
+                if (processor == null)
+                    keys.remove(key);
+                else
+                    pending.offer(new Task(key, processor));
+            }
+            next = pending.poll();
+            if (next == null)
+                --active;
+        }
+        if (next != null)
+            execute(next);
+    }
+
+    private void execute(Task task)
+    {
+        try
+        {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException x)
+        {
+            // Requests must not be lost, process it in the caller thread
+            logger.debug("Dispatch rejected, processing request in the caller thread", x);
+            task.run();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[active=" + getActive() + ",pending=" + getPending() + "]";
+    }
+
+    /**
+     * <p>Tells the requests that must be processed in arrival order.</p>
+     */
+    public interface Ordering
+    {
+        /**
+         * @param request the request
+         * @return the key of the request, or null if the request can be processed in any order
+         */
+        public Object getKey(RHTTPRequest request);
+    }
+
+    /**
+     * <p>An {@link Ordering} whose key is the value of a request header.</p>
+     */
+    public static class HeaderOrdering implements Ordering
+    {
+        private final String header;
+
+        public HeaderOrdering(String header)
+        {
+            this.header = header;
+        }
+
+        public Object getKey(RHTTPRequest request)
+        {
+            return request.getHeader(header);
+        }
+    }
+
+    private class Task implements Runnable
+    {
+        private final Object key;
+        private final Runnable processor;
+
+        private Task(Object key, Runnable processor)
+        {
+            this.key = key;
+            this.processor = processor;
+        }
+
+        public void run()
+        {
+            try
+            {
+                processor.run();
+            }
+            finally
+            {
+                completed(key);
+            }
+        }
+    }
+}
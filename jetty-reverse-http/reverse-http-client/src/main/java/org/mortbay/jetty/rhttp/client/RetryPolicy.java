@@ -0,0 +1,184 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Decides how long a client waits before retrying an operation that failed
+ * against the gateway server, and when it gives up.</p>
+ * <p>Delays grow exponentially with the number of consecutive failures, from the
+ * {@link #getBaseDelay() base delay} up to the {@link #getMaxDelay() maximum delay},
+ * and are randomized over the whole range from zero ("full jitter"), so that the clients
+ * that lost the gateway server at the same time do not retry in lockstep.<br />
+ * After {@link #getMaxRetries() maxRetries} consecutive failures the client gives up.</p>
+ * <p>After {@link #getFailureThreshold() failureThreshold} consecutive failures the circuit
+ * opens: retries wait for the {@link #getOpenTime() open time} to elapse, and are spread at
+ * random over another open time, so that a restarted gateway server sees the reconnecting
+ * clients arrive gradually. The first retry after the open time probes the gateway server:
+ * a failure opens the circuit again, a success closes it.</p>
+ * <p>A retry policy holds the failures of one client, and should not be shared.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class RetryPolicy
+{
+    private final Random random = new Random();
+    private volatile long baseDelay = 500;
+    private volatile long maxDelay = 30000;
+    private volatile int maxRetries;
+    private volatile int failureThreshold = 8;
+    private volatile long openTime = 30000;
+    private int failures;
+    private long openUntil;
+
+    /**
+     * @return the upper bound, in milliseconds, of the delay after the first failure
+     */
+    public long getBaseDelay()
+    {
+        return baseDelay;
+    }
+
+    public void setBaseDelay(long baseDelay)
+    {
+        this.baseDelay = baseDelay;
+    }
+
+    /**
+     * @return the upper bound, in milliseconds, of the delay however many the failures
+     */
+    public long getMaxDelay()
+    {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(long maxDelay)
+    {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @return the number of consecutive failures after which the client gives up, or 0 to retry forever
+     */
+    public int getMaxRetries()
+    {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries)
+    {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return the number of consecutive failures that open the circuit, or 0 to never open it
+     */
+    public int getFailureThreshold()
+    {
+        return failureThreshold;
+    }
+
+    public void setFailureThreshold(int failureThreshold)
+    {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * @return the time, in milliseconds, the circuit stays open
+     */
+    public long getOpenTime()
+    {
+        return openTime;
+    }
+
+    public void setOpenTime(long openTime)
+    {
+        this.openTime = openTime;
+    }
+
+    /**
+     * @return the number of consecutive failures
+     */
+    public synchronized int getFailures()
+    {
+        return failures;
+    }
+
+    /**
+     * @return whether the circuit is open
+     */
+    public synchronized boolean isOpen()
+    {
+        return now() < openUntil;
+    }
+
+    /**
+     * <p>Records a failure.</p>
+     * @return the delay, in milliseconds, before retrying, or -1 to give up
+     */
+    public synchronized long failed()
+    {
+        ++failures;
+        int maxRetries = getMaxRetries();
+        if (maxRetries > 0 && failures > maxRetries)
+            return -1;
+
+        int threshold = getFailureThreshold();
+        if (threshold > 0 && failures >= threshold)
+        {
+            long now = now();
+            long openTime = getOpenTime();
+            if (now >= openUntil)
+                openUntil = now + openTime;
+            return openUntil - now + jitter(openTime);
+        }
+
+        // Avoid overflowing the shift, the maximum delay is reached well before
+        int exponent = Math.min(failures - 1, 30);
+        long delay = Math.min(getMaxDelay(), getBaseDelay() << exponent);
+        return jitter(delay);
+    }
+
+    /**
+     * <p>Records a success, that closes the circuit and resets the delays.</p>
+     */
+    public synchronized void succeeded()
+    {
+        failures = 0;
+        openUntil = 0;
+    }
+
+    private long jitter(long bound)
+    {
+        if (bound <= 0)
+            return 0;
+        return (long)(random.nextDouble() * bound);
+    }
+
+    private long now()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return getClass().getSimpleName() + "[failures=" + failures + ",open=" + isOpen() + "]";
+    }
+}
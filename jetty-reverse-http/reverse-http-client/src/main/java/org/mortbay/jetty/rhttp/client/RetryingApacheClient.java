@@ -21,14 +21,24 @@ import java.io.IOException;
 import org.apache.http.client.HttpClient;
 
 /**
+ * <p>An {@link ApacheClient} that retries failed handshakes, connects and delivers
+ * following a {@link RetryPolicy}, with exponential backoff, jitter and circuit breaking.</p>
+ * <p>The handshake performed by {@link #connect()} is retried before returning,
+ * and fails only when the retry policy gives up.</p>
+ *
  * @version $Revision$ $Date$
  */
 public class RetryingApacheClient extends ApacheClient
 {
     public RetryingApacheClient(HttpClient httpClient, String gatewayURI, String targetId)
+    {
+        this(httpClient, gatewayURI, targetId, new RetryPolicy());
+    }
+
+    public RetryingApacheClient(HttpClient httpClient, String gatewayURI, String targetId, RetryPolicy retryPolicy)
     {
         super(httpClient, gatewayURI, targetId);
-        addClientListener(new RetryClientListener());
+        setRetryPolicy(retryPolicy);
     }
 
     @Override
@@ -43,10 +53,14 @@ public class RetryingApacheClient extends ApacheClient
             }
             catch (IOException x)
             {
-                getLogger().debug("Handshake failed, backing off and retrying");
+                RetryPolicy policy = getRetryPolicy();
+                long delay = policy == null ? -1 : policy.failed();
+                if (delay < 0)
+                    throw x;
+                getLogger().debug("Handshake failed, backing off {} ms and retrying", delay);
                 try
                 {
-                    Thread.sleep(1000);
+                    Thread.sleep(delay);
                 }
                 catch (InterruptedException xx)
                 {
@@ -55,56 +69,4 @@ public class RetryingApacheClient extends ApacheClient
             }
         }
     }
-
-    private class RetryClientListener implements ClientListener
-    {
-        public void connectRequired()
-        {
-            getLogger().debug("Connect requested by server");
-            try
-            {
-                connect();
-            }
-            catch (IOException x)
-            {
-                // The connect() method is retried, so if it fails, it's a hard failure
-                getLogger().debug("Connect failed after server required connect, giving up");
-            }
-        }
-
-        public void connectClosed()
-        {
-            connectException();
-        }
-
-        public void connectException()
-        {
-            getLogger().debug("Connect failed, backing off and retrying");
-            try
-            {
-                Thread.sleep(1000);
-                asyncConnect();
-            }
-            catch (InterruptedException x)
-            {
-                // Ignore and stop retrying
-                Thread.currentThread().interrupt();
-            }
-        }
-
-        public void deliverException(RHTTPResponse response)
-        {
-            getLogger().debug("Deliver failed, backing off and retrying");
-            try
-            {
-                Thread.sleep(1000);
-                asyncDeliver(response);
-            }
-            catch (InterruptedException x)
-            {
-                // Ignore and stop retrying
-                Thread.currentThread().interrupt();
-            }
-        }
-    }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>The original frame codec, where the frame header is of the form:</p>
+ * <pre>
+ * &lt;id&gt; SPACE &lt;length&gt; CRLF
+ * </pre>
+ * <p>with both the id and the length written as ASCII decimal numbers.</p>
+ * <p>This codec is used when the other side does not support codec negotiation.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class TextFrameCodec extends FrameCodec
+{
+    public String getName()
+    {
+        return "text";
+    }
+
+    public int getHeaderLength(long id, int length)
+    {
+        // Id, space, length, CRLF
+        return digits(id) + 1 + digits(length) + 2;
+    }
+
+    private int digits(long value)
+    {
+        int result = value < 0 ? 2 : 1;
+        value = Math.abs(value);
+        while (value >= 10)
+        {
+            value /= 10;
+            ++result;
+        }
+        return result;
+    }
+
+    protected void encodeHeader(long id, int length, ByteBuffer buffer)
+    {
+        putNumber(id, buffer);
+        buffer.put((byte)' ');
+        putNumber(length, buffer);
+        buffer.put((byte)'\r');
+        buffer.put((byte)'\n');
+    }
+
+    private void putNumber(long value, ByteBuffer buffer)
+    {
+        if (value < 0)
+        {
+            buffer.put((byte)'-');
+            value = -value;
+        }
+        int start = buffer.position();
+        int end = start + digits(value);
+        for (int i = end - 1; i >= start; --i)
+        {
+            buffer.put(i, (byte)('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+
+    protected long decodeId(ByteBuffer buffer)
+    {
+        return getNumber(buffer, (byte)' ');
+    }
+
+    protected int decodeLength(ByteBuffer buffer, int maxLength)
+    {
+        long length = getNumber(buffer, (byte)'\n');
+        if (length < 0 || length > maxLength)
+            throw new IllegalArgumentException("Invalid frame length");
+        return (int)length;
+    }
+
+    private long getNumber(ByteBuffer buffer, byte terminator)
+    {
+        long result = 0;
+        boolean negative = false;
+        while (true)
+        {
+            byte b = buffer.get();
+            if (b == terminator)
+                break;
+            if (b == '-')
+                negative = true;
+            else if (b >= '0' && b <= '9')
+                result = result * 10 + (b - '0');
+            else if (b != '\r')
+                throw new IllegalArgumentException("Invalid frame header character " + (char)b);
+        }
+        return negative ? -result : result;
+    }
+}
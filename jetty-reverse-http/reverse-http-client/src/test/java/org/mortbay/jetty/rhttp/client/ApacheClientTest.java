@@ -16,11 +16,26 @@
 
 package org.mortbay.jetty.rhttp.client;
 
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.HttpHost;
 import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -48,7 +63,10 @@ public class ApacheClientTest extends ClientTest
     {
         SchemeRegistry schemeRegistry = new SchemeRegistry();
         schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), port));
-        connectionManager = new ThreadSafeClientConnManager(new BasicHttpParams(), schemeRegistry);
+        HttpParams connectionParams = new BasicHttpParams();
+        // Enough connections for the long polls and the deliveries to the same gateway server
+        ConnManagerParams.setMaxConnectionsPerRoute(connectionParams, new ConnPerRouteBean(8));
+        connectionManager = new ThreadSafeClientConnManager(connectionParams, schemeRegistry);
         HttpParams httpParams = new BasicHttpParams();
         httpParams.setParameter("http.default-host", new HttpHost("localhost", port));
         DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager, httpParams);
@@ -61,6 +79,156 @@ public class ApacheClientTest extends ClientTest
         connectionManager.shutdown();
     }
 
+    public void testRejectedOperationsAreNotifiedAsFailed() throws Exception
+    {
+        ApacheClient client = (ApacheClient)createClient(8080, "test");
+        try
+        {
+            client.setExecutor(new Executor()
+            {
+                public void execute(Runnable task)
+                {
+                    throw new RejectedExecutionException();
+                }
+            });
+            final AtomicInteger connectFailures = new AtomicInteger();
+            final AtomicInteger deliverFailures = new AtomicInteger();
+            client.addClientListener(new ClientListener.Adapter()
+            {
+                @Override
+                public void connectException()
+                {
+                    connectFailures.incrementAndGet();
+                }
+
+                @Override
+                public void deliverException(RHTTPResponse response)
+                {
+                    deliverFailures.incrementAndGet();
+                }
+            });
+
+            client.asyncConnect();
+            client.deliver(new RHTTPResponse(1, 200, "OK", new HashMap<String, String>(), new byte[0]));
+
+            assertEquals(1, connectFailures.get());
+            assertEquals(1, deliverFailures.get());
+            assertEquals(2, client.getRejected());
+            assertEquals(0, client.getRequests());
+            assertEquals(0, client.getThreads());
+        }
+        finally
+        {
+            destroyClient(client);
+        }
+    }
+
+    public void testHeldPollsDoNotStarveDeliveries() throws Exception
+    {
+        final int polls = 4;
+        final CountDownLatch heldLatch = new CountDownLatch(polls);
+        final CountDownLatch deliverLatch = new CountDownLatch(1);
+        final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+        final ServerSocket server = new ServerSocket(0);
+        Thread acceptor = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (true)
+                    {
+                        final Socket socket = server.accept();
+                        sockets.add(socket);
+                        new Thread()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                serve(socket, heldLatch, deliverLatch);
+                            }
+                        }.start();
+                    }
+                }
+                catch (IOException x)
+                {
+                    // Server closed
+                }
+            }
+        };
+        acceptor.start();
+
+        ApacheClient client = (ApacheClient)createClient(server.getLocalPort(), "test");
+        try
+        {
+            client.setMaxThreads(1);
+            Map<String, String> accepted = new HashMap<String, String>();
+            accepted.put(RHTTPClient.POLLS_HEADER, String.valueOf(polls));
+            client.handshakeComplete(accepted);
+            assertEquals(polls, client.getPolls());
+
+            // The gateway server holds all the long polls
+            client.connectPolls();
+            assertTrue(heldLatch.await(5, TimeUnit.SECONDS));
+
+            client.deliver(new RHTTPResponse(1, 200, "OK", new HashMap<String, String>(), new byte[0]));
+            assertTrue(deliverLatch.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            server.close();
+            for (Socket socket : sockets)
+                socket.close();
+            client.stop();
+            destroyClient(client);
+        }
+    }
+
+    private void serve(Socket socket, CountDownLatch heldLatch, CountDownLatch deliverLatch)
+    {
+        try
+        {
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            String requestLine = input.readLine();
+            int contentLength = 0;
+            String line;
+            while ((line = input.readLine()) != null && line.length() > 0)
+            {
+                if (line.toLowerCase().startsWith("content-length:"))
+                    contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+            if (requestLine.contains("/connect"))
+            {
+                // Hold the long poll until the socket is closed
+                heldLatch.countDown();
+                input.read();
+                return;
+            }
+            input.readFully(new byte[contentLength]);
+            OutputStream output = socket.getOutputStream();
+            output.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("UTF-8"));
+            output.flush();
+            if (requestLine.contains("/deliver"))
+                deliverLatch.countDown();
+        }
+        catch (IOException x)
+        {
+            // Socket closed
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException x)
+            {
+                // Ignore
+            }
+        }
+    }
+
     private class NoRetryHandler implements HttpRequestRetryHandler
     {
         public boolean retryRequest(IOException x, int failedAttempts, HttpContext httpContext)
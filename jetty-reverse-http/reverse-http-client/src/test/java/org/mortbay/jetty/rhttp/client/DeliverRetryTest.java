@@ -0,0 +1,149 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class DeliverRetryTest extends TestCase
+{
+    public void testFailedBatchIsRetriedAsOneFailure() throws Exception
+    {
+        int size = 10;
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBaseDelay(10);
+        policy.setFailureThreshold(8);
+        FailingClient client = new FailingClient();
+        client.setRetryPolicy(policy);
+        client.setDeliverWindow(60000);
+        client.setMaxDeliverBatch(size);
+        final AtomicInteger deliverFailures = new AtomicInteger();
+        client.addClientListener(new ClientListener.Adapter()
+        {
+            @Override
+            public void deliverException(RHTTPResponse response)
+            {
+                deliverFailures.incrementAndGet();
+            }
+        });
+        client.connect();
+        try
+        {
+            assertTrue(client.isBatching());
+            for (int i = 0; i < size; ++i)
+                client.deliver(new RHTTPResponse(i, 200, "OK", new HashMap<String, String>(), new byte[0]));
+
+            List<RHTTPResponse> failed = client.deliveries.poll(5, TimeUnit.SECONDS);
+            assertNotNull(failed);
+            assertEquals(size, failed.size());
+
+            // The whole batch is retried with a single deliver request
+            List<RHTTPResponse> retried = client.deliveries.poll(5, TimeUnit.SECONDS);
+            assertNotNull(retried);
+            assertEquals(failed, retried);
+            assertNull(client.deliveries.poll(100, TimeUnit.MILLISECONDS));
+
+            // Listeners hear about each response, the retry policy about one failure
+            assertEquals(size, deliverFailures.get());
+            assertEquals(1, policy.getFailures());
+            assertFalse(policy.isOpen());
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+
+    private static class FailingClient extends AbstractClient
+    {
+        private final BlockingQueue<List<RHTTPResponse>> deliveries = new LinkedBlockingQueue<List<RHTTPResponse>>();
+        private final AtomicInteger delivers = new AtomicInteger();
+
+        private FailingClient()
+        {
+            super("device");
+        }
+
+        public String getHost()
+        {
+            return "localhost";
+        }
+
+        public int getPort()
+        {
+            return 0;
+        }
+
+        public String getPath()
+        {
+            return "";
+        }
+
+        protected void syncHandshake() throws IOException
+        {
+            Map<String, String> accepted = new HashMap<String, String>();
+            accepted.put(RHTTPResponse.BATCH_HEADER, "true");
+            handshakeComplete(accepted);
+        }
+
+        protected void asyncConnect()
+        {
+            pollEnded();
+        }
+
+        protected void syncDisconnect() throws IOException
+        {
+        }
+
+        protected void asyncDeliver(RHTTPResponse response)
+        {
+            asyncDeliver(Collections.singletonList(response));
+        }
+
+        @Override
+        protected void asyncDeliver(List<RHTTPResponse> responses)
+        {
+            deliveries.offer(responses);
+            // Only the first deliver request fails
+            if (delivers.incrementAndGet() == 1)
+                notifyDeliverException(responses);
+        }
+
+        protected InputStream syncPull(RHTTPRequest request) throws IOException
+        {
+            throw new IOException();
+        }
+
+        protected void syncPush(RHTTPResponse head, InputStream body) throws IOException
+        {
+            throw new IOException();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class FrameCodecTest extends TestCase
+{
+    public void testTextCodecIsCompatibleWithFrameBytes() throws Exception
+    {
+        RHTTPRequest request = newRequest(13, 0);
+        byte[] frameBytes = FrameCodec.TEXT.toFrameBytes(request);
+        assertTrue(Arrays.equals(request.getFrameBytes(), frameBytes));
+        assertEquals("13 " + request.getRequestBytes().length + "\r\n", new String(frameBytes, 0, frameBytes.length - request.getRequestBytes().length, "UTF-8"));
+    }
+
+    public void testRequestsRoundTrip() throws Exception
+    {
+        assertRequestsRoundTrip(FrameCodec.TEXT);
+        assertRequestsRoundTrip(FrameCodec.BINARY);
+    }
+
+    private void assertRequestsRoundTrip(FrameCodec codec) throws Exception
+    {
+        // Bodies of different sizes exercise lengths encoded with different number of bytes
+        List<RHTTPRequest> requests = Arrays.asList(newRequest(1, 0), newRequest(-2, 100), newRequest(Integer.MAX_VALUE, 20000), newRequest(Long.MAX_VALUE, 10));
+        ByteBuffer buffer = codec.encode(requests);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (RHTTPRequest request : requests)
+            codec.writeTo(request, output);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        assertTrue(Arrays.equals(bytes, output.toByteArray()));
+
+        List<RHTTPRequest> result = codec.decodeRequests(buffer);
+        assertEquals(requests.size(), result.size());
+        for (int i = 0; i < requests.size(); ++i)
+        {
+            assertEquals(requests.get(i).getId(), result.get(i).getId());
+            assertTrue(Arrays.equals(requests.get(i).getRequestBytes(), result.get(i).getRequestBytes()));
+        }
+    }
+
+    public void testIncrementalDecoding() throws Exception
+    {
+        assertIncrementalDecoding(FrameCodec.TEXT);
+        assertIncrementalDecoding(FrameCodec.BINARY);
+    }
+
+    private void assertIncrementalDecoding(FrameCodec codec) throws Exception
+    {
+        List<RHTTPRequest> requests = Arrays.asList(newRequest(1, 0), newRequest(-2, 100), newRequest(Integer.MAX_VALUE, 20000), newRequest(Long.MAX_VALUE, 10));
+        ByteBuffer buffer = codec.encode(requests);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+
+        // Chunks of 1 byte split every header, larger chunks split headers and messages at different points
+        for (int chunkSize : new int[]{1, 3, 7, 100, 4096, bytes.length})
+        {
+            FrameCodec.RequestDecoder decoder = codec.newRequestDecoder(bytes.length);
+            List<RHTTPRequest> result = new ArrayList<RHTTPRequest>();
+            for (int offset = 0; offset < bytes.length; offset += chunkSize)
+            {
+                int received = Math.min(offset + chunkSize, bytes.length);
+                ByteBuffer chunk = ByteBuffer.wrap(bytes, offset, received - offset);
+                result.addAll(decoder.decode(chunk));
+                assertFalse(chunk.hasRemaining());
+                // Each request is decoded as soon as its frame is complete
+                int complete = 0;
+                int end = 0;
+                for (RHTTPRequest request : requests)
+                {
+                    end += codec.getFrameLength(request);
+                    if (end <= received)
+                        ++complete;
+                }
+                assertEquals(complete, result.size());
+            }
+            assertFalse(decoder.isPartial());
+            assertEquals(requests.size(), result.size());
+            for (int i = 0; i < requests.size(); ++i)
+            {
+                assertEquals(requests.get(i).getId(), result.get(i).getId());
+                assertTrue(Arrays.equals(requests.get(i).getRequestBytes(), result.get(i).getRequestBytes()));
+            }
+        }
+    }
+
+    public void testResponseRoundTrip() throws Exception
+    {
+        RHTTPResponse response = new RHTTPResponse(7, 200, "OK", new LinkedHashMap<String, String>(), new byte[300]);
+        for (FrameCodec codec : new FrameCodec[]{FrameCodec.TEXT, FrameCodec.BINARY})
+        {
+            byte[] frameBytes = codec.toFrameBytes(response);
+            assertEquals(codec.getFrameLength(response), frameBytes.length);
+            RHTTPResponse result = codec.decodeResponse(ByteBuffer.wrap(frameBytes));
+            assertEquals(response.getId(), result.getId());
+            assertTrue(Arrays.equals(response.getResponseBytes(), result.getResponseBytes()));
+        }
+    }
+
+    public void testIdsBeyond32Bits() throws Exception
+    {
+        long id = (1L << 40) + 3;
+        RHTTPResponse response = new RHTTPResponse(id, 200, "OK", new LinkedHashMap<String, String>(), new byte[0]);
+        for (FrameCodec codec : new FrameCodec[]{FrameCodec.TEXT, FrameCodec.BINARY})
+            assertEquals(id, codec.decodeResponse(ByteBuffer.wrap(codec.toFrameBytes(response))).getId());
+    }
+
+    public void testInvalidFrameLengthsAreRejected() throws Exception
+    {
+        // A negative length, and a length that does not fit 32 bits
+        assertInvalidFrameLength(FrameCodec.TEXT, "1 -5\n".getBytes("UTF-8"));
+        assertInvalidFrameLength(FrameCodec.BINARY, new byte[]{1, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x7F});
+
+        // A length above the maximum is rejected before allocating the message
+        RHTTPRequest request = newRequest(1, 100);
+        for (FrameCodec codec : new FrameCodec[]{FrameCodec.TEXT, FrameCodec.BINARY})
+        {
+            byte[] frameBytes = codec.toFrameBytes(request);
+            try
+            {
+                codec.newRequestDecoder(request.getRequestLength() - 1).decode(ByteBuffer.wrap(frameBytes));
+                fail();
+            }
+            catch (IllegalArgumentException x)
+            {
+                // Expected
+            }
+            assertEquals(1, codec.newRequestDecoder(request.getRequestLength()).decode(ByteBuffer.wrap(frameBytes)).size());
+        }
+    }
+
+    private void assertInvalidFrameLength(FrameCodec codec, byte[] header) throws Exception
+    {
+        try
+        {
+            codec.newRequestDecoder(Integer.MAX_VALUE).decode(ByteBuffer.wrap(header));
+            fail();
+        }
+        catch (IllegalArgumentException x)
+        {
+            // Expected
+        }
+        try
+        {
+            codec.decodeRequests(ByteBuffer.wrap(header));
+            fail();
+        }
+        catch (IllegalArgumentException x)
+        {
+            // Expected
+        }
+    }
+
+    public void testBinaryCodecIsSmaller() throws Exception
+    {
+        RHTTPRequest request = newRequest(123456, 1000);
+        assertTrue(FrameCodec.BINARY.getFrameLength(request) < FrameCodec.TEXT.getFrameLength(request));
+    }
+
+    public void testNegotiation() throws Exception
+    {
+        assertSame(FrameCodec.TEXT, FrameCodec.negotiate(null, FrameCodec.getSupportedNames()));
+        assertSame(FrameCodec.BINARY, FrameCodec.negotiate(FrameCodec.getSupportedNames(), FrameCodec.getSupportedNames()));
+        assertSame(FrameCodec.TEXT, FrameCodec.negotiate(FrameCodec.getSupportedNames(), "text"));
+        assertSame(FrameCodec.BINARY, FrameCodec.negotiate("binary/3, binary/2", FrameCodec.getSupportedNames()));
+        // Version 1 carried 32 bits ids only
+        assertSame(FrameCodec.TEXT, FrameCodec.negotiate("binary/1", FrameCodec.getSupportedNames()));
+        assertSame(FrameCodec.TEXT, FrameCodec.negotiate("unknown", FrameCodec.getSupportedNames()));
+    }
+
+    private RHTTPRequest newRequest(long id, int bodyLength) throws Exception
+    {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Host", "localhost");
+        headers.put("Content-Length", String.valueOf(bodyLength));
+        byte[] body = new byte[bodyLength];
+        Arrays.fill(body, (byte)'x');
+        return new RHTTPRequest(id, "POST", "/test", headers, body);
+    }
+}
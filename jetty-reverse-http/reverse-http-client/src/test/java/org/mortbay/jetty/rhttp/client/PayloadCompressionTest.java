@@ -0,0 +1,204 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class PayloadCompressionTest extends TestCase
+{
+    public void testNegotiation() throws Exception
+    {
+        assertNull(PayloadCompression.negotiate(null, PayloadCompression.getSupportedNames()));
+        assertNull(PayloadCompression.negotiate(PayloadCompression.getSupportedNames(), null));
+        assertNull(PayloadCompression.negotiate("br", PayloadCompression.getSupportedNames()));
+        assertSame(PayloadCompression.GZIP, PayloadCompression.negotiate("gzip, deflate", PayloadCompression.getSupportedNames()));
+        assertSame(PayloadCompression.DEFLATE, PayloadCompression.negotiate(PayloadCompression.getSupportedNames(), "deflate"));
+    }
+
+    public void testRequestRoundTrip() throws Exception
+    {
+        assertRequestRoundTrip(PayloadCompression.DEFLATE);
+        assertRequestRoundTrip(PayloadCompression.GZIP);
+    }
+
+    private void assertRequestRoundTrip(PayloadCompression compression) throws Exception
+    {
+        byte[] body = newJSON(100);
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Type", "application/json");
+        headers.put("Content-Length", String.valueOf(body.length));
+        RHTTPRequest request = new RHTTPRequest(1, "POST", "/resource", headers, body);
+
+        RHTTPRequest compressed = compression.compress(request, PayloadCompression.DEFAULT_THRESHOLD);
+        assertTrue(compressed.getRequestBytes().length < request.getRequestBytes().length);
+
+        // Decode the frame, as the other side does
+        FrameCodec codec = FrameCodec.BINARY;
+        RHTTPRequest decoded = codec.decodeRequests(ByteBuffer.wrap(codec.toFrameBytes(compressed))).get(0);
+        assertEquals(compression.getName(), decoded.getHeaders().get(PayloadCompression.ENCODING_HEADER));
+        assertEquals(String.valueOf(decoded.getBody().length), decoded.getHeaders().get("Content-Length"));
+
+        RHTTPRequest result = PayloadCompression.decompress(decoded, body.length);
+        assertEquals(request.getMethod(), result.getMethod());
+        assertEquals(request.getURI(), result.getURI());
+        assertEquals(request.getHeaders(), result.getHeaders());
+        assertTrue(Arrays.equals(body, result.getBody()));
+    }
+
+    public void testResponseRoundTrip() throws Exception
+    {
+        byte[] body = newJSON(100);
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Type", "application/json");
+        RHTTPResponse response = new RHTTPResponse(1, 200, "OK", headers, body);
+
+        RHTTPResponse compressed = PayloadCompression.GZIP.compress(response, PayloadCompression.DEFAULT_THRESHOLD);
+        assertTrue(compressed.getResponseBytes().length < response.getResponseBytes().length);
+
+        RHTTPResponse decoded = RHTTPResponse.fromResponseBytes(compressed.getId(), compressed.getResponseBytes());
+        RHTTPResponse result = PayloadCompression.decompress(decoded, body.length);
+        assertEquals(200, result.getStatusCode());
+        assertEquals(headers, result.getHeaders());
+        assertTrue(Arrays.equals(body, result.getBody()));
+    }
+
+    public void testRepeatedHeadersArePreserved() throws Exception
+    {
+        byte[] body = newJSON(100);
+        assertTrue(body.length >= PayloadCompression.DEFAULT_THRESHOLD);
+        String head = "POST /resource HTTP/1.1\r\n" +
+                "Content-Type: application/json\r\n" +
+                "X-Multi: 1\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "X-Multi: 2\r\n" +
+                "\r\n";
+        byte[] headBytes = head.getBytes("UTF-8");
+        byte[] requestBytes = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, requestBytes, 0, headBytes.length);
+        System.arraycopy(body, 0, requestBytes, headBytes.length, body.length);
+        RHTTPRequest request = RHTTPRequest.fromRequestBytes(1, requestBytes);
+
+        RHTTPRequest compressed = PayloadCompression.DEFLATE.compress(request, PayloadCompression.DEFAULT_THRESHOLD);
+        assertNotSame(request, compressed);
+        String compressedText = new String(compressed.getRequestBytes(), "UTF-8");
+        assertTrue(compressedText.contains("X-Multi: 1\r\n"));
+        assertTrue(compressedText.contains("X-Multi: 2\r\n"));
+        assertEquals(String.valueOf(compressed.getBody().length), compressed.getHeader("Content-Length"));
+
+        RHTTPRequest result = PayloadCompression.decompress(compressed, body.length);
+        assertTrue(Arrays.equals(requestBytes, result.getRequestBytes()));
+
+        // Responses too
+        head = "HTTP/1.1 200 OK\r\n" +
+                "Set-Cookie: a=1\r\n" +
+                "Set-Cookie: b=2\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "\r\n";
+        headBytes = head.getBytes("UTF-8");
+        byte[] responseBytes = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, responseBytes, 0, headBytes.length);
+        System.arraycopy(body, 0, responseBytes, headBytes.length, body.length);
+        RHTTPResponse response = RHTTPResponse.fromResponseBytes(1, responseBytes);
+
+        RHTTPResponse compressedResponse = PayloadCompression.GZIP.compress(response, PayloadCompression.DEFAULT_THRESHOLD);
+        assertNotSame(response, compressedResponse);
+        RHTTPResponse resultResponse = PayloadCompression.decompress(compressedResponse, body.length);
+        assertTrue(Arrays.equals(responseBytes, resultResponse.getResponseBytes()));
+    }
+
+    public void testBodiesNotWorthCompressingAreNotCompressed() throws Exception
+    {
+        PayloadCompression compression = PayloadCompression.DEFLATE;
+
+        // Tiny body
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        RHTTPResponse response = new RHTTPResponse(1, 200, "OK", headers, newJSON(1));
+        assertSame(response, compression.compress(response, PayloadCompression.DEFAULT_THRESHOLD));
+
+        // Already compressed content type
+        headers.put("Content-Type", "image/png");
+        response = new RHTTPResponse(1, 200, "OK", headers, newJSON(100));
+        assertSame(response, compression.compress(response, PayloadCompression.DEFAULT_THRESHOLD));
+
+        // Already encoded body
+        headers.clear();
+        headers.put("Content-Encoding", "gzip");
+        response = new RHTTPResponse(1, 200, "OK", headers, newJSON(100));
+        assertSame(response, compression.compress(response, PayloadCompression.DEFAULT_THRESHOLD));
+
+        // Uncompressed bodies pass through decompression untouched
+        assertSame(response, PayloadCompression.decompress(response, 0));
+    }
+
+    public void testDecompressionIsBounded() throws Exception
+    {
+        assertDecompressionIsBounded(PayloadCompression.DEFLATE);
+        assertDecompressionIsBounded(PayloadCompression.GZIP);
+    }
+
+    private void assertDecompressionIsBounded(PayloadCompression compression) throws Exception
+    {
+        // A body of zeroes shrinks by orders of magnitude
+        byte[] body = new byte[1024 * 1024];
+        RHTTPResponse compressed = compression.compress(new RHTTPResponse(1, 200, "OK", new LinkedHashMap<String, String>(), body), PayloadCompression.DEFAULT_THRESHOLD);
+        assertTrue(compressed.getBody().length < body.length / 100);
+
+        try
+        {
+            PayloadCompression.decompress(compressed, body.length - 1);
+            fail();
+        }
+        catch (IOException x)
+        {
+            // Expected
+        }
+
+        RHTTPRequest request = compression.compress(new RHTTPRequest(1, "POST", "/resource", new LinkedHashMap<String, String>(), body), PayloadCompression.DEFAULT_THRESHOLD);
+        try
+        {
+            PayloadCompression.decompress(request, 1024);
+            fail();
+        }
+        catch (IOException x)
+        {
+            // Expected
+        }
+
+        assertEquals(body.length, PayloadCompression.decompress(compressed, body.length).getBody().length);
+    }
+
+    private byte[] newJSON(int entries) throws Exception
+    {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < entries; ++i)
+        {
+            if (i > 0)
+                builder.append(",");
+            builder.append("{\"id\":").append(i).append(",\"name\":\"entry\"}");
+        }
+        return builder.append("]").toString().getBytes("UTF-8");
+    }
+}
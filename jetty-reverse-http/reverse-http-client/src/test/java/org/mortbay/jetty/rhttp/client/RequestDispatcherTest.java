@@ -0,0 +1,178 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class RequestDispatcherTest extends TestCase
+{
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+    }
+
+    public void testSlowRequestDoesNotDelayOthers() throws Exception
+    {
+        RequestDispatcher dispatcher = new RequestDispatcher(executor, 4);
+        final CountDownLatch slowLatch = new CountDownLatch(1);
+        final CountDownLatch fastLatch = new CountDownLatch(3);
+        dispatcher.dispatch(newRequest(1, null), new Runnable()
+        {
+            public void run()
+            {
+                await(slowLatch);
+            }
+        });
+        for (int i = 0; i < 3; ++i)
+        {
+            dispatcher.dispatch(newRequest(2 + i, null), new Runnable()
+            {
+                public void run()
+                {
+                    fastLatch.countDown();
+                }
+            });
+        }
+        assertTrue(fastLatch.await(1000, TimeUnit.MILLISECONDS));
+        slowLatch.countDown();
+    }
+
+    public void testConcurrencyIsBounded() throws Exception
+    {
+        RequestDispatcher dispatcher = new RequestDispatcher(executor, 2);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(10);
+        for (int i = 0; i < 10; ++i)
+        {
+            dispatcher.dispatch(newRequest(i, null), new Runnable()
+            {
+                public void run()
+                {
+                    int value = running.incrementAndGet();
+                    while (true)
+                    {
+                        int max = maxRunning.get();
+                        if (value <= max || maxRunning.compareAndSet(max, value))
+                            break;
+                    }
+                    sleep(20);
+                    running.decrementAndGet();
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(5000, TimeUnit.MILLISECONDS));
+        assertEquals(2, maxRunning.get());
+    }
+
+    public void testRequestsWithSameKeyAreProcessedInOrder() throws Exception
+    {
+        RequestDispatcher dispatcher = new RequestDispatcher(executor, 8);
+        dispatcher.setOrdering(new RequestDispatcher.HeaderOrdering("X-Session"));
+        final List<Long> processed = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch latch = new CountDownLatch(20);
+        for (int i = 0; i < 20; ++i)
+        {
+            final long id = i;
+            dispatcher.dispatch(newRequest(id, i % 2 == 0 ? "even" : "odd"), new Runnable()
+            {
+                public void run()
+                {
+                    // Earlier requests sleep longer, so without ordering they would complete later
+                    sleep(20 - id);
+                    processed.add(id);
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(5000, TimeUnit.MILLISECONDS));
+
+        long lastEven = -2;
+        long lastOdd = -1;
+        for (long id : processed)
+        {
+            if (id % 2 == 0)
+            {
+                assertEquals(lastEven + 2, id);
+                lastEven = id;
+            }
+            else
+            {
+                assertEquals(lastOdd + 2, id);
+                lastOdd = id;
+            }
+        }
+        assertEquals(0, dispatcher.getActive());
+        assertEquals(0, dispatcher.getPending());
+    }
+
+    private RHTTPRequest newRequest(long id, String session)
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        if (session != null)
+            headers.put("X-Session", session);
+        return new RHTTPRequest(id, "GET", "/", headers, new byte[0]);
+    }
+
+    private void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await(5000, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException x)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sleep(long time)
+    {
+        try
+        {
+            Thread.sleep(time);
+        }
+        catch (InterruptedException x)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
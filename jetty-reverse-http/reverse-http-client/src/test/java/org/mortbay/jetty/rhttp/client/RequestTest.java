@@ -16,6 +16,8 @@
 
 package org.mortbay.jetty.rhttp.client;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -78,4 +80,34 @@ public class RequestTest extends TestCase
         byte[] frameBytes2 = request2.getFrameBytes();
         assertTrue(Arrays.equals(frameBytes1, frameBytes2));
     }
+
+    public void testRequestsAreViewsOverFrames() throws Exception
+    {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Host", "localhost");
+        headers.put("X-Priority", " high ");
+        List<RHTTPRequest> requests = new ArrayList<RHTTPRequest>();
+        requests.add(new RHTTPRequest(1, "GET", "/a", headers, new byte[0]));
+        requests.add(new RHTTPRequest(2, "POST", "/b", headers, "BODY".getBytes("UTF-8")));
+        ByteBuffer frames = FrameCodec.BINARY.encode(requests);
+        byte[] frameBytes = frames.array();
+
+        List<RHTTPRequest> decoded = FrameCodec.BINARY.decodeRequests(ByteBuffer.wrap(frameBytes));
+        assertEquals(2, decoded.size());
+        RHTTPRequest request = decoded.get(1);
+        assertEquals(requests.get(1).getRequestBytes().length, request.getRequestLength());
+        // The request is backed by the frame bytes, not by a copy
+        assertSame(frameBytes, request.getRequestBuffer().array());
+        assertSame(frameBytes, request.getBodyBuffer().array());
+        // Header lookup ignores case and trims values
+        assertEquals("high", request.getHeader("x-priority"));
+        assertNull(request.getHeader("X-Missing"));
+        assertEquals("POST", request.getMethod());
+        assertEquals("/b", request.getURI());
+        assertEquals("BODY", new String(request.getBody(), "UTF-8"));
+
+        // Relaying the requests reproduces the frames exactly
+        ByteBuffer encoded = FrameCodec.BINARY.encode(decoded);
+        assertTrue(Arrays.equals(frameBytes, encoded.array()));
+    }
 }
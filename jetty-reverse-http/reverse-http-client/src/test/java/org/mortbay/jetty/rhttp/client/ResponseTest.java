@@ -16,8 +16,11 @@
 
 package org.mortbay.jetty.rhttp.client;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.eclipse.jetty.util.log.Log;
@@ -79,4 +82,46 @@ public class ResponseTest extends TestCase
         byte[] frameBytes2 = response2.getFrameBytes();
         assertTrue(Arrays.equals(frameBytes1, frameBytes2));
     }
+
+    public void testResponsesAreViewsOverFrames() throws Exception
+    {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Type", "text/plain");
+        List<RHTTPResponse> responses = new ArrayList<RHTTPResponse>();
+        responses.add(new RHTTPResponse(1, 200, "OK", headers, "FIRST".getBytes("UTF-8")));
+        responses.add(new RHTTPResponse(2, 404, "Not Found", headers, "SECOND".getBytes("UTF-8")));
+        byte[] frameBytes = FrameCodec.TEXT.encodeResponses(responses).array();
+
+        List<RHTTPResponse> decoded = FrameCodec.TEXT.decodeResponses(ByteBuffer.wrap(frameBytes));
+        assertEquals(2, decoded.size());
+        RHTTPResponse response = decoded.get(1);
+        assertSame(frameBytes, response.getResponseBuffer().array());
+        assertEquals("text/plain", response.getHeader("content-type"));
+        assertEquals(404, response.getStatusCode());
+        assertEquals("Not Found", response.getStatusMessage());
+        assertEquals("SECOND", new String(response.getBody(), "UTF-8"));
+        assertTrue(Arrays.equals(responses.get(1).getResponseBytes(), response.getResponseBytes()));
+        assertTrue(Arrays.equals(frameBytes, FrameCodec.TEXT.encodeResponses(decoded).array()));
+    }
+
+    public void testResponseBodyIsDelimitedByHeaders() throws Exception
+    {
+        String chunked = "HTTP/1.1 200 OK\r\n" +
+                "Transfer-Encoding: chunked\r\n" +
+                "\r\n" +
+                "5\r\nHELLO\r\n" +
+                "7;ext=1\r\n, WORLD\r\n" +
+                "0\r\n" +
+                "\r\n";
+        RHTTPResponse response = RHTTPResponse.fromResponseBytes(1, chunked.getBytes("UTF-8"));
+        assertEquals("HELLO, WORLD", new String(response.getBody(), "UTF-8"));
+        assertEquals(12, response.getBodyBuffer().remaining());
+
+        String delimited = "HTTP/1.1 200 OK\r\n" +
+                "Content-Length: 5\r\n" +
+                "\r\n" +
+                "HELLO, WORLD";
+        response = RHTTPResponse.fromResponseBytes(2, delimited.getBytes("UTF-8"));
+        assertEquals("HELLO", new String(response.getBody(), "UTF-8"));
+    }
 }
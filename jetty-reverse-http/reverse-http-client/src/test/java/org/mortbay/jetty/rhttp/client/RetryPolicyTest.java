@@ -0,0 +1,79 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class RetryPolicyTest extends TestCase
+{
+    public void testDelaysGrowExponentiallyWithJitter() throws Exception
+    {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBaseDelay(100);
+        policy.setMaxDelay(1000);
+        policy.setFailureThreshold(0);
+
+        long bound = 100;
+        for (int i = 0; i < 10; ++i)
+        {
+            long delay = policy.failed();
+            assertTrue(delay >= 0);
+            assertTrue(delay < bound);
+            bound = Math.min(1000, bound * 2);
+        }
+        assertEquals(10, policy.getFailures());
+        assertFalse(policy.isOpen());
+
+        policy.succeeded();
+        assertEquals(0, policy.getFailures());
+        assertTrue(policy.failed() < 100);
+    }
+
+    public void testGivesUpAfterMaxRetries() throws Exception
+    {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxRetries(3);
+        for (int i = 0; i < 3; ++i)
+            assertTrue(policy.failed() >= 0);
+        assertEquals(-1, policy.failed());
+
+        policy.succeeded();
+        assertTrue(policy.failed() >= 0);
+    }
+
+    public void testCircuitOpensAfterThreshold() throws Exception
+    {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setFailureThreshold(3);
+        policy.setOpenTime(1000);
+        policy.failed();
+        policy.failed();
+        assertFalse(policy.isOpen());
+
+        // While open, retries wait for the circuit to close, spread over another open time
+        long delay = policy.failed();
+        assertTrue(policy.isOpen());
+        assertTrue(delay >= 900);
+        assertTrue(delay < 2000);
+
+        policy.succeeded();
+        assertFalse(policy.isOpen());
+    }
+}
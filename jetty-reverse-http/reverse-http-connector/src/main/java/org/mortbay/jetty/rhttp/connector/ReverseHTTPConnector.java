@@ -16,7 +16,11 @@
 
 package org.mortbay.jetty.rhttp.connector;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -136,7 +140,16 @@ public class ReverseHTTPConnector extends AbstractConnector implements RHTTPList
 
         public void run()
         {
-            byte[] requestBytes = request.getRequestBytes();
+            byte[] requestBytes;
+            try
+            {
+                requestBytes = bufferBody(request).getRequestBytes();
+            }
+            catch (IOException x)
+            {
+                LOG.debug(x);
+                return;
+            }
 
             ByteArrayEndPoint endPoint = new ByteArrayEndPoint(requestBytes, 1024);
             endPoint.setGrowOutput(true);
@@ -164,5 +177,34 @@ public class ReverseHTTPConnector extends AbstractConnector implements RHTTPList
                 connectionClosed(connection);
             }
         }
+
+        /**
+         * <p>The in-memory endpoint needs the whole request, so the body of streamed
+         * requests is pulled from the gateway server and buffered here.</p>
+         */
+        private RHTTPRequest bufferBody(RHTTPRequest request) throws IOException
+        {
+            if (!request.isStreamed())
+                return request;
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            InputStream input = client.openRequestBody(request);
+            try
+            {
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = input.read(buffer)) >= 0)
+                    body.write(buffer, 0, read);
+            }
+            finally
+            {
+                input.close();
+            }
+
+            Map<String, String> headers = new LinkedHashMap<String, String>(request.getHeaders());
+            headers.remove(RHTTPRequest.STREAM_HEADER);
+            headers.put("Content-Length", String.valueOf(body.size()));
+            return new RHTTPRequest(request.getId(), request.getMethod(), request.getURI(), headers, body.toByteArray());
+        }
     }
 }
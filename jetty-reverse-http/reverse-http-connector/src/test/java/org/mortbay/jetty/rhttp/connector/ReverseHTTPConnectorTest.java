@@ -16,6 +16,7 @@
 
 package org.mortbay.jetty.rhttp.connector;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -47,15 +48,24 @@ public class ReverseHTTPConnectorTest extends TestCase
 {
     public void testGatewayConnectorWithoutRequestBody() throws Exception
     {
-        testGatewayConnector(false);
+        testGatewayConnector(false, "RESPONSE-BODY".getBytes("UTF-8"));
     }
 
     public void testGatewayConnectorWithRequestBody() throws Exception
     {
-        testGatewayConnector(true);
+        testGatewayConnector(true, "RESPONSE-BODY".getBytes("UTF-8"));
     }
 
-    private void testGatewayConnector(boolean withRequestBody) throws Exception
+    public void testGatewayConnectorWithLargeResponseWithoutContentLength() throws Exception
+    {
+        // Larger than the response buffer, and without Content-Length, so the response is chunked
+        byte[] responseBody = new byte[64 * 1024];
+        for (int i = 0; i < responseBody.length; ++i)
+            responseBody[i] = (byte)('a' + i % 26);
+        testGatewayConnector(false, responseBody);
+    }
+
+    private void testGatewayConnector(boolean withRequestBody, final byte[] responseBody) throws Exception
     {
         Server server = new Server();
         final CountDownLatch handlerLatch = new CountDownLatch(1);
@@ -69,7 +79,6 @@ public class ReverseHTTPConnectorTest extends TestCase
         final int statusCode = HttpServletResponse.SC_CREATED;
         final String headerName = "foo";
         final String headerValue = "bar";
-        final byte[] responseBody = "RESPONSE-BODY".getBytes("UTF-8");
         server.setHandler(new AbstractHandler()
         {
             public void handle(String pathInfo, org.eclipse.jetty.server.Request request, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException, ServletException
@@ -143,6 +152,21 @@ public class ReverseHTTPConnectorTest extends TestCase
             latch.countDown();
         }
 
+        public InputStream openRequestBody(RHTTPRequest request) throws IOException
+        {
+            return new ByteArrayInputStream(request.getBody());
+        }
+
+        public void deliver(RHTTPResponse response, InputStream body) throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = body.read(buffer)) >= 0)
+                bytes.write(buffer, 0, read);
+            deliver(new RHTTPResponse(response.getId(), response.getStatusCode(), response.getStatusMessage(), response.getHeaders(), bytes.toByteArray()));
+        }
+
         public void addListener(RHTTPListener listener)
         {
         }
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>A bounded, array based, lock-free queue that supports many producers and many consumers,
+ * although it is meant to be drained in batches by a single consumer.</p>
+ * <p>Every slot of the array carries a sequence number that tells producers and consumers
+ * whether the slot is free for the current lap or holds an element to be consumed, so that
+ * both {@link #offer(Object)} and {@link #poll()} only need a compare-and-set on their
+ * respective position.</p>
+ * <p>Producers that want to wait for free space can use {@link #offer(Object, long, TimeUnit)};
+ * only in this case a monitor is used, and consumers touch it only if there are waiting producers.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class BoundedQueue<E>
+{
+    private final Object notFull = new Object();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final int capacity;
+    private final int slots;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+
+    public BoundedQueue(int capacity)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        this.capacity = capacity;
+        // With a single slot the sequence of a published element would
+        // be the same as the sequence of a free slot for the next lap
+        this.slots = Math.max(2, capacity);
+        this.elements = new AtomicReferenceArray<E>(slots);
+        this.sequences = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; ++i)
+            sequences.set(i, i);
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * @return the approximate number of elements in this queue
+     */
+    public int size()
+    {
+        // Read head first, so that the result is never negative
+        long h = head.get();
+        long size = tail.get() - h;
+        return (int)Math.max(0, Math.min(size, capacity));
+    }
+
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    /**
+     * <p>Adds the given element at the tail of this queue, if there is space.</p>
+     * @param element the element to add
+     * @return true if the element has been added, false if this queue is full
+     */
+    public boolean offer(E element)
+    {
+        if (element == null)
+            throw new NullPointerException();
+
+        long position = tail.get();
+        while (true)
+        {
+            int index = (int)(position % slots);
+            long difference = sequences.get(index) - position;
+            if (difference == 0)
+            {
+                if (slots > capacity && position - head.get() >= capacity)
+                    return false;
+                // The slot is free for this lap, try to claim it
+                if (tail.compareAndSet(position, position + 1))
+                {
+                    elements.set(index, element);
+                    // Publish the element to consumers
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            }
+            else if (difference < 0)
+            {
+                // The slot still holds the element of the previous lap: full
+                return false;
+            }
+            else
+            {
+                // Another producer claimed this slot
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * <p>Adds the given element at the tail of this queue, waiting up to the given timeout
+     * for space to become available.</p>
+     * @param element the element to add
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the element has been added, false if the timeout expired
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean offer(E element, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        if (offer(element))
+            return true;
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waiters.incrementAndGet();
+        try
+        {
+            synchronized (notFull)
+            {
+                while (true)
+                {
+                    // Retry while holding the monitor, so that a
+                    // consumer cannot signal before we start waiting
+                    if (offer(element))
+                        return true;
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        return false;
+                    TimeUnit.NANOSECONDS.timedWait(notFull, remaining);
+                }
+            }
+        }
+        finally
+        {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the element at the head of this queue, or null if this queue is empty
+     */
+    public E poll()
+    {
+        E result = take();
+        if (result != null)
+            signalNotFull();
+        return result;
+    }
+
+    /**
+     * <p>Removes up to <code>maxElements</code> elements from this queue and adds them to the given collection.</p>
+     * @param collection the collection to add the elements to
+     * @param maxElements the maximum number of elements to remove
+     * @return the number of elements removed
+     */
+    public int drainTo(Collection<? super E> collection, int maxElements)
+    {
+        int result = 0;
+        while (result < maxElements)
+        {
+            E element = take();
+            if (element == null)
+                break;
+            collection.add(element);
+            ++result;
+        }
+        if (result > 0)
+            signalNotFull();
+        return result;
+    }
+
+    private E take()
+    {
+        long position = head.get();
+        while (true)
+        {
+            int index = (int)(position % slots);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0)
+            {
+                // The slot holds a published element, try to claim it
+                if (head.compareAndSet(position, position + 1))
+                {
+                    E result = elements.get(index);
+                    elements.set(index, null);
+                    // Free the slot for the next lap
+                    sequences.set(index, position + slots);
+                    return result;
+                }
+                position = head.get();
+            }
+            else if (difference < 0)
+            {
+                // Empty, or the producer has not yet published the element
+                return null;
+            }
+            else
+            {
+                // Another consumer claimed this slot
+                position = head.get();
+            }
+        }
+    }
+
+    private void signalNotFull()
+    {
+        if (waiters.get() > 0)
+        {
+            synchronized (notFull)
+            {
+                notFull.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + "[" + size() + "/" + capacity + "]";
+    }
+}
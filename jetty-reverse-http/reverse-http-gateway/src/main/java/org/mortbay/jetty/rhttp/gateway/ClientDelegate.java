@@ -21,6 +21,8 @@ import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.mortbay.jetty.rhttp.client.FrameCodec;
+import org.mortbay.jetty.rhttp.client.PayloadCompression;
 import org.mortbay.jetty.rhttp.client.RHTTPRequest;
 
 
@@ -43,11 +45,84 @@ public interface ClientDelegate
      */
     public String getTargetId();
 
+    /**
+     * @return the codec used to frame requests to and responses from the gateway client
+     * @see #setCodec(FrameCodec)
+     */
+    public FrameCodec getCodec();
+
+    /**
+     * @param codec the codec negotiated with the gateway client during the handshake
+     * @see #getCodec()
+     */
+    public void setCodec(FrameCodec codec);
+
+    /**
+     * @return the compression of the bodies exchanged with the gateway client, or null if bodies are not compressed
+     * @see #setCompression(PayloadCompression)
+     */
+    public PayloadCompression getCompression();
+
+    /**
+     * @param compression the compression negotiated with the gateway client during the handshake, or null
+     * @see #getCompression()
+     */
+    public void setCompression(PayloadCompression compression);
+
+    /**
+     * @return the token that the gateway client presents to resume its session, or null if it did not ask for one
+     * @see #setSessionToken(String)
+     */
+    public String getSessionToken();
+
+    /**
+     * @param sessionToken the token issued to the gateway client during the handshake
+     * @see #getSessionToken()
+     */
+    public void setSessionToken(String sessionToken);
+
+    /**
+     * @return whether the gateway client accepted to stream large bodies during the handshake
+     * @see #setStreaming(boolean)
+     */
+    public boolean isStreaming();
+
+    /**
+     * @param streaming whether large bodies are streamed to and from the gateway client
+     * @see #isStreaming()
+     */
+    public void setStreaming(boolean streaming);
+
+    /**
+     * @return the number of long polls of the gateway client held at the same time
+     * @see #setMaxPolls(int)
+     */
+    public int getMaxPolls();
+
+    /**
+     * @param maxPolls the number of long polls accepted for the gateway client during the handshake
+     * @see #getMaxPolls()
+     */
+    public void setMaxPolls(int maxPolls);
+
+    /**
+     * @return the time, in milliseconds, the next long poll of the gateway client is held
+     * before being responded empty
+     */
+    public long getHoldTime();
+
+    /**
+     * @return the time, in milliseconds, any long poll of the gateway client may be held at most,
+     * whatever the load; it is advertised to the gateway client so that it can time out its long polls
+     * @see #getHoldTime()
+     */
+    public long getMaxHoldTime();
+
     /**
      * <p>Enqueues the given request to the delivery queue so that it will be sent to the
      * gateway client on the first flush occasion.</p>
      * <p>Requests may fail to be queued, for example because the gateway client disconnected
-     * concurrently.</p>
+     * concurrently, or because too many requests are already queued.</p>
      *
      * @param request the request to add to the delivery queue
      * @return whether the request has been queued or not
@@ -55,6 +130,11 @@ public interface ClientDelegate
      */
     public boolean enqueue(RHTTPRequest request);
 
+    /**
+     * @return the number of requests {@link #enqueue(RHTTPRequest) enqueued} and not yet flushed to the gateway client
+     */
+    public int getQueueSize();
+
     /**
      * <p>Flushes the requests that have been {@link #enqueue(RHTTPRequest) enqueued}.</p>
      * <p>If no requests have been enqueued, then this method may suspend the current request for
@@ -64,9 +144,11 @@ public interface ClientDelegate
      * <li>it is not the first time that this method is called for this client delegate</li>
      * <li>no requests have been enqueued</li>
      * <li>this client delegate is not closed</li>
-     * <li>the previous call to this method did not suspend the request</li>
+     * <li>the request did not expire while suspended, nor was released by another request</li>
      * </ul>
-     * In all other cases, a response if sent to the gateway client, possibly containing no requests.
+     * In all other cases, a response if sent to the gateway client, possibly containing no requests.<br />
+     * Up to {@link #getMaxPolls() maxPolls} requests are held suspended at the same time; a request that
+     * exceeds the limit releases the oldest one, with an empty response.
      *
      * @param httpRequest the HTTP request for the long poll request from the gateway client
      * @return the list of requests to send to the gateway client, or null if no response should be sent
@@ -76,6 +158,30 @@ public interface ClientDelegate
      */
     public List<RHTTPRequest> process(HttpServletRequest httpRequest) throws IOException;
 
+    /**
+     * <p>Removes and returns the requests that have been {@link #enqueue(RHTTPRequest) enqueued},
+     * without suspending.</p>
+     *
+     * @return the list of requests to send to the gateway client, possibly empty
+     * @see Channel
+     */
+    public List<RHTTPRequest> drain();
+
+    /**
+     * @return the channel the requests are pushed to, or null if the gateway client long polls
+     * @see #setChannel(Channel)
+     */
+    public Channel getChannel();
+
+    /**
+     * <p>Attaches a full-duplex channel to the gateway client: while attached, the channel is
+     * {@link Channel#flush(ClientDelegate) flushed} every time a request is enqueued, instead of
+     * resuming a long poll.</p>
+     *
+     * @param channel the channel, or null to detach it and go back to long polling
+     */
+    public void setChannel(Channel channel);
+
     /**
      * <p>Closes this client delegate, in response to a gateway client request to disconnect.</p>
      * @see #isClosed()
@@ -87,4 +193,22 @@ public interface ClientDelegate
      * @see #close()
      */
     public boolean isClosed();
+
+    /**
+     * <p>A persistent, full-duplex connection to the gateway client, such as a WebSocket.</p>
+     */
+    public interface Channel
+    {
+        /**
+         * <p>Sends the requests {@link ClientDelegate#drain() drained} from the given client delegate.</p>
+         *
+         * @param client the client delegate whose requests are sent
+         */
+        public void flush(ClientDelegate client);
+
+        /**
+         * <p>Closes this channel, when the client delegate is closed.</p>
+         */
+        public void close();
+    }
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+/**
+ * <p>A concurrent map keyed by primitive longs, for tables such as the in-flight external
+ * requests, where entries are added, looked up and removed once each, at a high rate.</p>
+ * <p>The map is split in stripes, each being an open addressing hash table with linear probing,
+ * guarded by its own lock; keys are spread over the stripes and the slots by mixing their bits,
+ * so that sequential ids do not cluster.<br />
+ * Keys are stored in a <tt>long[]</tt>, so that no key is ever boxed, and removals shift back
+ * the following entries of the probe sequence instead of leaving tombstones, so that lookups
+ * do not slow down as entries come and go.</p>
+ * <p>The key zero marks free slots, and cannot be used.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class ConcurrentLongMap<V>
+{
+    private final Stripe<V>[] stripes;
+    private final int stripeMask;
+
+    public ConcurrentLongMap()
+    {
+        this(16, 64);
+    }
+
+    /**
+     * @param stripes the number of stripes, rounded up to a power of two
+     * @param capacity the initial capacity of each stripe, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLongMap(int stripes, int capacity)
+    {
+        int count = powerOfTwo(stripes);
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; ++i)
+            this.stripes[i] = new Stripe<V>(powerOfTwo(Math.max(2, capacity)));
+        this.stripeMask = count - 1;
+    }
+
+    private static int powerOfTwo(int value)
+    {
+        int result = 1;
+        while (result < value)
+            result <<= 1;
+        return result;
+    }
+
+    private static long mix(long key)
+    {
+        // Finalizer of MurmurHash3, spreads sequential keys over all the bits
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private Stripe<V> stripeFor(long hash)
+    {
+        return stripes[(int)hash & stripeMask];
+    }
+
+    /**
+     * @param key the key, not zero
+     * @param value the value, not null
+     * @return the value already mapped to the key, in which case the given value is not mapped, or null
+     */
+    public V putIfAbsent(long key, V value)
+    {
+        check(key);
+        if (value == null)
+            throw new NullPointerException();
+        long hash = mix(key);
+        return stripeFor(hash).putIfAbsent(key, hash, value);
+    }
+
+    public V get(long key)
+    {
+        check(key);
+        long hash = mix(key);
+        return stripeFor(hash).get(key, hash);
+    }
+
+    public V remove(long key)
+    {
+        check(key);
+        long hash = mix(key);
+        return stripeFor(hash).remove(key, hash);
+    }
+
+    /**
+     * @return the number of entries, not atomically across stripes
+     */
+    public int size()
+    {
+        int result = 0;
+        for (Stripe<V> stripe : stripes)
+            result += stripe.size();
+        return result;
+    }
+
+    private void check(long key)
+    {
+        if (key == 0)
+            throw new IllegalArgumentException("Invalid key " + key);
+    }
+
+    private static class Stripe<V>
+    {
+        private long[] keys;
+        private Object[] values;
+        private int size;
+
+        private Stripe(int capacity)
+        {
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+
+        private int indexFor(long hash, int mask)
+        {
+            // The low bits choose the stripe, use the high bits for the slot
+            return (int)(hash >>> 32) & mask;
+        }
+
+        private synchronized V putIfAbsent(long key, long hash, V value)
+        {
+            int mask = keys.length - 1;
+            int index = indexFor(hash, mask);
+            while (keys[index] != 0)
+            {
+                if (keys[index] == key)
+                    return valueAt(index);
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = value;
+            // Keep the load factor at most one half, so that probe sequences stay short
+            if (++size > keys.length >> 1)
+                grow();
+            return null;
+        }
+
+        private synchronized V get(long key, long hash)
+        {
+            int mask = keys.length - 1;
+            int index = indexFor(hash, mask);
+            while (keys[index] != 0)
+            {
+                if (keys[index] == key)
+                    return valueAt(index);
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        private synchronized V remove(long key, long hash)
+        {
+            int mask = keys.length - 1;
+            int index = indexFor(hash, mask);
+            while (keys[index] != 0)
+            {
+                if (keys[index] == key)
+                {
+                    V result = valueAt(index);
+                    shiftBack(index, mask);
+                    --size;
+                    return result;
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        private void shiftBack(int free, int mask)
+        {
+            // Move back the following entries of the run that would not
+            // be found anymore from their home slot once this slot is free
+            int index = free;
+            while (true)
+            {
+                index = (index + 1) & mask;
+                long key = keys[index];
+                if (key == 0)
+                    break;
+                int home = indexFor(mix(key), mask);
+                // The entry can fill the free slot if its home is not cyclically in (free, index]
+                boolean movable = free <= index ? (home <= free || home > index) : (home <= free && home > index);
+                if (movable)
+                {
+                    keys[free] = key;
+                    values[free] = values[index];
+                    free = index;
+                }
+            }
+            keys[free] = 0;
+            values[free] = null;
+        }
+
+        private void grow()
+        {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[oldKeys.length << 1];
+            values = new Object[oldValues.length << 1];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; ++i)
+            {
+                long key = oldKeys[i];
+                if (key == 0)
+                    continue;
+                int index = indexFor(mix(key), mask);
+                while (keys[index] != 0)
+                    index = (index + 1) & mask;
+                keys[index] = key;
+                values[index] = oldValues[i];
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V valueAt(int index)
+        {
+            return (V)values[index];
+        }
+
+        private synchronized int size()
+        {
+            return size;
+        }
+    }
+}
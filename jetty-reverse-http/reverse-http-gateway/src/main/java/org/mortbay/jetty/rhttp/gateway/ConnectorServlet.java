@@ -17,15 +17,15 @@
 package org.mortbay.jetty.rhttp.gateway;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -33,6 +33,11 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.websocket.WebSocket;
+import org.eclipse.jetty.websocket.WebSocketFactory;
+import org.mortbay.jetty.rhttp.client.FrameCodec;
+import org.mortbay.jetty.rhttp.client.PayloadCompression;
+import org.mortbay.jetty.rhttp.client.RHTTPClient;
 import org.mortbay.jetty.rhttp.client.RHTTPRequest;
 import org.mortbay.jetty.rhttp.client.RHTTPResponse;
 
@@ -44,22 +49,137 @@ public class ConnectorServlet extends HttpServlet
 {
     private final Logger logger = Log.getLogger(getClass().toString());
     private final TargetIdRetriever targetIdRetriever = new StandardTargetIdRetriever();
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    private final ConcurrentMap<String, Future<?>> expirations = new ConcurrentHashMap<String, Future<?>>();
+    private final ConcurrentMap<String, ClientExpirationTask> expirations = new ConcurrentHashMap<String, ClientExpirationTask>();
+    private final SecureRandom random = new SecureRandom();
     private final Gateway gateway;
+    private volatile TimingWheel timingWheel;
+    private volatile GatewayStatistics statistics;
+    private boolean ownTimingWheel;
     private long clientTimeout=15000;
+    private String codecs=FrameCodec.getSupportedNames();
+    private String compressions=PayloadCompression.getSupportedNames();
+    private int compressionThreshold=PayloadCompression.DEFAULT_THRESHOLD;
+    private boolean streaming=true;
+    private boolean webSocket=true;
+    private int maxMessageSize=16*1024*1024;
+    private int maxPolls=4;
+    private WebSocketFactory webSocketFactory;
 
     public ConnectorServlet(Gateway gateway)
     {
         this.gateway = gateway;
     }
 
+    public TimingWheel getTimingWheel()
+    {
+        return timingWheel;
+    }
+
+    /**
+     * @param timingWheel the timing wheel used to expire gateway clients that stop polling;
+     * if not set, this servlet creates and manages its own
+     */
+    public void setTimingWheel(TimingWheel timingWheel)
+    {
+        this.timingWheel = timingWheel;
+    }
+
+    public GatewayStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * @param statistics the statistics where the bytes exchanged with the gateway clients are recorded; may be null
+     */
+    public void setStatistics(GatewayStatistics statistics)
+    {
+        this.statistics = statistics;
+    }
+
     @Override
     public void init() throws ServletException 
     {
         String t = getInitParameter("clientTimeout");
         if (t!=null && !"".equals(t))
             clientTimeout=Long.parseLong(t);
+        String c = getInitParameter("codecs");
+        if (c!=null && !"".equals(c))
+            codecs=c;
+        String z = getInitParameter("compressions");
+        if (z!=null)
+            compressions="".equals(z.trim())?null:z;
+        String zt = getInitParameter("compressionThreshold");
+        if (zt!=null && !"".equals(zt))
+            compressionThreshold=Integer.parseInt(zt);
+        String s = getInitParameter("streaming");
+        if (s!=null && !"".equals(s))
+            streaming=Boolean.parseBoolean(s);
+        String w = getInitParameter("webSocket");
+        if (w!=null && !"".equals(w))
+            webSocket=Boolean.parseBoolean(w);
+        String m = getInitParameter("maxMessageSize");
+        if (m!=null && !"".equals(m))
+            maxMessageSize=Integer.parseInt(m);
+        String p = getInitParameter("maxPolls");
+        if (p!=null && !"".equals(p))
+            maxPolls=Integer.parseInt(p);
+
+        if (webSocket)
+        {
+            try
+            {
+                webSocketFactory = new WebSocketFactory(new ChannelAcceptor());
+                webSocketFactory.start();
+            }
+            catch (Exception x)
+            {
+                throw new ServletException(x);
+            }
+        }
+
+        if (timingWheel == null)
+        {
+            try
+            {
+                TimingWheel wheel = new TimingWheel();
+                wheel.start();
+                timingWheel = wheel;
+                ownTimingWheel = true;
+            }
+            catch (Exception x)
+            {
+                throw new ServletException(x);
+            }
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (webSocketFactory != null)
+        {
+            try
+            {
+                webSocketFactory.stop();
+            }
+            catch (Exception x)
+            {
+                logger.debug(x);
+            }
+        }
+        if (ownTimingWheel)
+        {
+            try
+            {
+                timingWheel.stop();
+            }
+            catch (Exception x)
+            {
+                logger.debug(x);
+            }
+        }
+        super.destroy();
     }
 
     @Override
@@ -82,24 +202,120 @@ public class ConnectorServlet extends HttpServlet
             serviceDeliver(targetId, request, response);
         else if ("disconnect".equals(action))
             serviceDisconnect(targetId, request, response);
+        else if ("pull".equals(action) && segments.length > 3)
+            servicePull(targetId, segments[3], request, response);
+        else if ("push".equals(action))
+            servicePush(targetId, request, response);
+        else if ("websocket".equals(action) && webSocketFactory != null)
+            serviceWebSocket(request, response);
         else
             throw new ServletException("Invalid request to " + getClass().getSimpleName() + ": " + uri);
     }
 
     private void serviceHandshake(String targetId, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
     {
+        String session = httpRequest.getHeader(RHTTPClient.SESSION_HEADER);
         ClientDelegate client = gateway.getClientDelegate(targetId);
         if (client != null)
-            throw new IOException("Client with targetId " + targetId + " is already connected");
+        {
+            // A client that lost its connection resumes its session, keeping the queued requests
+            if (session == null || client.isClosed() || !session.equals(client.getSessionToken()))
+                throw new IOException("Client with targetId " + targetId + " is already connected");
+            negotiate(client, httpRequest, httpResponse);
+            httpResponse.setHeader(RHTTPClient.SESSION_HEADER, session);
+            logger.debug("Handshake from device {}, resumed session", targetId, null);
+            // There is nothing to deliver in the handshake response, but the client must connect in time
+            schedule(client);
+            httpResponse.setContentLength(0);
+            return;
+        }
 
         client = gateway.newClientDelegate(targetId);
         ClientDelegate existing = gateway.addClientDelegate(targetId, client);
         if (existing != null)
             throw new IOException("Client with targetId " + targetId + " is already connected");
+        // The expiration task is rescheduled on every connect, and lives as long as the client
+        expirations.put(targetId, new ClientExpirationTask(client));
+
+        negotiate(client, httpRequest, httpResponse);
+
+        // Old clients do not ask for a session, and cannot resume it
+        if (session != null)
+        {
+            client.setSessionToken(newSessionToken());
+            httpResponse.setHeader(RHTTPClient.SESSION_HEADER, client.getSessionToken());
+        }
+
+        // Hand over the requests that arrived while the client was reconnecting;
+        // they are delivered on its first connect, as the handshake response is empty
+        int unparked = gateway.unparkExternalRequests(client);
+        if (unparked > 0)
+            logger.debug("Handshake from device {}, unparked {} requests", targetId, unparked);
 
         flush(client, httpRequest, httpResponse);
     }
 
+    private void negotiate(ClientDelegate client, HttpServletRequest httpRequest, HttpServletResponse httpResponse)
+    {
+        String targetId = client.getTargetId();
+
+        // Old clients do not offer codecs, and expect no codec header in the response
+        String offered = httpRequest.getHeader(FrameCodec.HEADER);
+        FrameCodec codec = FrameCodec.negotiate(offered, codecs);
+        client.setCodec(codec);
+        if (offered != null)
+            httpResponse.setHeader(FrameCodec.HEADER, codec.getName());
+        logger.debug("Handshake from device {}, offered codecs {}, negotiated {}", new Object[]{targetId, offered, codec});
+
+        // Old clients do not offer compressions, and do not expect compressed bodies
+        PayloadCompression compression = PayloadCompression.negotiate(httpRequest.getHeader(PayloadCompression.HEADER), compressions);
+        client.setCompression(compression);
+        if (compression != null)
+            httpResponse.setHeader(PayloadCompression.HEADER, compression.getName());
+
+        // Old clients do not know how to pull and push bodies
+        if (streaming && "true".equals(httpRequest.getHeader(RHTTPRequest.STREAM_HEADER)))
+        {
+            client.setStreaming(true);
+            httpResponse.setHeader(RHTTPRequest.STREAM_HEADER, "true");
+        }
+
+        // Old clients, and clients without WebSocket support, keep long polling
+        if (webSocketFactory != null && "true".equals(httpRequest.getHeader(RHTTPClient.WEBSOCKET_HEADER)))
+            httpResponse.setHeader(RHTTPClient.WEBSOCKET_HEADER, "true");
+
+        // Old clients deliver one response per request, and expect no batch header in the response
+        if ("true".equals(httpRequest.getHeader(RHTTPResponse.BATCH_HEADER)))
+            httpResponse.setHeader(RHTTPResponse.BATCH_HEADER, "true");
+
+        // Old clients keep one long poll, and expect no polls header in the response
+        String polls = httpRequest.getHeader(RHTTPClient.POLLS_HEADER);
+        if (polls != null)
+        {
+            int accepted = 1;
+            try
+            {
+                accepted = Math.max(1, Math.min(maxPolls, Integer.parseInt(polls.trim())));
+            }
+            catch (NumberFormatException x)
+            {
+                logger.debug("Invalid polls " + polls + " from device " + targetId, x);
+            }
+            client.setMaxPolls(accepted);
+            httpResponse.setHeader(RHTTPClient.POLLS_HEADER, String.valueOf(accepted));
+        }
+    }
+
+    private String newSessionToken()
+    {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder builder = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes)
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return builder.toString();
+    }
+
     private void flush(ClientDelegate client, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
     {
         List<RHTTPRequest> requests = client.process(httpRequest);
@@ -110,37 +326,56 @@ public class ConnectorServlet extends HttpServlet
             if (!client.isClosed())
                 schedule(client);
 
+            // Frame all the requests into one buffer sized exactly to their length, so that
+            // the response has a Content-Length and is written at once rather than chunked
+            ByteBuffer frames = client.getCodec().encode(compress(client, requests));
+            int length = frames.remaining();
+            httpResponse.setContentLength(length);
             ServletOutputStream output = httpResponse.getOutputStream();
-            for (RHTTPRequest request : requests)
-                output.write(request.getFrameBytes());
-            // I could count the framed bytes of all requests and set a Content-Length header,
-            // but the implementation of ServletOutputStream takes care of everything:
-            // if the request was HTTP/1.1, then flushing result in a chunked response, but the
-            // client know how to handle it; if the request was HTTP/1.0, then no chunking.
-            // To avoid chunking in HTTP/1.1 I must set the Content-Length header.
+            output.write(frames.array(), frames.arrayOffset() + frames.position(), length);
             output.flush();
+            recordBytes(client.getTargetId(), 0, length);
             logger.debug("Delivered to device {} requests {} ", client.getTargetId(), requests);
         }
     }
 
+    private List<RHTTPRequest> compress(ClientDelegate client, List<RHTTPRequest> requests)
+    {
+        PayloadCompression compression = client.getCompression();
+        if (compression == null)
+            return requests;
+        List<RHTTPRequest> result = new ArrayList<RHTTPRequest>(requests.size());
+        for (RHTTPRequest request : requests)
+            result.add(compression.compress(request, compressionThreshold));
+        return result;
+    }
+
     private void schedule(ClientDelegate client)
     {
-        Future<?> task = scheduler.schedule(new ClientExpirationTask(client), clientTimeout, TimeUnit.MILLISECONDS);
-        Future<?> existing = expirations.put(client.getTargetId(), task);
-        assert existing == null;
+        ClientExpirationTask task = expirations.get(client.getTargetId());
+        if (task != null)
+        {
+            task.time = System.currentTimeMillis();
+            timingWheel.schedule(task, clientTimeout);
+        }
     }
 
     private void unschedule(String targetId)
     {
-        Future<?> task = expirations.remove(targetId);
+        ClientExpirationTask task = expirations.get(targetId);
         if (task != null)
-            task.cancel(false);
+            timingWheel.cancel(task);
     }
 
-    private void serviceConnect(String targetId, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
+    private void removeExpiration(String targetId)
     {
-        unschedule(targetId);
+        ClientExpirationTask task = expirations.remove(targetId);
+        if (task != null)
+            timingWheel.cancel(task);
+    }
 
+    private void serviceConnect(String targetId, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
+    {
         ClientDelegate client = gateway.getClientDelegate(targetId);
         if (client == null)
         {
@@ -149,10 +384,26 @@ public class ConnectorServlet extends HttpServlet
             return;
         }
 
+        String session = httpRequest.getHeader(RHTTPClient.SESSION_HEADER);
+        if (session != null && !session.equals(client.getSessionToken()))
+        {
+            // The session of the client expired, and another client with the same targetId handshook
+            httpResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+
+        unschedule(targetId);
+
+        // Tell the client how long its long polls may be held, so that it can time them out;
+        // the hold time of each poll varies with the load, so advertise its upper bound
+        httpResponse.setHeader(RHTTPClient.HOLD_TIME_HEADER, String.valueOf(client.getMaxHoldTime()));
         flush(client, httpRequest, httpResponse);
 
         if (client.isClosed())
+        {
+            removeExpiration(targetId);
             gateway.removeClientDelegate(targetId);
+        }
     }
 
     private void expireConnect(ClientDelegate client, long time)
@@ -163,13 +414,14 @@ public class ConnectorServlet extends HttpServlet
         // If the client expired, means that it did not connect,
         // so there no request to resume, and we cleanup here
         // (while normally this cleanup is done in serviceConnect())
-        unschedule(targetId);
+        removeExpiration(targetId);
         gateway.removeClientDelegate(targetId);
     }
 
     private void serviceDeliver(String targetId, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException, IOException
     {
-        if (gateway.getClientDelegate(targetId) == null)
+        ClientDelegate client = gateway.getClientDelegate(targetId);
+        if (client == null)
         {
             // Expired client tries to deliver without handshake
             httpResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED);
@@ -177,14 +429,42 @@ public class ConnectorServlet extends HttpServlet
         }
 
         byte[] body = Utils.read(httpRequest.getInputStream());
+        recordBytes(targetId, body.length, 0);
+
+        // Clients that negotiated batching may deliver more than one response per request
+        for (RHTTPResponse response : client.getCodec().decodeResponses(ByteBuffer.wrap(body)))
+            deliver(targetId, response);
+    }
 
-        RHTTPResponse response = RHTTPResponse.fromFrameBytes(body);
+    /**
+     * <p>Completes the external request the given response is for.</p>
+     * <p>Failures are logged rather than thrown, so that a response whose external client
+     * went away does not prevent the other responses of the same batch from being delivered.</p>
+     */
+    private void deliver(String targetId, RHTTPResponse response)
+    {
+        try
+        {
+            response = PayloadCompression.decompress(response, maxMessageSize);
+        }
+        catch (IOException x)
+        {
+            logger.debug("Could not decompress response from device " + targetId, x);
+            response = Utils.newEmptyResponse(response.getId(), HttpServletResponse.SC_BAD_GATEWAY, "Bad Gateway");
+        }
 
         ExternalRequest externalRequest = gateway.removeExternalRequest(response.getId());
         if (externalRequest != null)
         {
-            externalRequest.respond(response);
-            logger.debug("Deliver request from device {}, gateway request {}, response {}", new Object[] {targetId, externalRequest, response});
+            try
+            {
+                externalRequest.respond(response);
+                logger.debug("Deliver request from device {}, gateway request {}, response {}", new Object[] {targetId, externalRequest, response});
+            }
+            catch (Exception x)
+            {
+                logger.debug("Could not deliver response " + response + " from device " + targetId + " to gateway request " + externalRequest, x);
+            }
         }
         else
         {
@@ -194,6 +474,114 @@ public class ConnectorServlet extends HttpServlet
         }
     }
 
+    private void servicePull(String targetId, String id, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
+    {
+        ClientDelegate client = gateway.getClientDelegate(targetId);
+        if (client == null)
+        {
+            // Expired client tries to pull without handshake
+            httpResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+
+        long requestId;
+        try
+        {
+            requestId = Long.parseLong(id);
+        }
+        catch (NumberFormatException x)
+        {
+            httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        ExternalRequest externalRequest = gateway.getExternalRequest(requestId);
+        if (externalRequest != null && !isDirectedTo(externalRequest, targetId))
+        {
+            // Devices may only read the bodies of the requests directed to them
+            logger.debug("Pull request from device {}, gateway request {} directed to another device", targetId, requestId);
+            httpResponse.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        if (externalRequest == null)
+        {
+            // The external request expired before the gateway client pulled its body
+            logger.debug("Pull request from device {}, missing gateway request {}", targetId, requestId);
+            httpResponse.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        logger.debug("Pull request from device {}, gateway request {}", targetId, externalRequest);
+        externalRequest.writeBodyTo(httpResponse.getOutputStream());
+    }
+
+    private void servicePush(String targetId, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
+    {
+        ClientDelegate client = gateway.getClientDelegate(targetId);
+        if (client == null)
+        {
+            // Expired client tries to push without handshake
+            httpResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+
+        // The request body is the response head frame, followed by the response body
+        int headLength = httpRequest.getIntHeader(RHTTPResponse.HEAD_LENGTH_HEADER);
+        if (headLength <= 0)
+        {
+            httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        ServletInputStream input = httpRequest.getInputStream();
+        byte[] headFrame = new byte[headLength];
+        Utils.readFully(input, headFrame);
+        recordBytes(targetId, headLength, 0);
+        RHTTPResponse head = client.getCodec().decodeResponse(ByteBuffer.wrap(headFrame));
+
+        ExternalRequest externalRequest = gateway.getExternalRequest(head.getId());
+        if (externalRequest != null && !isDirectedTo(externalRequest, targetId))
+        {
+            // Devices may only answer the requests directed to them
+            logger.debug("Push request from device {}, gateway request {} directed to another device", targetId, head.getId());
+            httpResponse.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        if (externalRequest != null)
+            externalRequest = gateway.removeExternalRequest(head.getId());
+        if (externalRequest != null)
+        {
+            logger.debug("Push request from device {}, gateway request {}, response {}", new Object[] {targetId, externalRequest, head});
+            externalRequest.respond(head, input);
+        }
+        else
+        {
+            // Same race with the continuation expiration as in deliver
+            logger.debug("Push request from device {}, missing gateway request, response {}", targetId, head);
+        }
+    }
+
+    private boolean isDirectedTo(ExternalRequest externalRequest, String targetId)
+    {
+        return targetId.equals(externalRequest.getTargetId());
+    }
+
+    private void recordBytes(String targetId, long bytesIn, long bytesOut)
+    {
+        // Streamed bodies are recorded by the external requests that copy them
+        GatewayStatistics statistics = getStatistics();
+        if (statistics != null)
+        {
+            // The client may have been removed, along with its statistics
+            GatewayStatistics.TargetStatistics target = statistics.findTargetStatistics(targetId);
+            if (target == null)
+                return;
+            if (bytesIn > 0)
+                target.bytesIn(bytesIn);
+            if (bytesOut > 0)
+                target.bytesOut(bytesOut);
+        }
+    }
+
     private void serviceDisconnect(String targetId, HttpServletRequest request, HttpServletResponse response)
     {
         // Do not remove the ClientDelegate from the gateway here,
@@ -204,17 +592,198 @@ public class ConnectorServlet extends HttpServlet
             client.close();
     }
 
-    private class ClientExpirationTask implements Runnable
+    private void serviceWebSocket(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
+    {
+        // The factory responds with an error if the request is not an upgrade, or the client is not connected
+        if (!webSocketFactory.acceptWebSocket(httpRequest, httpResponse))
+            httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST);
+    }
+
+    private class ChannelAcceptor implements WebSocketFactory.Acceptor
+    {
+        public WebSocket doWebSocketConnect(HttpServletRequest request, String protocol)
+        {
+            String targetId = targetIdRetriever.retrieveTargetId(request);
+            ClientDelegate client = gateway.getClientDelegate(targetId);
+            if (client == null)
+            {
+                // Expired client tries to upgrade without handshake
+                logger.debug("WebSocket upgrade from device {}, not connected", targetId);
+                return null;
+            }
+            String session = request.getHeader(RHTTPClient.SESSION_HEADER);
+            if (session == null)
+                session = request.getParameter(RHTTPClient.SESSION_PARAMETER);
+            if (session == null || !session.equals(client.getSessionToken()))
+            {
+                // Only the client that handshook may take over the delivery of its requests
+                logger.debug("WebSocket upgrade from device {}, invalid session", targetId);
+                return null;
+            }
+            return new WebSocketChannel(client);
+        }
+
+        public boolean checkOrigin(HttpServletRequest request, String origin)
+        {
+            return true;
+        }
+    }
+
+    /**
+     * <p>Carries the frames of a gateway client over a WebSocket connection: frames of requests
+     * are sent as they are enqueued, and frames of responses are delivered as they arrive.</p>
+     * <p>While the connection is open the gateway client does not connect, so the client expiration
+     * is suspended, and rescheduled when the connection closes, to give time to reconnect.</p>
+     */
+    private class WebSocketChannel implements WebSocket.OnBinaryMessage, ClientDelegate.Channel
+    {
+        private final Object lock = new Object();
+        private final ClientDelegate client;
+        private volatile Connection connection;
+        private boolean flushing;
+        private boolean pending;
+
+        private WebSocketChannel(ClientDelegate client)
+        {
+            this.client = client;
+        }
+
+        public void onOpen(Connection connection)
+        {
+            String targetId = client.getTargetId();
+            connection.setMaxBinaryMessageSize(maxMessageSize);
+            this.connection = connection;
+            unschedule(targetId);
+            client.setChannel(this);
+            logger.debug("WebSocket opened from device {}", targetId);
+            // Send the requests enqueued before the channel was attached
+            flush(client);
+        }
+
+        public void onMessage(byte[] data, int offset, int length)
+        {
+            String targetId = client.getTargetId();
+            recordBytes(targetId, length, 0);
+            try
+            {
+                // The responses are views over the bytes they are decoded from,
+                // and the WebSocket implementation may reuse the given array
+                byte[] message = new byte[length];
+                System.arraycopy(data, offset, message, 0, length);
+                for (RHTTPResponse response : client.getCodec().decodeResponses(ByteBuffer.wrap(message)))
+                    deliver(targetId, response);
+            }
+            catch (Exception x)
+            {
+                logger.debug("Could not deliver from device " + targetId, x);
+            }
+        }
+
+        public void onClose(int closeCode, String message)
+        {
+            String targetId = client.getTargetId();
+            connection = null;
+            if (client.getChannel() == this)
+                client.setChannel(null);
+            logger.debug("WebSocket closed from device {}, code {}", targetId, closeCode);
+            if (client.isClosed())
+            {
+                removeExpiration(targetId);
+                gateway.removeClientDelegate(targetId);
+            }
+            else
+            {
+                // Requests enqueued from now on are delivered to the next long poll
+                schedule(client);
+            }
+        }
+
+        public void flush(ClientDelegate client)
+        {
+            // Only one thread sends, and it loops until no thread asked to flush in the meantime,
+            // so that producers do not queue up behind a slow gateway client
+            synchronized (lock)
+            {
+                if (flushing)
+                {
+                    pending = true;
+                    return;
+                }
+                flushing = true;
+            }
+
+            boolean more = true;
+            try
+            {
+                while (more)
+                {
+                    // Requests stay queued for the next long poll if the connection closed
+                    Connection connection = this.connection;
+                    if (connection != null)
+                        send(connection, client.drain());
+                    synchronized (lock)
+                    {
+                        more = pending;
+                        pending = false;
+                        if (!more)
+                            flushing = false;
+                    }
+                }
+            }
+            finally
+            {
+                if (more)
+                {
+                    synchronized (lock)
+                    {
+                        flushing = false;
+                    }
+                }
+            }
+        }
+
+        private void send(Connection connection, List<RHTTPRequest> requests)
+        {
+            if (requests.isEmpty())
+                return;
+            ByteBuffer frames = client.getCodec().encode(compress(client, requests));
+            try
+            {
+                connection.sendMessage(frames.array(), frames.arrayOffset(), frames.remaining());
+                recordBytes(client.getTargetId(), 0, frames.remaining());
+                logger.debug("Delivered to device {} requests {} ", client.getTargetId(), requests);
+            }
+            catch (IOException x)
+            {
+                // The requests were drained, so no long poll will carry them: fail them now
+                // rather than leaving the external clients waiting until they expire
+                logger.debug("Could not send to device " + client.getTargetId(), x);
+                connection.close();
+                for (RHTTPRequest request : requests)
+                    deliver(client.getTargetId(), Utils.newEmptyResponse(request.getId(), HttpServletResponse.SC_BAD_GATEWAY, "Bad Gateway"));
+            }
+        }
+
+        public void close()
+        {
+            Connection connection = this.connection;
+            if (connection != null)
+                connection.close();
+        }
+    }
+
+    private class ClientExpirationTask extends TimingWheel.Task
     {
-        private final long time = System.currentTimeMillis();
         private final ClientDelegate client;
+        private volatile long time;
 
         public ClientExpirationTask(ClientDelegate client)
         {
             this.client = client;
         }
 
-        public void run()
+        @Override
+        protected void expire()
         {
             expireConnect(client, time);
         }
@@ -17,6 +17,8 @@
 package org.mortbay.jetty.rhttp.gateway;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import org.mortbay.jetty.rhttp.client.RHTTPRequest;
 import org.mortbay.jetty.rhttp.client.RHTTPResponse;
@@ -45,8 +47,31 @@ public interface ExternalRequest
      */
     public void respond(RHTTPResponse response) throws IOException;
 
+    /**
+     * <p>Responds to the original external request with the given response head, streaming
+     * the response body from the given stream as it arrives from the gateway client.</p>
+     * @param head the response head arrived from the gateway client
+     * @param body the stream the response body is read from
+     * @throws IOException if responding to the original external request fails
+     * @see RHTTPResponse#isStreamed()
+     */
+    public void respond(RHTTPResponse head, InputStream body) throws IOException;
+
+    /**
+     * <p>Copies the body of the original external request to the given stream, for requests
+     * whose body is {@link RHTTPRequest#isStreamed() streamed} to the gateway client.</p>
+     * @param output the stream to copy the body to
+     * @throws IOException if reading the body or writing to the given stream fails
+     */
+    public void writeBodyTo(OutputStream output) throws IOException;
+
     /**
      * @return the request to be sent to the gateway client
      */
     public RHTTPRequest getRequest();
+
+    /**
+     * @return the targetId of the gateway client this request is directed to
+     */
+    public String getTargetId();
 }
@@ -17,12 +17,16 @@
 package org.mortbay.jetty.rhttp.gateway;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
 import org.mortbay.jetty.rhttp.client.RHTTPRequest;
@@ -34,9 +38,19 @@ import org.mortbay.jetty.rhttp.client.RHTTPRequest;
  */
 public class ExternalServlet extends HttpServlet
 {
+    /**
+     * The name of the request attribute holding the targetId the external request is directed to.
+     */
+    public static final String TARGET_ID_ATTRIBUTE = ExternalServlet.class.getName() + ".targetId";
+    private static final String EXTERNAL_REQUEST_ATTRIBUTE = ExternalServlet.class.getName() + ".externalRequest";
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
     private final Logger logger = Log.getLogger(getClass().toString());
     private final Gateway gateway;
     private TargetIdRetriever targetIdRetriever;
+    private volatile GatewayCluster cluster;
+    private volatile ResponseCache responseCache;
+    private volatile TargetScheduler scheduler;
 
     public ExternalServlet(Gateway gateway, TargetIdRetriever targetIdRetriever)
     {
@@ -54,33 +68,204 @@ public class ExternalServlet extends HttpServlet
         this.targetIdRetriever = targetIdRetriever;
     }
 
+    public GatewayCluster getCluster()
+    {
+        return cluster;
+    }
+
+    /**
+     * @param cluster the cluster used to forward external requests for gateway clients
+     * connected to other nodes; may be null
+     */
+    public void setCluster(GatewayCluster cluster)
+    {
+        this.cluster = cluster;
+    }
+
+    public ResponseCache getResponseCache()
+    {
+        return responseCache;
+    }
+
+    /**
+     * @param responseCache the cache of the responses of the gateway clients; may be null
+     */
+    public void setResponseCache(ResponseCache responseCache)
+    {
+        this.responseCache = responseCache;
+    }
+
+    public TargetScheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    /**
+     * @param scheduler the scheduler that admits external requests per targetId; may be null
+     */
+    public void setScheduler(TargetScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+
     @Override
     protected void service(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException, IOException
     {
         logger.debug("External http request: {}", httpRequest.getRequestURL());
 
+        ExternalRequest redispatched = (ExternalRequest)httpRequest.getAttribute(EXTERNAL_REQUEST_ATTRIBUTE);
+        if (redispatched != null)
+        {
+            // Redispatched after the expiration of a request whose response was being delivered:
+            // suspend again if the response body is still being streamed
+            logger.debug("External request {} redispatched", redispatched.getRequest());
+            redispatched.suspend();
+            return;
+        }
+
         String targetId = targetIdRetriever.retrieveTargetId(httpRequest);
         if (targetId == null)
             throw new ServletException("Invalid request to " + getClass().getSimpleName() + ": " + httpRequest.getRequestURI());
 
-        ClientDelegate client = gateway.getClientDelegate(targetId);
-        if (client == null) throw new ServletException("Client with targetId " + targetId + " is not connected");
+        GatewayCluster cluster = getCluster();
+        if (cluster != null && gateway.getClientDelegate(targetId) == null)
+        {
+            // The client may be connected to another node of the cluster
+            String nodeId = cluster.getOwnerNodeId(targetId, httpRequest);
+            if (nodeId != null)
+            {
+                cluster.forward(nodeId, httpRequest, httpResponse);
+                return;
+            }
+        }
+
+        ResponseCache cache = getResponseCache();
+        if (cache != null && cache.serve(targetId, httpRequest, httpResponse))
+            return;
+
+        // Only targetIds with a connected client are admitted, so that the scheduler does not
+        // hold the state of arbitrary targetIds; the others are parked or rejected
+        TargetScheduler scheduler = getScheduler();
+        if (scheduler == null || gateway.getClientDelegate(targetId) == null)
+        {
+            serviceExternalRequest(targetId, httpRequest, httpResponse, cache);
+            return;
+        }
+
+        if (!scheduler.acquire(targetId))
+        {
+            // Reject immediately, without suspending, so that the rejection holds no resource
+            logger.debug("External request for device {} rejected by {}", targetId, scheduler);
+            httpResponse.setHeader("Retry-After", String.valueOf(scheduler.getRetryAfter(targetId)));
+            httpResponse.sendError(SC_TOO_MANY_REQUESTS);
+            return;
+        }
 
+        SchedulerRelease release = new SchedulerRelease(scheduler, targetId);
+        boolean suspended = false;
+        try
+        {
+            ContinuationSupport.getContinuation(httpRequest).addContinuationListener(release);
+            suspended = serviceExternalRequest(targetId, httpRequest, httpResponse, cache);
+        }
+        finally
+        {
+            // Requests that are not suspended complete when this method returns
+            if (!suspended)
+                release.release();
+        }
+    }
+
+    private boolean serviceExternalRequest(String targetId, HttpServletRequest httpRequest, HttpServletResponse httpResponse, ResponseCache cache) throws ServletException, IOException
+    {
+        // A request that could not be parked would be rejected anyway: do not read its body first
+        if (gateway.getClientDelegate(targetId) == null && !gateway.canPark(getContentLength(httpRequest)))
+            throw new ServletException("Client with targetId " + targetId + " is not connected");
+
+        httpRequest.setAttribute(TARGET_ID_ATTRIBUTE, targetId);
         ExternalRequest externalRequest = gateway.newExternalRequest(httpRequest, httpResponse);
+        if (cache != null)
+            externalRequest = cache.wrap(targetId, httpRequest, externalRequest);
+        httpRequest.setAttribute(EXTERNAL_REQUEST_ATTRIBUTE, externalRequest);
         RHTTPRequest request = externalRequest.getRequest();
         ExternalRequest existing = gateway.addExternalRequest(request.getId(), externalRequest);
         assert existing == null;
         logger.debug("External request {} for device {}", request, targetId);
 
-        boolean delivered = client.enqueue(request);
-        if (delivered)
+        boolean delivered;
+        ClientDelegate client = gateway.getClientDelegate(targetId);
+        if (client == null)
         {
-            externalRequest.suspend();
+            // The client may be reconnecting: park the request until it handshakes
+            if (!gateway.parkExternalRequest(targetId, externalRequest))
+            {
+                gateway.removeExternalRequest(request.getId());
+                throw new ServletException("Client with targetId " + targetId + " is not connected");
+            }
+            delivered = true;
+
+            // The client may have handshook before the request was parked
+            client = gateway.getClientDelegate(targetId);
+            if (client != null)
+                gateway.unparkExternalRequests(client);
         }
         else
         {
-            // TODO: improve this: we can temporarly queue this request elsewhere and wait for the client to reconnect ?
-            throw new ServletException("Could not enqueue request to client with targetId " + targetId);
+            delivered = client.enqueue(request);
+        }
+
+        if (delivered)
+            return externalRequest.suspend();
+
+        // The client is closing or its queue is full: do not leave the external request behind
+        gateway.removeExternalRequest(request.getId());
+        logger.debug("Could not enqueue request {} to device {}, queue size {}", new Object[]{request, targetId, client.getQueueSize()});
+        httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return false;
+    }
+
+    /**
+     * @param httpRequest the external request
+     * @return the length of the body of the given request, or -1 if it is not known until it is read
+     */
+    private long getContentLength(HttpServletRequest httpRequest)
+    {
+        long contentLength = httpRequest.getContentLength();
+        // Without Content-Length nor Transfer-Encoding there is no body
+        if (contentLength < 0 && httpRequest.getHeader("Transfer-Encoding") == null)
+            contentLength = 0;
+        return contentLength;
+    }
+
+    /**
+     * <p>Releases the admission of an external request once, either when its
+     * continuation completes or when it completes without being suspended.</p>
+     */
+    private static class SchedulerRelease implements ContinuationListener
+    {
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final TargetScheduler scheduler;
+        private final String targetId;
+
+        private SchedulerRelease(TargetScheduler scheduler, String targetId)
+        {
+            this.scheduler = scheduler;
+            this.targetId = targetId;
+        }
+
+        private void release()
+        {
+            if (released.compareAndSet(false, true))
+                scheduler.release(targetId);
+        }
+
+        public void onComplete(Continuation continuation)
+        {
+            release();
+        }
+
+        public void onTimeout(Continuation continuation)
+        {
         }
     }
 }
@@ -74,7 +74,7 @@ public interface Gateway
      * @param httpResponse the HTTP response of the external request
      * @return a newly created ExternalRequest
      * @throws IOException in case of failures creating the ExternalRequest
-     * @see #addExternalRequest(int, ExternalRequest)
+     * @see #addExternalRequest(long, ExternalRequest)
      */
     public ExternalRequest newExternalRequest(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException;
 
@@ -83,15 +83,55 @@ public interface Gateway
      * @param requestId the id of the ExternalRequest
      * @param externalRequest the ExternalRequest to map
      * @return the previously existing ExternalRequest mapped to the same requestId
-     * @see #removeExternalRequest(int)
+     * @see #removeExternalRequest(long)
      */
-    public ExternalRequest addExternalRequest(int requestId, ExternalRequest externalRequest);
+    public ExternalRequest addExternalRequest(long requestId, ExternalRequest externalRequest);
+
+    /**
+     * Returns the ExternalRequest mapped to the given requestId, without removing it from the gateway state.
+     * @param requestId the id of the ExternalRequest
+     * @return the ExternalRequest mapped to the given requestId, or null if there is no such ExternalRequest
+     * @see #addExternalRequest(long, ExternalRequest)
+     */
+    public ExternalRequest getExternalRequest(long requestId);
 
     /**
      * Removes the ExternalRequest mapped to the given requestId from the gateway state.
      * @param requestId the id of the ExternalRequest
      * @return the removed ExternalRequest
-     * @see #addExternalRequest(int, ExternalRequest)
+     * @see #addExternalRequest(long, ExternalRequest)
+     */
+    public ExternalRequest removeExternalRequest(long requestId);
+
+    /**
+     * <p>Parks the given external request, directed to a gateway client that is not connected,
+     * for a grace period during which the gateway client may handshake again.</p>
+     * @param targetId the targetId of the gateway client that is not connected
+     * @param externalRequest the external request to park
+     * @return whether the external request has been parked
+     * @see #unparkExternalRequests(ClientDelegate)
+     */
+    public boolean parkExternalRequest(String targetId, ExternalRequest externalRequest);
+
+    /**
+     * @return whether external requests directed to a gateway client that is not connected may be parked
+     * @see #parkExternalRequest(String, ExternalRequest)
+     */
+    public boolean isParking();
+
+    /**
+     * @param contentLength the length of the body of an external request, or -1 if it is not known
+     * @return whether an external request with a body of the given length may be parked, so that
+     * the external requests that could not be parked are rejected before their body is read
+     * @see #isParking()
+     */
+    public boolean canPark(long contentLength);
+
+    /**
+     * <p>Hands the external requests parked for the targetId of the given client delegate over to it.</p>
+     * @param client the client delegate of the gateway client that connected
+     * @return the number of parked external requests handed over to the given client delegate
+     * @see #parkExternalRequest(String, ExternalRequest)
      */
-    public ExternalRequest removeExternalRequest(int requestId);
+    public int unparkExternalRequests(ClientDelegate client);
 }
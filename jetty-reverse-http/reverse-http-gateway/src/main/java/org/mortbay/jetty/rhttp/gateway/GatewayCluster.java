@@ -0,0 +1,280 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * <p>A <tt>GatewayCluster</tt> allows a number of gateway servers to sit behind a plain load
+ * balancer: external requests can land on any node, not only on the node the gateway client
+ * is connected to.</p>
+ * <p>Nodes {@link #register(String) register} in a shared {@link TargetRegistry} the targetIds
+ * of the gateway clients that connect to them; a node that receives an external request for a
+ * gateway client that is not connected to it looks up the owning node in the registry and
+ * {@link #forward(String, HttpServletRequest, HttpServletResponse) forwards} the external
+ * request to it, unchanged, over HTTP.<br />
+ * Forwarded requests are marked with the {@link #FORWARDED_HEADER} header, and are never
+ * forwarded again, so that stale registry entries cannot make requests loop between nodes.</p>
+ * <p>The id of a node is the <tt>host:port</tt> address the other nodes forward requests to.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class GatewayCluster extends AbstractLifeCycle
+{
+    public static final String FORWARDED_HEADER = "X-RHTTP-Forwarded";
+    private static final Set<String> HOP_HEADERS = new HashSet<String>();
+    static
+    {
+        HOP_HEADERS.add("connection");
+        HOP_HEADERS.add("keep-alive");
+        HOP_HEADERS.add("proxy-connection");
+        HOP_HEADERS.add("proxy-authenticate");
+        HOP_HEADERS.add("proxy-authorization");
+        HOP_HEADERS.add("te");
+        HOP_HEADERS.add("trailer");
+        HOP_HEADERS.add("transfer-encoding");
+        HOP_HEADERS.add("upgrade");
+    }
+
+    private final Logger logger = Log.getLogger(getClass().toString());
+    private final TargetRegistry registry;
+    private final HttpClient httpClient = new HttpClient();
+    private volatile String nodeId;
+    private volatile long forwardTimeout = 60000;
+
+    /**
+     * @param registry the registry shared by all the nodes of the cluster
+     */
+    public GatewayCluster(TargetRegistry registry)
+    {
+        this.registry = registry;
+        httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+    }
+
+    public TargetRegistry getRegistry()
+    {
+        return registry;
+    }
+
+    /**
+     * @return the <tt>host:port</tt> address of this node, as seen by the other nodes
+     */
+    public String getNodeId()
+    {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId)
+    {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * @return the time, in milliseconds, a forwarded request waits for the owning node to respond
+     */
+    public long getForwardTimeout()
+    {
+        return forwardTimeout;
+    }
+
+    public void setForwardTimeout(long forwardTimeout)
+    {
+        this.forwardTimeout = forwardTimeout;
+    }
+
+    @Override
+    protected void doStart() throws Exception
+    {
+        httpClient.start();
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception
+    {
+        super.doStop();
+        httpClient.stop();
+    }
+
+    /**
+     * <p>Registers this node as the owner of the given targetId.</p>
+     * @param targetId the targetId of the gateway client that connected to this node
+     */
+    public void register(String targetId)
+    {
+        String previous = registry.register(targetId, getNodeId());
+        if (previous != null && !previous.equals(getNodeId()))
+            logger.debug("Device {} moved from node {} to node {}", new Object[]{targetId, previous, getNodeId()});
+    }
+
+    /**
+     * <p>Unregisters this node as the owner of the given targetId; if the gateway client
+     * already connected to another node, the registry is left untouched.</p>
+     * @param targetId the targetId of the gateway client that disconnected from this node
+     */
+    public void unregister(String targetId)
+    {
+        registry.unregister(targetId, getNodeId());
+    }
+
+    /**
+     * @param targetId the targetId of a gateway client that is not connected to this node
+     * @param httpRequest the external request
+     * @return the id of the node to forward the external request to, or null
+     * if the external request must be handled by this node
+     */
+    public String getOwnerNodeId(String targetId, HttpServletRequest httpRequest)
+    {
+        if (httpRequest.getHeader(FORWARDED_HEADER) != null)
+            return null;
+        String owner = registry.getNodeId(targetId);
+        if (owner == null || owner.equals(getNodeId()))
+            return null;
+        return owner;
+    }
+
+    /**
+     * <p>Forwards the given external request to the given node, and suspends it until the
+     * node responds; the response is streamed back to the external client as it arrives.</p>
+     * @param nodeId the id of the node the gateway client is connected to
+     * @param httpRequest the external request
+     * @param httpResponse the external response
+     * @throws IOException if the external request cannot be forwarded
+     */
+    public void forward(String nodeId, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
+    {
+        ForwardExchange exchange = new ForwardExchange(nodeId, httpResponse);
+        exchange.setAddress(Address.from(nodeId));
+        exchange.setMethod(httpRequest.getMethod());
+        String query = httpRequest.getQueryString();
+        exchange.setURI(query == null ? httpRequest.getRequestURI() : httpRequest.getRequestURI() + "?" + query);
+        for (Enumeration names = httpRequest.getHeaderNames(); names.hasMoreElements();)
+        {
+            String name = (String)names.nextElement();
+            if (HOP_HEADERS.contains(name.toLowerCase()))
+                continue;
+            for (Enumeration values = httpRequest.getHeaders(name); values.hasMoreElements();)
+                exchange.addRequestHeader(name, (String)values.nextElement());
+        }
+        exchange.setRequestHeader(FORWARDED_HEADER, getNodeId());
+        exchange.setRequestContentSource(httpRequest.getInputStream());
+        exchange.setTimeout(getForwardTimeout());
+
+        // The exchange expires the request, so the continuation must never time out
+        Continuation continuation = ContinuationSupport.getContinuation(httpRequest);
+        continuation.setTimeout(0);
+        continuation.suspend(httpResponse);
+        exchange.continuation = continuation;
+
+        logger.debug("Forwarding external request {} to node {}", httpRequest.getRequestURI(), nodeId);
+        httpClient.send(exchange);
+    }
+
+    private class ForwardExchange extends HttpExchange
+    {
+        private final String nodeId;
+        private final HttpServletResponse httpResponse;
+        private volatile Continuation continuation;
+
+        private ForwardExchange(String nodeId, HttpServletResponse httpResponse)
+        {
+            this.nodeId = nodeId;
+            this.httpResponse = httpResponse;
+        }
+
+        @Override
+        protected void onResponseStatus(Buffer version, int status, Buffer reason) throws IOException
+        {
+            httpResponse.setStatus(status);
+        }
+
+        @Override
+        protected void onResponseHeader(Buffer name, Buffer value) throws IOException
+        {
+            String headerName = name.toString("UTF-8");
+            if (!HOP_HEADERS.contains(headerName.toLowerCase()))
+                httpResponse.addHeader(headerName, value.toString("UTF-8"));
+        }
+
+        @Override
+        protected void onResponseContent(Buffer content) throws IOException
+        {
+            content.writeTo(httpResponse.getOutputStream());
+        }
+
+        @Override
+        protected void onResponseComplete() throws IOException
+        {
+            httpResponse.getOutputStream().flush();
+            continuation.complete();
+        }
+
+        @Override
+        protected void onConnectionFailed(Throwable x)
+        {
+            logger.debug("Could not connect to node " + nodeId, x);
+            failed(HttpServletResponse.SC_BAD_GATEWAY);
+        }
+
+        @Override
+        protected void onException(Throwable x)
+        {
+            logger.debug("Could not forward to node " + nodeId, x);
+            failed(HttpServletResponse.SC_BAD_GATEWAY);
+        }
+
+        @Override
+        protected void onExpire()
+        {
+            logger.debug("Forward to node {} expired", nodeId);
+            failed(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        }
+
+        private void failed(int status)
+        {
+            try
+            {
+                if (!httpResponse.isCommitted())
+                    httpResponse.sendError(status);
+            }
+            catch (IOException x)
+            {
+                logger.debug(x);
+            }
+            finally
+            {
+                continuation.complete();
+            }
+        }
+    }
+}
@@ -36,7 +36,6 @@ import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
 import org.mortbay.jetty.rhttp.client.RHTTPClient;
-import org.mortbay.jetty.rhttp.client.JettyClient;
 import org.mortbay.jetty.rhttp.client.RHTTPListener;
 import org.mortbay.jetty.rhttp.client.RHTTPRequest;
 import org.mortbay.jetty.rhttp.client.RHTTPResponse;
@@ -46,6 +45,8 @@ import org.mortbay.jetty.rhttp.client.RHTTPResponse;
  * <p>This gateway proxy server starts on port 8080 and can be set as http proxy in browsers such as Firefox, and used
  * to browse the internet.</p>
  * <p>Its functionality is limited (for example, it only supports http, and not https).</p>
+ * <p>The gateway client is a {@link LoopbackClient}, so that requests and responses are passed
+ * between the gateway and the proxy by reference, rather than over HTTP on localhost.</p>
  * @version $Revision$ $Date$
  */
 public class GatewayProxyServer
@@ -69,7 +70,8 @@ public class GatewayProxyServer
         httpClient.setConnectorType(HttpClient.CONNECTOR_SOCKET);
         httpClient.start();
 
-        RHTTPClient client = new JettyClient(httpClient, new Address("localhost", plainConnector.getPort()), server.getContext().getContextPath() + "/gw", "proxy");
+        // The gateway client lives in this JVM, so it exchanges requests and responses with the gateway directly
+        RHTTPClient client = new LoopbackClient(server.getGateway(), "proxy");
         client.addListener(new ProxyListener(httpClient, client));
         client.connect();
 
@@ -121,14 +123,28 @@ public class GatewayProxyServer
         public void onRequest(RHTTPRequest request) throws Exception
         {
             ProxyExchange exchange = new ProxyExchange();
-            Address address = Address.from(request.getHeaders().get("Host"));
+            Address address = Address.from(request.getHeader("Host"));
             if (address.getPort() == 0) address = new Address(address.getHost(), 80);
             exchange.setAddress(address);
             exchange.setMethod(request.getMethod());
             exchange.setURI(request.getURI());
             for (Map.Entry<String, String> header : request.getHeaders().entrySet())
-                exchange.setRequestHeader(header.getKey(), header.getValue());
-            exchange.setRequestContent(new ByteArrayBuffer(request.getBody()));
+            {
+                if (!RHTTPRequest.STREAM_HEADER.equalsIgnoreCase(header.getKey()))
+                    exchange.setRequestHeader(header.getKey(), header.getValue());
+            }
+            if (request.isStreamed())
+            {
+                // Pull the body from the gateway server while sending it to the origin server
+                String contentLength = request.getHeader(RHTTPRequest.STREAM_HEADER);
+                if (!"-1".equals(contentLength))
+                    exchange.setRequestHeader("Content-Length", contentLength);
+                exchange.setRequestContentSource(client.openRequestBody(request));
+            }
+            else
+            {
+                exchange.setRequestContent(new ByteArrayBuffer(request.getBody()));
+            }
             int status = syncSend(exchange);
             if (status == HttpExchange.STATUS_COMPLETED)
             {
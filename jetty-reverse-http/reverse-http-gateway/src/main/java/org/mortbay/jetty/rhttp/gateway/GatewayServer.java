@@ -17,8 +17,13 @@
 package org.mortbay.jetty.rhttp.gateway;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.eclipse.jetty.http.MimeTypes;
 import org.eclipse.jetty.server.Connector;
@@ -92,11 +97,20 @@ public class GatewayServer extends Server
 {
     public final static String DFT_EXT_PATH="/gw";
     public final static String DFT_CONNECT_PATH="/__rhttp";
+    public final static String DFT_STATS_PATH="/__rhttp-stats";
+    private final static AtomicInteger ids = new AtomicInteger();
     private final Logger logger = Log.getLogger(getClass().toString());
     private final Gateway gateway;
+    private final TimingWheel timingWheel = new TimingWheel();
     private final ServletHolder externalServletHolder;
     private final ServletHolder connectorServletHolder;
     private final ServletContextHandler context;
+    private GatewayCluster cluster;
+    private ResponseCache responseCache;
+    private TargetScheduler scheduler;
+    private ObjectName statisticsName;
+    private String statisticsPath;
+    private ServletHolder statisticsServletHolder;
     
     public GatewayServer()
     {
@@ -109,8 +123,13 @@ public class GatewayServer extends Server
         setHandler(handlers);
         context = new ServletContextHandler(handlers, contextPath, ServletContextHandler.SESSIONS);
         
+        // One timing wheel expires both gateway clients and external requests
+        addBean(timingWheel);
+
         // Setup the gateway
         gateway = createGateway();
+        if (gateway instanceof StandardGateway)
+            ((StandardGateway)gateway).setTimingWheel(timingWheel);
         
         // Setup external servlet
         ExternalServlet externalServlet = new ExternalServlet(gateway, targetIdRetriever);
@@ -120,6 +139,8 @@ public class GatewayServer extends Server
 
         // Setup gateway servlet
         ConnectorServlet gatewayServlet = new ConnectorServlet(gateway);
+        gatewayServlet.setTimingWheel(timingWheel);
+        gatewayServlet.setStatistics(getStatistics());
         connectorServletHolder = new ServletHolder(gatewayServlet);
         connectorServletHolder.setInitParameter("clientTimeout", "15000");
         context.addServlet(connectorServletHolder, gatewayServletPath + "/*");
@@ -146,6 +167,19 @@ public class GatewayServer extends Server
     	return gateway;
     }
     
+    public TimingWheel getTimingWheel()
+    {
+        return timingWheel;
+    }
+
+    /**
+     * @return the statistics of the gateway, or null if the gateway does not record them
+     */
+    public GatewayStatistics getStatistics()
+    {
+        return gateway instanceof StandardGateway ? ((StandardGateway)gateway).getStatistics() : null;
+    }
+
     public ServletHolder getExternalServlet()
     {
         return externalServletHolder;
@@ -156,6 +190,122 @@ public class GatewayServer extends Server
         return connectorServletHolder;
     }
 
+    public GatewayCluster getCluster()
+    {
+        return cluster;
+    }
+
+    /**
+     * <p>Makes this gateway server a node of the given cluster.</p>
+     * <p>If the cluster has no node id, it defaults to <tt>localhost</tt> and the
+     * local port of the first connector when this gateway server starts.</p>
+     * @param cluster the cluster to join
+     */
+    public void setCluster(GatewayCluster cluster)
+    {
+        if (this.cluster != null)
+            removeBean(this.cluster);
+        this.cluster = cluster;
+        if (cluster != null)
+            addBean(cluster);
+        if (gateway instanceof StandardGateway)
+            ((StandardGateway)gateway).setCluster(cluster);
+        ((ExternalServlet)externalServletHolder.getServletInstance()).setCluster(cluster);
+    }
+
+    public ResponseCache getResponseCache()
+    {
+        return responseCache;
+    }
+
+    /**
+     * @param responseCache the cache of the responses of the gateway clients to idempotent
+     * external requests; null, the default, disables caching
+     */
+    public void setResponseCache(ResponseCache responseCache)
+    {
+        this.responseCache = responseCache;
+        ((ExternalServlet)externalServletHolder.getServletInstance()).setResponseCache(responseCache);
+    }
+
+    public TargetScheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    /**
+     * @param scheduler the scheduler that rate limits and shares the in-flight capacity
+     * between targetIds; null, the default, admits all external requests
+     */
+    public void setScheduler(TargetScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+        ((ExternalServlet)externalServletHolder.getServletInstance()).setScheduler(scheduler);
+    }
+
+    public String getStatisticsPath()
+    {
+        return statisticsPath;
+    }
+
+    /**
+     * <p>The statistics reveal the targetIds of the connected gateway clients, so they are
+     * not exposed over HTTP unless a path is given; they are always available through JMX.</p>
+     * @param statisticsPath the path, within the context, the statistics servlet is mapped to
+     * when this gateway server starts, for example {@link #DFT_STATS_PATH}; null, the default,
+     * does not map it
+     */
+    public void setStatisticsPath(String statisticsPath)
+    {
+        this.statisticsPath = statisticsPath;
+    }
+
+    @Override
+    protected void doStart() throws Exception
+    {
+        GatewayStatistics statistics = getStatistics();
+        String statisticsPath = getStatisticsPath();
+        if (statistics != null && statisticsPath != null && statisticsServletHolder == null)
+        {
+            statisticsServletHolder = new ServletHolder(new StatisticsServlet(statistics));
+            context.addServlet(statisticsServletHolder, statisticsPath);
+            logger.debug("Statistics servlet mapped to {}", statisticsPath);
+        }
+
+        // Expirations are run by the server threads, not by the timing wheel thread
+        timingWheel.setThreadPool(getThreadPool());
+        super.doStart();
+        // Gateway clients can connect only after the start, so the node id is set before registering any
+        GatewayCluster cluster = getCluster();
+        if (cluster != null && cluster.getNodeId() == null)
+        {
+            Connector[] connectors = getConnectors();
+            if (connectors == null || connectors.length == 0)
+                throw new IllegalStateException("No connectors to derive the cluster node id from");
+            String host = connectors[0].getHost();
+            cluster.setNodeId((host == null ? "localhost" : host) + ":" + connectors[0].getLocalPort());
+        }
+
+        if (statistics != null)
+        {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            statisticsName = new ObjectName(GatewayStatistics.class.getPackage().getName() + ":type=gatewaystatistics,id=" + ids.getAndIncrement());
+            mbeanServer.registerMBean(statistics, statisticsName);
+            logger.debug("Statistics registered as {}", statisticsName);
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception
+    {
+        if (statisticsName != null)
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(statisticsName);
+            statisticsName = null;
+        }
+        super.doStop();
+    }
+
     public void setTargetIdRetriever(TargetIdRetriever retriever)
     {
         ((ExternalServlet)externalServletHolder.getServletInstance()).setTargetIdRetriever(retriever);
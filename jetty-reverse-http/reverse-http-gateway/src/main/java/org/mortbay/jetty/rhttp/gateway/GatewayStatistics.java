@@ -0,0 +1,350 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.ajax.JSON;
+
+/**
+ * <p>Statistics of a {@link Gateway}, per targetId and in total.</p>
+ * <p>Recording updates atomic counters and {@link Histogram}s, without locks and without
+ * allocating, so that statistics can stay enabled under load; only the first recording
+ * for a targetId allocates its statistics.<br />
+ * The statistics of a targetId are discarded when its gateway client is removed, while
+ * the totals keep accumulating.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class GatewayStatistics implements GatewayStatisticsMBean
+{
+    private final ConcurrentMap<String, TargetStatistics> targets = new ConcurrentHashMap<String, TargetStatistics>();
+    private final TargetStatistics total = new TargetStatistics(null);
+    private final Gateway gateway;
+
+    /**
+     * @param gateway the gateway whose client queues are reported, may be null
+     */
+    public GatewayStatistics(Gateway gateway)
+    {
+        this.gateway = gateway;
+    }
+
+    /**
+     * @return the statistics across all targetIds
+     */
+    public TargetStatistics getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * @param targetId the targetId, or null
+     * @return the statistics of the given targetId, created if missing, or the totals if the targetId is null
+     */
+    public TargetStatistics getTargetStatistics(String targetId)
+    {
+        if (targetId == null)
+            return total;
+        TargetStatistics result = targets.get(targetId);
+        if (result == null)
+        {
+            result = new TargetStatistics(total);
+            TargetStatistics existing = targets.putIfAbsent(targetId, result);
+            if (existing != null)
+                result = existing;
+        }
+        return result;
+    }
+
+    /**
+     * <p>Unlike {@link #getTargetStatistics(String)}, does not create the statistics of a targetId
+     * that has none, so that late records for a removed targetId do not revive its statistics.</p>
+     * @param targetId the targetId
+     * @return the statistics of the given targetId, or null if there are none
+     */
+    public TargetStatistics findTargetStatistics(String targetId)
+    {
+        return targets.get(targetId);
+    }
+
+    /**
+     * @param targetId the targetId whose statistics are discarded
+     */
+    public void removeTargetStatistics(String targetId)
+    {
+        targets.remove(targetId);
+    }
+
+    public String[] getTargetIds()
+    {
+        return targets.keySet().toArray(new String[0]);
+    }
+
+    public long getQueueDepth()
+    {
+        long result = 0;
+        for (String targetId : targets.keySet())
+            result += getQueueDepth(targetId);
+        return result;
+    }
+
+    private int getQueueDepth(String targetId)
+    {
+        ClientDelegate client = gateway == null ? null : gateway.getClientDelegate(targetId);
+        return client == null ? 0 : client.getQueueSize();
+    }
+
+    public long getInFlight()
+    {
+        return total.getInFlight();
+    }
+
+    public long getRequests()
+    {
+        return total.getRequests();
+    }
+
+    public long getTimeouts()
+    {
+        return total.getTimeouts();
+    }
+
+    public long getBytesIn()
+    {
+        return total.getBytesIn();
+    }
+
+    public long getBytesOut()
+    {
+        return total.getBytesOut();
+    }
+
+    public long getLatencyP50()
+    {
+        return total.getLatency().getPercentile(0.5);
+    }
+
+    public long getLatencyP99()
+    {
+        return total.getLatency().getPercentile(0.99);
+    }
+
+    public long getLatencyP999()
+    {
+        return total.getLatency().getPercentile(0.999);
+    }
+
+    public long getLatencyMax()
+    {
+        return total.getLatency().getMax();
+    }
+
+    public long getHoldTimeP50()
+    {
+        return total.getHoldTime().getPercentile(0.5);
+    }
+
+    public long getHoldTimeP99()
+    {
+        return total.getHoldTime().getPercentile(0.99);
+    }
+
+    public long getHoldTimeMax()
+    {
+        return total.getHoldTime().getMax();
+    }
+
+    public String toJSON(String targetId)
+    {
+        TargetStatistics statistics = targets.get(targetId);
+        if (statistics == null)
+            return null;
+        return JSON.toString(statistics.toMap(getQueueDepth(targetId)));
+    }
+
+    /**
+     * @return the totals and the statistics of all targetIds, as a JSON object
+     */
+    public String toJSON()
+    {
+        Map<String, Object> result = total.toMap(getQueueDepth());
+        Map<String, Object> targetsMap = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, TargetStatistics> entry : targets.entrySet())
+            targetsMap.put(entry.getKey(), entry.getValue().toMap(getQueueDepth(entry.getKey())));
+        result.put("targets", targetsMap);
+        return JSON.toString(result);
+    }
+
+    /**
+     * <p>The statistics of one targetId, that also record into the totals.</p>
+     * <p>Times are recorded in nanoseconds and reported in microseconds.</p>
+     */
+    public static class TargetStatistics
+    {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final Histogram latency = new Histogram();
+        private final Histogram holdTime = new Histogram();
+        private final TargetStatistics total;
+
+        private TargetStatistics(TargetStatistics total)
+        {
+            this.total = total;
+        }
+
+        /**
+         * <p>Records that an external request has been suspended waiting for its response.</p>
+         */
+        public void requestSuspended()
+        {
+            inFlight.incrementAndGet();
+            if (total != null)
+                total.requestSuspended();
+        }
+
+        /**
+         * @param nanos the time since the arrival of the external request
+         * @param suspended whether the external request had been {@link #requestSuspended() suspended}
+         */
+        public void requestCompleted(long nanos, boolean suspended)
+        {
+            if (suspended)
+                inFlight.decrementAndGet();
+            requests.incrementAndGet();
+            latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+            if (total != null)
+                total.requestCompleted(nanos, suspended);
+        }
+
+        /**
+         * @param nanos the time since the arrival of the external request
+         * @param suspended whether the external request had been {@link #requestSuspended() suspended}
+         */
+        public void requestExpired(long nanos, boolean suspended)
+        {
+            timeouts.incrementAndGet();
+            requestCompleted(nanos, suspended);
+        }
+
+        /**
+         * @param nanos the time a long poll of the gateway client has been held suspended
+         */
+        public void longPollHeld(long nanos)
+        {
+            holdTime.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+            if (total != null)
+                total.longPollHeld(nanos);
+        }
+
+        /**
+         * @param bytes the bytes received from the gateway client
+         */
+        public void bytesIn(long bytes)
+        {
+            bytesIn.addAndGet(bytes);
+            if (total != null)
+                total.bytesIn(bytes);
+        }
+
+        /**
+         * @param bytes the bytes sent to the gateway client
+         */
+        public void bytesOut(long bytes)
+        {
+            bytesOut.addAndGet(bytes);
+            if (total != null)
+                total.bytesOut(bytes);
+        }
+
+        public int getInFlight()
+        {
+            return inFlight.get();
+        }
+
+        public long getRequests()
+        {
+            return requests.get();
+        }
+
+        public long getTimeouts()
+        {
+            return timeouts.get();
+        }
+
+        public long getBytesIn()
+        {
+            return bytesIn.get();
+        }
+
+        public long getBytesOut()
+        {
+            return bytesOut.get();
+        }
+
+        /**
+         * @return the latencies of the external requests, in microseconds
+         */
+        public Histogram getLatency()
+        {
+            return latency;
+        }
+
+        /**
+         * @return the hold times of the long polls, in microseconds
+         */
+        public Histogram getHoldTime()
+        {
+            return holdTime;
+        }
+
+        private Map<String, Object> toMap(long queueDepth)
+        {
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            result.put("queueDepth", queueDepth);
+            result.put("inFlight", getInFlight());
+            result.put("requests", getRequests());
+            result.put("timeouts", getTimeouts());
+            result.put("bytesIn", getBytesIn());
+            result.put("bytesOut", getBytesOut());
+            result.put("latency", toMap(latency));
+            result.put("holdTime", toMap(holdTime));
+            return result;
+        }
+
+        private Map<String, Object> toMap(Histogram histogram)
+        {
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            result.put("count", histogram.getCount());
+            result.put("mean", histogram.getMean());
+            result.put("p50", histogram.getPercentile(0.5));
+            result.put("p99", histogram.getPercentile(0.99));
+            result.put("p999", histogram.getPercentile(0.999));
+            result.put("max", histogram.getMax());
+            return result;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+/**
+ * <p>The JMX management interface of {@link GatewayStatistics}.</p>
+ * <p>Attributes report the totals across all targetIds; times are in microseconds.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public interface GatewayStatisticsMBean
+{
+    /**
+     * @return the targetIds with statistics
+     */
+    public String[] getTargetIds();
+
+    /**
+     * @return the number of requests queued for all the gateway clients
+     */
+    public long getQueueDepth();
+
+    /**
+     * @return the number of external requests suspended waiting for a response
+     */
+    public long getInFlight();
+
+    /**
+     * @return the number of external requests completed, including those that expired
+     */
+    public long getRequests();
+
+    /**
+     * @return the number of external requests that expired without a response
+     */
+    public long getTimeouts();
+
+    /**
+     * @return the number of bytes received from the gateway clients
+     */
+    public long getBytesIn();
+
+    /**
+     * @return the number of bytes sent to the gateway clients
+     */
+    public long getBytesOut();
+
+    public long getLatencyP50();
+
+    public long getLatencyP99();
+
+    public long getLatencyP999();
+
+    public long getLatencyMax();
+
+    public long getHoldTimeP50();
+
+    public long getHoldTimeP99();
+
+    public long getHoldTimeMax();
+
+    /**
+     * @param targetId the targetId
+     * @return the statistics of the given targetId, as a JSON object
+     */
+    public String toJSON(String targetId);
+}
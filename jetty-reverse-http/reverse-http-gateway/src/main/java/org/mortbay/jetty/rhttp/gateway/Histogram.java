@@ -0,0 +1,131 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A histogram of non negative values, such as latencies, that can be recorded
+ * concurrently without locks and without allocating.</p>
+ * <p>Values are counted in log-linear buckets: each power of two is split in
+ * eight buckets, so that percentiles are reported within 12.5% of the actual
+ * value, with a fixed footprint of a few kilobytes.<br />
+ * Values of 2<sup>41</sup> and above are counted in the last bucket.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class Histogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value the value to record; negative values are recorded as zero
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+        buckets.incrementAndGet(indexFor(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        while (true)
+        {
+            long current = max.get();
+            if (value <= current || max.compareAndSet(current, value))
+                break;
+        }
+    }
+
+    private static int indexFor(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValueAt(int index)
+    {
+        if (index < SUB_BUCKETS)
+            return index;
+        if (index == BUCKETS - 1)
+            return Long.MAX_VALUE;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return ((long)(SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public long getMean()
+    {
+        long count = getCount();
+        return count == 0 ? 0 : total.get() / count;
+    }
+
+    /**
+     * <p>Returns the value below which the given fraction of the recorded values fall.</p>
+     * <p>Concurrent recordings may be partially accounted for.</p>
+     *
+     * @param fraction the fraction, for example 0.99 for the 99th percentile
+     * @return the highest value of the bucket the percentile falls in, capped to the maximum recorded value
+     */
+    public long getPercentile(double fraction)
+    {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; ++i)
+            count += buckets.get(i);
+        if (count == 0)
+            return 0;
+
+        long rank = (long)Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i)
+        {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return Math.min(highestValueAt(i), getMax());
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[count=%d,p50=%d,p99=%d,p999=%d,max=%d]", getClass().getSimpleName(), getCount(), getPercentile(0.5), getPercentile(0.99), getPercentile(0.999), getMax());
+    }
+}
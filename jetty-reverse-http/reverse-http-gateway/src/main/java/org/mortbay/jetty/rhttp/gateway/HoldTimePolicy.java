@@ -0,0 +1,178 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Chooses, for each long poll, how long it is held by the gateway before being
+ * responded empty.</p>
+ * <p>The hold time of a gateway client follows the rate at which requests arrive for it:
+ * it is a {@link #getArrivalFactor() multiple} of the mean time between requests, so that
+ * busy clients poll at a pace that matches their traffic, while idle clients are held up
+ * to the {@link #getMaxHoldTime() maximum hold time}, saving the empty round trips and the
+ * timer and continuation churn that each of them costs.<br />
+ * The mean time between requests is an exponentially weighted moving average, that is never
+ * less than the time elapsed since the last request, so that a client that stops receiving
+ * requests is soon considered idle.</p>
+ * <p>The load of the gateway, measured as the number of long polls held against the
+ * {@link #getMaxHeld() expected maximum}, stretches the hold times up to twice their value,
+ * so that under load gateway clients reconnect less often.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class HoldTimePolicy
+{
+    private final AtomicInteger held = new AtomicInteger();
+    private volatile long minHoldTime = 2000;
+    private volatile long maxHoldTime = 60000;
+    private volatile double arrivalFactor = 4;
+    private volatile int maxHeld = 10000;
+
+    public long getMinHoldTime()
+    {
+        return minHoldTime;
+    }
+
+    public void setMinHoldTime(long minHoldTime)
+    {
+        this.minHoldTime = minHoldTime;
+    }
+
+    public long getMaxHoldTime()
+    {
+        return maxHoldTime;
+    }
+
+    public void setMaxHoldTime(long maxHoldTime)
+    {
+        this.maxHoldTime = maxHoldTime;
+    }
+
+    /**
+     * @return how many times the mean time between requests a long poll is held
+     */
+    public double getArrivalFactor()
+    {
+        return arrivalFactor;
+    }
+
+    public void setArrivalFactor(double arrivalFactor)
+    {
+        this.arrivalFactor = arrivalFactor;
+    }
+
+    /**
+     * @return the number of held long polls at which the gateway is considered fully loaded
+     */
+    public int getMaxHeld()
+    {
+        return maxHeld;
+    }
+
+    public void setMaxHeld(int maxHeld)
+    {
+        this.maxHeld = maxHeld;
+    }
+
+    /**
+     * @return the number of long polls currently held
+     */
+    public int getHeld()
+    {
+        return held.get();
+    }
+
+    /**
+     * <p>Records that a long poll has been suspended.</p>
+     */
+    public void pollHeld()
+    {
+        held.incrementAndGet();
+    }
+
+    /**
+     * <p>Records that a long poll previously {@link #pollHeld() held} has been resumed or has expired.</p>
+     */
+    public void pollReleased()
+    {
+        held.decrementAndGet();
+    }
+
+    /**
+     * @param arrivals the request arrivals of a gateway client
+     * @return the time, in milliseconds, the next long poll of the gateway client should be held,
+     * between the {@link #getMinHoldTime() minimum} and the {@link #getMaxHoldTime() maximum hold time}
+     */
+    public long getHoldTime(Arrivals arrivals)
+    {
+        long maxHoldTime = getMaxHoldTime();
+        long interval = arrivals.getMeanInterval();
+        double holdTime = interval > 0 ? getArrivalFactor() * interval : maxHoldTime;
+
+        int maxHeld = getMaxHeld();
+        if (maxHeld > 0)
+            holdTime *= 1 + Math.min(1D, (double)held.get() / maxHeld);
+
+        return Math.max(getMinHoldTime(), Math.min(maxHoldTime, (long)holdTime));
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[" + getMinHoldTime() + "-" + getMaxHoldTime() + "ms,held=" + getHeld() + "]";
+    }
+
+    /**
+     * <p>Tracks the mean time between the requests arrived for a gateway client.</p>
+     */
+    public static class Arrivals
+    {
+        // The weight of the last interval in the moving average
+        private static final double ALPHA = 0.2;
+
+        private long lastArrival;
+        private double meanInterval;
+
+        /**
+         * <p>Records the arrival of a request.</p>
+         */
+        public synchronized void arrived()
+        {
+            long now = System.nanoTime();
+            if (lastArrival != 0)
+            {
+                long interval = now - lastArrival;
+                meanInterval = meanInterval == 0 ? interval : ALPHA * interval + (1 - ALPHA) * meanInterval;
+            }
+            lastArrival = now;
+        }
+
+        /**
+         * @return the mean time between requests, in milliseconds, or 0 if not enough requests arrived
+         */
+        public synchronized long getMeanInterval()
+        {
+            if (meanInterval == 0)
+                return 0;
+            double interval = Math.max(meanInterval, System.nanoTime() - lastArrival);
+            // Busy clients must not look like clients without arrivals
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis((long)interval));
+        }
+    }
+}
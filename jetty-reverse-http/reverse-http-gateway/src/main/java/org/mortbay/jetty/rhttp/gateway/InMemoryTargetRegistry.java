@@ -0,0 +1,46 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>A {@link TargetRegistry} held in memory, that can be shared by the nodes
+ * of a cluster running in the same JVM.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class InMemoryTargetRegistry implements TargetRegistry
+{
+    private final ConcurrentMap<String, String> nodes = new ConcurrentHashMap<String, String>();
+
+    public String register(String targetId, String nodeId)
+    {
+        return nodes.put(targetId, nodeId);
+    }
+
+    public boolean unregister(String targetId, String nodeId)
+    {
+        return nodes.remove(targetId, nodeId);
+    }
+
+    public String getNodeId(String targetId)
+    {
+        return nodes.get(targetId);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+
+import org.mortbay.jetty.rhttp.client.AbstractClient;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * <p>A gateway client that lives in the same JVM as the {@link Gateway}, and exchanges
+ * {@link RHTTPRequest}s and {@link RHTTPResponse}s with it by reference.</p>
+ * <p>The client attaches itself as the {@link ClientDelegate.Channel channel} of its client
+ * delegate: requests are handed to the listeners as soon as they are enqueued, in the thread
+ * of the external request unless a {@link #setRequestDispatcher(org.mortbay.jetty.rhttp.client.RequestDispatcher)
+ * request dispatcher} is set, and responses complete the external requests directly.<br />
+ * There is no long poll, no framing and no socket, and the requests and responses are never
+ * serialized; for the same reason, request and response bodies are never streamed.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class LoopbackClient extends AbstractClient implements ClientDelegate.Channel
+{
+    private final Gateway gateway;
+    private volatile ClientDelegate client;
+
+    public LoopbackClient(Gateway gateway, String targetId)
+    {
+        super(targetId);
+        this.gateway = gateway;
+    }
+
+    public Gateway getGateway()
+    {
+        return gateway;
+    }
+
+    @Override
+    public String getGatewayURI()
+    {
+        return "loopback:" + getTargetId();
+    }
+
+    public String getHost()
+    {
+        return "localhost";
+    }
+
+    public int getPort()
+    {
+        return -1;
+    }
+
+    public String getPath()
+    {
+        return "";
+    }
+
+    protected void syncHandshake() throws IOException
+    {
+        String targetId = getTargetId();
+        ClientDelegate client = gateway.newClientDelegate(targetId);
+        ClientDelegate existing = gateway.addClientDelegate(targetId, client);
+        if (existing != null)
+            throw new IOException("Client with targetId " + targetId + " is already connected");
+        client.setChannel(this);
+        this.client = client;
+
+        int unparked = gateway.unparkExternalRequests(client);
+        if (unparked > 0)
+            getLogger().debug("Client {} unparked {} requests", targetId, unparked);
+
+        // Nothing to negotiate: the defaults are no compression, no streaming and no batching
+        handshakeComplete(new HashMap<String, String>());
+    }
+
+    protected void asyncConnect()
+    {
+        // Requests are pushed as they are enqueued; only those enqueued before connecting are waiting
+        pollEnded();
+        ClientDelegate client = this.client;
+        if (client != null)
+            flush(client);
+    }
+
+    protected void syncDisconnect() throws IOException
+    {
+        ClientDelegate client = this.client;
+        if (client != null)
+        {
+            this.client = null;
+            client.close();
+            gateway.removeClientDelegate(getTargetId());
+        }
+    }
+
+    protected void asyncDeliver(RHTTPResponse response)
+    {
+        ExternalRequest externalRequest = gateway.removeExternalRequest(response.getId());
+        if (externalRequest == null)
+        {
+            // The external request expired before the response arrived
+            getLogger().debug("Client {} delivered response {} for missing gateway request", getTargetId(), response);
+            return;
+        }
+
+        try
+        {
+            externalRequest.respond(response);
+        }
+        catch (IOException x)
+        {
+            // The external client went away, there is no one to deliver to
+            getLogger().debug("Could not respond to external request " + externalRequest, x);
+        }
+    }
+
+    protected InputStream syncPull(RHTTPRequest request) throws IOException
+    {
+        throw new IOException("Streaming not supported by " + getClass().getSimpleName());
+    }
+
+    protected void syncPush(RHTTPResponse head, InputStream body) throws IOException
+    {
+        throw new IOException("Streaming not supported by " + getClass().getSimpleName());
+    }
+
+    public void flush(ClientDelegate client)
+    {
+        List<RHTTPRequest> requests = client.drain();
+        if (!requests.isEmpty())
+            notifyRequests(requests);
+    }
+
+    public void close()
+    {
+        // The client delegate is closing, nothing to release
+    }
+}
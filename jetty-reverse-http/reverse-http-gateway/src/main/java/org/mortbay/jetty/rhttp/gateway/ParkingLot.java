@@ -0,0 +1,354 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+
+/**
+ * <p>Holds external requests directed to gateway clients that are not connected, for a
+ * grace period during which the gateway client is expected to handshake again, for
+ * example after a short network failure.</p>
+ * <p>Requests are parked per targetId, up to a maximum number of requests and of
+ * request bytes for each targetId, and up to a {@link #getTotalCapacity() total number} of
+ * requests and of {@link #getTotalMaxBytes() request bytes} across all targetIds, since the
+ * targetId of an external request is chosen by whoever sends it; requests that are not
+ * {@link #unpark(String) unparked} within the grace period are removed from the gateway
+ * and responded with 503.</p>
+ * <p>Parked requests are expired by a {@link TimingWheel}: without one, nothing is parked.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class ParkingLot
+{
+    private final Logger logger = Log.getLogger(getClass().toString());
+    private final ConcurrentMap<String, Lot> lots = new ConcurrentHashMap<String, Lot>();
+    private final AtomicInteger totalSize = new AtomicInteger();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final Gateway gateway;
+    private volatile TimingWheel timingWheel;
+    private volatile long timeout;
+    private volatile int capacity = 64;
+    private volatile long maxBytes = 1024 * 1024;
+    private volatile int totalCapacity = 4096;
+    private volatile long totalMaxBytes = 64 * 1024 * 1024;
+
+    public ParkingLot(Gateway gateway)
+    {
+        this.gateway = gateway;
+    }
+
+    public TimingWheel getTimingWheel()
+    {
+        return timingWheel;
+    }
+
+    public void setTimingWheel(TimingWheel timingWheel)
+    {
+        this.timingWheel = timingWheel;
+    }
+
+    /**
+     * @return the grace period, in milliseconds, requests are parked for; zero or negative disables parking
+     */
+    public long getTimeout()
+    {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return the maximum number of requests parked for each targetId
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the maximum number of request bytes parked for each targetId
+     */
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the maximum number of requests parked across all targetIds
+     */
+    public int getTotalCapacity()
+    {
+        return totalCapacity;
+    }
+
+    public void setTotalCapacity(int totalCapacity)
+    {
+        this.totalCapacity = totalCapacity;
+    }
+
+    /**
+     * @return the maximum number of request bytes parked across all targetIds
+     */
+    public long getTotalMaxBytes()
+    {
+        return totalMaxBytes;
+    }
+
+    public void setTotalMaxBytes(long totalMaxBytes)
+    {
+        this.totalMaxBytes = totalMaxBytes;
+    }
+
+    /**
+     * @return the number of requests parked across all targetIds
+     */
+    public int getTotalSize()
+    {
+        return totalSize.get();
+    }
+
+    /**
+     * @return the number of request bytes parked across all targetIds
+     */
+    public long getTotalBytes()
+    {
+        return totalBytes.get();
+    }
+
+    /**
+     * <p>Tells whether a request with a body of the given length could be parked, so that
+     * a request that could not be parked is rejected before its body is read.</p>
+     *
+     * @param contentLength the length of the request body, or -1 if it is not known
+     * @return whether parking is enabled and a request with such a body fits the limits
+     */
+    public boolean canPark(long contentLength)
+    {
+        if (getTimeout() <= 0 || getTimingWheel() == null)
+            return false;
+        // The body of unknown length may be larger than any limit
+        if (contentLength < 0 || contentLength > getMaxBytes())
+            return false;
+        return totalSize.get() < getTotalCapacity() && totalBytes.get() + contentLength <= getTotalMaxBytes();
+    }
+
+    /**
+     * @param targetId the targetId
+     * @return the number of requests parked for the given targetId
+     */
+    public int getSize(String targetId)
+    {
+        Lot lot = lots.get(targetId);
+        if (lot == null)
+            return 0;
+        synchronized (lot)
+        {
+            return lot.requests.size();
+        }
+    }
+
+    /**
+     * <p>Parks the given external request, until the gateway client with the given targetId
+     * handshakes or the grace period expires.</p>
+     *
+     * @param targetId the targetId of the gateway client that is not connected
+     * @param externalRequest the external request to park
+     * @return whether the request has been parked, or false if parking is disabled
+     * or the requests parked for the given targetId exceed the limits
+     */
+    public boolean park(String targetId, ExternalRequest externalRequest)
+    {
+        long timeout = getTimeout();
+        TimingWheel wheel = getTimingWheel();
+        if (timeout <= 0 || wheel == null)
+            return false;
+
+        RHTTPRequest request = externalRequest.getRequest();
+        int bytes = request.getRequestLength();
+        while (true)
+        {
+            Lot lot = lots.get(targetId);
+            if (lot == null)
+            {
+                lot = new Lot(targetId);
+                Lot existing = lots.putIfAbsent(targetId, lot);
+                if (existing != null)
+                    lot = existing;
+            }
+
+            synchronized (lot)
+            {
+                // The lot has been unparked or emptied concurrently, retry with a new one
+                if (lot.removed)
+                    continue;
+
+                if (lot.requests.size() >= getCapacity() || lot.bytes + bytes > getMaxBytes() || !reserve(bytes))
+                {
+                    logger.debug("Request {} to device {} not parked, parked {} requests, {} bytes", new Object[]{request, targetId, lot.requests.size(), lot.bytes});
+                    return false;
+                }
+
+                ParkedRequest parked = new ParkedRequest(lot, externalRequest, bytes);
+                lot.requests.add(parked);
+                lot.bytes += bytes;
+                wheel.schedule(parked, timeout);
+                logger.debug("Request {} to device {} parked", request, targetId);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * <p>Removes all the requests parked for the given targetId.</p>
+     *
+     * @param targetId the targetId of the gateway client that handshook
+     * @return the external requests parked for the given targetId, in arrival order
+     */
+    public List<ExternalRequest> unpark(String targetId)
+    {
+        Lot lot = lots.remove(targetId);
+        if (lot == null)
+            return Collections.emptyList();
+
+        TimingWheel wheel = getTimingWheel();
+        synchronized (lot)
+        {
+            lot.removed = true;
+            List<ExternalRequest> result = new ArrayList<ExternalRequest>(lot.requests.size());
+            for (ParkedRequest parked : lot.requests)
+            {
+                if (wheel != null)
+                    wheel.cancel(parked);
+                result.add(parked.externalRequest);
+            }
+            release(lot.requests.size(), lot.bytes);
+            lot.requests.clear();
+            lot.bytes = 0;
+            logger.debug("Unparked requests {} to device {}", result, targetId);
+            return result;
+        }
+    }
+
+    private boolean reserve(int bytes)
+    {
+        int size = totalSize.incrementAndGet();
+        long total = totalBytes.addAndGet(bytes);
+        if (size <= getTotalCapacity() && total <= getTotalMaxBytes())
+            return true;
+        release(1, bytes);
+        return false;
+    }
+
+    private void release(int size, long bytes)
+    {
+        totalSize.addAndGet(-size);
+        totalBytes.addAndGet(-bytes);
+    }
+
+    private void expire(ParkedRequest parked)
+    {
+        Lot lot = parked.lot;
+        synchronized (lot)
+        {
+            // Could be that we expire exactly when the requests are being unparked
+            if (!lot.requests.remove(parked))
+                return;
+            lot.bytes -= parked.bytes;
+            release(1, parked.bytes);
+            if (lot.requests.isEmpty())
+            {
+                lot.removed = true;
+                lots.remove(lot.targetId, lot);
+            }
+        }
+
+        RHTTPRequest request = parked.externalRequest.getRequest();
+        logger.debug("Parked request {} to device {} expired", request, lot.targetId);
+        ExternalRequest externalRequest = gateway.removeExternalRequest(request.getId());
+        // The external request can be null for a race with its own expiration
+        if (externalRequest != null)
+        {
+            try
+            {
+                externalRequest.respond(Utils.newEmptyResponse(request.getId(), HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service Unavailable"));
+            }
+            catch (IOException x)
+            {
+                logger.debug("Could not respond to expired parked request " + request, x);
+            }
+        }
+    }
+
+    private static class Lot
+    {
+        private final List<ParkedRequest> requests = new ArrayList<ParkedRequest>();
+        private final String targetId;
+        private long bytes;
+        private boolean removed;
+
+        private Lot(String targetId)
+        {
+            this.targetId = targetId;
+        }
+    }
+
+    private class ParkedRequest extends TimingWheel.Task
+    {
+        private final Lot lot;
+        private final ExternalRequest externalRequest;
+        private final int bytes;
+
+        private ParkedRequest(Lot lot, ExternalRequest externalRequest, int bytes)
+        {
+            this.lot = lot;
+            this.externalRequest = externalRequest;
+            this.bytes = bytes;
+        }
+
+        @Override
+        protected void expire()
+        {
+            ParkingLot.this.expire(this);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+
+/**
+ * <p>Classifies the requests to a gateway client into priority lanes, so that latency
+ * sensitive requests do not wait behind bulk requests queued before them.</p>
+ * <p>Lanes are added in priority order, the first lane having the highest priority, each
+ * with a weight: the requests queued for a gateway client are drained in rounds, and in each
+ * round every lane, in priority order, gives up to its weight requests.<br />
+ * A request is put in the lane named by its {@link #getHeader() priority header}, if one is
+ * configured and present; otherwise in the lane of the first {@link #addPattern(Pattern, String)
+ * URI pattern} that matches its URI; otherwise in the {@link #getDefaultLane() default lane}.<br />
+ * The priority header is set by the external clients, so it is only honored when configured,
+ * typically when a trusted front end sets it.</p>
+ * <p>With a {@link #getMaxResponseBytes() response size limit}, a long poll response stops
+ * taking requests once the limit is reached, and the remaining requests are delivered by the
+ * next long poll, so that bulk requests cannot delay the requests that follow them for
+ * longer than the time it takes to transfer the limit.</p>
+ * <p>Lanes and patterns should be configured before starting, as the lanes of a gateway
+ * client are created when it handshakes.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class RequestPriorities
+{
+    public static final String DEFAULT_HEADER = "X-RHTTP-Priority";
+
+    private final List<Lane> lanes = new CopyOnWriteArrayList<Lane>();
+    private final List<PatternLane> patterns = new CopyOnWriteArrayList<PatternLane>();
+    private volatile String header;
+    private volatile String defaultLane;
+    private volatile long maxResponseBytes;
+
+    /**
+     * @return the name of the request header that names the lane of a request,
+     * for example {@link #DEFAULT_HEADER}; null, the default, to ignore the request headers
+     */
+    public String getHeader()
+    {
+        return header;
+    }
+
+    public void setHeader(String header)
+    {
+        this.header = header;
+    }
+
+    /**
+     * @return the name of the lane of the requests that are not otherwise classified;
+     * if not set, the last lane
+     */
+    public String getDefaultLane()
+    {
+        return defaultLane;
+    }
+
+    public void setDefaultLane(String defaultLane)
+    {
+        this.defaultLane = defaultLane;
+    }
+
+    /**
+     * @return the size, in bytes, after which a long poll response stops taking requests, or 0 for no limit
+     */
+    public long getMaxResponseBytes()
+    {
+        return maxResponseBytes;
+    }
+
+    public void setMaxResponseBytes(long maxResponseBytes)
+    {
+        this.maxResponseBytes = maxResponseBytes;
+    }
+
+    /**
+     * <p>Adds a lane with a priority lower than the lanes already added.</p>
+     * @param name the lane name
+     * @param weight the maximum number of requests taken from the lane in each round
+     */
+    public void addLane(String name, int weight)
+    {
+        if (weight <= 0)
+            throw new IllegalArgumentException("Invalid weight " + weight);
+        lanes.add(new Lane(name, weight));
+    }
+
+    /**
+     * @param uriPattern the pattern matched against the request URI
+     * @param lane the name of the lane of the requests whose URI matches the pattern
+     */
+    public void addPattern(Pattern uriPattern, String lane)
+    {
+        patterns.add(new PatternLane(uriPattern, lane));
+    }
+
+    /**
+     * @return the number of lanes, at least one
+     */
+    public int getLaneCount()
+    {
+        return Math.max(1, lanes.size());
+    }
+
+    /**
+     * @param lane the lane index
+     * @return the weight of the lane with the given index
+     */
+    public int getWeight(int lane)
+    {
+        return lanes.isEmpty() ? 1 : lanes.get(lane).weight;
+    }
+
+    /**
+     * @param request the request to classify
+     * @return the index of the lane of the given request
+     */
+    public int getLane(RHTTPRequest request)
+    {
+        String header = getHeader();
+        if (header != null)
+        {
+            String value = request.getHeader(header);
+            if (value != null)
+            {
+                int lane = indexOf(value.trim());
+                if (lane >= 0)
+                    return lane;
+            }
+        }
+
+        String uri = request.getURI();
+        for (PatternLane pattern : patterns)
+        {
+            if (pattern.pattern.matcher(uri).matches())
+            {
+                int lane = indexOf(pattern.lane);
+                if (lane >= 0)
+                    return lane;
+            }
+        }
+
+        int lane = indexOf(getDefaultLane());
+        return lane >= 0 ? lane : getLaneCount() - 1;
+    }
+
+    private int indexOf(String name)
+    {
+        if (name == null)
+            return -1;
+        for (int i = 0; i < lanes.size(); ++i)
+        {
+            if (lanes.get(i).name.equalsIgnoreCase(name))
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + lanes;
+    }
+
+    private static class Lane
+    {
+        private final String name;
+        private final int weight;
+
+        private Lane(String name, int weight)
+        {
+            this.name = name;
+            this.weight = weight;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + "/" + weight;
+        }
+    }
+
+    private static class PatternLane
+    {
+        private final Pattern pattern;
+        private final String lane;
+
+        private PatternLane(Pattern pattern, String lane)
+        {
+            this.pattern = pattern;
+            this.lane = lane;
+        }
+    }
+}
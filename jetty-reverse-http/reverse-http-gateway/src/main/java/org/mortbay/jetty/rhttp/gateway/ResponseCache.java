@@ -0,0 +1,655 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * <p>A shared cache of the responses of the gateway clients to idempotent external requests,
+ * so that repeated requests for the same resource do not cost a round trip to the device.</p>
+ * <p>Responses to <tt>GET</tt> and <tt>HEAD</tt> requests are cached by targetId, method, URI and
+ * the values of the request headers listed in the <tt>Vary</tt> response header, following the
+ * <tt>Cache-Control</tt> response header: <tt>s-maxage</tt> or <tt>max-age</tt> give the freshness,
+ * <tt>no-store</tt> and <tt>private</tt> prevent caching, <tt>no-cache</tt> forces revalidation.
+ * The header fields listed by <tt>private="..."</tt> and <tt>no-cache="..."</tt> are not stored.
+ * <tt>Expires</tt> is not supported.<br />
+ * Responses that set cookies are not cached, unless the cookies are among the fields that are
+ * not stored, so that a cookie for one caller is never replayed to the others.<br />
+ * Stale responses that carry an <tt>ETag</tt> or <tt>Last-Modified</tt> header are revalidated
+ * with a conditional request to the gateway client, and served from the cache if it answers 304.</p>
+ * <p>Entries are evicted in least recently used order to keep the cache within a byte budget.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class ResponseCache
+{
+    private final Logger logger = Log.getLogger(getClass().toString());
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75F, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile long maxBytes = 16 * 1024 * 1024;
+    private volatile long maxEntryBytes = 1024 * 1024;
+    private long bytes;
+
+    /**
+     * @return the maximum number of bytes held by this cache
+     */
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the maximum number of bytes of a single response for it to be cached
+     */
+    public long getMaxEntryBytes()
+    {
+        return maxEntryBytes;
+    }
+
+    public void setMaxEntryBytes(long maxEntryBytes)
+    {
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    /**
+     * @return the number of external requests served from this cache without contacting the gateway client
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of cacheable external requests that could not be served from this cache
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of stale responses that the gateway client confirmed with a 304
+     */
+    public long getRevalidations()
+    {
+        return revalidations.get();
+    }
+
+    /**
+     * @return the number of entries evicted to stay within the {@link #getMaxBytes() byte budget}
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public synchronized int getSize()
+    {
+        return entries.size();
+    }
+
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * <p>Serves the given external request from this cache, if a fresh response is cached.</p>
+     *
+     * @param targetId the targetId the external request is directed to
+     * @param httpRequest the external request
+     * @param httpResponse the external response
+     * @return whether the external request has been served
+     * @throws IOException if writing the cached response fails
+     */
+    public boolean serve(String targetId, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
+    {
+        if (!isCacheable(httpRequest))
+            return false;
+
+        Entry entry = get(newKey(targetId, httpRequest.getMethod(), httpRequest.getRequestURI(), httpRequest.getQueryString()));
+        long now = System.currentTimeMillis();
+        if (entry == null || !entry.matches(new ServletHeaders(httpRequest)) || !entry.isFresh(now) || hasNoCache(httpRequest))
+        {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        hits.incrementAndGet();
+        logger.debug("Serving {} from cache", entry.key);
+
+        String ifNoneMatch = httpRequest.getHeader("If-None-Match");
+        if (entry.etag != null && ifNoneMatch != null && ifNoneMatch.contains(entry.etag))
+        {
+            httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            httpResponse.setHeader("ETag", entry.etag);
+            return true;
+        }
+
+        httpResponse.setStatus(entry.status);
+        for (Map.Entry<String, String> header : entry.headers.entrySet())
+            httpResponse.setHeader(header.getKey(), header.getValue());
+        httpResponse.setHeader("Age", String.valueOf((now - entry.time) / 1000));
+        httpResponse.setContentLength(entry.body.length);
+        if (!"HEAD".equals(httpRequest.getMethod()))
+        {
+            ServletOutputStream output = httpResponse.getOutputStream();
+            output.write(entry.body);
+            output.flush();
+        }
+        return true;
+    }
+
+    /**
+     * <p>Wraps the given external request so that its response is stored in this cache,
+     * or, if a stale response with validators is cached, so that the request to the
+     * gateway client is made conditional.</p>
+     *
+     * @param targetId the targetId the external request is directed to
+     * @param httpRequest the external request
+     * @param externalRequest the external request to wrap
+     * @return the wrapping external request, or the given external request if its response cannot be cached
+     */
+    public ExternalRequest wrap(String targetId, HttpServletRequest httpRequest, ExternalRequest externalRequest)
+    {
+        RHTTPRequest request = externalRequest.getRequest();
+        if (!isCacheable(httpRequest) || request.isStreamed())
+            return externalRequest;
+
+        String key = newKey(targetId, httpRequest.getMethod(), httpRequest.getRequestURI(), httpRequest.getQueryString());
+        Entry entry = get(key);
+        if (entry == null || !entry.matches(new ServletHeaders(httpRequest)) || (entry.etag == null && entry.lastModified == null))
+            return new CachingExternalRequest(key, externalRequest, request, null);
+
+        // Make the request conditional, unless the external client already did
+        Map<String, String> headers = new HashMap<String, String>(request.getHeaders());
+        boolean conditional = false;
+        if (entry.etag != null && httpRequest.getHeader("If-None-Match") == null)
+        {
+            headers.put("If-None-Match", entry.etag);
+            conditional = true;
+        }
+        if (entry.lastModified != null && httpRequest.getHeader("If-Modified-Since") == null)
+        {
+            headers.put("If-Modified-Since", entry.lastModified);
+            conditional = true;
+        }
+        if (!conditional)
+            return new CachingExternalRequest(key, externalRequest, request, null);
+
+        RHTTPRequest conditionalRequest = new RHTTPRequest(request.getId(), request.getMethod(), request.getURI(), headers, request.getBody());
+        logger.debug("Revalidating {} with request {}", key, conditionalRequest);
+        return new CachingExternalRequest(key, externalRequest, conditionalRequest, entry);
+    }
+
+    private boolean isCacheable(HttpServletRequest httpRequest)
+    {
+        String method = httpRequest.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method))
+            return false;
+        // Responses to authenticated requests are not shared
+        if (httpRequest.getHeader("Authorization") != null)
+            return false;
+        String cacheControl = httpRequest.getHeader("Cache-Control");
+        return cacheControl == null || !cacheControl.toLowerCase().contains("no-store");
+    }
+
+    private boolean hasNoCache(HttpServletRequest httpRequest)
+    {
+        String cacheControl = httpRequest.getHeader("Cache-Control");
+        if (cacheControl != null && cacheControl.toLowerCase().contains("no-cache"))
+            return true;
+        String pragma = httpRequest.getHeader("Pragma");
+        return pragma != null && pragma.toLowerCase().contains("no-cache");
+    }
+
+    private String newKey(String targetId, String method, String uri, String query)
+    {
+        StringBuilder builder = new StringBuilder(targetId.length() + method.length() + uri.length() + 2);
+        builder.append(targetId).append(' ').append(method).append(' ').append(uri);
+        if (query != null)
+            builder.append('?').append(query);
+        return builder.toString();
+    }
+
+    private synchronized Entry get(String key)
+    {
+        return entries.get(key);
+    }
+
+    private void store(String key, RHTTPRequest request, RHTTPResponse response, long time)
+    {
+        Entry entry = Entry.from(key, request, response, time);
+        if (entry == null || entry.bytes > getMaxEntryBytes())
+        {
+            logger.debug("Not caching response {} for {}", response, key);
+            synchronized (this)
+            {
+                remove(key);
+            }
+            return;
+        }
+
+        synchronized (this)
+        {
+            remove(key);
+            entries.put(key, entry);
+            bytes += entry.bytes;
+            // Iteration order is from the least recently accessed
+            for (Iterator<Entry> iterator = entries.values().iterator(); bytes > getMaxBytes() && iterator.hasNext();)
+            {
+                Entry eldest = iterator.next();
+                iterator.remove();
+                bytes -= eldest.bytes;
+                evictions.incrementAndGet();
+            }
+        }
+        logger.debug("Cached response {} for {}", response, key);
+    }
+
+    private void remove(String key)
+    {
+        // Called with the lock held
+        Entry existing = entries.remove(key);
+        if (existing != null)
+            bytes -= existing.bytes;
+    }
+
+    private void revalidated(Entry entry, RHTTPResponse notModified, long time)
+    {
+        revalidations.incrementAndGet();
+        Entry refreshed = entry.refresh(notModified, time);
+        synchronized (this)
+        {
+            // Replace only if not replaced meanwhile
+            if (entries.get(entry.key) == entry)
+                entries.put(entry.key, refreshed);
+        }
+    }
+
+    /**
+     * <p>A case insensitive view over request headers.</p>
+     */
+    private interface Headers
+    {
+        public String get(String name);
+    }
+
+    private static class ServletHeaders implements Headers
+    {
+        private final HttpServletRequest httpRequest;
+
+        private ServletHeaders(HttpServletRequest httpRequest)
+        {
+            this.httpRequest = httpRequest;
+        }
+
+        public String get(String name)
+        {
+            return httpRequest.getHeader(name);
+        }
+    }
+
+    private static class MapHeaders implements Headers
+    {
+        private final Map<String, String> headers;
+
+        private MapHeaders(Map<String, String> headers)
+        {
+            this.headers = headers;
+        }
+
+        public String get(String name)
+        {
+            for (Map.Entry<String, String> header : headers.entrySet())
+            {
+                if (name.equalsIgnoreCase(header.getKey()))
+                    return header.getValue();
+            }
+            return null;
+        }
+    }
+
+    private static class Entry
+    {
+        private final String key;
+        private final String[] varyNames;
+        private final String[] varyValues;
+        private final int status;
+        private final String message;
+        private final Map<String, String> headers;
+        private final byte[] body;
+        private final String etag;
+        private final String lastModified;
+        private final long time;
+        private final long maxAge;
+        private final long bytes;
+
+        private Entry(String key, String[] varyNames, String[] varyValues, int status, String message, Map<String, String> headers, byte[] body, long time, long maxAge)
+        {
+            this.key = key;
+            this.varyNames = varyNames;
+            this.varyValues = varyValues;
+            this.status = status;
+            this.message = message;
+            this.headers = headers;
+            this.body = body;
+            MapHeaders lookup = new MapHeaders(headers);
+            this.etag = lookup.get("ETag");
+            this.lastModified = lookup.get("Last-Modified");
+            this.time = time;
+            this.maxAge = maxAge;
+            long size = key.length() + message.length() + body.length;
+            for (Map.Entry<String, String> header : headers.entrySet())
+                size += header.getKey().length() + header.getValue().length();
+            this.bytes = size;
+        }
+
+        /**
+         * @return a new entry for the given response, or null if the response cannot be cached
+         */
+        private static Entry from(String key, RHTTPRequest request, RHTTPResponse response, long time)
+        {
+            int status = response.getStatusCode();
+            if (status != 200 && status != 203 && status != 301 && status != 404 && status != 410)
+                return null;
+
+            MapHeaders responseHeaders = new MapHeaders(response.getHeaders());
+            String cacheControl = responseHeaders.get("Cache-Control");
+            long maxAge = parseMaxAge(cacheControl);
+            if (maxAge == -2)
+                return null;
+            if (maxAge < 0)
+            {
+                // No explicit freshness: cache only if it can be revalidated
+                if (responseHeaders.get("ETag") == null && responseHeaders.get("Last-Modified") == null)
+                    return null;
+                maxAge = 0;
+            }
+
+            String[] varyNames = new String[0];
+            String vary = responseHeaders.get("Vary");
+            if (vary != null)
+            {
+                if (vary.trim().equals("*"))
+                    return null;
+                varyNames = vary.split(",");
+            }
+            MapHeaders requestHeaders = new MapHeaders(request.getHeaders());
+            String[] varyValues = new String[varyNames.length];
+            for (int i = 0; i < varyNames.length; ++i)
+            {
+                varyNames[i] = varyNames[i].trim();
+                varyValues[i] = requestHeaders.get(varyNames[i]);
+            }
+
+            Set<String> unstored = parseUnstoredFields(cacheControl);
+            Map<String, String> headers = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, String> header : response.getHeaders().entrySet())
+            {
+                String name = header.getKey();
+                if (unstored.contains(name.toLowerCase()))
+                    continue;
+                // Cookies are for the caller that received them, not for those served from the cache
+                if ("Set-Cookie".equalsIgnoreCase(name) || "Set-Cookie2".equalsIgnoreCase(name))
+                    return null;
+                if (!"Transfer-Encoding".equalsIgnoreCase(name) && !"Connection".equalsIgnoreCase(name) && !"Content-Length".equalsIgnoreCase(name))
+                    headers.put(name, header.getValue());
+            }
+            return new Entry(key, varyNames, varyValues, status, response.getStatusMessage(), headers, response.getBody(), time, maxAge);
+        }
+
+        /**
+         * @return the freshness in milliseconds, -1 if not specified, -2 if the response must not be stored
+         */
+        private static long parseMaxAge(String cacheControl)
+        {
+            if (cacheControl == null)
+                return -1;
+            long maxAge = -1;
+            long sharedMaxAge = -1;
+            boolean noCache = false;
+            for (String directive : splitDirectives(cacheControl))
+            {
+                // The qualified forms only exclude header fields from the stored response
+                if (directive.equals("no-store") || directive.equals("private"))
+                    return -2;
+                if (directive.equals("no-cache"))
+                    noCache = true;
+                else if (directive.startsWith("max-age="))
+                    maxAge = parseSeconds(directive.substring("max-age=".length()));
+                else if (directive.startsWith("s-maxage="))
+                    sharedMaxAge = parseSeconds(directive.substring("s-maxage=".length()));
+            }
+            if (noCache)
+                return 0;
+            return sharedMaxAge >= 0 ? sharedMaxAge : maxAge;
+        }
+
+        /**
+         * @return the lower case names of the header fields listed by the <tt>private</tt>
+         * and <tt>no-cache</tt> directives, that must not be stored
+         */
+        private static Set<String> parseUnstoredFields(String cacheControl)
+        {
+            Set<String> result = new HashSet<String>();
+            if (cacheControl == null)
+                return result;
+            for (String directive : splitDirectives(cacheControl))
+            {
+                int equals = directive.indexOf('=');
+                if (equals < 0)
+                    continue;
+                String name = directive.substring(0, equals).trim();
+                if (!name.equals("private") && !name.equals("no-cache"))
+                    continue;
+                String fields = directive.substring(equals + 1).trim();
+                if (fields.startsWith("\""))
+                    fields = fields.substring(1);
+                if (fields.endsWith("\""))
+                    fields = fields.substring(0, fields.length() - 1);
+                for (String field : fields.split(","))
+                {
+                    field = field.trim();
+                    if (field.length() > 0)
+                        result.add(field);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return the lower case directives of the given <tt>Cache-Control</tt> value,
+         * split at the commas that are not within quotes
+         */
+        private static List<String> splitDirectives(String cacheControl)
+        {
+            List<String> result = new ArrayList<String>();
+            String value = cacheControl.toLowerCase();
+            boolean quoted = false;
+            int start = 0;
+            for (int i = 0; i < value.length(); ++i)
+            {
+                char c = value.charAt(i);
+                if (c == '"')
+                    quoted = !quoted;
+                else if (c == ',' && !quoted)
+                {
+                    result.add(value.substring(start, i).trim());
+                    start = i + 1;
+                }
+            }
+            result.add(value.substring(start).trim());
+            return result;
+        }
+
+        private static long parseSeconds(String value)
+        {
+            try
+            {
+                return Math.max(0, Long.parseLong(value.trim())) * 1000;
+            }
+            catch (NumberFormatException x)
+            {
+                return -1;
+            }
+        }
+
+        private boolean matches(Headers requestHeaders)
+        {
+            for (int i = 0; i < varyNames.length; ++i)
+            {
+                String value = requestHeaders.get(varyNames[i]);
+                if (value == null ? varyValues[i] != null : !value.equals(varyValues[i]))
+                    return false;
+            }
+            return true;
+        }
+
+        private boolean isFresh(long now)
+        {
+            return now - time < maxAge;
+        }
+
+        private Entry refresh(RHTTPResponse notModified, long time)
+        {
+            // A 304 updates the stored headers, for example with a new Cache-Control
+            Map<String, String> headers = new LinkedHashMap<String, String>(this.headers);
+            for (Map.Entry<String, String> header : notModified.getHeaders().entrySet())
+            {
+                String name = header.getKey();
+                if ("Cache-Control".equalsIgnoreCase(name) || "ETag".equalsIgnoreCase(name) || "Expires".equalsIgnoreCase(name) || "Date".equalsIgnoreCase(name))
+                {
+                    for (Iterator<String> names = headers.keySet().iterator(); names.hasNext();)
+                    {
+                        if (name.equalsIgnoreCase(names.next()))
+                            names.remove();
+                    }
+                    headers.put(name, header.getValue());
+                }
+            }
+            long maxAge = parseMaxAge(new MapHeaders(headers).get("Cache-Control"));
+            return new Entry(key, varyNames, varyValues, status, message, headers, body, time, Math.max(0, maxAge));
+        }
+
+        private RHTTPResponse toResponse(long id)
+        {
+            Map<String, String> result = new LinkedHashMap<String, String>(headers);
+            result.put("Content-Length", String.valueOf(body.length));
+            return new RHTTPResponse(id, status, message, result, body);
+        }
+    }
+
+    private class CachingExternalRequest implements ExternalRequest
+    {
+        private final String key;
+        private final ExternalRequest delegate;
+        private final RHTTPRequest request;
+        private final Entry stale;
+
+        private CachingExternalRequest(String key, ExternalRequest delegate, RHTTPRequest request, Entry stale)
+        {
+            this.key = key;
+            this.delegate = delegate;
+            this.request = request;
+            this.stale = stale;
+        }
+
+        public boolean suspend()
+        {
+            return delegate.suspend();
+        }
+
+        public void respond(RHTTPResponse response) throws IOException
+        {
+            long now = System.currentTimeMillis();
+            if (stale != null && response.getStatusCode() == HttpServletResponse.SC_NOT_MODIFIED)
+            {
+                logger.debug("Revalidated {} with response {}", key, response);
+                revalidated(stale, response, now);
+                delegate.respond(stale.toResponse(response.getId()));
+            }
+            else
+            {
+                // A 304 to a conditional request of the external client leaves the cache untouched
+                if (response.getStatusCode() != HttpServletResponse.SC_NOT_MODIFIED)
+                    store(key, request, response, now);
+                delegate.respond(response);
+            }
+        }
+
+        public void respond(RHTTPResponse head, InputStream body) throws IOException
+        {
+            delegate.respond(head, body);
+        }
+
+        public void writeBodyTo(OutputStream output) throws IOException
+        {
+            delegate.writeBodyTo(output);
+        }
+
+        public RHTTPRequest getRequest()
+        {
+            return request;
+        }
+
+        public String getTargetId()
+        {
+            return delegate.getTargetId();
+        }
+
+        @Override
+        public String toString()
+        {
+            return delegate.toString();
+        }
+    }
+}
@@ -19,35 +19,113 @@ package org.mortbay.jetty.rhttp.gateway;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.eclipse.jetty.continuation.Continuation;
 import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
+import org.mortbay.jetty.rhttp.client.FrameCodec;
+import org.mortbay.jetty.rhttp.client.PayloadCompression;
 import org.mortbay.jetty.rhttp.client.RHTTPRequest;
 
 /**
  * <p>Default implementation of {@link ClientDelegate}.</p>
+ * <p>Requests are queued in a {@link BoundedQueue}, so that enqueuing does not contend
+ * with the long poll, and a gateway client that stops polling cannot make the queue grow
+ * without limit; when the queue is full the {@link OverflowPolicy} applies.</p>
+ * <p>With {@link RequestPriorities}, there is one queue per priority lane, each with the
+ * given capacity, and the queues are drained in weighted rounds.</p>
+ * <p>Up to {@link #getMaxPolls() maxPolls} long polls are held at the same time; each
+ * enqueued request resumes the oldest one, that takes all the queued requests.</p>
  *
  * @version $Revision$ $Date$
  */
 public class StandardClientDelegate implements ClientDelegate
 {
+    /**
+     * <p>What to do when a request is enqueued and the queue of a client delegate is full.</p>
+     */
+    public enum OverflowPolicy
+    {
+        /**
+         * The new request is not enqueued, and the external request is responded with 503.
+         */
+        REJECT,
+        /**
+         * The oldest queued request is removed to make room, and its external request is responded with 503.
+         */
+        DROP_OLDEST,
+        /**
+         * The external request thread waits up to the {@link StandardClientDelegate#getOverflowTimeout() overflow timeout}
+         * for the queue to be drained, and the external request is responded with 503 if it expires.
+         */
+        BLOCK
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final String RELEASED_ATTRIBUTE = StandardClientDelegate.class.getName() + ".released";
+
     private final Logger logger = Log.getLogger(getClass().toString());
     private final Object lock = new Object();
-    private final List<RHTTPRequest> requests = new ArrayList<RHTTPRequest>();
     private final String targetId;
+    private final Gateway gateway;
+    private final BoundedQueue<RHTTPRequest>[] lanes;
+    private final RequestPriorities priorities;
+    private final HoldTimePolicy.Arrivals arrivals = new HoldTimePolicy.Arrivals();
+    private final LinkedList<Poll> polls = new LinkedList<Poll>();
     private volatile boolean firstFlush = true;
     private volatile long timeout;
     private volatile boolean closed;
-    private Continuation continuation;
+    private volatile FrameCodec codec = FrameCodec.TEXT;
+    private volatile PayloadCompression compression;
+    private volatile String sessionToken;
+    private volatile boolean streaming;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+    private volatile long overflowTimeout = 1000;
+    private volatile boolean suspended;
+    private volatile GatewayStatistics.TargetStatistics statistics;
+    private volatile Channel channel;
+    private volatile HoldTimePolicy holdTimePolicy;
+    private volatile int maxPolls = 1;
 
     public StandardClientDelegate(String targetId)
+    {
+        this(targetId, null, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param targetId the targetId of the gateway client
+     * @param gateway the gateway used to respond to the external requests dropped because of overflow, may be null
+     * @param capacity the maximum number of requests queued for the gateway client
+     */
+    public StandardClientDelegate(String targetId, Gateway gateway, int capacity)
+    {
+        this(targetId, gateway, capacity, null);
+    }
+
+    /**
+     * @param targetId the targetId of the gateway client
+     * @param gateway the gateway used to respond to the external requests dropped because of overflow, may be null
+     * @param capacity the maximum number of requests queued for the gateway client in each priority lane
+     * @param priorities the priority lanes of the requests, or null for a single lane
+     */
+    @SuppressWarnings("unchecked")
+    public StandardClientDelegate(String targetId, Gateway gateway, int capacity, RequestPriorities priorities)
     {
         this.targetId = targetId;
+        this.gateway = gateway;
+        this.priorities = priorities;
+        int count = priorities == null ? 1 : priorities.getLaneCount();
+        this.lanes = new BoundedQueue[count];
+        for (int i = 0; i < count; ++i)
+            lanes[i] = new BoundedQueue<RHTTPRequest>(capacity);
     }
 
     public String getTargetId()
@@ -55,6 +133,46 @@ public class StandardClientDelegate implements ClientDelegate
         return targetId;
     }
 
+    public FrameCodec getCodec()
+    {
+        return codec;
+    }
+
+    public void setCodec(FrameCodec codec)
+    {
+        this.codec = codec;
+    }
+
+    public PayloadCompression getCompression()
+    {
+        return compression;
+    }
+
+    public void setCompression(PayloadCompression compression)
+    {
+        this.compression = compression;
+    }
+
+    public String getSessionToken()
+    {
+        return sessionToken;
+    }
+
+    public void setSessionToken(String sessionToken)
+    {
+        this.sessionToken = sessionToken;
+    }
+
+    public boolean isStreaming()
+    {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming)
+    {
+        this.streaming = streaming;
+    }
+
     public long getTimeout()
     {
         return timeout;
@@ -65,38 +183,230 @@ public class StandardClientDelegate implements ClientDelegate
         this.timeout = timeout;
     }
 
+    public HoldTimePolicy getHoldTimePolicy()
+    {
+        return holdTimePolicy;
+    }
+
+    /**
+     * @param holdTimePolicy the policy that adapts the hold time of the long polls,
+     * or null to hold them for the fixed {@link #getTimeout() timeout}
+     */
+    public void setHoldTimePolicy(HoldTimePolicy holdTimePolicy)
+    {
+        this.holdTimePolicy = holdTimePolicy;
+    }
+
+    public int getMaxPolls()
+    {
+        return maxPolls;
+    }
+
+    public void setMaxPolls(int maxPolls)
+    {
+        this.maxPolls = maxPolls;
+    }
+
+    public long getHoldTime()
+    {
+        HoldTimePolicy policy = getHoldTimePolicy();
+        if (policy == null)
+            return getTimeout();
+        return policy.getHoldTime(arrivals);
+    }
+
+    public long getMaxHoldTime()
+    {
+        HoldTimePolicy policy = getHoldTimePolicy();
+        if (policy == null)
+            return getTimeout();
+        return Math.max(policy.getMinHoldTime(), policy.getMaxHoldTime());
+    }
+
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy)
+    {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return the time, in milliseconds, that the {@link OverflowPolicy#BLOCK} policy waits for the queue to be drained
+     */
+    public long getOverflowTimeout()
+    {
+        return overflowTimeout;
+    }
+
+    public void setOverflowTimeout(long overflowTimeout)
+    {
+        this.overflowTimeout = overflowTimeout;
+    }
+
+    public GatewayStatistics.TargetStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * @param statistics the statistics of the targetId of this client delegate, may be null
+     */
+    public void setStatistics(GatewayStatistics.TargetStatistics statistics)
+    {
+        this.statistics = statistics;
+    }
+
+    public Channel getChannel()
+    {
+        return channel;
+    }
+
+    public void setChannel(Channel channel)
+    {
+        this.channel = channel;
+    }
+
+    public int getQueueCapacity()
+    {
+        int result = 0;
+        for (BoundedQueue<RHTTPRequest> lane : lanes)
+            result += lane.getCapacity();
+        return result;
+    }
+
+    public int getQueueSize()
+    {
+        int result = 0;
+        for (BoundedQueue<RHTTPRequest> lane : lanes)
+            result += lane.size();
+        return result;
+    }
+
+    private boolean isQueueEmpty()
+    {
+        for (BoundedQueue<RHTTPRequest> lane : lanes)
+        {
+            if (!lane.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
     public boolean enqueue(RHTTPRequest request)
     {
         if (isClosed())
             return false;
 
-        synchronized (lock)
+        BoundedQueue<RHTTPRequest> requests = priorities == null ? lanes[0] : lanes[Math.min(priorities.getLane(request), lanes.length - 1)];
+        if (!offer(requests, request))
         {
-            requests.add(request);
-            resume();
+            logger.debug("Request {} to device {} rejected, queue full {}", new Object[]{request, targetId, requests});
+            return false;
         }
 
+        if (getHoldTimePolicy() != null)
+            arrivals.arrived();
+
+        Channel channel = getChannel();
+        if (channel != null)
+            channel.flush(this);
+        else
+            resume();
         return true;
     }
 
+    private boolean offer(BoundedQueue<RHTTPRequest> requests, RHTTPRequest request)
+    {
+        switch (getOverflowPolicy())
+        {
+            case DROP_OLDEST:
+                while (!requests.offer(request))
+                {
+                    RHTTPRequest oldest = requests.poll();
+                    if (oldest != null)
+                        dropped(requests, oldest);
+                }
+                return true;
+            case BLOCK:
+                try
+                {
+                    return requests.offer(request, getOverflowTimeout(), TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException x)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            default:
+                return requests.offer(request);
+        }
+    }
+
+    private void dropped(BoundedQueue<RHTTPRequest> requests, RHTTPRequest request)
+    {
+        logger.debug("Request {} to device {} dropped, queue full {}", new Object[]{request, targetId, requests});
+        if (gateway == null)
+            return;
+
+        ExternalRequest externalRequest = gateway.removeExternalRequest(request.getId());
+        // The external request can be null for a race with its expiration
+        if (externalRequest != null)
+        {
+            try
+            {
+                externalRequest.respond(Utils.newEmptyResponse(request.getId(), HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service Unavailable"));
+            }
+            catch (IOException x)
+            {
+                logger.debug("Could not respond to dropped request " + request, x);
+            }
+        }
+    }
+
     private void resume()
     {
+        // Producers do not need the lock unless a long poll is suspended:
+        // process() sets the flag before checking the queue again, and here we
+        // check the flag after adding to the queue, so one of the two sees the other
+        if (!suspended)
+            return;
+
         synchronized (lock)
         {
-            // Continuation may be null in several cases:
+            // There may be no long poll in several cases:
             // 1. there always is something to deliver so we never suspend
             // 2. concurrent calls to add() and close()
             // 3. concurrent close() with a long poll that expired
             // 4. concurrent close() with a long poll that resumed
-            if (continuation != null)
-            {
-                continuation.resume();
-                // Null the continuation, as there is no point is resuming multiple times
-                continuation = null;
-            }
+            // The oldest long poll takes the requests; there is no point in resuming
+            // the others, as the first to run takes all the queued requests
+            Poll poll = polls.poll();
+            if (poll != null)
+                resume(poll, false);
+            suspended = !polls.isEmpty();
         }
     }
 
+    private void resume(Poll poll, boolean release)
+    {
+        // Called with the lock held
+        try
+        {
+            if (release)
+                poll.continuation.setAttribute(RELEASED_ATTRIBUTE, Boolean.TRUE);
+            poll.continuation.resume();
+        }
+        catch (IllegalStateException x)
+        {
+            // The long poll expired concurrently
+            logger.debug(x);
+        }
+        recordHoldTime(poll);
+    }
+
     public List<RHTTPRequest> process(HttpServletRequest httpRequest) throws IOException
     {
         // We want to respond in the following cases:
@@ -106,6 +416,7 @@ public class StandardClientDelegate implements ClientDelegate
         // 4. The continuation was suspended but timed out.
         //    The timeout case is different from a non-first connect, in that we want to return
         //    a (most of the times empty) response and we do not want to wait again.
+        // 5. The continuation was released because the client has more long polls than allowed.
         // The order of these if statements is important, as the continuation timed out only if
         // the client is not closed and there are no responses to send
         List<RHTTPRequest> result = Collections.emptyList();
@@ -119,52 +430,165 @@ public class StandardClientDelegate implements ClientDelegate
             // Synchronization is crucial here, since we don't want to suspend if there is something to deliver
             synchronized (lock)
             {
-                int size = requests.size();
+                Continuation current = ContinuationSupport.getContinuation(httpRequest);
+                // An expired long poll is still held, stop holding it
+                Poll held = remove(current);
+                if (held != null)
+                    recordHoldTime(held);
+
+                int size = getQueueSize();
                 if (size > 0)
                 {
-                    assert continuation == null;
+                    // Drain in one batch into a list sized for it; other long polls may still be
+                    // held, and will be resumed by the requests enqueued from now on
                     result = new ArrayList<RHTTPRequest>(size);
-                    result.addAll(requests);
-                    requests.clear();
+                    drainTo(result, priorities == null ? 0 : priorities.getMaxResponseBytes());
                     logger.debug("Connect request (resumed) from device {}, delivering requests {}", targetId, result);
                 }
+                else if (current.isExpired())
+                {
+                    logger.debug("Connect request (expired) from device {}, delivering requests {}", targetId, result);
+                }
+                else if (current.getAttribute(RELEASED_ATTRIBUTE) != null)
+                {
+                    logger.debug("Connect request (released) from device {}, delivering requests {}", targetId, result);
+                }
+                else if (isClosed())
+                {
+                    logger.debug("Connect request (closed) from device {}, delivering requests {}", targetId, result);
+                }
                 else
                 {
-                    if (continuation != null)
-                    {
-                        continuation = null;
-                        logger.debug("Connect request (expired) from device {}, delivering requests {}", targetId, result);
-                    }
-                    else
+                    // A client that lost its connection and resumed its session polls again while
+                    // the gateway still holds its previous long polls: release the oldest ones
+                    while (polls.size() >= Math.max(1, getMaxPolls()))
+                        resume(polls.poll(), true);
+
+                    // Here we need to suspend; this may also be a long poll resumed for requests
+                    // that another long poll took, that waits again for the next requests
+                    current.setTimeout(getHoldTime());
+                    current.suspend();
+                    Poll poll = new Poll(current);
+                    polls.offer(poll);
+                    suspended = true;
+                    HoldTimePolicy policy = getHoldTimePolicy();
+                    if (policy != null)
+                        policy.pollHeld();
+                    result = null;
+                    // A producer may have enqueued before seeing the suspended flag
+                    if (!isQueueEmpty())
                     {
-                        if (isClosed())
-                        {
-                            logger.debug("Connect request (closed) from device {}, delivering requests {}", targetId, result);
-                        }
-                        else
-                        {
-                            // Here we need to suspend
-                            continuation = ContinuationSupport.getContinuation(httpRequest);
-                            continuation.setTimeout(getTimeout());
-                            continuation.suspend();
-                            result = null;
-                            logger.debug("Connect request (suspended) from device {}", targetId);
-                        }
+                        polls.remove(poll);
+                        resume(poll, false);
                     }
+                    logger.debug("Connect request (suspended) from device {}", targetId);
                 }
+                suspended = !polls.isEmpty();
             }
         }
         return result;
     }
 
+    private Poll remove(Continuation continuation)
+    {
+        // Called with the lock held
+        for (Iterator<Poll> iterator = polls.iterator(); iterator.hasNext();)
+        {
+            Poll poll = iterator.next();
+            if (poll.continuation == continuation)
+            {
+                iterator.remove();
+                return poll;
+            }
+        }
+        return null;
+    }
+
+    private void recordHoldTime(Poll poll)
+    {
+        // Called with the lock held
+        HoldTimePolicy policy = getHoldTimePolicy();
+        if (policy != null)
+            policy.pollReleased();
+        GatewayStatistics.TargetStatistics statistics = getStatistics();
+        if (statistics != null)
+            statistics.longPollHeld(System.nanoTime() - poll.suspendTime);
+    }
+
+    public List<RHTTPRequest> drain()
+    {
+        synchronized (lock)
+        {
+            if (isQueueEmpty())
+                return Collections.emptyList();
+            List<RHTTPRequest> result = new ArrayList<RHTTPRequest>(getQueueSize());
+            drainTo(result, 0);
+            return result;
+        }
+    }
+
+    private void drainTo(List<RHTTPRequest> result, long maxBytes)
+    {
+        // Called with the lock held
+        if (lanes.length == 1 && maxBytes <= 0)
+        {
+            lanes[0].drainTo(result, lanes[0].getCapacity());
+            return;
+        }
+
+        // Weighted rounds: in each round every lane, in priority order, gives up to its weight requests
+        long bytes = 0;
+        boolean drained = true;
+        while (drained)
+        {
+            drained = false;
+            for (int i = 0; i < lanes.length; ++i)
+            {
+                int weight = priorities == null ? lanes[i].getCapacity() : priorities.getWeight(i);
+                for (int j = 0; j < weight; ++j)
+                {
+                    RHTTPRequest request = lanes[i].poll();
+                    if (request == null)
+                        break;
+                    result.add(request);
+                    drained = true;
+                    // The remaining requests are delivered by the next long poll
+                    bytes += request.getRequestLength();
+                    if (maxBytes > 0 && bytes >= maxBytes)
+                        return;
+                }
+            }
+        }
+    }
+
     public void close()
     {
         closed = true;
-        resume();
+        synchronized (lock)
+        {
+            Poll poll;
+            while ((poll = polls.poll()) != null)
+                resume(poll, false);
+            suspended = false;
+        }
+        Channel channel = getChannel();
+        if (channel != null)
+            channel.close();
     }
 
     public boolean isClosed()
     {
         return closed;
     }
+
+    private static class Poll
+    {
+        private final Continuation continuation;
+        private final long suspendTime = System.nanoTime();
+
+        private Poll(Continuation continuation)
+        {
+            this.continuation = continuation;
+        }
+    }
 }
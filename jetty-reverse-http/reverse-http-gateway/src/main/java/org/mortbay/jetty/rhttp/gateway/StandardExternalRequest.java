@@ -16,7 +16,10 @@
 
 package org.mortbay.jetty.rhttp.gateway;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Map;
 
 import javax.servlet.ServletOutputStream;
@@ -43,10 +46,19 @@ public class StandardExternalRequest implements ExternalRequest
     private final HttpServletRequest httpRequest;
     private final HttpServletResponse httpResponse;
     private final Gateway gateway;
+    private final String targetId;
     private final Object lock = new Object();
+    private final long startTime = System.nanoTime();
     private volatile long timeout;
+    private volatile int streamBufferSize = 8192;
+    private volatile TimingWheel timingWheel;
+    private volatile GatewayStatistics.TargetStatistics statistics;
+    private ExpirationTask expiration;
     private Continuation continuation;
     private boolean responded;
+    private boolean streaming;
+    private boolean expired;
+    private boolean inFlight;
 
     public StandardExternalRequest(RHTTPRequest request, HttpServletRequest httpRequest, HttpServletResponse httpResponse, Gateway gateway)
     {
@@ -54,6 +66,8 @@ public class StandardExternalRequest implements ExternalRequest
         this.httpRequest = httpRequest;
         this.httpResponse = httpResponse;
         this.gateway = gateway;
+        // Read now, the HTTP request may be recycled once completed
+        this.targetId = (String)httpRequest.getAttribute(ExternalServlet.TARGET_ID_ATTRIBUTE);
     }
 
     public long getTimeout()
@@ -66,25 +80,87 @@ public class StandardExternalRequest implements ExternalRequest
         this.timeout = timeout;
     }
 
+    public int getStreamBufferSize()
+    {
+        return streamBufferSize;
+    }
+
+    public void setStreamBufferSize(int streamBufferSize)
+    {
+        this.streamBufferSize = streamBufferSize;
+    }
+
+    public TimingWheel getTimingWheel()
+    {
+        return timingWheel;
+    }
+
+    public void setTimingWheel(TimingWheel timingWheel)
+    {
+        this.timingWheel = timingWheel;
+    }
+
+    public GatewayStatistics.TargetStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * @param statistics the statistics of the targetId this request is directed to, may be null
+     */
+    public void setStatistics(GatewayStatistics.TargetStatistics statistics)
+    {
+        this.statistics = statistics;
+    }
+
     public boolean suspend()
     {
         synchronized (lock)
         {
-            // We suspend only if we have no responded yet
-            if (!responded)
+            // We suspend only if we have no responded yet, or if the response
+            // body is still being streamed: in this case we have been redispatched
+            // because the continuation expired during streaming, and must suspend again
+            boolean suspend = !responded || streaming;
+            if (suspend)
             {
-                assert continuation == null;
-                continuation = ContinuationSupport.getContinuation(httpRequest);
-                continuation.setTimeout(getTimeout());
-                continuation.addContinuationListener(new TimeoutListener());
+                TimingWheel wheel = getTimingWheel();
+                if (continuation == null)
+                {
+                    continuation = ContinuationSupport.getContinuation(httpRequest);
+                    if (wheel == null)
+                        continuation.addContinuationListener(new TimeoutListener());
+                }
+                expired = false;
+                if (wheel == null)
+                {
+                    continuation.setTimeout(getTimeout());
+                }
+                else
+                {
+                    // The wheel expires the request, so the continuation must never time out
+                    continuation.setTimeout(0);
+                    if (expiration == null)
+                    {
+                        expiration = new ExpirationTask();
+                        wheel.schedule(expiration, getTimeout());
+                    }
+                }
                 continuation.suspend(httpResponse);
+                // Suspended again when redispatched while streaming, but in flight only once
+                if (!inFlight)
+                {
+                    inFlight = true;
+                    GatewayStatistics.TargetStatistics statistics = getStatistics();
+                    if (statistics != null)
+                        statistics.requestSuspended();
+                }
                 logger.debug("Request {} suspended", getRequest());
             }
             else
             {
                 logger.debug("Request {} already responded", getRequest());
             }
-            return !responded;
+            return suspend;
         }
     }
 
@@ -100,6 +176,7 @@ public class StandardExternalRequest implements ExternalRequest
             // Could be that we complete exactly when the response is being expired
             if (!responded)
             {
+                recordCompleted();
                 httpResponse.setStatus(response.getStatusCode());
 
                 for (Map.Entry<String, String> header : response.getHeaders().entrySet())
@@ -110,8 +187,9 @@ public class StandardExternalRequest implements ExternalRequest
                 output.flush();
 
                 // It may happen that the continuation is null,
-                // because the response arrived before we had the chance to suspend
-                if (continuation != null)
+                // because the response arrived before we had the chance to suspend,
+                // or that it expired, and completing is left to the redispatch
+                if (continuation != null && !expired)
                 {
                     continuation.complete();
                     continuation = null;
@@ -120,6 +198,7 @@ public class StandardExternalRequest implements ExternalRequest
                 // Mark as responded, so we know we don't have to suspend
                 // or respond with an expired response
                 responded = true;
+                cancelExpiration();
 
                 if (logger.isDebugEnabled())
                 {
@@ -130,6 +209,75 @@ public class StandardExternalRequest implements ExternalRequest
         }
     }
 
+    public void respond(RHTTPResponse head, InputStream body) throws IOException
+    {
+        synchronized (lock)
+        {
+            // Could be that we stream exactly when the response is being expired
+            if (responded)
+                return;
+
+            httpResponse.setStatus(head.getStatusCode());
+            for (Map.Entry<String, String> header : head.getHeaders().entrySet())
+            {
+                if (RHTTPRequest.STREAM_HEADER.equalsIgnoreCase(header.getKey()))
+                {
+                    long contentLength = Long.parseLong(header.getValue());
+                    if (contentLength >= 0)
+                        httpResponse.setHeader("Content-Length", header.getValue());
+                }
+                else
+                {
+                    httpResponse.setHeader(header.getKey(), header.getValue());
+                }
+            }
+
+            // Mark as responded, so that it will not be expired, and as streaming,
+            // so that it is suspended again if it is redispatched after an expiration
+            responded = true;
+            streaming = true;
+            cancelExpiration();
+            recordCompleted();
+        }
+
+        long length = 0;
+        try
+        {
+            // Do not hold the lock while streaming, as it may take long
+            length = Utils.copy(body, httpResponse.getOutputStream(), getStreamBufferSize());
+        }
+        finally
+        {
+            synchronized (lock)
+            {
+                streaming = false;
+                if (continuation != null && !expired)
+                {
+                    continuation.complete();
+                    continuation = null;
+                }
+            }
+            GatewayStatistics.TargetStatistics statistics = getStatistics();
+            if (statistics != null)
+                statistics.bytesIn(length);
+            logger.debug("Request {} responded {} streaming {} body bytes", new Object[]{request, head, length});
+        }
+    }
+
+    public void writeBodyTo(OutputStream output) throws IOException
+    {
+        synchronized (lock)
+        {
+            if (responded)
+                throw new EOFException("Request " + getRequest() + " already responded");
+        }
+        long length = Utils.copy(httpRequest.getInputStream(), output, getStreamBufferSize());
+        GatewayStatistics.TargetStatistics statistics = getStatistics();
+        if (statistics != null)
+            statistics.bytesOut(length);
+        logger.debug("Request {} streamed {} body bytes", getRequest(), length);
+    }
+
     private void responseExpired() throws IOException
     {
         synchronized (lock)
@@ -145,6 +293,10 @@ public class StandardExternalRequest implements ExternalRequest
                 // Mark as responded, so we know we don't have to respond with a completed response
                 responded = true;
 
+                GatewayStatistics.TargetStatistics statistics = getStatistics();
+                if (statistics != null)
+                    statistics.requestExpired(System.nanoTime() - startTime, inFlight);
+
                 logger.debug("Request {} expired", getRequest());
             }
         }
@@ -155,12 +307,59 @@ public class StandardExternalRequest implements ExternalRequest
         return request;
     }
 
+    public String getTargetId()
+    {
+        return targetId;
+    }
+
     @Override
     public String toString()
     {
         return request.toString();
     }
 
+    private void recordCompleted()
+    {
+        // Called with the lock held; streamed responses complete when their head is sent
+        GatewayStatistics.TargetStatistics statistics = getStatistics();
+        if (statistics != null)
+            statistics.requestCompleted(System.nanoTime() - startTime, inFlight);
+    }
+
+    private void cancelExpiration()
+    {
+        // Called with the lock held
+        if (expiration != null)
+            timingWheel.cancel(expiration);
+    }
+
+    private void expire()
+    {
+        ExternalRequest externalRequest = gateway.removeExternalRequest(getRequest().getId());
+        // The gateway request can be null for a race with delivery, in which case
+        // the delivery completes the continuation, that never times out by itself
+        if (externalRequest != null)
+        {
+            try
+            {
+                responseExpired();
+            }
+            catch (Exception x)
+            {
+                logger.warn("Request " + getRequest() + " expired but failed", x);
+            }
+        }
+    }
+
+    private class ExpirationTask extends TimingWheel.Task
+    {
+        @Override
+        protected void expire()
+        {
+            StandardExternalRequest.this.expire();
+        }
+    }
+
     private class TimeoutListener implements ContinuationListener
     {
         public void onComplete(Continuation continuation)
@@ -182,6 +381,15 @@ public class StandardExternalRequest implements ExternalRequest
                     logger.warn("Request " + getRequest() + " expired but failed", x);
                 }
             }
+            else
+            {
+                // The response is being delivered: the continuation will be redispatched,
+                // and the delivery must not complete it in the meantime
+                synchronized (lock)
+                {
+                    expired = true;
+                }
+            }
         }
     }
 }
@@ -16,13 +16,16 @@
 
 package org.mortbay.jetty.rhttp.gateway;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -40,10 +43,22 @@ public class StandardGateway implements Gateway
 {
     private final Logger logger = Log.getLogger(getClass().toString());
     private final ConcurrentMap<String, ClientDelegate> clients = new ConcurrentHashMap<String, ClientDelegate>();
-    private final ConcurrentMap<Integer, ExternalRequest> requests = new ConcurrentHashMap<Integer, ExternalRequest>();
-    private final AtomicInteger requestIds = new AtomicInteger();
+    private final ConcurrentLongMap<ExternalRequest> requests = new ConcurrentLongMap<ExternalRequest>();
+    private final AtomicLong requestIds = new AtomicLong();
+    private final ParkingLot parkingLot = new ParkingLot(this);
+    private final GatewayStatistics statistics = new GatewayStatistics(this);
     private volatile long gatewayTimeout=20000;
     private volatile long externalTimeout=60000;
+    private volatile long streamThreshold=256*1024;
+    private volatile int streamBufferSize=8192;
+    private volatile boolean passthrough;
+    private volatile int clientQueueCapacity=StandardClientDelegate.DEFAULT_CAPACITY;
+    private volatile StandardClientDelegate.OverflowPolicy overflowPolicy=StandardClientDelegate.OverflowPolicy.REJECT;
+    private volatile long overflowTimeout=1000;
+    private volatile HoldTimePolicy holdTimePolicy;
+    private volatile RequestPriorities requestPriorities;
+    private volatile TimingWheel timingWheel;
+    private volatile GatewayCluster cluster;
 
     public long getGatewayTimeout()
     {
@@ -65,6 +80,224 @@ public class StandardGateway implements Gateway
         this.externalTimeout = externalTimeout;
     }
 
+    /**
+     * @return the request body size above which the body is streamed to the gateway client
+     * instead of being buffered, or a negative value if streaming is disabled
+     * @see #setStreamThreshold(long)
+     */
+    public long getStreamThreshold()
+    {
+        return streamThreshold;
+    }
+
+    public void setStreamThreshold(long streamThreshold)
+    {
+        this.streamThreshold = streamThreshold;
+    }
+
+    /**
+     * @return whether external requests are written directly as request bytes, keeping every
+     * header value, rather than being converted through a headers map
+     * @see #passHttpRequest(long, HttpServletRequest, boolean)
+     */
+    public boolean isPassthrough()
+    {
+        return passthrough;
+    }
+
+    public void setPassthrough(boolean passthrough)
+    {
+        this.passthrough = passthrough;
+    }
+
+    public int getStreamBufferSize()
+    {
+        return streamBufferSize;
+    }
+
+    public void setStreamBufferSize(int streamBufferSize)
+    {
+        this.streamBufferSize = streamBufferSize;
+    }
+
+    /**
+     * @return the maximum number of requests queued for each gateway client
+     */
+    public int getClientQueueCapacity()
+    {
+        return clientQueueCapacity;
+    }
+
+    public void setClientQueueCapacity(int clientQueueCapacity)
+    {
+        this.clientQueueCapacity = clientQueueCapacity;
+    }
+
+    /**
+     * @return what to do when an external request arrives for a gateway client whose queue is full
+     */
+    public StandardClientDelegate.OverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(StandardClientDelegate.OverflowPolicy overflowPolicy)
+    {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getOverflowTimeout()
+    {
+        return overflowTimeout;
+    }
+
+    public void setOverflowTimeout(long overflowTimeout)
+    {
+        this.overflowTimeout = overflowTimeout;
+    }
+
+    public HoldTimePolicy getHoldTimePolicy()
+    {
+        return holdTimePolicy;
+    }
+
+    /**
+     * @param holdTimePolicy the policy that adapts the hold time of the long polls of each gateway client,
+     * or null to hold them for the fixed {@link #getGatewayTimeout() gateway timeout}
+     */
+    public void setHoldTimePolicy(HoldTimePolicy holdTimePolicy)
+    {
+        this.holdTimePolicy = holdTimePolicy;
+    }
+
+    public RequestPriorities getRequestPriorities()
+    {
+        return requestPriorities;
+    }
+
+    /**
+     * @param requestPriorities the priority lanes of the requests to the gateway clients,
+     * or null to queue the requests to a gateway client in a single lane
+     */
+    public void setRequestPriorities(RequestPriorities requestPriorities)
+    {
+        this.requestPriorities = requestPriorities;
+    }
+
+    public TimingWheel getTimingWheel()
+    {
+        return timingWheel;
+    }
+
+    /**
+     * @param timingWheel the timing wheel used to expire external requests; if null,
+     * external requests are expired by the continuation timeout
+     */
+    public void setTimingWheel(TimingWheel timingWheel)
+    {
+        this.timingWheel = timingWheel;
+        parkingLot.setTimingWheel(timingWheel);
+    }
+
+    /**
+     * @return the time, in milliseconds, external requests for a gateway client that is not
+     * connected are parked waiting for it to handshake; zero, the default, disables parking
+     * @see ParkingLot
+     */
+    public long getParkTimeout()
+    {
+        return parkingLot.getTimeout();
+    }
+
+    public void setParkTimeout(long parkTimeout)
+    {
+        parkingLot.setTimeout(parkTimeout);
+    }
+
+    public boolean isParking()
+    {
+        return getParkTimeout() > 0 && parkingLot.getTimingWheel() != null;
+    }
+
+    public boolean canPark(long contentLength)
+    {
+        return parkingLot.canPark(contentLength);
+    }
+
+    /**
+     * @return the maximum number of external requests parked for each gateway client
+     */
+    public int getParkCapacity()
+    {
+        return parkingLot.getCapacity();
+    }
+
+    public void setParkCapacity(int parkCapacity)
+    {
+        parkingLot.setCapacity(parkCapacity);
+    }
+
+    /**
+     * @return the maximum number of request bytes parked for each gateway client
+     */
+    public long getParkMaxBytes()
+    {
+        return parkingLot.getMaxBytes();
+    }
+
+    public void setParkMaxBytes(long parkMaxBytes)
+    {
+        parkingLot.setMaxBytes(parkMaxBytes);
+    }
+
+    /**
+     * @return the maximum number of external requests parked across all gateway clients
+     */
+    public int getParkTotalCapacity()
+    {
+        return parkingLot.getTotalCapacity();
+    }
+
+    public void setParkTotalCapacity(int parkTotalCapacity)
+    {
+        parkingLot.setTotalCapacity(parkTotalCapacity);
+    }
+
+    /**
+     * @return the maximum number of request bytes parked across all gateway clients
+     */
+    public long getParkTotalMaxBytes()
+    {
+        return parkingLot.getTotalMaxBytes();
+    }
+
+    public void setParkTotalMaxBytes(long parkTotalMaxBytes)
+    {
+        parkingLot.setTotalMaxBytes(parkTotalMaxBytes);
+    }
+
+    public GatewayCluster getCluster()
+    {
+        return cluster;
+    }
+
+    /**
+     * @param cluster the cluster this gateway is a node of, where the targetIds of the
+     * gateway clients connected to this gateway are registered; may be null
+     */
+    public void setCluster(GatewayCluster cluster)
+    {
+        this.cluster = cluster;
+    }
+
+    /**
+     * @return the statistics of this gateway, per targetId and in total
+     */
+    public GatewayStatistics getStatistics()
+    {
+        return statistics;
+    }
+
     public ClientDelegate getClientDelegate(String targetId)
     {
         return clients.get(targetId);
@@ -72,31 +305,172 @@ public class StandardGateway implements Gateway
 
     public ClientDelegate newClientDelegate(String targetId)
     {
-        StandardClientDelegate client = new StandardClientDelegate(targetId);
+        StandardClientDelegate client = new StandardClientDelegate(targetId, this, getClientQueueCapacity(), getRequestPriorities());
         client.setTimeout(getGatewayTimeout());
+        client.setOverflowPolicy(getOverflowPolicy());
+        client.setOverflowTimeout(getOverflowTimeout());
+        client.setHoldTimePolicy(getHoldTimePolicy());
+        client.setStatistics(statistics.getTargetStatistics(targetId));
         return client;
     }
 
     public ClientDelegate addClientDelegate(String targetId, ClientDelegate client)
     {
-        return clients.putIfAbsent(targetId, client);
+        ClientDelegate existing = clients.putIfAbsent(targetId, client);
+        GatewayCluster cluster = getCluster();
+        if (existing == null && cluster != null)
+            cluster.register(targetId);
+        return existing;
     }
 
     public ClientDelegate removeClientDelegate(String targetId)
     {
-        return clients.remove(targetId);
+        ClientDelegate client = clients.remove(targetId);
+        GatewayCluster cluster = getCluster();
+        if (client != null && cluster != null)
+            cluster.unregister(targetId);
+        if (client != null)
+            statistics.removeTargetStatistics(targetId);
+        return client;
     }
 
     public ExternalRequest newExternalRequest(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
     {
-        int requestId = requestIds.incrementAndGet();
-        RHTTPRequest request = convertHttpRequest(requestId, httpRequest);
+        long requestId = requestIds.incrementAndGet();
+        RHTTPRequest request = isStreamed(httpRequest) ?
+                convertStreamedHttpRequest(requestId, httpRequest) :
+                convertHttpRequest(requestId, httpRequest);
         StandardExternalRequest gatewayRequest = new StandardExternalRequest(request, httpRequest, httpResponse, this);
         gatewayRequest.setTimeout(getExternalTimeout());
+        gatewayRequest.setStreamBufferSize(getStreamBufferSize());
+        gatewayRequest.setTimingWheel(getTimingWheel());
+        // Only connected targetIds get their own statistics, that are discarded when they disconnect
+        String targetId = (String)httpRequest.getAttribute(ExternalServlet.TARGET_ID_ATTRIBUTE);
+        boolean connected = targetId != null && getClientDelegate(targetId) != null;
+        gatewayRequest.setStatistics(connected ? statistics.getTargetStatistics(targetId) : statistics.getTotal());
         return gatewayRequest;
     }
 
-    protected RHTTPRequest convertHttpRequest(int requestId, HttpServletRequest httpRequest) throws IOException
+    /**
+     * <p>Decides whether the body of the given request should be streamed to the gateway client
+     * rather than being read in memory and sent along with the request.</p>
+     * <p>Bodies are streamed only if the gateway client supports streaming and the body is
+     * larger than {@link #getStreamThreshold() the stream threshold}, or its length is unknown.</p>
+     *
+     * @param httpRequest the external request
+     * @return whether the body of the given request should be streamed
+     */
+    protected boolean isStreamed(HttpServletRequest httpRequest)
+    {
+        long threshold = getStreamThreshold();
+        if (threshold < 0)
+            return false;
+
+        String targetId = (String)httpRequest.getAttribute(ExternalServlet.TARGET_ID_ATTRIBUTE);
+        ClientDelegate client = targetId == null ? null : getClientDelegate(targetId);
+        if (client == null || !client.isStreaming())
+            return false;
+
+        long contentLength = httpRequest.getContentLength();
+        if (contentLength < 0)
+            return httpRequest.getHeader("Transfer-Encoding") != null;
+        return contentLength > threshold;
+    }
+
+    protected RHTTPRequest convertHttpRequest(long requestId, HttpServletRequest httpRequest) throws IOException
+    {
+        if (isPassthrough())
+            return passHttpRequest(requestId, httpRequest, false);
+        Map<String, String> headers = convertHttpHeaders(httpRequest);
+        byte[] body = Utils.read(httpRequest.getInputStream());
+        return new RHTTPRequest(requestId, httpRequest.getMethod(), httpRequest.getRequestURI(), headers, body);
+    }
+
+    /**
+     * <p>Converts the given request without reading its body, that will be pulled by the gateway client.</p>
+     * <p>The body length, or -1 if unknown, is carried by the {@link RHTTPRequest#STREAM_HEADER} header.</p>
+     *
+     * @param requestId the request id
+     * @param httpRequest the external request
+     * @return the request head to send to the gateway client
+     */
+    protected RHTTPRequest convertStreamedHttpRequest(long requestId, HttpServletRequest httpRequest) throws IOException
+    {
+        if (isPassthrough())
+            return passHttpRequest(requestId, httpRequest, true);
+        Map<String, String> headers = convertHttpHeaders(httpRequest);
+        for (Iterator<String> names = headers.keySet().iterator(); names.hasNext();)
+        {
+            String name = names.next();
+            if ("Content-Length".equalsIgnoreCase(name) || "Transfer-Encoding".equalsIgnoreCase(name))
+                names.remove();
+        }
+        headers.put(RHTTPRequest.STREAM_HEADER, String.valueOf(httpRequest.getContentLength()));
+        return new RHTTPRequest(requestId, httpRequest.getMethod(), httpRequest.getRequestURI(), headers, new byte[0]);
+    }
+
+    /**
+     * <p>Writes the given request directly in the form carried to the gateway client: the request
+     * line, every value of every header in arrival order, and the body bytes as they are read.</p>
+     * <p>No headers map is built and the request is not encoded again, and headers with more than
+     * one value are carried as repeated header lines.<br />
+     * The request line carries the query string, if any, after the request URI.</p>
+     *
+     * @param requestId the request id
+     * @param httpRequest the external request
+     * @param streamed whether the body is left to be pulled by the gateway client
+     * @return the request to send to the gateway client
+     * @throws IOException if the body cannot be read
+     * @see #setPassthrough(boolean)
+     */
+    protected RHTTPRequest passHttpRequest(long requestId, HttpServletRequest httpRequest, boolean streamed) throws IOException
+    {
+        StringBuilder head = new StringBuilder(512);
+        head.append(httpRequest.getMethod()).append(' ').append(httpRequest.getRequestURI());
+        String query = httpRequest.getQueryString();
+        if (query != null)
+            head.append('?').append(query);
+        head.append(" HTTP/1.1\r\n");
+        // The servlet container de-chunks the body, so a chunked body is carried with its length
+        boolean chunked = !streamed && httpRequest.getHeader("Transfer-Encoding") != null;
+        for (Enumeration headerNames = httpRequest.getHeaderNames(); headerNames.hasMoreElements();)
+        {
+            String name = (String)headerNames.nextElement();
+            if ((streamed || chunked) && ("Content-Length".equalsIgnoreCase(name) || "Transfer-Encoding".equalsIgnoreCase(name)))
+                continue;
+            for (Enumeration values = httpRequest.getHeaders(name); values.hasMoreElements();)
+                head.append(name).append(": ").append(values.nextElement()).append("\r\n");
+        }
+        if (streamed)
+            head.append(RHTTPRequest.STREAM_HEADER).append(": ").append(httpRequest.getContentLength()).append("\r\n");
+        byte[] body = null;
+        if (chunked)
+        {
+            body = Utils.read(httpRequest.getInputStream());
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+
+        byte[] headBytes = head.toString().getBytes("UTF-8");
+        if (streamed)
+            return RHTTPRequest.fromRequestBytes(requestId, headBytes);
+
+        if (body != null)
+        {
+            byte[] bytes = new byte[headBytes.length + body.length];
+            System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+            System.arraycopy(body, 0, bytes, headBytes.length, body.length);
+            return RHTTPRequest.fromRequestBytes(requestId, bytes);
+        }
+
+        // Size the buffer for the whole request, so that the body is read straight after the head
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(headBytes.length + Math.max(0, httpRequest.getContentLength()));
+        bytes.write(headBytes);
+        Utils.copy(httpRequest.getInputStream(), bytes, getStreamBufferSize());
+        return RHTTPRequest.fromRequestBytes(requestId, bytes.toByteArray());
+    }
+
+    private Map<String, String> convertHttpHeaders(HttpServletRequest httpRequest)
     {
         Map<String, String> headers = new HashMap<String, String>();
         for (Enumeration headerNames = httpRequest.getHeaderNames(); headerNames.hasMoreElements();)
@@ -106,12 +480,10 @@ public class StandardGateway implements Gateway
             String value = httpRequest.getHeader(name);
             headers.put(name, value);
         }
-
-        byte[] body = Utils.read(httpRequest.getInputStream());
-        return new RHTTPRequest(requestId, httpRequest.getMethod(), httpRequest.getRequestURI(), headers, body);
+        return headers;
     }
 
-    public ExternalRequest addExternalRequest(int requestId, ExternalRequest externalRequest)
+    public ExternalRequest addExternalRequest(long requestId, ExternalRequest externalRequest)
     {
         ExternalRequest existing = requests.putIfAbsent(requestId, externalRequest);
         if (existing == null)
@@ -119,11 +491,52 @@ public class StandardGateway implements Gateway
         return existing;
     }
 
-    public ExternalRequest removeExternalRequest(int requestId)
+    public ExternalRequest getExternalRequest(long requestId)
+    {
+        return requests.get(requestId);
+    }
+
+    public ExternalRequest removeExternalRequest(long requestId)
     {
         ExternalRequest externalRequest = requests.remove(requestId);
         if (externalRequest != null)
             logger.debug("Removed external request {}/{} - {}", new Object[]{requestId, requests.size(), externalRequest});
         return externalRequest;
     }
+
+    public boolean parkExternalRequest(String targetId, ExternalRequest externalRequest)
+    {
+        return parkingLot.park(targetId, externalRequest);
+    }
+
+    public int unparkExternalRequests(ClientDelegate client)
+    {
+        List<ExternalRequest> externalRequests = parkingLot.unpark(client.getTargetId());
+        int result = 0;
+        for (ExternalRequest externalRequest : externalRequests)
+        {
+            RHTTPRequest request = externalRequest.getRequest();
+            // Skip the requests that expired by themselves while parked
+            if (getExternalRequest(request.getId()) == null)
+                continue;
+
+            if (client.enqueue(request))
+            {
+                ++result;
+            }
+            else if (removeExternalRequest(request.getId()) != null)
+            {
+                logger.debug("Could not enqueue unparked request {} to device {}", request, client.getTargetId());
+                try
+                {
+                    externalRequest.respond(Utils.newEmptyResponse(request.getId(), HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service Unavailable"));
+                }
+                catch (IOException x)
+                {
+                    logger.debug("Could not respond to unparked request " + request, x);
+                }
+            }
+        }
+        return result;
+    }
 }
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>The servlet that reports the {@link GatewayStatistics} as JSON.</p>
+ * <p>Without parameters the totals and the statistics of all targetIds are reported;
+ * the <tt>targetId</tt> parameter restricts the report to one targetId.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class StatisticsServlet extends HttpServlet
+{
+    private final GatewayStatistics statistics;
+
+    public StatisticsServlet(GatewayStatistics statistics)
+    {
+        this.statistics = statistics;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException, IOException
+    {
+        String targetId = httpRequest.getParameter("targetId");
+        String json = targetId == null ? statistics.toJSON() : statistics.toJSON(targetId);
+        if (json == null)
+        {
+            httpResponse.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        httpResponse.setContentType("application/json;charset=UTF-8");
+        httpResponse.setHeader("Cache-Control", "no-cache");
+        httpResponse.getWriter().write(json);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+/**
+ * <p>A <tt>TargetRegistry</tt> maps the targetIds of the gateway clients to the
+ * {@link GatewayCluster cluster node} they are connected to.</p>
+ * <p>All the nodes of a cluster must share the same registry, so implementations
+ * for clusters that span multiple processes are backed by a shared store.</p>
+ *
+ * @version $Revision$ $Date$
+ * @see InMemoryTargetRegistry
+ */
+public interface TargetRegistry
+{
+    /**
+     * <p>Maps the given targetId to the given node, replacing any existing mapping.</p>
+     * @param targetId the targetId of the gateway client that connected
+     * @param nodeId the id of the node the gateway client connected to
+     * @return the id of the node previously mapped to the given targetId, or null
+     */
+    public String register(String targetId, String nodeId);
+
+    /**
+     * <p>Removes the mapping of the given targetId, only if it maps to the given node.</p>
+     * @param targetId the targetId of the gateway client that disconnected
+     * @param nodeId the id of the node the gateway client disconnected from
+     * @return whether the mapping has been removed
+     */
+    public boolean unregister(String targetId, String nodeId);
+
+    /**
+     * @param targetId the targetId of the gateway client
+     * @return the id of the node the gateway client is connected to, or null
+     */
+    public String getNodeId(String targetId);
+}
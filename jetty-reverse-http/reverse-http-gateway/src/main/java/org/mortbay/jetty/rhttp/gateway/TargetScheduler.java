@@ -0,0 +1,349 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Admits external requests per targetId, so that a single noisy targetId cannot take
+ * all the servlet threads and suspended continuations of the gateway.</p>
+ * <p>Two limits apply to each targetId, as configured by its {@link Policy}:
+ * <ul>
+ * <li>a rate limit, enforced by a token bucket that is refilled at the policy rate and
+ * holds up to the policy burst;</li>
+ * <li>a weighted fair share of the {@link #getMaxInFlight() in-flight capacity} of the
+ * gateway: each targetId that has requests in flight gets a share proportional to its
+ * weight, so that a targetId alone can use the whole capacity, but must leave room
+ * as soon as other targetIds become active.</li>
+ * </ul>
+ * Requests that are not admitted are meant to be rejected immediately, rather than
+ * queued, so that they do not hold any resource.</p>
+ * <p>Policies are looked up by exact targetId first, then by pattern in the order they have
+ * been added, and then the default policy applies. The policy of a targetId is resolved the
+ * first time the targetId is seen, so policies should be configured before starting.</p>
+ * <p>The state of a targetId is evicted as soon as it has no request in flight and its bucket
+ * is full again, as it would be if created anew, so that the scheduler holds only the
+ * targetIds that are active or rate limited.<br />
+ * Admission and release are lock-free and, for active targetIds, allocation-free.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class TargetScheduler
+{
+    private static final int EVICTED = -1;
+
+    private final ConcurrentMap<String, Policy> policies = new ConcurrentHashMap<String, Policy>();
+    private final List<PatternPolicy> patternPolicies = new CopyOnWriteArrayList<PatternPolicy>();
+    private final ConcurrentMap<String, Target> targets = new ConcurrentHashMap<String, Target>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong activeWeight = new AtomicLong();
+    private volatile Policy defaultPolicy = new Policy(0, 0, 1);
+    private volatile int maxInFlight = 1024;
+
+    /**
+     * @return the maximum number of external requests in flight across all targetIds
+     */
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight)
+    {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public Policy getDefaultPolicy()
+    {
+        return defaultPolicy;
+    }
+
+    public void setDefaultPolicy(Policy defaultPolicy)
+    {
+        this.defaultPolicy = defaultPolicy;
+    }
+
+    /**
+     * @param targetId the targetId the policy applies to
+     * @param policy the policy
+     */
+    public void setPolicy(String targetId, Policy policy)
+    {
+        policies.put(targetId, policy);
+    }
+
+    /**
+     * @param regex the regular expression matching the targetIds the policy applies to
+     * @param policy the policy
+     */
+    public void addPolicy(Pattern regex, Policy policy)
+    {
+        patternPolicies.add(new PatternPolicy(regex, policy));
+    }
+
+    /**
+     * @return the number of external requests in flight across all targetIds
+     */
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    /**
+     * @param targetId the targetId
+     * @return the number of external requests in flight for the given targetId
+     */
+    public int getInFlight(String targetId)
+    {
+        Target target = targets.get(targetId);
+        return target == null ? 0 : Math.max(0, target.inFlight.get());
+    }
+
+    /**
+     * @return the number of targetIds whose state is held by this scheduler
+     */
+    public int getTargetCount()
+    {
+        return targets.size();
+    }
+
+    /**
+     * <p>Admits an external request for the given targetId, that must be
+     * {@link #release(String) released} once completed.</p>
+     *
+     * @param targetId the targetId the external request is directed to
+     * @return whether the external request is admitted
+     */
+    public boolean acquire(String targetId)
+    {
+        Target target = targetFor(targetId);
+        int weight = target.policy.weight;
+        while (true)
+        {
+            int current = target.inFlight.get();
+            if (current < 0)
+            {
+                // Evicted concurrently, start over with a new state
+                target = targetFor(targetId);
+                continue;
+            }
+            // An idle target counts its own weight, as it is about to become active
+            long active = activeWeight.get() + (current == 0 ? weight : 0);
+            long share = Math.max(1, getMaxInFlight() * weight / Math.max(1, active));
+            if (current >= share)
+                return false;
+            if (target.inFlight.compareAndSet(current, current + 1))
+            {
+                if (current == 0)
+                    activeWeight.addAndGet(weight);
+                break;
+            }
+        }
+
+        // Take a token last, so that requests rejected for capacity do not consume the rate
+        if (inFlight.incrementAndGet() > getMaxInFlight() || !target.tryTake(System.nanoTime()))
+        {
+            release(target);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param targetId the targetId of an external request that has been {@link #acquire(String) admitted}
+     */
+    public void release(String targetId)
+    {
+        Target target = targets.get(targetId);
+        if (target != null)
+            release(target);
+    }
+
+    private void release(Target target)
+    {
+        inFlight.decrementAndGet();
+        if (target.inFlight.decrementAndGet() == 0)
+        {
+            activeWeight.addAndGet(-target.policy.weight);
+            // An idle target with a full bucket is the same as a new one; the state is
+            // marked evicted first, so that a concurrent acquire does not use it
+            if (target.isFull(System.nanoTime()) && target.inFlight.compareAndSet(0, EVICTED))
+                targets.remove(target.targetId, target);
+        }
+    }
+
+    /**
+     * @param targetId the targetId
+     * @return the time, in seconds, after which the given targetId will be granted a token
+     */
+    public long getRetryAfter(String targetId)
+    {
+        Target target = targets.get(targetId);
+        if (target == null)
+            return 1;
+        long nanos = target.nanosToNextToken(System.nanoTime());
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(nanos + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    private Target targetFor(String targetId)
+    {
+        Target target = targets.get(targetId);
+        if (target == null)
+        {
+            target = new Target(targetId, policyFor(targetId));
+            Target existing = targets.putIfAbsent(targetId, target);
+            if (existing != null)
+                target = existing;
+        }
+        return target;
+    }
+
+    private Policy policyFor(String targetId)
+    {
+        Policy policy = policies.get(targetId);
+        if (policy != null)
+            return policy;
+        for (PatternPolicy patternPolicy : patternPolicies)
+        {
+            if (patternPolicy.pattern.matcher(targetId).matches())
+                return patternPolicy.policy;
+        }
+        return getDefaultPolicy();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(getClass().getSimpleName()).append("[").append(inFlight.get()).append("/").append(getMaxInFlight());
+        for (Map.Entry<String, Target> entry : targets.entrySet())
+            builder.append(",").append(entry.getKey()).append("=").append(Math.max(0, entry.getValue().inFlight.get()));
+        return builder.append("]").toString();
+    }
+
+    /**
+     * <p>The limits that apply to a targetId.</p>
+     */
+    public static class Policy
+    {
+        private final double rate;
+        private final int burst;
+        private final int weight;
+
+        /**
+         * @param rate the number of requests per second, or zero or negative for no rate limit
+         * @param burst the number of requests that can be admitted at once, above the rate
+         * @param weight the weight of the targetId when sharing the in-flight capacity
+         */
+        public Policy(double rate, int burst, int weight)
+        {
+            if (weight <= 0)
+                throw new IllegalArgumentException("Invalid weight " + weight);
+            this.rate = rate;
+            this.burst = Math.max(1, burst);
+            this.weight = weight;
+        }
+
+        public double getRate()
+        {
+            return rate;
+        }
+
+        public int getBurst()
+        {
+            return burst;
+        }
+
+        public int getWeight()
+        {
+            return weight;
+        }
+    }
+
+    private static class PatternPolicy
+    {
+        private final Pattern pattern;
+        private final Policy policy;
+
+        private PatternPolicy(Pattern pattern, Policy policy)
+        {
+            this.pattern = pattern;
+            this.policy = policy;
+        }
+    }
+
+    private static class Target
+    {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+        private final String targetId;
+        private final Policy policy;
+        private final long interval;
+        private final long tolerance;
+
+        private Target(String targetId, Policy policy)
+        {
+            this.targetId = targetId;
+            this.policy = policy;
+            this.interval = policy.rate > 0 ? (long)(TimeUnit.SECONDS.toNanos(1) / policy.rate) : 0;
+            this.tolerance = interval * (policy.burst - 1);
+        }
+
+        /**
+         * <p>Token bucket expressed as a virtual scheduling algorithm: a single time
+         * tells when the bucket will be full again, so that taking a token is one CAS.</p>
+         */
+        private boolean tryTake(long now)
+        {
+            if (interval == 0)
+                return true;
+            while (true)
+            {
+                long current = theoreticalArrival.get();
+                long arrival = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+                if (arrival - now > tolerance)
+                    return false;
+                if (theoreticalArrival.compareAndSet(current, arrival + interval))
+                    return true;
+            }
+        }
+
+        private boolean isFull(long now)
+        {
+            long current = theoreticalArrival.get();
+            return interval == 0 || current == Long.MIN_VALUE || current - now <= 0;
+        }
+
+        private long nanosToNextToken(long now)
+        {
+            if (interval == 0)
+                return 0;
+            long current = theoreticalArrival.get();
+            if (current == Long.MIN_VALUE)
+                return 0;
+            return Math.max(0, current - tolerance - now);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * <p>A hashed timing wheel that expires {@link Task}s with a resolution of one tick.</p>
+ * <p>The wheel is an array of buckets, each being a doubly linked list of tasks; a task is
+ * linked into the bucket that the wheel reaches when the task's delay elapses, possibly
+ * after a number of full rounds.<br />
+ * Tasks are the list nodes, so that scheduling, rescheduling and cancelling a task
+ * are constant time operations that allocate nothing: the same task object can be
+ * rescheduled forever, for example on every long poll of a gateway client.</p>
+ * <p>A single thread advances the wheel once per tick; the expired tasks are dispatched to
+ * the {@link #setThreadPool(ThreadPool) thread pool}, if any, so that expiring many tasks
+ * at once, for example responding to the external requests of a gateway client that
+ * went away, does not delay the following ticks. Without a thread pool, or when the
+ * thread pool cannot take them, the expired tasks are run by the wheel thread.<br />
+ * Tasks never expire earlier than their delay, and may expire up to one tick later.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class TimingWheel extends AbstractLifeCycle implements Runnable
+{
+    private final Logger logger = Log.getLogger(getClass().toString());
+    private final Object lock = new Object();
+    private final long tickDuration;
+    private final Task[] buckets;
+    private long ticks;
+    private volatile Thread thread;
+    private volatile ThreadPool threadPool;
+
+    public TimingWheel()
+    {
+        this(100, 512);
+    }
+
+    /**
+     * @param tickDuration the duration of a tick, in milliseconds
+     * @param wheelSize the number of buckets of the wheel
+     */
+    public TimingWheel(long tickDuration, int wheelSize)
+    {
+        if (tickDuration <= 0)
+            throw new IllegalArgumentException("Invalid tick duration " + tickDuration);
+        if (wheelSize <= 0)
+            throw new IllegalArgumentException("Invalid wheel size " + wheelSize);
+        this.tickDuration = tickDuration;
+        this.buckets = new Task[wheelSize];
+        for (int i = 0; i < wheelSize; ++i)
+            buckets[i] = new Bucket();
+    }
+
+    public long getTickDuration()
+    {
+        return tickDuration;
+    }
+
+    public int getWheelSize()
+    {
+        return buckets.length;
+    }
+
+    public ThreadPool getThreadPool()
+    {
+        return threadPool;
+    }
+
+    /**
+     * @param threadPool the thread pool that runs the expired tasks, or null to run them in the wheel thread
+     */
+    public void setThreadPool(ThreadPool threadPool)
+    {
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * <p>Schedules the given task to expire after the given delay.</p>
+     * <p>If the task is already scheduled, it is rescheduled.</p>
+     * @param task the task to schedule
+     * @param delay the delay in milliseconds
+     */
+    public void schedule(Task task, long delay)
+    {
+        // Round up, so that tasks never expire early
+        long delayTicks = Math.max(1, (delay + tickDuration - 1) / tickDuration);
+        synchronized (lock)
+        {
+            task.unlink();
+            ++task.generation;
+            task.rounds = delayTicks / buckets.length;
+            task.link(buckets[(int)((ticks + delayTicks) % buckets.length)]);
+        }
+    }
+
+    /**
+     * @param task the task to cancel
+     * @return whether the task was scheduled
+     */
+    public boolean cancel(Task task)
+    {
+        synchronized (lock)
+        {
+            ++task.generation;
+            return task.unlink();
+        }
+    }
+
+    /**
+     * <p>Advances the wheel by one tick, running the tasks that expired.</p>
+     */
+    void tick()
+    {
+        Task expired = null;
+        synchronized (lock)
+        {
+            Task bucket = buckets[(int)(ticks % buckets.length)];
+            ++ticks;
+            Task task = bucket.next;
+            while (task != bucket)
+            {
+                Task next = task.next;
+                if (task.rounds > 0)
+                {
+                    --task.rounds;
+                }
+                else
+                {
+                    task.unlink();
+                    task.expiredGeneration = task.generation;
+                    task.expiredNext = expired;
+                    expired = task;
+                }
+                task = next;
+            }
+        }
+
+        // Run the tasks without holding the lock
+        ThreadPool threadPool = getThreadPool();
+        while (expired != null)
+        {
+            Task task = expired;
+            expired = task.expiredNext;
+            task.expiredNext = null;
+
+            long generation = task.expiredGeneration;
+            if (threadPool == null || !threadPool.dispatch(new Expiration(task, generation)))
+                expire(task, generation);
+        }
+    }
+
+    private void expire(Task task, long generation)
+    {
+        // Skip the tasks that have been rescheduled or cancelled since they expired
+        synchronized (lock)
+        {
+            if (task.generation != generation)
+                return;
+        }
+        try
+        {
+            task.expire();
+        }
+        catch (Throwable x)
+        {
+            logger.warn("Task " + task + " failed", x);
+        }
+    }
+
+    public void run()
+    {
+        long next = System.nanoTime();
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        while (thread == Thread.currentThread())
+        {
+            try
+            {
+                // Sleep until the next tick, computed from the start to avoid drifting
+                next += tickNanos;
+                long sleep = next - System.nanoTime();
+                if (sleep > 0)
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                tick();
+            }
+            catch (InterruptedException x)
+            {
+                break;
+            }
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception
+    {
+        super.doStart();
+        Thread thread = new Thread(this, getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()));
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+    }
+
+    @Override
+    protected void doStop() throws Exception
+    {
+        Thread thread = this.thread;
+        this.thread = null;
+        if (thread != null)
+        {
+            thread.interrupt();
+            thread.join(getTickDuration() * 10);
+        }
+        super.doStop();
+    }
+
+    /**
+     * <p>A task that can be scheduled on a {@link TimingWheel}.</p>
+     * <p>A task can be scheduled on only one wheel at a time.</p>
+     */
+    public static abstract class Task
+    {
+        private Task prev;
+        private Task next;
+        private long rounds;
+        private long generation;
+        private long expiredGeneration;
+        private Task expiredNext;
+
+        /**
+         * <p>Called when this task expires, by a thread of the wheel's thread pool or by the wheel thread.</p>
+         */
+        protected abstract void expire();
+
+        private void link(Task bucket)
+        {
+            prev = bucket.prev;
+            next = bucket;
+            bucket.prev.next = this;
+            bucket.prev = this;
+        }
+
+        private boolean unlink()
+        {
+            if (next == null)
+                return false;
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+            return true;
+        }
+    }
+
+    private class Expiration implements Runnable
+    {
+        private final Task task;
+        private final long generation;
+
+        private Expiration(Task task, long generation)
+        {
+            this.task = task;
+            this.generation = generation;
+        }
+
+        public void run()
+        {
+            expire(task, generation);
+        }
+    }
+
+    private static class Bucket extends Task
+    {
+        private Bucket()
+        {
+            // Empty circular list
+            super.prev = this;
+            super.next = this;
+        }
+
+        @Override
+        protected void expire()
+        {
+        }
+    }
+}
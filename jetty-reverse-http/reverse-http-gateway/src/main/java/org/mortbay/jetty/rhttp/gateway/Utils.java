@@ -17,8 +17,14 @@
 package org.mortbay.jetty.rhttp.gateway;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
 
 /**
  * @version $Revision$ $Date$
@@ -35,4 +41,38 @@ class Utils
         body.close();
         return body.toByteArray();
     }
+
+    static void readFully(InputStream input, byte[] bytes) throws IOException
+    {
+        int offset = 0;
+        while (offset < bytes.length)
+        {
+            int read = input.read(bytes, offset, bytes.length - offset);
+            if (read < 0)
+                throw new EOFException();
+            offset += read;
+        }
+    }
+
+    static long copy(InputStream input, OutputStream output, int bufferSize) throws IOException
+    {
+        // Flush every chunk, so that only one buffer per stream is held in memory
+        long result = 0;
+        byte[] buffer = new byte[bufferSize];
+        int read;
+        while ((read = input.read(buffer)) >= 0)
+        {
+            output.write(buffer, 0, read);
+            output.flush();
+            result += read;
+        }
+        return result;
+    }
+
+    static RHTTPResponse newEmptyResponse(long requestId, int status, String message)
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Length", "0");
+        return new RHTTPResponse(requestId, status, message, headers, new byte[0]);
+    }
 }
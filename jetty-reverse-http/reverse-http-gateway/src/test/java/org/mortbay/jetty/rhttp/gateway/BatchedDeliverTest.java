@@ -0,0 +1,242 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.io.EofException;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.mortbay.jetty.rhttp.client.JettyClient;
+import org.mortbay.jetty.rhttp.client.RHTTPListener;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class BatchedDeliverTest extends TestCase
+{
+    public void testResponsesAreDeliveredTogether() throws Exception
+    {
+        GatewayServer server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.start();
+        Address address = new Address("localhost", connector.getLocalPort());
+
+        HttpClient httpClient = new HttpClient();
+        httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        httpClient.start();
+        try
+        {
+            final List<Integer> batches = new CopyOnWriteArrayList<Integer>();
+            final JettyClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "device")
+            {
+                @Override
+                protected void asyncDeliver(List<RHTTPResponse> responses)
+                {
+                    batches.add(responses.size());
+                    super.asyncDeliver(responses);
+                }
+            };
+            // A window long enough that only reaching the max batch size can deliver the responses
+            client.setDeliverWindow(60000);
+            client.setMaxDeliverBatch(3);
+            client.addListener(new RHTTPListener()
+            {
+                public void onRequest(RHTTPRequest request) throws Exception
+                {
+                    client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), request.getURI().getBytes("UTF-8")));
+                }
+            });
+            client.connect();
+            try
+            {
+                assertTrue(client.isBatching());
+
+                List<ContentExchange> exchanges = new ArrayList<ContentExchange>();
+                for (int i = 0; i < 3; ++i)
+                {
+                    ContentExchange exchange = new ContentExchange(true);
+                    exchange.setMethod(HttpMethods.GET);
+                    exchange.setAddress(address);
+                    exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/device/resource" + i);
+                    httpClient.send(exchange);
+                    exchanges.add(exchange);
+                }
+
+                for (int i = 0; i < exchanges.size(); ++i)
+                {
+                    ContentExchange exchange = exchanges.get(i);
+                    assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+                    assertEquals(200, exchange.getResponseStatus());
+                    assertTrue(exchange.getResponseContent().endsWith("/device/resource" + i));
+                }
+
+                assertEquals(1, batches.size());
+                assertEquals(3, batches.get(0).intValue());
+            }
+            finally
+            {
+                client.disconnect();
+            }
+        }
+        finally
+        {
+            httpClient.stop();
+            server.stop();
+        }
+    }
+
+    public void testResponsesAfterDisconnectedExternalClientAreDelivered() throws Exception
+    {
+        final AtomicBoolean disconnected = new AtomicBoolean();
+        GatewayServer server = new GatewayServer()
+        {
+            @Override
+            protected Gateway createGateway()
+            {
+                return new StandardGateway()
+                {
+                    @Override
+                    public ExternalRequest newExternalRequest(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
+                    {
+                        return new DisconnectingExternalRequest(super.newExternalRequest(httpRequest, httpResponse), disconnected);
+                    }
+                };
+            }
+        };
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.start();
+        Address address = new Address("localhost", connector.getLocalPort());
+
+        HttpClient httpClient = new HttpClient();
+        httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        httpClient.start();
+        try
+        {
+            final JettyClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "device");
+            client.setDeliverWindow(60000);
+            client.setMaxDeliverBatch(3);
+            client.addListener(new RHTTPListener()
+            {
+                public void onRequest(RHTTPRequest request) throws Exception
+                {
+                    client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), request.getURI().getBytes("UTF-8")));
+                }
+            });
+            client.connect();
+            try
+            {
+                List<ContentExchange> exchanges = new ArrayList<ContentExchange>();
+                for (int i = 0; i < 3; ++i)
+                {
+                    ContentExchange exchange = new ContentExchange(true);
+                    exchange.setMethod(HttpMethods.GET);
+                    exchange.setAddress(address);
+                    exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/device/resource" + i);
+                    httpClient.send(exchange);
+                    exchanges.add(exchange);
+                }
+
+                // The first response of the batch fails, the others must be delivered anyway
+                for (int i = 0; i < exchanges.size(); ++i)
+                {
+                    ContentExchange exchange = exchanges.get(i);
+                    assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+                    assertEquals(200, exchange.getResponseStatus());
+                }
+                assertTrue(disconnected.get());
+            }
+            finally
+            {
+                client.disconnect();
+            }
+        }
+        finally
+        {
+            httpClient.stop();
+            server.stop();
+        }
+    }
+
+    /**
+     * <p>Fails the first response, as if its external client disconnected while it was written.</p>
+     */
+    private static class DisconnectingExternalRequest implements ExternalRequest
+    {
+        private final ExternalRequest delegate;
+        private final AtomicBoolean disconnected;
+
+        private DisconnectingExternalRequest(ExternalRequest delegate, AtomicBoolean disconnected)
+        {
+            this.delegate = delegate;
+            this.disconnected = disconnected;
+        }
+
+        public boolean suspend()
+        {
+            return delegate.suspend();
+        }
+
+        public void respond(RHTTPResponse response) throws IOException
+        {
+            delegate.respond(response);
+            if (disconnected.compareAndSet(false, true))
+                throw new EofException();
+        }
+
+        public void respond(RHTTPResponse head, InputStream body) throws IOException
+        {
+            delegate.respond(head, body);
+        }
+
+        public void writeBodyTo(OutputStream output) throws IOException
+        {
+            delegate.writeBodyTo(output);
+        }
+
+        public RHTTPRequest getRequest()
+        {
+            return delegate.getRequest();
+        }
+
+        public String getTargetId()
+        {
+            return delegate.getTargetId();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class BoundedQueueTest extends TestCase
+{
+    public void testOfferBeyondCapacity() throws Exception
+    {
+        BoundedQueue<Integer> queue = new BoundedQueue<Integer>(3);
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertTrue(queue.offer(3));
+        assertFalse(queue.offer(4));
+        assertEquals(3, queue.size());
+
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertTrue(queue.offer(4));
+
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(3, queue.drainTo(drained, 10));
+        assertEquals(3, drained.size());
+        assertEquals(Integer.valueOf(2), drained.get(0));
+        assertEquals(Integer.valueOf(4), drained.get(2));
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    public void testBlockingOfferTimesOut() throws Exception
+    {
+        BoundedQueue<Integer> queue = new BoundedQueue<Integer>(1);
+        assertTrue(queue.offer(1));
+        long start = System.nanoTime();
+        assertFalse(queue.offer(2, 200, TimeUnit.MILLISECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+    }
+
+    public void testBlockingOfferIsSignalledByDrain() throws Exception
+    {
+        final BoundedQueue<Integer> queue = new BoundedQueue<Integer>(1);
+        assertTrue(queue.offer(1));
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    if (queue.offer(2, 5, TimeUnit.SECONDS))
+                        latch.countDown();
+                }
+                catch (InterruptedException x)
+                {
+                }
+            }
+        }.start();
+
+        Thread.sleep(100);
+        assertEquals(1, queue.drainTo(new ArrayList<Integer>(), 1));
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(2), queue.poll());
+    }
+
+    public void testManyProducersOneConsumer() throws Exception
+    {
+        final int producers = 4;
+        final int count = 10000;
+        final BoundedQueue<Integer> queue = new BoundedQueue<Integer>(64);
+        final AtomicInteger rejected = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(producers);
+        for (int p = 0; p < producers; ++p)
+        {
+            final int producer = p;
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < count; ++i)
+                    {
+                        while (!queue.offer(producer * count + i))
+                        {
+                            rejected.incrementAndGet();
+                            Thread.yield();
+                        }
+                    }
+                    latch.countDown();
+                }
+            }.start();
+        }
+
+        // Elements of the same producer must come out in order, and none must be lost
+        int[] last = new int[producers];
+        for (int p = 0; p < producers; ++p)
+            last[p] = -1;
+        int total = 0;
+        List<Integer> batch = new ArrayList<Integer>();
+        while (total < producers * count)
+        {
+            batch.clear();
+            total += queue.drainTo(batch, queue.getCapacity());
+            for (Integer element : batch)
+            {
+                int producer = element / count;
+                int value = element % count;
+                assertEquals(last[producer] + 1, value);
+                last[producer] = value;
+            }
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.isEmpty());
+    }
+}
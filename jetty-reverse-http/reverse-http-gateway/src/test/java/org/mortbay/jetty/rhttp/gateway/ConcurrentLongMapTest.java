@@ -0,0 +1,118 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class ConcurrentLongMapTest extends TestCase
+{
+    public void testPutGetRemove() throws Exception
+    {
+        ConcurrentLongMap<String> map = new ConcurrentLongMap<String>(1, 2);
+        assertNull(map.putIfAbsent(1, "1"));
+        assertEquals("1", map.putIfAbsent(1, "one"));
+        assertNull(map.putIfAbsent(1L << 40, "big"));
+        assertEquals("1", map.get(1));
+        assertEquals("big", map.get(1L << 40));
+        assertEquals(2, map.size());
+        assertEquals("1", map.remove(1));
+        assertNull(map.remove(1));
+        assertNull(map.get(1));
+        assertEquals(1, map.size());
+
+        try
+        {
+            map.putIfAbsent(0, "zero");
+            fail();
+        }
+        catch (IllegalArgumentException x)
+        {
+            // Expected
+        }
+    }
+
+    public void testRandomOperationsMatchHashMap() throws Exception
+    {
+        // Few stripes and small tables exercise growth and the shifts on removal
+        ConcurrentLongMap<Long> map = new ConcurrentLongMap<Long>(2, 2);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random random = new Random(13);
+        for (int i = 0; i < 100000; ++i)
+        {
+            long key = 1 + random.nextInt(512);
+            if (random.nextBoolean())
+            {
+                Long value = Long.valueOf(i);
+                Long existing = expected.get(key);
+                if (existing == null)
+                    expected.put(key, value);
+                assertEquals(existing, map.putIfAbsent(key, value));
+            }
+            else
+            {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+            if (i % 1000 == 0)
+            {
+                for (Map.Entry<Long, Long> entry : expected.entrySet())
+                    assertEquals(entry.getValue(), map.get(entry.getKey()));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+    }
+
+    public void testConcurrentAddRemove() throws Exception
+    {
+        final ConcurrentLongMap<Object> map = new ConcurrentLongMap<Object>();
+        final AtomicLong ids = new AtomicLong();
+        final AtomicInteger failures = new AtomicInteger();
+        int threads = 4;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int t = 0; t < threads; ++t)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    Object value = new Object();
+                    for (int i = 0; i < 50000; ++i)
+                    {
+                        long id = ids.incrementAndGet();
+                        if (map.putIfAbsent(id, value) != null || map.get(id) != value || map.remove(id) != value)
+                            failures.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+            }.start();
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        assertEquals(0, map.size());
+    }
+}
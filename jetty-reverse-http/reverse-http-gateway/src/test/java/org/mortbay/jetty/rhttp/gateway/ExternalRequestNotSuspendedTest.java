@@ -17,6 +17,8 @@
 package org.mortbay.jetty.rhttp.gateway;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.concurrent.CountDownLatch;
@@ -176,9 +178,25 @@ public class ExternalRequestNotSuspendedTest extends TestCase
             respondLatch.countDown();
         }
 
+        public void respond(RHTTPResponse head, InputStream body) throws IOException
+        {
+            delegate.respond(head, body);
+            respondLatch.countDown();
+        }
+
+        public void writeBodyTo(OutputStream output) throws IOException
+        {
+            delegate.writeBodyTo(output);
+        }
+
         public RHTTPRequest getRequest()
         {
             return delegate.getRequest();
         }
+
+        public String getTargetId()
+        {
+            return delegate.getTargetId();
+        }
     }
 }
@@ -64,7 +64,7 @@ public class ExternalTimeoutTest extends TestCase
             {
                 String targetId = "1";
                 final RHTTPClient client = new JettyClient(httpClient, address, server.getContext().getContextPath()+GatewayServer.DFT_CONNECT_PATH, targetId);
-                final AtomicReference<Integer> requestId = new AtomicReference<Integer>();
+                final AtomicReference<Long> requestId = new AtomicReference<Long>();
                 final AtomicReference<Exception> exceptionRef = new AtomicReference<Exception>();
                 client.addListener(new RHTTPListener()
                 {
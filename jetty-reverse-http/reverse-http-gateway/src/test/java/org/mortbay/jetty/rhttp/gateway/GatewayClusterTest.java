@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.HashMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.mortbay.jetty.rhttp.client.JettyClient;
+import org.mortbay.jetty.rhttp.client.RHTTPClient;
+import org.mortbay.jetty.rhttp.client.RHTTPListener;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class GatewayClusterTest extends TestCase
+{
+    public void testExternalRequestIsForwardedToOwningNode() throws Exception
+    {
+        TargetRegistry registry = new InMemoryTargetRegistry();
+        GatewayServer server1 = newNode(registry);
+        GatewayServer server2 = newNode(registry);
+        try
+        {
+            HttpClient httpClient = new HttpClient();
+            httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+            httpClient.start();
+            try
+            {
+                // The device connects to the first node
+                Address address1 = new Address("localhost", server1.getConnectors()[0].getLocalPort());
+                final RHTTPClient client = new JettyClient(httpClient, address1, server1.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "echo");
+                client.addListener(new RHTTPListener()
+                {
+                    public void onRequest(RHTTPRequest request) throws Exception
+                    {
+                        client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), request.getBody()));
+                    }
+                });
+                client.connect();
+                try
+                {
+                    assertEquals(server1.getCluster().getNodeId(), registry.getNodeId("echo"));
+
+                    // The external request lands on the second node
+                    ContentExchange exchange = new ContentExchange(true);
+                    exchange.setMethod(HttpMethods.POST);
+                    exchange.setAddress(new Address("localhost", server2.getConnectors()[0].getLocalPort()));
+                    exchange.setURI(server2.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/echo");
+                    String requestBody = "body";
+                    exchange.setRequestContent(new ByteArrayBuffer(requestBody.getBytes("UTF-8")));
+                    httpClient.send(exchange);
+                    assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+                    assertEquals(HttpServletResponse.SC_OK, exchange.getResponseStatus());
+                    assertEquals(requestBody, exchange.getResponseContent());
+                }
+                finally
+                {
+                    client.disconnect();
+                }
+            }
+            finally
+            {
+                httpClient.stop();
+            }
+        }
+        finally
+        {
+            server2.stop();
+            server1.stop();
+        }
+    }
+
+    public void testUnregisterOnlyOwnMapping() throws Exception
+    {
+        TargetRegistry registry = new InMemoryTargetRegistry();
+        GatewayCluster node1 = new GatewayCluster(registry);
+        node1.setNodeId("localhost:1");
+        GatewayCluster node2 = new GatewayCluster(registry);
+        node2.setNodeId("localhost:2");
+
+        node1.register("1");
+        // The device moves to the second node before the first expires it
+        node2.register("1");
+        node1.unregister("1");
+        assertEquals("localhost:2", registry.getNodeId("1"));
+        node2.unregister("1");
+        assertNull(registry.getNodeId("1"));
+    }
+
+    private GatewayServer newNode(TargetRegistry registry) throws Exception
+    {
+        GatewayServer server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.setCluster(new GatewayCluster(registry));
+        server.start();
+        return server;
+    }
+}
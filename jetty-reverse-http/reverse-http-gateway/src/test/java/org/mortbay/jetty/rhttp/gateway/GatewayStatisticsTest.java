@@ -0,0 +1,181 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.ajax.JSON;
+import org.mortbay.jetty.rhttp.client.JettyClient;
+import org.mortbay.jetty.rhttp.client.RHTTPClient;
+import org.mortbay.jetty.rhttp.client.RHTTPListener;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class GatewayStatisticsTest extends TestCase
+{
+    public void testHistogramPercentiles() throws Exception
+    {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; ++i)
+            histogram.record(i);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.getMean());
+        // Buckets are within 12.5% of the recorded values
+        assertTrue(Math.abs(histogram.getPercentile(0.5) - 500) <= 500 / 8);
+        assertTrue(Math.abs(histogram.getPercentile(0.99) - 990) <= 990 / 8);
+        assertEquals(1000, histogram.getPercentile(0.999));
+        assertEquals(1000, histogram.getPercentile(1));
+
+        // Huge values end up in the last bucket but do not break the percentiles
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(1));
+    }
+
+    public void testRemovedTargetStatisticsAreNotRevived() throws Exception
+    {
+        GatewayStatistics statistics = new GatewayStatistics(null);
+        assertNull(statistics.findTargetStatistics("device"));
+        GatewayStatistics.TargetStatistics target = statistics.getTargetStatistics("device");
+        assertSame(target, statistics.findTargetStatistics("device"));
+
+        statistics.removeTargetStatistics("device");
+        assertNull(statistics.findTargetStatistics("device"));
+        // Looking up does not create
+        assertNull(statistics.findTargetStatistics("device"));
+    }
+
+    public void testStatisticsAreNotServedByDefault() throws Exception
+    {
+        GatewayServer server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.start();
+        Address address = new Address("localhost", connector.getLocalPort());
+
+        HttpClient httpClient = new HttpClient();
+        httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        httpClient.start();
+        try
+        {
+            ContentExchange exchange = new ContentExchange(true);
+            exchange.setMethod(HttpMethods.GET);
+            exchange.setAddress(address);
+            exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_STATS_PATH);
+            httpClient.send(exchange);
+            assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, exchange.getResponseStatus());
+        }
+        finally
+        {
+            httpClient.stop();
+            server.stop();
+        }
+    }
+
+    public void testExternalRequestIsRecorded() throws Exception
+    {
+        GatewayServer server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.setStatisticsPath(GatewayServer.DFT_STATS_PATH);
+        server.start();
+        Address address = new Address("localhost", connector.getLocalPort());
+
+        HttpClient httpClient = new HttpClient();
+        httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        httpClient.start();
+        try
+        {
+            final RHTTPClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "device");
+            client.addListener(new RHTTPListener()
+            {
+                public void onRequest(RHTTPRequest request) throws Exception
+                {
+                    client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), "body".getBytes()));
+                }
+            });
+            client.connect();
+            try
+            {
+                ContentExchange exchange = new ContentExchange(true);
+                exchange.setMethod(HttpMethods.GET);
+                exchange.setAddress(address);
+                exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/device/resource");
+                httpClient.send(exchange);
+                assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+                assertEquals("body", exchange.getResponseContent());
+
+                GatewayStatistics statistics = server.getStatistics();
+                GatewayStatistics.TargetStatistics target = statistics.getTargetStatistics("device");
+                assertEquals(1, target.getRequests());
+                assertEquals(0, target.getInFlight());
+                assertEquals(0, target.getTimeouts());
+                assertEquals(1, target.getLatency().getCount());
+                assertTrue(target.getBytesIn() > 0);
+                assertTrue(target.getBytesOut() > 0);
+                assertEquals(1, statistics.getRequests());
+
+                // The same statistics are available as JSON
+                exchange = new ContentExchange(true);
+                exchange.setMethod(HttpMethods.GET);
+                exchange.setAddress(address);
+                exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_STATS_PATH + "?targetId=device");
+                httpClient.send(exchange);
+                assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+                assertEquals(HttpServletResponse.SC_OK, exchange.getResponseStatus());
+                Map json = (Map)JSON.parse(exchange.getResponseContent());
+                assertEquals(1L, json.get("requests"));
+                assertTrue(((Map)json.get("latency")).containsKey("p999"));
+
+                // And through JMX
+                MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+                Set<ObjectName> names = mbeanServer.queryNames(new ObjectName(GatewayStatistics.class.getPackage().getName() + ":type=gatewaystatistics,*"), null);
+                assertEquals(1, names.size());
+                assertEquals(1L, mbeanServer.getAttribute(names.iterator().next(), "Requests"));
+            }
+            finally
+            {
+                client.disconnect();
+            }
+        }
+        finally
+        {
+            httpClient.stop();
+            server.stop();
+        }
+    }
+}
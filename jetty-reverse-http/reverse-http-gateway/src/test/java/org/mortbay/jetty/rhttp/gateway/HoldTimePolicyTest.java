@@ -0,0 +1,111 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class HoldTimePolicyTest extends TestCase
+{
+    public void testIdleClientIsHeldForMaxHoldTime() throws Exception
+    {
+        HoldTimePolicy policy = new HoldTimePolicy();
+        HoldTimePolicy.Arrivals arrivals = new HoldTimePolicy.Arrivals();
+        assertEquals(policy.getMaxHoldTime(), policy.getHoldTime(arrivals));
+
+        // A single request does not tell the rate
+        arrivals.arrived();
+        assertEquals(policy.getMaxHoldTime(), policy.getHoldTime(arrivals));
+    }
+
+    public void testBusyClientIsHeldShorter() throws Exception
+    {
+        HoldTimePolicy policy = new HoldTimePolicy();
+        policy.setMinHoldTime(100);
+        policy.setMaxHoldTime(10000);
+        HoldTimePolicy.Arrivals arrivals = new HoldTimePolicy.Arrivals();
+        for (int i = 0; i < 10; ++i)
+        {
+            arrivals.arrived();
+            Thread.sleep(20);
+        }
+
+        long holdTime = policy.getHoldTime(arrivals);
+        assertTrue(holdTime >= policy.getMinHoldTime());
+        assertTrue(holdTime < 1000);
+
+        // When requests stop arriving, the client becomes idle and is held longer
+        Thread.sleep(500);
+        assertTrue(policy.getHoldTime(arrivals) > holdTime);
+    }
+
+    public void testLoadStretchesHoldTime() throws Exception
+    {
+        HoldTimePolicy policy = new HoldTimePolicy();
+        policy.setMinHoldTime(1);
+        policy.setMaxHoldTime(Long.MAX_VALUE / 4);
+        policy.setArrivalFactor(100);
+        policy.setMaxHeld(2);
+        HoldTimePolicy.Arrivals arrivals = new HoldTimePolicy.Arrivals();
+        arrivals.arrived();
+        Thread.sleep(10);
+        arrivals.arrived();
+
+        long unloaded = policy.getHoldTime(arrivals);
+        policy.pollHeld();
+        long halfLoaded = policy.getHoldTime(arrivals);
+        policy.pollHeld();
+        policy.pollHeld();
+        assertEquals(3, policy.getHeld());
+        long loaded = policy.getHoldTime(arrivals);
+        assertTrue(unloaded < halfLoaded);
+        assertTrue(halfLoaded < loaded);
+        // Hold times are at most doubled, however high the load
+        assertTrue(loaded <= 2 * policy.getArrivalFactor() * arrivals.getMeanInterval());
+
+        policy.pollReleased();
+        policy.pollReleased();
+        policy.pollReleased();
+        assertEquals(0, policy.getHeld());
+    }
+
+    public void testLoadedHoldTimeDoesNotExceedAdvertisedHoldTime() throws Exception
+    {
+        HoldTimePolicy policy = new HoldTimePolicy();
+        policy.setMinHoldTime(100);
+        policy.setMaxHoldTime(1000);
+        policy.setArrivalFactor(100);
+        policy.setMaxHeld(1);
+        StandardClientDelegate client = new StandardClientDelegate("device");
+        client.setHoldTimePolicy(policy);
+        HoldTimePolicy.Arrivals arrivals = new HoldTimePolicy.Arrivals();
+        arrivals.arrived();
+        Thread.sleep(10);
+        arrivals.arrived();
+        policy.pollHeld();
+        policy.pollHeld();
+
+        // Fully loaded, the hold time would double, but is capped by what the client is told
+        assertTrue(policy.getHoldTime(arrivals) <= client.getMaxHoldTime());
+        assertEquals(policy.getMaxHoldTime(), client.getMaxHoldTime());
+
+        client.setHoldTimePolicy(null);
+        assertEquals(client.getTimeout(), client.getMaxHoldTime());
+    }
+}
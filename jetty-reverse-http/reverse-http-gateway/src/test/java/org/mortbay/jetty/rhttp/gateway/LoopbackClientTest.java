@@ -0,0 +1,104 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.mortbay.jetty.rhttp.client.RHTTPListener;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class LoopbackClientTest extends TestCase
+{
+    private GatewayServer server;
+    private HttpClient httpClient;
+    private Address address;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.start();
+        address = new Address("localhost", connector.getLocalPort());
+
+        httpClient = new HttpClient();
+        httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        httpClient.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        httpClient.stop();
+        server.stop();
+    }
+
+    public void testRequestsArePassedByReference() throws Exception
+    {
+        final AtomicReference<Thread> listenerThread = new AtomicReference<Thread>();
+        final LoopbackClient client = new LoopbackClient(server.getGateway(), "device");
+        client.addListener(new RHTTPListener()
+        {
+            public void onRequest(RHTTPRequest request) throws Exception
+            {
+                listenerThread.set(Thread.currentThread());
+                client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), request.getBody()));
+            }
+        });
+        client.connect();
+        try
+        {
+            ClientDelegate delegate = server.getGateway().getClientDelegate("device");
+            assertSame(client, delegate.getChannel());
+
+            ContentExchange exchange = new ContentExchange(true);
+            exchange.setMethod(HttpMethods.POST);
+            exchange.setAddress(address);
+            exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/device/resource");
+            exchange.setRequestContent(new ByteArrayBuffer("body".getBytes("UTF-8")));
+            httpClient.send(exchange);
+            assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+            assertEquals(200, exchange.getResponseStatus());
+            assertEquals("body", exchange.getResponseContent());
+            // Without a request dispatcher, the listener is called by the thread of the external request
+            assertNotSame(Thread.currentThread(), listenerThread.get());
+            assertNotNull(listenerThread.get());
+            assertEquals(0, delegate.getQueueSize());
+        }
+        finally
+        {
+            client.disconnect();
+        }
+        assertNull(server.getGateway().getClientDelegate("device"));
+    }
+}
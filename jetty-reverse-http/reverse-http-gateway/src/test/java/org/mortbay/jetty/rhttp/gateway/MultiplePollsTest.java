@@ -0,0 +1,197 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.mortbay.jetty.rhttp.client.JettyClient;
+import org.mortbay.jetty.rhttp.client.RHTTPClient;
+import org.mortbay.jetty.rhttp.client.RHTTPListener;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+import org.mortbay.jetty.rhttp.client.RetryPolicy;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class MultiplePollsTest extends TestCase
+{
+    private GatewayServer server;
+    private HttpClient httpClient;
+    private Address address;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.start();
+        address = new Address("localhost", connector.getLocalPort());
+
+        httpClient = new HttpClient();
+        httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        httpClient.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        httpClient.stop();
+        server.stop();
+    }
+
+    public void testRequestsAreDeliveredByConcurrentPolls() throws Exception
+    {
+        final JettyClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "device");
+        client.setOfferedPolls(3);
+        client.addListener(new RHTTPListener()
+        {
+            public void onRequest(RHTTPRequest request) throws Exception
+            {
+                client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), request.getURI().getBytes("UTF-8")));
+            }
+        });
+        client.connect();
+        try
+        {
+            assertEquals(3, client.getPolls());
+            ClientDelegate delegate = server.getGateway().getClientDelegate("device");
+            assertEquals(3, delegate.getMaxPolls());
+
+            List<ContentExchange> exchanges = new ArrayList<ContentExchange>();
+            for (int i = 0; i < 10; ++i)
+            {
+                ContentExchange exchange = new ContentExchange(true);
+                exchange.setMethod(HttpMethods.GET);
+                exchange.setAddress(address);
+                exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/device/resource/" + i);
+                httpClient.send(exchange);
+                exchanges.add(exchange);
+            }
+            for (int i = 0; i < exchanges.size(); ++i)
+            {
+                ContentExchange exchange = exchanges.get(i);
+                assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+                assertEquals(200, exchange.getResponseStatus());
+                assertTrue(exchange.getResponseContent().endsWith("/resource/" + i));
+            }
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+
+    public void testSessionExpiredWhilePollsArePendingHandshakesOnce() throws Exception
+    {
+        final AtomicInteger handshakes = new AtomicInteger();
+        final AtomicInteger polls = new AtomicInteger();
+        final JettyClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "device")
+        {
+            @Override
+            protected void syncHandshake() throws IOException
+            {
+                handshakes.incrementAndGet();
+                super.syncHandshake();
+            }
+
+            @Override
+            protected void asyncConnect()
+            {
+                polls.incrementAndGet();
+                super.asyncConnect();
+            }
+        };
+        client.setOfferedPolls(3);
+        RetryPolicy retryPolicy = new RetryPolicy();
+        retryPolicy.setBaseDelay(100);
+        client.setRetryPolicy(retryPolicy);
+        client.addListener(new RHTTPListener()
+        {
+            public void onRequest(RHTTPRequest request) throws Exception
+            {
+                client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), request.getURI().getBytes("UTF-8")));
+            }
+        });
+        client.connect();
+        try
+        {
+            assertEquals(1, handshakes.get());
+            assertEquals(3, polls.get());
+
+            // Expire the session: the pending polls return, and connect again to find the client gone
+            ClientDelegate delegate = server.getGateway().getClientDelegate("device");
+            server.getGateway().removeClientDelegate("device");
+            delegate.close();
+
+            long timeout = System.currentTimeMillis() + 5000;
+            while (server.getGateway().getClientDelegate("device") == null && System.currentTimeMillis() < timeout)
+                Thread.sleep(10);
+            assertNotNull(server.getGateway().getClientDelegate("device"));
+            Thread.sleep(1000);
+
+            // A single handshake, and the polls topped up to 3 rather than multiplied: at most
+            // the first polls, their connects that found the client gone, and the new polls
+            assertEquals(2, handshakes.get());
+            int pollsAfterHandshake = polls.get();
+            assertTrue(pollsAfterHandshake <= 3 + 3 + 3);
+            // No poll loop
+            Thread.sleep(1000);
+            assertEquals(pollsAfterHandshake, polls.get());
+
+            ContentExchange exchange = new ContentExchange(true);
+            exchange.setMethod(HttpMethods.GET);
+            exchange.setAddress(address);
+            exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/device/resource");
+            httpClient.send(exchange);
+            assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+            assertEquals(200, exchange.getResponseStatus());
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+
+    public void testPollsAreLimitedByGateway() throws Exception
+    {
+        ContentExchange exchange = new ContentExchange(true);
+        exchange.setMethod(HttpMethods.POST);
+        exchange.setAddress(address);
+        exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH + "/device/handshake");
+        exchange.setRequestHeader(RHTTPClient.POLLS_HEADER, "100");
+        httpClient.send(exchange);
+        assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+        assertEquals(200, exchange.getResponseStatus());
+        assertEquals("4", exchange.getResponseFields().getStringField(RHTTPClient.POLLS_HEADER));
+        assertEquals(4, server.getGateway().getClientDelegate("device").getMaxPolls());
+    }
+}
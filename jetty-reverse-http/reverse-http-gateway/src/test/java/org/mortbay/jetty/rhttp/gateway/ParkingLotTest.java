@@ -0,0 +1,170 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class ParkingLotTest extends TestCase
+{
+    public void testParkingDisabledByDefault() throws Exception
+    {
+        StandardGateway gateway = new StandardGateway();
+        gateway.setTimingWheel(new TimingWheel(10, 8));
+        assertFalse(gateway.isParking());
+        assertFalse(gateway.canPark(0));
+        assertFalse(gateway.parkExternalRequest("1", new RecordingExternalRequest(1, 0)));
+    }
+
+    public void testParkedRequestsAreHandedOverInOrder() throws Exception
+    {
+        StandardGateway gateway = newGateway(new TimingWheel(10, 8));
+        assertTrue(gateway.isParking());
+        RecordingExternalRequest request1 = add(gateway, new RecordingExternalRequest(1, 0));
+        RecordingExternalRequest request2 = add(gateway, new RecordingExternalRequest(2, 0));
+        assertTrue(gateway.parkExternalRequest("1", request1));
+        assertTrue(gateway.parkExternalRequest("1", request2));
+
+        StandardClientDelegate client = new StandardClientDelegate("1");
+        assertEquals(2, gateway.unparkExternalRequests(client));
+        assertEquals(2, client.getQueueSize());
+        assertEquals(0, gateway.unparkExternalRequests(client));
+    }
+
+    public void testParkingIsBoundedPerTarget() throws Exception
+    {
+        StandardGateway gateway = newGateway(new TimingWheel(10, 8));
+        gateway.setParkCapacity(2);
+        gateway.setParkMaxBytes(1024);
+        assertTrue(gateway.parkExternalRequest("1", add(gateway, new RecordingExternalRequest(1, 0))));
+        assertTrue(gateway.parkExternalRequest("1", add(gateway, new RecordingExternalRequest(2, 0))));
+        assertFalse(gateway.parkExternalRequest("1", add(gateway, new RecordingExternalRequest(3, 0))));
+        // Other targets have their own bounds
+        assertTrue(gateway.parkExternalRequest("2", add(gateway, new RecordingExternalRequest(4, 0))));
+        assertFalse(gateway.parkExternalRequest("3", add(gateway, new RecordingExternalRequest(5, 2048))));
+    }
+
+    public void testParkingIsBoundedAcrossTargets() throws Exception
+    {
+        StandardGateway gateway = newGateway(new TimingWheel(10, 8));
+        gateway.setParkTotalCapacity(2);
+        assertTrue(gateway.parkExternalRequest("1", add(gateway, new RecordingExternalRequest(1, 0))));
+        assertTrue(gateway.parkExternalRequest("2", add(gateway, new RecordingExternalRequest(2, 0))));
+        // Each target is below its own bounds, but not the gateway
+        assertFalse(gateway.canPark(0));
+        assertFalse(gateway.parkExternalRequest("3", add(gateway, new RecordingExternalRequest(3, 0))));
+
+        // Unparking makes room again
+        gateway.unparkExternalRequests(new StandardClientDelegate("1"));
+        assertTrue(gateway.canPark(0));
+        assertTrue(gateway.parkExternalRequest("3", add(gateway, new RecordingExternalRequest(3, 0))));
+
+        gateway.setParkTotalMaxBytes(1024);
+        assertFalse(gateway.parkExternalRequest("4", add(gateway, new RecordingExternalRequest(4, 2048))));
+    }
+
+    public void testRequestsTooLargeToParkAreRejectedUpfront() throws Exception
+    {
+        StandardGateway gateway = newGateway(new TimingWheel(10, 8));
+        gateway.setParkMaxBytes(1024);
+        assertTrue(gateway.canPark(0));
+        assertTrue(gateway.canPark(1024));
+        assertFalse(gateway.canPark(1025));
+        // A chunked body may be of any length
+        assertFalse(gateway.canPark(-1));
+    }
+
+    public void testParkedRequestExpires() throws Exception
+    {
+        TimingWheel wheel = new TimingWheel(10, 8);
+        StandardGateway gateway = newGateway(wheel);
+        RecordingExternalRequest request = add(gateway, new RecordingExternalRequest(1, 0));
+        assertTrue(gateway.parkExternalRequest("1", request));
+
+        for (int i = 0; i < 11; ++i)
+            wheel.tick();
+
+        assertNotNull(request.response);
+        assertEquals(503, request.response.getStatusCode());
+        assertNull(gateway.getExternalRequest(1));
+        assertEquals(0, gateway.unparkExternalRequests(new StandardClientDelegate("1")));
+    }
+
+    private StandardGateway newGateway(TimingWheel wheel)
+    {
+        StandardGateway gateway = new StandardGateway();
+        gateway.setTimingWheel(wheel);
+        gateway.setParkTimeout(100);
+        return gateway;
+    }
+
+    private RecordingExternalRequest add(Gateway gateway, RecordingExternalRequest externalRequest)
+    {
+        gateway.addExternalRequest(externalRequest.getRequest().getId(), externalRequest);
+        return externalRequest;
+    }
+
+    private static class RecordingExternalRequest implements ExternalRequest
+    {
+        private final RHTTPRequest request;
+        private volatile RHTTPResponse response;
+
+        private RecordingExternalRequest(int id, int bodyLength)
+        {
+            this.request = new RHTTPRequest(id, "GET", "/", new HashMap<String, String>(), new byte[bodyLength]);
+        }
+
+        public boolean suspend()
+        {
+            return response == null;
+        }
+
+        public void respond(RHTTPResponse response) throws IOException
+        {
+            this.response = response;
+        }
+
+        public void respond(RHTTPResponse head, InputStream body) throws IOException
+        {
+            this.response = head;
+        }
+
+        public void writeBodyTo(OutputStream output) throws IOException
+        {
+        }
+
+        public RHTTPRequest getRequest()
+        {
+            return request;
+        }
+
+        public String getTargetId()
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.mortbay.jetty.rhttp.client.JettyClient;
+import org.mortbay.jetty.rhttp.client.RHTTPListener;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class PassthroughTest extends TestCase
+{
+    private GatewayServer server;
+    private HttpClient httpClient;
+    private Address address;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.start();
+        ((StandardGateway)server.getGateway()).setPassthrough(true);
+        address = new Address("localhost", connector.getLocalPort());
+
+        httpClient = new HttpClient();
+        httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        httpClient.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        httpClient.stop();
+        server.stop();
+    }
+
+    public void testRequestIsPassedWithAllHeaderValues() throws Exception
+    {
+        final AtomicReference<RHTTPRequest> requestRef = new AtomicReference<RHTTPRequest>();
+        final JettyClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "device");
+        client.addListener(new RHTTPListener()
+        {
+            public void onRequest(RHTTPRequest request) throws Exception
+            {
+                requestRef.set(request);
+                client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), request.getBody()));
+            }
+        });
+        client.connect();
+        try
+        {
+            ContentExchange exchange = new ContentExchange(true);
+            exchange.setMethod(HttpMethods.POST);
+            exchange.setAddress(address);
+            exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/device/resource?a=b");
+            exchange.addRequestHeader("X-Multi", "1");
+            exchange.addRequestHeader("X-Multi", "2");
+            exchange.setRequestContent(new ByteArrayBuffer("body".getBytes("UTF-8")));
+            httpClient.send(exchange);
+            assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+            assertEquals(200, exchange.getResponseStatus());
+            assertEquals("body", exchange.getResponseContent());
+
+            RHTTPRequest request = requestRef.get();
+            assertEquals("POST", request.getMethod());
+            assertTrue(request.getURI().endsWith("/device/resource?a=b"));
+            String requestText = new String(request.getRequestBytes(), "UTF-8");
+            assertTrue(requestText.contains("X-Multi: 1\r\n"));
+            assertTrue(requestText.contains("X-Multi: 2\r\n"));
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+
+    public void testChunkedRequestIsPassedWithContentLength() throws Exception
+    {
+        final AtomicReference<RHTTPRequest> requestRef = new AtomicReference<RHTTPRequest>();
+        final JettyClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "device");
+        client.addListener(new RHTTPListener()
+        {
+            public void onRequest(RHTTPRequest request) throws Exception
+            {
+                requestRef.set(request);
+                client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), request.getBody()));
+            }
+        });
+        client.connect();
+        try
+        {
+            // Carry the body inside the request, rather than letting the gateway client pull it
+            server.getGateway().getClientDelegate("device").setStreaming(false);
+
+            ContentExchange exchange = new ContentExchange(true);
+            exchange.setMethod(HttpMethods.POST);
+            exchange.setAddress(address);
+            exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/device/resource");
+            // A content source without length is sent chunked
+            exchange.setRequestContentSource(new ByteArrayInputStream("chunked body".getBytes("UTF-8")));
+            httpClient.send(exchange);
+            assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+            assertEquals(200, exchange.getResponseStatus());
+            assertEquals("chunked body", exchange.getResponseContent());
+
+            RHTTPRequest request = requestRef.get();
+            assertNull(request.getHeader("Transfer-Encoding"));
+            assertEquals("12", request.getHeader("Content-Length"));
+            assertEquals("chunked body", new String(request.getBody(), "UTF-8"));
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class RequestPrioritiesTest extends TestCase
+{
+    private RequestPriorities newPriorities()
+    {
+        RequestPriorities priorities = new RequestPriorities();
+        priorities.addLane("control", 4);
+        priorities.addLane("normal", 2);
+        priorities.addLane("bulk", 1);
+        priorities.setDefaultLane("normal");
+        priorities.addPattern(Pattern.compile(".*/upload/.*"), "bulk");
+        priorities.setHeader(RequestPriorities.DEFAULT_HEADER);
+        return priorities;
+    }
+
+    public void testHeaderIsIgnoredByDefault() throws Exception
+    {
+        RequestPriorities priorities = newPriorities();
+        priorities.setHeader(null);
+        assertNull(new RequestPriorities().getHeader());
+        // External clients cannot promote their requests
+        assertEquals(1, priorities.getLane(newRequest(1, "/device/status", "control")));
+        assertEquals(2, priorities.getLane(newRequest(2, "/device/upload/file", "control")));
+    }
+
+    public void testClassification() throws Exception
+    {
+        RequestPriorities priorities = newPriorities();
+        assertEquals(3, priorities.getLaneCount());
+        assertEquals(0, priorities.getLane(newRequest(1, "/device/status", "Control")));
+        assertEquals(2, priorities.getLane(newRequest(2, "/device/upload/file", null)));
+        // The header wins over the URI patterns
+        assertEquals(0, priorities.getLane(newRequest(3, "/device/upload/file", "control")));
+        assertEquals(1, priorities.getLane(newRequest(4, "/device/status", null)));
+        // Unknown lanes fall back to the default lane
+        assertEquals(1, priorities.getLane(newRequest(5, "/device/status", "urgent")));
+    }
+
+    public void testLanesDrainInWeightedOrder() throws Exception
+    {
+        StandardClientDelegate client = new StandardClientDelegate("device", null, 16, newPriorities());
+        assertEquals(48, client.getQueueCapacity());
+
+        for (int i = 0; i < 4; ++i)
+            assertTrue(client.enqueue(newRequest(100 + i, "/device/upload/" + i, null)));
+        for (int i = 0; i < 3; ++i)
+            assertTrue(client.enqueue(newRequest(200 + i, "/device/resource/" + i, null)));
+        assertTrue(client.enqueue(newRequest(300, "/device/status", "control")));
+        assertEquals(8, client.getQueueSize());
+
+        List<RHTTPRequest> requests = client.drain();
+        long[] expected = new long[]{300, 200, 201, 100, 202, 101, 102, 103};
+        assertEquals(expected.length, requests.size());
+        for (int i = 0; i < expected.length; ++i)
+            assertEquals(expected[i], requests.get(i).getId());
+        assertEquals(0, client.getQueueSize());
+    }
+
+    private RHTTPRequest newRequest(long id, String uri, String priority)
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        if (priority != null)
+            headers.put(RequestPriorities.DEFAULT_HEADER, priority);
+        return new RHTTPRequest(id, "GET", uri, headers, new byte[0]);
+    }
+}
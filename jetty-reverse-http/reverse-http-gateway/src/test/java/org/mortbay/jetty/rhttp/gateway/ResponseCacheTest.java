@@ -0,0 +1,237 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.mortbay.jetty.rhttp.client.JettyClient;
+import org.mortbay.jetty.rhttp.client.RHTTPClient;
+import org.mortbay.jetty.rhttp.client.RHTTPListener;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class ResponseCacheTest extends TestCase
+{
+    private GatewayServer server;
+    private ResponseCache cache;
+    private HttpClient httpClient;
+    private Address address;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        cache = new ResponseCache();
+        server.setResponseCache(cache);
+        server.start();
+        address = new Address("localhost", connector.getLocalPort());
+
+        httpClient = new HttpClient();
+        httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        httpClient.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        httpClient.stop();
+        server.stop();
+    }
+
+    public void testFreshResponseIsServedFromCache() throws Exception
+    {
+        final AtomicInteger requests = new AtomicInteger();
+        RHTTPClient client = connect(new Responder()
+        {
+            public RHTTPResponse respond(RHTTPRequest request)
+            {
+                requests.incrementAndGet();
+                Map<String, String> headers = new HashMap<String, String>();
+                headers.put("Cache-Control", "max-age=60");
+                return new RHTTPResponse(request.getId(), 200, "OK", headers, "body".getBytes());
+            }
+        });
+        try
+        {
+            assertEquals("body", get("/resource").getResponseContent());
+            ContentExchange exchange = get("/resource");
+            assertEquals(HttpServletResponse.SC_OK, exchange.getResponseStatus());
+            assertEquals("body", exchange.getResponseContent());
+            assertEquals(1, requests.get());
+            assertEquals(1, cache.getHits());
+            assertEquals(1, cache.getMisses());
+
+            // A different URI is a different entry
+            get("/other");
+            assertEquals(2, requests.get());
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+
+    public void testStaleResponseIsRevalidated() throws Exception
+    {
+        final AtomicInteger requests = new AtomicInteger();
+        RHTTPClient client = connect(new Responder()
+        {
+            public RHTTPResponse respond(RHTTPRequest request)
+            {
+                requests.incrementAndGet();
+                Map<String, String> headers = new HashMap<String, String>();
+                headers.put("Cache-Control", "no-cache");
+                headers.put("ETag", "\"v1\"");
+                if ("\"v1\"".equals(request.getHeaders().get("If-None-Match")))
+                    return new RHTTPResponse(request.getId(), 304, "Not Modified", headers, new byte[0]);
+                return new RHTTPResponse(request.getId(), 200, "OK", headers, "body".getBytes());
+            }
+        });
+        try
+        {
+            assertEquals("body", get("/resource").getResponseContent());
+            ContentExchange exchange = get("/resource");
+            assertEquals(HttpServletResponse.SC_OK, exchange.getResponseStatus());
+            assertEquals("body", exchange.getResponseContent());
+            assertEquals(2, requests.get());
+            assertEquals(1, cache.getRevalidations());
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+
+    public void testEvictionKeepsByteBudget() throws Exception
+    {
+        cache.setMaxBytes(200);
+        RHTTPClient client = connect(new Responder()
+        {
+            public RHTTPResponse respond(RHTTPRequest request)
+            {
+                Map<String, String> headers = new HashMap<String, String>();
+                headers.put("Cache-Control", "max-age=60");
+                return new RHTTPResponse(request.getId(), 200, "OK", headers, new byte[100]);
+            }
+        });
+        try
+        {
+            get("/a");
+            get("/b");
+            get("/c");
+            assertTrue(cache.getBytes() <= 200);
+            assertTrue(cache.getEvictions() > 0);
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+
+    public void testResponsesSettingCookiesAreNotShared() throws Exception
+    {
+        final AtomicInteger requests = new AtomicInteger();
+        RHTTPClient client = connect(new Responder()
+        {
+            public RHTTPResponse respond(RHTTPRequest request)
+            {
+                int count = requests.incrementAndGet();
+                Map<String, String> headers = new HashMap<String, String>();
+                String uri = request.getURI();
+                if (uri.endsWith("/qualified"))
+                    headers.put("Cache-Control", "max-age=60, no-cache=\"Set-Cookie\"");
+                else if (uri.endsWith("/private"))
+                    headers.put("Cache-Control", "private, max-age=60");
+                else
+                    headers.put("Cache-Control", "max-age=60");
+                headers.put("Set-Cookie", "session=" + count);
+                return new RHTTPResponse(request.getId(), 200, "OK", headers, "body".getBytes());
+            }
+        });
+        try
+        {
+            // A response that sets a cookie is not stored
+            assertEquals("session=1", get("/cookie").getResponseFields().getStringField("Set-Cookie"));
+            assertEquals("session=2", get("/cookie").getResponseFields().getStringField("Set-Cookie"));
+            assertEquals(2, requests.get());
+
+            get("/private");
+            get("/private");
+            assertEquals(4, requests.get());
+
+            // The cookie excluded from storage is not replayed, but the rest of the response is served
+            assertEquals("session=5", get("/qualified").getResponseFields().getStringField("Set-Cookie"));
+            ContentExchange exchange = get("/qualified");
+            assertEquals("body", exchange.getResponseContent());
+            assertNull(exchange.getResponseFields().getStringField("Set-Cookie"));
+            assertEquals(5, requests.get());
+            assertEquals(1, cache.getHits());
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+
+    private RHTTPClient connect(final Responder responder) throws Exception
+    {
+        final RHTTPClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "device");
+        client.addListener(new RHTTPListener()
+        {
+            public void onRequest(RHTTPRequest request) throws Exception
+            {
+                client.deliver(responder.respond(request));
+            }
+        });
+        client.connect();
+        return client;
+    }
+
+    private ContentExchange get(String path) throws Exception
+    {
+        ContentExchange exchange = new ContentExchange(true);
+        exchange.setMethod(HttpMethods.GET);
+        exchange.setAddress(address);
+        exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/device" + path);
+        httpClient.send(exchange);
+        assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+        return exchange;
+    }
+
+    private interface Responder
+    {
+        public RHTTPResponse respond(RHTTPRequest request);
+    }
+}
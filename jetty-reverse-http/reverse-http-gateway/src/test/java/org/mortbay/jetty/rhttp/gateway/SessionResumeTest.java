@@ -0,0 +1,123 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.mortbay.jetty.rhttp.client.JettyClient;
+import org.mortbay.jetty.rhttp.client.RHTTPClient;
+import org.mortbay.jetty.rhttp.client.RHTTPListener;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class SessionResumeTest extends TestCase
+{
+    private GatewayServer server;
+    private HttpClient httpClient;
+    private Address address;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.start();
+        address = new Address("localhost", connector.getLocalPort());
+
+        httpClient = new HttpClient();
+        httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        httpClient.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        httpClient.stop();
+        server.stop();
+    }
+
+    public void testConnectResumesSession() throws Exception
+    {
+        final JettyClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "device");
+        client.addListener(new RHTTPListener()
+        {
+            public void onRequest(RHTTPRequest request) throws Exception
+            {
+                client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), "body".getBytes("UTF-8")));
+            }
+        });
+        client.connect();
+        try
+        {
+            String session = client.getSessionToken();
+            assertNotNull(session);
+            ClientDelegate delegate = server.getGateway().getClientDelegate("device");
+            assertEquals(session, delegate.getSessionToken());
+
+            // Connecting again does not handshake, and keeps the same client delegate
+            client.connect();
+            assertSame(delegate, server.getGateway().getClientDelegate("device"));
+            assertEquals(session, client.getSessionToken());
+
+            ContentExchange exchange = new ContentExchange(true);
+            exchange.setMethod(HttpMethods.GET);
+            exchange.setAddress(address);
+            exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/device/resource");
+            httpClient.send(exchange);
+            assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+            assertEquals("body", exchange.getResponseContent());
+
+            // A handshake with the session token resumes the session
+            assertEquals(200, send("handshake", session));
+            assertSame(delegate, server.getGateway().getClientDelegate("device"));
+
+            // Wrong tokens are not accepted
+            assertEquals(500, send("handshake", "wrong"));
+            assertEquals(401, send("connect", "wrong"));
+        }
+        finally
+        {
+            client.disconnect();
+        }
+        assertNull(client.getSessionToken());
+    }
+
+    private int send(String action, String session) throws Exception
+    {
+        ContentExchange exchange = new ContentExchange(true);
+        exchange.setMethod(HttpMethods.POST);
+        exchange.setAddress(address);
+        exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH + "/device/" + action);
+        exchange.setRequestHeader(RHTTPClient.SESSION_HEADER, session);
+        httpClient.send(exchange);
+        assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+        return exchange.getResponseStatus();
+    }
+}
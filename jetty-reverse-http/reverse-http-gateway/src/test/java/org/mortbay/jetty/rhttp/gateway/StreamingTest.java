@@ -0,0 +1,236 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.mortbay.jetty.rhttp.client.JettyClient;
+import org.mortbay.jetty.rhttp.client.RHTTPListener;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class StreamingTest extends TestCase
+{
+    private GatewayServer server;
+    private HttpClient httpClient;
+    private Address address;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        // Stream every request body
+        ((StandardGateway)server.getGateway()).setStreamThreshold(0);
+        server.start();
+        address = new Address("localhost", connector.getLocalPort());
+
+        httpClient = new HttpClient();
+        httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        httpClient.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        httpClient.stop();
+        server.stop();
+    }
+
+    public void testLargeBodyIsStreamedThroughPullAndPush() throws Exception
+    {
+        final CountDownLatch readLatch = new CountDownLatch(1);
+        final AtomicReference<Exception> exceptionRef = new AtomicReference<Exception>();
+        final JettyClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "device");
+        client.addListener(new RHTTPListener()
+        {
+            public void onRequest(final RHTTPRequest request) throws Exception
+            {
+                if (!request.isStreamed())
+                {
+                    client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), request.getBody()));
+                    return;
+                }
+
+                new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            InputStream body = client.openRequestBody(request);
+                            // Do not read until told to, so that the pull fills its queue
+                            readLatch.await(5, TimeUnit.SECONDS);
+                            client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), new byte[0]), body);
+                        }
+                        catch (Exception x)
+                        {
+                            exceptionRef.set(x);
+                        }
+                    }
+                }.start();
+            }
+        });
+        client.connect();
+        try
+        {
+            assertTrue(client.isStreaming());
+
+            byte[] content = new byte[2 * 1024 * 1024];
+            for (int i = 0; i < content.length; ++i)
+                content[i] = (byte)('a' + i % 26);
+            ContentExchange exchange = new ContentExchange(true);
+            exchange.setMethod(HttpMethods.POST);
+            exchange.setAddress(address);
+            exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/device/large");
+            exchange.setRequestContent(new ByteArrayBuffer(content));
+            httpClient.send(exchange);
+
+            // While the pull is stalled, the device still receives and answers requests
+            Thread.sleep(1000);
+            ((StandardGateway)server.getGateway()).setStreamThreshold(content.length);
+            ContentExchange small = new ContentExchange(true);
+            small.setMethod(HttpMethods.POST);
+            small.setAddress(address);
+            small.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/device/small");
+            small.setRequestContent(new ByteArrayBuffer("small".getBytes("UTF-8")));
+            httpClient.send(small);
+            assertEquals(HttpExchange.STATUS_COMPLETED, small.waitForDone());
+            assertEquals(200, small.getResponseStatus());
+            assertEquals("small", small.getResponseContent());
+
+            readLatch.countDown();
+            assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+            assertEquals(200, exchange.getResponseStatus());
+            assertTrue(Arrays.equals(content, exchange.getResponseContentBytes()));
+            assertNull(exceptionRef.get());
+        }
+        finally
+        {
+            readLatch.countDown();
+            client.disconnect();
+        }
+    }
+
+    public void testPullOfAnotherDeviceRequestIsRejected() throws Exception
+    {
+        final AtomicReference<RHTTPRequest> requestRef = new AtomicReference<RHTTPRequest>();
+        final CountDownLatch requestLatch = new CountDownLatch(1);
+        final CountDownLatch pullLatch = new CountDownLatch(1);
+        final JettyClient victim = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "victim");
+        victim.addListener(new RHTTPListener()
+        {
+            public void onRequest(RHTTPRequest request) throws Exception
+            {
+                requestRef.set(request);
+                requestLatch.countDown();
+                // Wait for the other device to try to pull the body
+                pullLatch.await(5, TimeUnit.SECONDS);
+                victim.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), new byte[0]), victim.openRequestBody(request));
+            }
+        });
+        victim.connect();
+        JettyClient attacker = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "attacker");
+        attacker.connect();
+        try
+        {
+            assertTrue(victim.isStreaming());
+
+            ContentExchange exchange = new ContentExchange(true);
+            exchange.setMethod(HttpMethods.POST);
+            exchange.setAddress(address);
+            exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/victim/resource");
+            exchange.setRequestContent(new ByteArrayBuffer("secret".getBytes("UTF-8")));
+            httpClient.send(exchange);
+            assertTrue(requestLatch.await(5, TimeUnit.SECONDS));
+            RHTTPRequest request = requestRef.get();
+            assertTrue(request.isStreamed());
+
+            ContentExchange pull = new ContentExchange(true);
+            pull.setMethod(HttpMethods.POST);
+            pull.setAddress(address);
+            pull.setURI(server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH + "/attacker/pull/" + request.getId());
+            httpClient.send(pull);
+            assertEquals(HttpExchange.STATUS_COMPLETED, pull.waitForDone());
+            assertEquals(403, pull.getResponseStatus());
+
+            ContentExchange push = new ContentExchange(true);
+            push.setMethod(HttpMethods.POST);
+            push.setAddress(address);
+            push.setURI(server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH + "/attacker/push");
+            byte[] head = attacker.getCodec().toFrameBytes(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), new byte[0]));
+            push.setRequestHeader(RHTTPResponse.HEAD_LENGTH_HEADER, String.valueOf(head.length));
+            push.setRequestContentSource(new ByteArrayInputStream(head));
+            httpClient.send(push);
+            assertEquals(HttpExchange.STATUS_COMPLETED, push.waitForDone());
+            assertEquals(403, push.getResponseStatus());
+
+            // The request is still there for the device it is directed to
+            pullLatch.countDown();
+            assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+            assertEquals(200, exchange.getResponseStatus());
+            assertEquals("secret", exchange.getResponseContent());
+        }
+        finally
+        {
+            pullLatch.countDown();
+            attacker.disconnect();
+            victim.disconnect();
+        }
+    }
+
+    public void testPullWithInvalidIdIsBadRequest() throws Exception
+    {
+        JettyClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "device");
+        client.connect();
+        try
+        {
+            ContentExchange pull = new ContentExchange(true);
+            pull.setMethod(HttpMethods.POST);
+            pull.setAddress(address);
+            pull.setURI(server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH + "/device/pull/not-a-number");
+            httpClient.send(pull);
+            assertEquals(HttpExchange.STATUS_COMPLETED, pull.waitForDone());
+            assertEquals(400, pull.getResponseStatus());
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class TargetSchedulerTest extends TestCase
+{
+    public void testRateLimitAllowsBurstThenRejects() throws Exception
+    {
+        TargetScheduler scheduler = new TargetScheduler();
+        // One request per minute, so that no token is refilled during the test
+        scheduler.setPolicy("device", new TargetScheduler.Policy(1.0 / 60, 3, 1));
+
+        for (int i = 0; i < 3; ++i)
+        {
+            assertTrue(scheduler.acquire("device"));
+            scheduler.release("device");
+        }
+        assertFalse(scheduler.acquire("device"));
+        assertTrue(scheduler.getRetryAfter("device") > 1);
+        assertEquals(0, scheduler.getInFlight());
+
+        // Other targetIds are not limited by the default policy
+        for (int i = 0; i < 10; ++i)
+        {
+            assertTrue(scheduler.acquire("other"));
+            scheduler.release("other");
+        }
+    }
+
+    public void testPatternPolicy() throws Exception
+    {
+        TargetScheduler scheduler = new TargetScheduler();
+        scheduler.addPolicy(Pattern.compile("sensor-.*"), new TargetScheduler.Policy(1.0 / 60, 1, 1));
+
+        assertTrue(scheduler.acquire("sensor-1"));
+        assertFalse(scheduler.acquire("sensor-1"));
+        // Each targetId has its own bucket
+        assertTrue(scheduler.acquire("sensor-2"));
+        assertTrue(scheduler.acquire("camera-1"));
+        assertTrue(scheduler.acquire("camera-1"));
+    }
+
+    public void testInFlightCapacityIsSharedByWeight() throws Exception
+    {
+        TargetScheduler scheduler = new TargetScheduler();
+        scheduler.setMaxInFlight(12);
+        scheduler.setPolicy("heavy", new TargetScheduler.Policy(0, 0, 2));
+
+        // Alone, a targetId can use the whole capacity
+        for (int i = 0; i < 12; ++i)
+            assertTrue(scheduler.acquire("light"));
+        assertFalse(scheduler.acquire("light"));
+        assertFalse(scheduler.acquire("heavy"));
+
+        // Once the light targetId drains to its share, the heavy one gets twice as much
+        for (int i = 0; i < 8; ++i)
+            scheduler.release("light");
+        for (int i = 0; i < 8; ++i)
+            assertTrue(scheduler.acquire("heavy"));
+        assertFalse(scheduler.acquire("heavy"));
+        assertFalse(scheduler.acquire("light"));
+        assertEquals(4, scheduler.getInFlight("light"));
+        assertEquals(8, scheduler.getInFlight("heavy"));
+
+        for (int i = 0; i < 8; ++i)
+            scheduler.release("heavy");
+        for (int i = 0; i < 4; ++i)
+            scheduler.release("light");
+        assertEquals(0, scheduler.getInFlight());
+    }
+
+    public void testIdleTargetsAreEvicted() throws Exception
+    {
+        TargetScheduler scheduler = new TargetScheduler();
+        scheduler.setPolicy("limited", new TargetScheduler.Policy(1.0 / 60, 2, 1));
+
+        for (int i = 0; i < 100; ++i)
+        {
+            assertTrue(scheduler.acquire("device-" + i));
+            scheduler.release("device-" + i);
+        }
+        assertEquals(0, scheduler.getTargetCount());
+
+        // Targets with requests in flight are kept
+        assertTrue(scheduler.acquire("device"));
+        assertEquals(1, scheduler.getTargetCount());
+        scheduler.release("device");
+        assertEquals(0, scheduler.getTargetCount());
+
+        // Targets with a partially empty bucket are kept, or they would get a new full bucket
+        assertTrue(scheduler.acquire("limited"));
+        scheduler.release("limited");
+        assertEquals(1, scheduler.getTargetCount());
+        assertTrue(scheduler.acquire("limited"));
+        scheduler.release("limited");
+        assertFalse(scheduler.acquire("limited"));
+        assertEquals(0, scheduler.getInFlight());
+    }
+}
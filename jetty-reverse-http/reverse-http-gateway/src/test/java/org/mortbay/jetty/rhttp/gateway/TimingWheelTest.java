@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class TimingWheelTest extends TestCase
+{
+    public void testTaskExpiresAfterDelay() throws Exception
+    {
+        TimingWheel wheel = new TimingWheel(10, 8);
+        CountingTask task = new CountingTask();
+        wheel.schedule(task, 30);
+
+        // Never expires early: 30 ms are 3 ticks
+        for (int i = 0; i < 3; ++i)
+            wheel.tick();
+        assertEquals(0, task.count.get());
+        wheel.tick();
+        assertEquals(1, task.count.get());
+
+        // Expired tasks are not expired again
+        for (int i = 0; i < 16; ++i)
+            wheel.tick();
+        assertEquals(1, task.count.get());
+    }
+
+    public void testDelayLongerThanOneRound() throws Exception
+    {
+        TimingWheel wheel = new TimingWheel(10, 8);
+        CountingTask task = new CountingTask();
+        wheel.schedule(task, 10 * 20);
+        for (int i = 0; i < 20; ++i)
+            wheel.tick();
+        assertEquals(0, task.count.get());
+        wheel.tick();
+        assertEquals(1, task.count.get());
+    }
+
+    public void testRescheduleAndCancel() throws Exception
+    {
+        TimingWheel wheel = new TimingWheel(10, 8);
+        CountingTask task = new CountingTask();
+        wheel.schedule(task, 20);
+        wheel.tick();
+        wheel.tick();
+        // Rescheduling moves the task forward
+        wheel.schedule(task, 20);
+        wheel.tick();
+        wheel.tick();
+        assertEquals(0, task.count.get());
+        wheel.tick();
+        assertEquals(1, task.count.get());
+
+        wheel.schedule(task, 20);
+        assertTrue(wheel.cancel(task));
+        assertFalse(wheel.cancel(task));
+        for (int i = 0; i < 16; ++i)
+            wheel.tick();
+        assertEquals(1, task.count.get());
+    }
+
+    public void testExpiredTasksAreDispatchedToThreadPool() throws Exception
+    {
+        QueuedThreadPool threadPool = new QueuedThreadPool();
+        threadPool.start();
+        try
+        {
+            TimingWheel wheel = new TimingWheel(10, 8);
+            wheel.setThreadPool(threadPool);
+            final AtomicReference<Thread> expiringThread = new AtomicReference<Thread>();
+            final CountDownLatch latch = new CountDownLatch(1);
+            wheel.schedule(new TimingWheel.Task()
+            {
+                @Override
+                protected void expire()
+                {
+                    expiringThread.set(Thread.currentThread());
+                    latch.countDown();
+                }
+            }, 10);
+            wheel.tick();
+            wheel.tick();
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertNotSame(Thread.currentThread(), expiringThread.get());
+        }
+        finally
+        {
+            threadPool.stop();
+        }
+    }
+
+    private static class CountingTask extends TimingWheel.Task
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        protected void expire()
+        {
+            count.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.websocket.WebSocket;
+import org.eclipse.jetty.websocket.WebSocketClientFactory;
+import org.mortbay.jetty.rhttp.client.JettyClient;
+import org.mortbay.jetty.rhttp.client.RHTTPClient;
+import org.mortbay.jetty.rhttp.client.RHTTPListener;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class WebSocketTransportTest extends TestCase
+{
+    private GatewayServer server;
+    private HttpClient httpClient;
+    private WebSocketClientFactory webSocketClientFactory;
+    private Address address;
+
+    private void start(boolean webSocket) throws Exception
+    {
+        server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.getConnectorServlet().setInitParameter("webSocket", String.valueOf(webSocket));
+        server.start();
+        address = new Address("localhost", connector.getLocalPort());
+
+        httpClient = new HttpClient();
+        httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        httpClient.start();
+
+        webSocketClientFactory = new WebSocketClientFactory();
+        webSocketClientFactory.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        webSocketClientFactory.stop();
+        httpClient.stop();
+        server.stop();
+    }
+
+    public void testRequestsAndResponsesOverWebSocket() throws Exception
+    {
+        start(true);
+        JettyClient client = connect();
+        try
+        {
+            // The gateway attaches the channel when the WebSocket opens on its side
+            ClientDelegate delegate = server.getGateway().getClientDelegate("device");
+            long end = System.currentTimeMillis() + 5000;
+            while (delegate.getChannel() == null && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            assertNotNull(delegate.getChannel());
+
+            for (int i = 0; i < 3; ++i)
+                assertEquals("/resource" + i, get("/resource" + i));
+
+            client.disconnect();
+            // The gateway removes the client when the WebSocket closes
+            end = System.currentTimeMillis() + 5000;
+            while (server.getGateway().getClientDelegate("device") != null && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            assertNull(server.getGateway().getClientDelegate("device"));
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+
+    public void testFallbackToLongPolling() throws Exception
+    {
+        start(false);
+        JettyClient client = connect();
+        try
+        {
+            assertNull(server.getGateway().getClientDelegate("device").getChannel());
+            assertEquals("/resource", get("/resource"));
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+
+    public void testFallbackToLongPollingWhenWebSocketDoesNotOpen() throws Exception
+    {
+        start(true);
+        // The gateway server accepts WebSocket, but the client cannot open it
+        httpClient.setConnectTimeout(1000);
+        webSocketClientFactory.stop();
+        long start = System.nanoTime();
+        JettyClient client = connect();
+        try
+        {
+            // Connecting does not wait for the WebSocket connection
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < httpClient.getConnectTimeout());
+            assertEquals("/resource", get("/resource"));
+            assertNull(server.getGateway().getClientDelegate("device").getChannel());
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+
+    public void testWebSocketUpgradeRequiresSession() throws Exception
+    {
+        start(true);
+        JettyClient client = connect();
+        try
+        {
+            ClientDelegate delegate = server.getGateway().getClientDelegate("device");
+            long end = System.currentTimeMillis() + 5000;
+            while (delegate.getChannel() == null && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            ClientDelegate.Channel channel = delegate.getChannel();
+            assertNotNull(channel);
+
+            // Another peer that knows the targetId, but not the session, cannot take over the requests
+            String uri = "ws://localhost:" + address.getPort() + server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH + "/device/websocket";
+            assertFalse(openWebSocket(uri));
+            assertFalse(openWebSocket(uri + "?" + RHTTPClient.SESSION_PARAMETER + "=wrong"));
+            assertSame(channel, delegate.getChannel());
+            assertEquals("/resource", get("/resource"));
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+
+    private boolean openWebSocket(String uri) throws Exception
+    {
+        Future<WebSocket.Connection> future = webSocketClientFactory.newWebSocketClient().open(new URI(uri), new WebSocket.OnBinaryMessage()
+        {
+            public void onOpen(Connection connection)
+            {
+            }
+
+            public void onMessage(byte[] data, int offset, int length)
+            {
+            }
+
+            public void onClose(int closeCode, String message)
+            {
+            }
+        });
+        try
+        {
+            future.get(5, TimeUnit.SECONDS).close();
+            return true;
+        }
+        catch (ExecutionException x)
+        {
+            return false;
+        }
+    }
+
+    private JettyClient connect() throws Exception
+    {
+        final JettyClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "device");
+        client.setWebSocketEnabled(true);
+        client.setWebSocketClientFactory(webSocketClientFactory);
+        client.addListener(new RHTTPListener()
+        {
+            public void onRequest(RHTTPRequest request) throws Exception
+            {
+                // Echo the URI back, relative to the targetId
+                String uri = request.getURI();
+                String body = uri.substring(uri.indexOf("/device") + "/device".length());
+                client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), body.getBytes("UTF-8")));
+            }
+        });
+        client.connect();
+        return client;
+    }
+
+    private String get(String path) throws Exception
+    {
+        ContentExchange exchange = new ContentExchange(true);
+        exchange.setMethod(HttpMethods.GET);
+        exchange.setAddress(address);
+        exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/device" + path);
+        httpClient.send(exchange);
+        assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+        assertEquals(200, exchange.getResponseStatus());
+        return exchange.getResponseContent();
+    }
+}